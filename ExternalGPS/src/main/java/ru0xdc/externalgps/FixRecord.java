@@ -0,0 +1,203 @@
+package ru0xdc.externalgps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fix reported by native code. Holds a copy of one record of the ring
+ * shared with native code (struct fix_ring_t in usbconverter.h).
+ */
+public class FixRecord {
+
+    /* Layout of struct fix_ring_t */
+    static final int RING_SIZE = 16;
+    private static final int RING_OFFSET_HEAD = 0;
+    private static final int RING_HEADER_SIZE = 8;
+
+    /* Layout of struct fix_record_t */
+    private static final int OFFSET_TIME = 0;
+    private static final int OFFSET_LATITUDE = 8;
+    private static final int OFFSET_LONGITUDE = 16;
+    private static final int OFFSET_ALTITUDE = 24;
+    private static final int OFFSET_RCVD_NS = 32;
+    private static final int OFFSET_PARSED_NS = 40;
+    private static final int OFFSET_ACCURACY = 48;
+    private static final int OFFSET_BEARING = 52;
+    private static final int OFFSET_SPEED = 56;
+    private static final int OFFSET_PDOP = 60;
+    private static final int OFFSET_HDOP = 64;
+    private static final int OFFSET_VDOP = 68;
+    private static final int OFFSET_SATELLITES = 72;
+    private static final int OFFSET_MSG_TYPE = 76;
+    private static final int OFFSET_FLAGS = 77;
+    private static final int OFFSET_EPOCH_NS = 80;
+    private static final int OFFSET_FRAMED_NS = 88;
+    private static final int RECORD_SIZE = 96;
+
+    private static final int FLAG_VALID = 0x01;
+    private static final int FLAG_HAS_ACCURACY = 0x02;
+    private static final int FLAG_HAS_ALTITUDE = 0x04;
+    private static final int FLAG_HAS_BEARING = 0x08;
+    private static final int FLAG_HAS_SPEED = 0x10;
+
+    private final ByteBuffer mBuf;
+
+    public FixRecord() {
+        mBuf = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return number of the records written to the ring by native code
+     */
+    static int getRingHead(ByteBuffer ring) {
+        return ring.getInt(RING_OFFSET_HEAD);
+    }
+
+    /**
+     * Copies the record from the ring shared with native code
+     * @param seq sequence number of the record, less than getRingHead()
+     */
+    void set(ByteBuffer ring, int seq) {
+        final ByteBuffer s;
+        final int offset;
+
+        offset = RING_HEADER_SIZE + (seq & (RING_SIZE - 1)) * RECORD_SIZE;
+        s = ring.duplicate();
+        s.clear();
+        s.position(offset);
+        s.limit(offset + RECORD_SIZE);
+        mBuf.clear();
+        mBuf.put(s);
+    }
+
+    /**
+     * @return false if the receiver has no fix
+     */
+    public boolean isValid() {
+        return (mBuf.get(OFFSET_FLAGS) & FLAG_VALID) != 0;
+    }
+
+    /**
+     * @return UTC time of the fix, milliseconds since January 1, 1970
+     */
+    public long getTime() {
+        return mBuf.getLong(OFFSET_TIME);
+    }
+
+    public double getLatitude() {
+        return mBuf.getDouble(OFFSET_LATITUDE);
+    }
+
+    public double getLongitude() {
+        return mBuf.getDouble(OFFSET_LONGITUDE);
+    }
+
+    public boolean hasAltitude() {
+        return (mBuf.get(OFFSET_FLAGS) & FLAG_HAS_ALTITUDE) != 0;
+    }
+
+    /**
+     * @return altitude above mean sea level, meters
+     */
+    public double getAltitude() {
+        return mBuf.getDouble(OFFSET_ALTITUDE);
+    }
+
+    public boolean hasAccuracy() {
+        return (mBuf.get(OFFSET_FLAGS) & FLAG_HAS_ACCURACY) != 0;
+    }
+
+    /**
+     * @return horizontal accuracy, meters
+     */
+    public float getAccuracy() {
+        return mBuf.getFloat(OFFSET_ACCURACY);
+    }
+
+    public boolean hasBearing() {
+        return (mBuf.get(OFFSET_FLAGS) & FLAG_HAS_BEARING) != 0;
+    }
+
+    /**
+     * @return bearing, degrees true
+     */
+    public float getBearing() {
+        return mBuf.getFloat(OFFSET_BEARING);
+    }
+
+    public boolean hasSpeed() {
+        return (mBuf.get(OFFSET_FLAGS) & FLAG_HAS_SPEED) != 0;
+    }
+
+    /**
+     * @return speed over ground, meters/second
+     */
+    public float getSpeed() {
+        return mBuf.getFloat(OFFSET_SPEED);
+    }
+
+    /**
+     * @return position dilution of precision. NaN - undefined
+     */
+    public float getPdop() {
+        return mBuf.getFloat(OFFSET_PDOP);
+    }
+
+    /**
+     * @return horizontal dilution of precision. NaN - undefined
+     */
+    public float getHdop() {
+        return mBuf.getFloat(OFFSET_HDOP);
+    }
+
+    /**
+     * @return vertical dilution of precision. NaN - undefined
+     */
+    public float getVdop() {
+        return mBuf.getFloat(OFFSET_VDOP);
+    }
+
+    /**
+     * @return number of satellites used in fix. -1 - undefined
+     */
+    public int getSatellites() {
+        return mBuf.getInt(OFFSET_SATELLITES);
+    }
+
+    /**
+     * @return protocol of the message, one of UsbGpsConverter.MSG_TYPE_*
+     */
+    public int getMessageType() {
+        return mBuf.get(OFFSET_MSG_TYPE) & 0xff;
+    }
+
+    /**
+     * @return System.nanoTime() of the last byte of the message received
+     */
+    public long getReceivedNanos() {
+        return mBuf.getLong(OFFSET_RCVD_NS);
+    }
+
+    /**
+     * @return System.nanoTime() the message is parsed
+     */
+    public long getParsedNanos() {
+        return mBuf.getLong(OFFSET_PARSED_NS);
+    }
+
+    /**
+     * @return System.nanoTime() of the first message of the fix epoch received.
+     * Same as getReceivedNanos() for the single message fixes
+     */
+    public long getEpochNanos() {
+        return mBuf.getLong(OFFSET_EPOCH_NS);
+    }
+
+    /**
+     * @return System.nanoTime() the message is framed
+     */
+    public long getFramedNanos() {
+        return mBuf.getLong(OFFSET_FRAMED_NS);
+    }
+
+}
@@ -0,0 +1,124 @@
+package ru0xdc.externalgps;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with fixed log-linear buckets, HDR style.
+ * Values below 16 microseconds are counted exactly, larger values in 16
+ * sub-buckets per power of two: bucket width is at most 1/16 of the value.
+ * Recording is a few arithmetic operations, no allocations.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_NB = 1 << SUB_BUCKET_BITS;
+
+    /* Values are clamped to 2^32 - 1 us, ~71 minutes */
+    private static final int MAX_EXPONENT = 31;
+    static final int BUCKET_NB = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_NB;
+    private static final long MAX_VALUE_US = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final int mCounts[] = new int[BUCKET_NB];
+    private long mTotalCount;
+    private long mMaxUs;
+
+    public LatencyHistogram() {
+    }
+
+    public LatencyHistogram(final LatencyHistogram src) {
+        set(src);
+    }
+
+    /**
+     * @param us latency, microseconds. Negative values are counted as 0
+     */
+    public synchronized void record(long us) {
+        if (us < 0) {
+            us = 0;
+        }else if (us > MAX_VALUE_US) {
+            us = MAX_VALUE_US;
+        }
+        mCounts[bucketIndex(us)] += 1;
+        mTotalCount += 1;
+        if (us > mMaxUs) mMaxUs = us;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMaxUs = 0;
+    }
+
+    public void set(final LatencyHistogram src) {
+        if (src == this) return;
+        synchronized (src) {
+            synchronized (this) {
+                System.arraycopy(src.mCounts, 0, mCounts, 0, BUCKET_NB);
+                mTotalCount = src.mTotalCount;
+                mMaxUs = src.mMaxUs;
+            }
+        }
+    }
+
+    /**
+     * @return number of the recorded values
+     */
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return maximum recorded value, microseconds
+     */
+    public synchronized long getMaxUs() {
+        return mMaxUs;
+    }
+
+    /**
+     * @param percentile 0.0 - 100.0
+     * @return upper bound of the bucket holding the percentile, microseconds.
+     * Not above getMaxUs(). 0 if no values recorded
+     */
+    public synchronized long getPercentileUs(double percentile) {
+        long rank, count;
+
+        if (mTotalCount == 0) return 0;
+
+        rank = (long)Math.ceil(percentile / 100.0 * mTotalCount);
+        if (rank < 1) rank = 1;
+        if (rank > mTotalCount) rank = mTotalCount;
+
+        count = 0;
+        for (int i = 0; i < BUCKET_NB; ++i) {
+            count += mCounts[i];
+            if (count >= rank) return Math.min(bucketUpperBound(i), mMaxUs);
+        }
+        return mMaxUs;
+    }
+
+    public long getP50Us() {
+        return getPercentileUs(50.0);
+    }
+
+    public long getP99Us() {
+        return getPercentileUs(99.0);
+    }
+
+    static int bucketIndex(long us) {
+        final int exponent;
+
+        if (us < SUB_BUCKET_NB) return (int)us;
+        exponent = 63 - Long.numberOfLeadingZeros(us);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_NB
+                + (int)((us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_NB - 1));
+    }
+
+    static long bucketUpperBound(int index) {
+        final int shift;
+
+        if (index < SUB_BUCKET_NB) return index;
+        shift = index / SUB_BUCKET_NB - 1;
+        return ((long)(SUB_BUCKET_NB + index % SUB_BUCKET_NB + 1) << shift) - 1;
+    }
+
+}
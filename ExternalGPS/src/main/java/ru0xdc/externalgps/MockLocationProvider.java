@@ -48,6 +48,20 @@ public class MockLocationProvider {
         }
     }
 
+    /**
+     * Receives the latency of the locations passed to setTestProviderLocation()
+     */
+    public interface LatencyListener {
+
+        /**
+         * Called on the thread the provider is attached on
+         * @param dispatchUs time from the location report to the handler dispatch, microseconds
+         * @param injectUs time spent in setTestProviderLocation(), microseconds
+         * @param totalUs time from the start of the fix to the end of the injection, microseconds
+         */
+        public void onLocationInjected(long dispatchUs, long injectUs, long totalUs);
+    }
+
     private static final int MESSAGE_NEW_LOCATION = 0;
 
     private String mName;
@@ -69,6 +83,8 @@ public class MockLocationProvider {
 
     private volatile Handler mHandler;
 
+    private volatile LatencyListener mLatencyListener;
+
     public MockLocationProvider() {
         this(DEFAULT_NAME);
     }
@@ -229,18 +245,45 @@ public class MockLocationProvider {
         }
     }
 
+    /**
+     * Sets the listener of the injection latency. null - no listener
+     */
+    public void setLatencyListener(LatencyListener listener) {
+        mLatencyListener = listener;
+    }
+
     /**
      *
      * @see LocationManager#setTestProviderLocation(String, Location)
      */
-    public synchronized void setLocation(Location location) throws IllegalArgumentException {
+    public void setLocation(Location location) throws IllegalArgumentException {
+        final long now = System.nanoTime();
+        setLocation(location, now, now);
+    }
+
+    /**
+     * @param reportNs System.nanoTime() the location is reported by the receiver
+     * @param fixStartNs System.nanoTime() the first byte of the fix is received
+     * @see LocationManager#setTestProviderLocation(String, Location)
+     */
+    public synchronized void setLocation(Location location, long reportNs, long fixStartNs)
+            throws IllegalArgumentException {
         if (mHandler != null) {
-            mHandler.obtainMessage(MESSAGE_NEW_LOCATION, location).sendToTarget();
+            // Low 32 bits of the report time, microseconds: differences are
+            // correct for the intervals up to 35 minutes
+            mHandler.obtainMessage(MESSAGE_NEW_LOCATION,
+                    (int)((reportNs - fixStartNs) / 1000),
+                    (int)(reportNs / 1000),
+                    location).sendToTarget();
         }
     }
 
-    private void setNewLocation(final Location l) {
+    private void setNewLocation(final Location l, int reportAgeUs, int reportTimeUs) {
+        final LatencyListener listener;
+        final long dispatchNs, injectedNs;
+        final int dispatchUs;
 
+        dispatchNs = System.nanoTime();
         if (l == null) {
             mHasLastKnownLocation = false;
             if (mDeviceStatus == Status.AVAILABLE) {
@@ -255,6 +298,14 @@ public class MockLocationProvider {
             }
             if (mAttached) {
                 mLocationManager.setTestProviderLocation(mAttachedName, mLastKnownLocation);
+                injectedNs = System.nanoTime();
+
+                listener = mLatencyListener;
+                if (listener != null) {
+                    dispatchUs = (int)(dispatchNs / 1000) - reportTimeUs;
+                    listener.onLocationInjected(dispatchUs, (injectedNs - dispatchNs) / 1000,
+                            (long)reportAgeUs + dispatchUs + (injectedNs - dispatchNs) / 1000);
+                }
             }
         }
     }
@@ -266,7 +317,7 @@ public class MockLocationProvider {
         public boolean handleMessage(Message msg) {
             switch (msg.what) {
                 case MESSAGE_NEW_LOCATION:
-                    setNewLocation((Location)msg.obj);
+                    setNewLocation((Location)msg.obj, msg.arg1, msg.arg2);
                     return true;
             }
             return false;
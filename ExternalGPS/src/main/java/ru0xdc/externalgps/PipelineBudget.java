@@ -0,0 +1,175 @@
+package ru0xdc.externalgps;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Checks that the receive pipeline sustains the configured navigation rate.
+ * Utilization of each stage is computed from the difference of two StatsNative
+ * snapshots. The stage with the highest utilization is reported as the bottleneck
+ * when the fix rate falls below the target or a stage is over its budget.
+ */
+public class PipelineBudget {
+
+    // Debugging
+    private static final String TAG = PipelineBudget.class.getSimpleName();
+    private static final boolean DBG = BuildConfig.DEBUG & true;
+
+    public static final long CHECK_INTERVAL_MS = 10000;
+
+    /* Fraction of the target fix rate below which the pipeline is overloaded */
+    public static final double MIN_FIX_RATE_RATIO = 0.9;
+
+    /* Link utilization limit. 10 bits per byte on the wire */
+    public static final double MAX_LINK_UTILIZATION = 0.9;
+
+    /* Limit on the parser thread share of a single stage */
+    public static final double MAX_STAGE_UTILIZATION = 0.5;
+
+    /* Ring fill level limit. High water mark is kept since connect, checked on low fix rate only */
+    public static final double MAX_RING_FILL = 0.75;
+
+    public static enum Stage {
+        /* Receiver does not output fixes at the target rate, other stages are idle */
+        RECEIVER,
+        LINK,
+        READER,
+        FRAMER,
+        PARSER,
+        JNI,
+        PROVIDER
+    };
+
+    private final int mTargetRate;
+
+    private StatsNative mPrevStats;
+    private long mPrevProviderNs;
+    private long mPrevTimeMs;
+
+    private final double mUtilization[] = new double[Stage.values().length];
+    private double mFixRate;
+
+    /**
+     * @param targetRate navigation rate, Hz
+     */
+    public PipelineBudget(int targetRate) {
+        if (targetRate <= 0) throw new IllegalArgumentException();
+        mTargetRate = targetRate;
+    }
+
+    public int getTargetRate() {
+        return mTargetRate;
+    }
+
+    /**
+     * @return fix rate over the last checked interval, Hz
+     */
+    public double getFixRate() {
+        return mFixRate;
+    }
+
+    /**
+     * @return utilization of the stage over the last checked interval.
+     * Share of the line capacity for LINK, of the ring size for READER,
+     * of the wall time for the parser thread stages.
+     */
+    public double getUtilization(Stage stage) {
+        return mUtilization[stage.ordinal()];
+    }
+
+    /**
+     * @param stats native stats snapshot
+     * @param providerNs total time spent in MockLocationProvider.setLocation(), nanoseconds
+     * @param nowMs SystemClock.elapsedRealtime()
+     * @return bottleneck stage if the pipeline does not sustain the target rate, null otherwise.
+     * Also null for the first snapshot.
+     */
+    public Stage check(StatsNative stats, long providerNs, long nowMs) {
+        final StatsNative prev = mPrevStats;
+        final long prevProviderNs = mPrevProviderNs;
+        final double intervalS, intervalNs;
+        final long droppedBytes;
+        boolean overloaded;
+        Stage bottleneck;
+
+        intervalS = (nowMs - mPrevTimeMs) / 1000.0;
+        mPrevStats = stats;
+        mPrevProviderNs = providerNs;
+        mPrevTimeMs = nowMs;
+        if (prev == null || intervalS <= 0) return null;
+        intervalNs = intervalS * 1.0e9;
+
+        mFixRate = (stats.getPipelineFixes() - prev.getPipelineFixes()) / intervalS;
+
+        if (stats.getUsbBaudrate() > 0) {
+            mUtilization[Stage.LINK.ordinal()] = 10.0
+                    * (stats.getReceivedBytes() - prev.getReceivedBytes())
+                    / stats.getUsbBaudrate() / intervalS;
+        }else {
+            mUtilization[Stage.LINK.ordinal()] = 0;
+        }
+
+        droppedBytes = stats.getUsbDroppedBytes() - prev.getUsbDroppedBytes();
+        if (droppedBytes > 0) {
+            mUtilization[Stage.READER.ordinal()] = 1.0;
+        }else if (stats.getUsbRingSize() > 0) {
+            mUtilization[Stage.READER.ordinal()] =
+                    (double)stats.getUsbRingHighWater() / stats.getUsbRingSize();
+        }else {
+            mUtilization[Stage.READER.ordinal()] = 0;
+        }
+
+        mUtilization[Stage.FRAMER.ordinal()] =
+                (stats.getPipelineFramerNs() - prev.getPipelineFramerNs()) / intervalNs;
+        mUtilization[Stage.PARSER.ordinal()] =
+                (stats.getPipelineParserNs() - prev.getPipelineParserNs()) / intervalNs;
+        mUtilization[Stage.PROVIDER.ordinal()] = (providerNs - prevProviderNs) / intervalNs;
+        mUtilization[Stage.JNI.ordinal()] = Math.max(0,
+                (stats.getPipelineReportNs() - prev.getPipelineReportNs()) / intervalNs
+                - mUtilization[Stage.PROVIDER.ordinal()]);
+
+        overloaded = mFixRate < MIN_FIX_RATE_RATIO * mTargetRate;
+        bottleneck = null;
+        if (mUtilization[Stage.LINK.ordinal()] > MAX_LINK_UTILIZATION) {
+            bottleneck = Stage.LINK;
+        }else if (droppedBytes > 0
+                || (overloaded && mUtilization[Stage.READER.ordinal()] > MAX_RING_FILL)) {
+            bottleneck = Stage.READER;
+        }else {
+            for (Stage s: new Stage[] { Stage.FRAMER, Stage.PARSER, Stage.JNI, Stage.PROVIDER }) {
+                if (bottleneck == null
+                        || mUtilization[s.ordinal()] > mUtilization[bottleneck.ordinal()]) {
+                    bottleneck = s;
+                }
+            }
+            if (mUtilization[bottleneck.ordinal()] <= MAX_STAGE_UTILIZATION) {
+                bottleneck = overloaded ? Stage.RECEIVER : null;
+            }
+        }
+
+        if (DBG || bottleneck != null) {
+            final String msg = toString();
+            if (bottleneck != null) {
+                Log.w(TAG, "Pipeline overloaded, bottleneck: " + bottleneck + ". " + msg);
+            }else {
+                Log.v(TAG, msg);
+            }
+        }
+
+        return bottleneck;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "fix rate %.1f/%d Hz", mFixRate, mTargetRate));
+        for (Stage s: Stage.values()) {
+            if (s == Stage.RECEIVER) continue;
+            sb.append(String.format(Locale.US, ", %s %.1f%%",
+                    s.name().toLowerCase(Locale.US), 100.0 * mUtilization[s.ordinal()]));
+        }
+        return sb.toString();
+    }
+
+}
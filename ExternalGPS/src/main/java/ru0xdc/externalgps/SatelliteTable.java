@@ -0,0 +1,166 @@
+package ru0xdc.externalgps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Satellites in view of one epoch received from the GSV sentences.
+ * Holds a copy of the native table (struct gps_satellites_t in usbconverter.h)
+ * in a single buffer, satellites are read by index.
+ */
+public class SatelliteTable {
+
+    public static final int MAX_SATELLITES = 128;
+
+    public static final int ELEVATION_UNKNOWN = Byte.MIN_VALUE;
+    public static final int AZIMUTH_UNKNOWN = 0xffff;
+
+    /* Layout of struct gps_satellites_t */
+    private static final int OFFSET_SEQ = 0;
+    private static final int OFFSET_COUNT = 4;
+    private static final int OFFSET_HHMMSS = 8;
+    private static final int OFFSET_MSS = 12;
+    private static final int OFFSET_USED_NB = 16;
+    private static final int OFFSET_PDOP = 20;
+    private static final int OFFSET_HDOP = 24;
+    private static final int OFFSET_VDOP = 28;
+    private static final int HEADER_SIZE = 32;
+
+    /* Layout of struct gps_satellite_t */
+    private static final int OFFSET_PRN = 0;
+    private static final int OFFSET_TALKER = 2;
+    private static final int OFFSET_ELEVATION = 3;
+    private static final int OFFSET_AZIMUTH = 4;
+    private static final int OFFSET_SNR = 6;
+    private static final int OFFSET_FLAGS = 7;
+    private static final int SATELLITE_SIZE = 8;
+
+    private static final int FLAG_USED_IN_FIX = 0x01;
+
+    static final int SIZE = HEADER_SIZE + MAX_SATELLITES * SATELLITE_SIZE;
+
+    private final ByteBuffer mBuf;
+
+    public SatelliteTable() {
+        mBuf = ByteBuffer.allocate(SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copies the table from the buffer shared with native code if a new epoch
+     * is published since the last copy. The caller holds the monitor of src.
+     * @return true if the table is updated
+     */
+    boolean set(ByteBuffer src) {
+        final ByteBuffer s;
+        final int count;
+
+        if (src.getInt(OFFSET_SEQ) == mBuf.getInt(OFFSET_SEQ)) return false;
+
+        count = Math.min(src.getInt(OFFSET_COUNT), MAX_SATELLITES);
+        s = src.duplicate();
+        s.clear();
+        s.limit(HEADER_SIZE + count * SATELLITE_SIZE);
+        mBuf.clear();
+        mBuf.put(s);
+        return true;
+    }
+
+    /**
+     * @return sequence number of the epoch, incremented on each published table. 0 - no table
+     */
+    public int getSeq() {
+        return mBuf.getInt(OFFSET_SEQ);
+    }
+
+    /**
+     * @return number of satellites in view
+     */
+    public int getCount() {
+        return mBuf.getInt(OFFSET_COUNT);
+    }
+
+    /**
+     * @return fix time of the epoch, milliseconds since UTC midnight
+     */
+    public long getTimeOfDay() {
+        final int hhmmss = mBuf.getInt(OFFSET_HHMMSS);
+        return ((hhmmss / 10000) * 3600L + ((hhmmss / 100) % 100) * 60L + hhmmss % 100) * 1000L
+                + mBuf.getInt(OFFSET_MSS);
+    }
+
+    /**
+     * @return number of satellites used in fix from all GSA sentences of the epoch
+     */
+    public int getUsedCount() {
+        return mBuf.getInt(OFFSET_USED_NB);
+    }
+
+    /**
+     * @return position dilution of precision. NaN - undefined
+     */
+    public float getPdop() {
+        return mBuf.getFloat(OFFSET_PDOP);
+    }
+
+    /**
+     * @return horizontal dilution of precision. NaN - undefined
+     */
+    public float getHdop() {
+        return mBuf.getFloat(OFFSET_HDOP);
+    }
+
+    /**
+     * @return vertical dilution of precision. NaN - undefined
+     */
+    public float getVdop() {
+        return mBuf.getFloat(OFFSET_VDOP);
+    }
+
+    /**
+     * @return satellite ID as reported by the receiver. Numbering depends on the talker
+     */
+    public int getPrn(int i) {
+        return mBuf.getShort(offset(i) + OFFSET_PRN) & 0xffff;
+    }
+
+    /**
+     * @return talker of the GSV sentence, one of StatsNative.NMEA_TALKER_*
+     */
+    public int getTalker(int i) {
+        return mBuf.get(offset(i) + OFFSET_TALKER) & 0xff;
+    }
+
+    /**
+     * @return elevation, degrees. ELEVATION_UNKNOWN - undefined
+     */
+    public int getElevation(int i) {
+        return mBuf.get(offset(i) + OFFSET_ELEVATION);
+    }
+
+    /**
+     * @return azimuth, degrees true. AZIMUTH_UNKNOWN - undefined
+     */
+    public int getAzimuth(int i) {
+        return mBuf.getShort(offset(i) + OFFSET_AZIMUTH) & 0xffff;
+    }
+
+    /**
+     * @return C/N0, dB-Hz. 0 - satellite is not tracked
+     */
+    public int getSnr(int i) {
+        return mBuf.get(offset(i) + OFFSET_SNR) & 0xff;
+    }
+
+    /**
+     * @return true if the satellite is listed in a GSA sentence of its constellation
+     */
+    public boolean isUsedInFix(int i) {
+        return (mBuf.get(offset(i) + OFFSET_FLAGS) & FLAG_USED_IN_FIX) != 0;
+    }
+
+    private int offset(int i) {
+        if (i < 0 || i >= getCount()) throw new IndexOutOfBoundsException();
+        return HEADER_SIZE + i * SATELLITE_SIZE;
+    }
+
+}
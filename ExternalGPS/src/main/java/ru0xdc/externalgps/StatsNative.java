@@ -1,116 +1,730 @@
 package ru0xdc.externalgps;
 
-import proguard.annotation.Keep;
-import proguard.annotation.KeepClassMemberNames;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
 import proguard.annotation.KeepName;
 
 @KeepName
 class StatsNative {
 
-    private long mStartTs;
+    static final int PROTOCOL_NB = 4;
+
+    /* NMEA talkers. See enum nmea_talker_t in usbconverter.h */
+    public static final int NMEA_TALKER_GP = 0;
+    public static final int NMEA_TALKER_GL = 1;
+    public static final int NMEA_TALKER_GA = 2;
+    public static final int NMEA_TALKER_GB = 3;
+    public static final int NMEA_TALKER_GQ = 4;
+    public static final int NMEA_TALKER_GI = 5;
+    public static final int NMEA_TALKER_GN = 6;
+    public static final int NMEA_TALKER_PROPRIETARY = 7;
+    public static final int NMEA_TALKER_OTHER = 8;
+    static final int NMEA_TALKER_NB = 9;
+
+    /* Fix latency stages. See getLatency() */
+    /** First byte of the epoch received - message that completes the fix framed */
+    public static final int LATENCY_EPOCH = 0;
+    /** Message framed - fix closed by the parser */
+    public static final int LATENCY_PARSE = 1;
+    /** Fix closed - JNI upcall */
+    public static final int LATENCY_UPCALL = 2;
+    /** JNI upcall - location handler dispatch */
+    public static final int LATENCY_DISPATCH = 3;
+    /** Handler dispatch - LocationManager.setTestProviderLocation() returned */
+    public static final int LATENCY_INJECT = 4;
+    /** First byte of the epoch received - setTestProviderLocation() returned */
+    public static final int LATENCY_TOTAL = 5;
+    static final int LATENCY_STAGE_NB = 6;
+
+    /* Rate windows. See getByteRate() */
+    public static final int RATE_WINDOW_1S = 0;
+    public static final int RATE_WINDOW_10S = 1;
+    public static final int RATE_WINDOW_60S = 2;
+    static final int RATE_WINDOW_NB = 3;
+
+    /* Rate counters. See enum stats_rate_counter_t in usbconverter.h */
+    private static final int RATE_BYTES = 0;
+    private static final int RATE_JUNK = 1;
+    private static final int RATE_FIXES = 2;
+    private static final int RATE_MSGS = 3;
+    private static final int RATE_NB = RATE_MSGS + PROTOCOL_NB;
+
+    /* Layout of struct stats_snapshot_t */
+    private static final int OFFSET_SEQ = 0;
+    private static final int OFFSET_START_TS = 8;
+    private static final int OFFSET_LAST_BYTE_TS = 16;
+    private static final int OFFSET_RCVD_BYTES = 24;
+    private static final int OFFSET_RCVD_JUNK = 32;
+
+    private static final int OFFSET_NMEA_LAST_MSG_TS = 40;
+    private static final int OFFSET_NMEA_TOTAL = 48;
+    private static final int OFFSET_NMEA_GGA = 56;
+    private static final int OFFSET_NMEA_RMC = 64;
+    private static final int OFFSET_NMEA_GLL = 72;
+    private static final int OFFSET_NMEA_GST = 80;
+    private static final int OFFSET_NMEA_GSA = 88;
+    private static final int OFFSET_NMEA_VTG = 96;
+    private static final int OFFSET_NMEA_ZDA = 104;
+    private static final int OFFSET_NMEA_GSV = 112;
+    private static final int OFFSET_NMEA_PUBX = 120;
+    private static final int OFFSET_NMEA_OTHER = 128;
+    private static final int OFFSET_NMEA_TALKER = 136;
+    private static final int OFFSET_NMEA_EPOCH_CLOSED_EARLY = 208;
+    private static final int OFFSET_NMEA_EPOCH_CLOSED_LATE = 216;
+    private static final int OFFSET_NMEA_EPOCH_CLOSED_TIMEOUT = 224;
+    private static final int OFFSET_NMEA_EPOCH_LATENCY_NS = 232;
+    private static final int OFFSET_NMEA_EPOCH_SAVED_NS = 240;
+
+    private static final int OFFSET_SIRF_LAST_MSG_TS = 248;
+    private static final int OFFSET_SIRF_TOTAL = 256;
+    private static final int OFFSET_SIRF_MID41 = 264;
+
+    private static final int OFFSET_UBLOX_LAST_MSG_TS = 272;
+    private static final int OFFSET_UBLOX_TOTAL = 280;
+    private static final int OFFSET_UBLOX_NAV_PVT = 288;
+    private static final int OFFSET_UBLOX_NAV_POSLLH = 296;
+    private static final int OFFSET_UBLOX_NAV_STATUS = 304;
+
+    private static final int OFFSET_RTCM3_LAST_MSG_TS = 312;
+    private static final int OFFSET_RTCM3_TOTAL = 320;
+
+    private static final int OFFSET_PROTOCOL_MSGS = 328;
+    private static final int OFFSET_PROTOCOL_BYTES = 360;
+
+    private static final int OFFSET_USB_URB_NB = 392;
+    private static final int OFFSET_USB_URB_SIZE = 400;
+    private static final int OFFSET_USB_URBS_IN_FLIGHT = 408;
+    private static final int OFFSET_USB_URBS_MAX_IN_FLIGHT = 416;
+    private static final int OFFSET_USB_URBS_REAPED = 424;
+    private static final int OFFSET_USB_URBS_REAPED_FULL = 432;
+    private static final int OFFSET_USB_URB_BYTES = 440;
+    private static final int OFFSET_USB_RING_SIZE = 448;
+    private static final int OFFSET_USB_RING_HIGH_WATER = 456;
+    private static final int OFFSET_USB_DROPPED_BYTES = 464;
+    private static final int OFFSET_USB_BAUDRATE = 472;
+    private static final int OFFSET_USB_CYCLE_US = 480;
+    private static final int OFFSET_USB_REQ_LEN = 488;
+    private static final int OFFSET_USB_READER_WAKEUPS = 496;
+    private static final int OFFSET_USB_READER_BYTES = 504;
+    private static final int OFFSET_USB_CONSUMER_WAKEUPS = 512;
+
+    private static final int OFFSET_PIPELINE_FRAMER_NS = 520;
+    private static final int OFFSET_PIPELINE_PARSER_NS = 528;
+    private static final int OFFSET_PIPELINE_REPORT_NS = 536;
+    private static final int OFFSET_PIPELINE_FIXES = 544;
+
+    private static final int OFFSET_RATE_SECONDS = 552;
+    private static final int OFFSET_RATE_SUM = 576;
+
+    private static final int OFFSET_DATALOGGER_ACTIVE = 744;
+    private static final int OFFSET_DATALOGGER_BUFFER_SIZE = 752;
+    private static final int OFFSET_DATALOGGER_BUFFER_POS = 760;
+    private static final int OFFSET_DATALOGGER_BUFFER_HIGH_WATER = 768;
+    private static final int OFFSET_DATALOGGER_BYTES_WRITTEN = 776;
+    private static final int OFFSET_DATALOGGER_BYTES_LOST = 784;
+    private static final int OFFSET_DATALOGGER_BUFFERS_DROPPED = 792;
+
+    private static final int OFFSET_PUBLISH_TS = 800;
+
+    static final int SIZE = 808;
+
+    private static final String NMEA_TALKER_NAMES[] = {
+        "GP", "GL", "GA", "GB", "GQ", "GI", "GN", "P", "other"
+    };
 
-    private long mReceivedBytes;
-    private long mReceivedJunk;
-    private long mLastReceivedByteTs;
+    /* Indexed by UsbGpsConverter.MSG_TYPE_* */
+    private static final String PROTOCOL_NAMES[] = { "nmea", "sirf", "ublox", "rtcm3" };
 
-    private long mNmeaLastMsgTs;
-    private long mNmeaTotal;
-    private long mNmeaGga;
-    private long mNmeaRmc;
-    private long mNmeaGll;
-    private long mNmeaGst;
-    private long mNmeaGsa;
-    private long mNmeaVtg;
-    private long mNmeaZda;
-    private long mNmeaGsv;
-    private long mNmeaPubx;
-    private long mNmeaOther;
+    private static final String RATE_WINDOW_NAMES[] = { "1s", "10s", "60s" };
 
-    private long mSirfLastMsgTs;
-    private long mSirfTotal;
-    private long mSirfMid41;
+    private static final String LATENCY_STAGE_NAMES[] = {
+        "epoch", "parse", "upcall", "dispatch", "inject", "total"
+    };
 
-    private long mUbloxLastMsgTs;
-    private long mUbloxTotal;
+    private final ByteBuffer mBuf;
+
+    /* Indexed by LATENCY_* */
+    private final LatencyHistogram mLatency[] = new LatencyHistogram[LATENCY_STAGE_NB];
 
     public StatsNative() {
+        mBuf = ByteBuffer.allocate(SIZE).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < LATENCY_STAGE_NB; ++i) {
+            mLatency[i] = new LatencyHistogram();
+        }
     }
 
     public StatsNative(final StatsNative src) {
+        this();
         set(src);
     }
 
+    /**
+     * @return number of the snapshots published by native code since the start
+     */
+    public long getPublishCount() {
+        return (mBuf.getInt(OFFSET_SEQ) & 0xffffffffL) / 2;
+    }
+
     public long getStartTs() {
-        return mStartTs;
+        return get(OFFSET_START_TS);
     }
 
     public long getReceivedBytes() {
-        return mReceivedBytes;
+        return get(OFFSET_RCVD_BYTES);
     }
 
     public long getReceivedJunk() {
-        return mReceivedJunk;
+        return get(OFFSET_RCVD_JUNK);
     }
 
     public long getLastReceivedByteTs() {
-        return mLastReceivedByteTs;
+        return get(OFFSET_LAST_BYTE_TS);
     }
 
     public long getLastValidMsgTs() {
-        return Math.max(Math.max(mUbloxLastMsgTs, mSirfLastMsgTs), mNmeaLastMsgTs);
+        return Math.max(Math.max(Math.max(get(OFFSET_UBLOX_LAST_MSG_TS), get(OFFSET_SIRF_LAST_MSG_TS)),
+                get(OFFSET_NMEA_LAST_MSG_TS)), get(OFFSET_RTCM3_LAST_MSG_TS));
     }
 
     public long getValidMsgCount() {
-        return mNmeaTotal + mSirfTotal + mUbloxTotal;
+        return get(OFFSET_NMEA_TOTAL) + get(OFFSET_SIRF_TOTAL) + get(OFFSET_UBLOX_TOTAL)
+                + get(OFFSET_RTCM3_TOTAL);
+    }
+
+    /**
+     * @param talker one of NMEA_TALKER_*
+     * @return number of valid NMEA sentences of the talker received
+     */
+    public long getNmeaTalkerCount(int talker) {
+        return get(OFFSET_NMEA_TALKER + 8 * talker);
+    }
+
+    /**
+     * @return number of NMEA fixes closed on the learned last sentence of the epoch
+     */
+    public long getNmeaEpochsClosedEarly() {
+        return get(OFFSET_NMEA_EPOCH_CLOSED_EARLY);
+    }
+
+    /**
+     * @return number of NMEA fixes closed on the first sentence of the next epoch
+     */
+    public long getNmeaEpochsClosedLate() {
+        return get(OFFSET_NMEA_EPOCH_CLOSED_LATE);
     }
 
+    /**
+     * @return number of NMEA fixes closed on the read timeout
+     */
+    public long getNmeaEpochsClosedTimeout() {
+        return get(OFFSET_NMEA_EPOCH_CLOSED_TIMEOUT);
+    }
+
+    /**
+     * @return average time from the first sentence of the epoch to the fix report,
+     * milliseconds. Fixes closed on the timeout are not counted
+     */
+    public double getNmeaEpochAverageLatencyMs() {
+        final long closed = get(OFFSET_NMEA_EPOCH_CLOSED_EARLY) + get(OFFSET_NMEA_EPOCH_CLOSED_LATE);
+        if (closed == 0) return 0;
+        return get(OFFSET_NMEA_EPOCH_LATENCY_NS) / 1.0e6 / closed;
+    }
+
+    /**
+     * @return average time the fix is reported earlier than the next epoch starts
+     * on the early close, milliseconds
+     */
+    public double getNmeaEpochAverageSavedMs() {
+        final long closedEarly = get(OFFSET_NMEA_EPOCH_CLOSED_EARLY);
+        if (closedEarly == 0) return 0;
+        return get(OFFSET_NMEA_EPOCH_SAVED_NS) / 1.0e6 / closedEarly;
+    }
+
+    /**
+     * @return number of u-blox NAV-PVT messages received
+     */
+    public long getUbloxNavPvt() {
+        return get(OFFSET_UBLOX_NAV_PVT);
+    }
+
+    /**
+     * @return number of u-blox NAV-POSLLH messages received
+     */
+    public long getUbloxNavPosllh() {
+        return get(OFFSET_UBLOX_NAV_POSLLH);
+    }
+
+    /**
+     * @return number of RTCM3 messages received
+     */
+    public long getRtcm3Total() {
+        return get(OFFSET_RTCM3_TOTAL);
+    }
+
+    /**
+     * @param type message type, one of UsbGpsConverter.MSG_TYPE_*
+     * @return number of valid messages of the type received
+     */
+    public long getProtocolMsgCount(int type) {
+        return get(OFFSET_PROTOCOL_MSGS + 8 * type);
+    }
+
+    /**
+     * @param type message type, one of UsbGpsConverter.MSG_TYPE_*
+     * @return number of bytes in the valid messages of the type
+     */
+    public long getProtocolBytes(int type) {
+        return get(OFFSET_PROTOCOL_BYTES + 8 * type);
+    }
+
+    /**
+     * @return number of URBs submitted by the asynchronous USB reader.
+     * 0 if the synchronous bulk reader is used
+     */
+    public long getUsbUrbQueueSize() {
+        return get(OFFSET_USB_URB_NB);
+    }
+
+    /**
+     * @return number of URBs currently in flight
+     */
+    public long getUsbUrbsInFlight() {
+        return get(OFFSET_USB_URBS_IN_FLIGHT);
+    }
+
+    /**
+     * @return maximum number of URBs in flight since connect
+     */
+    public long getUsbUrbsMaxInFlight() {
+        return get(OFFSET_USB_URBS_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @return number of completed URBs
+     */
+    public long getUsbUrbsReaped() {
+        return get(OFFSET_USB_URBS_REAPED);
+    }
+
+    /**
+     * @return number of URBs completed with the whole buffer filled.
+     * Non-zero value means the adapter had more data queued than one URB can carry
+     */
+    public long getUsbUrbsReapedFull() {
+        return get(OFFSET_USB_URBS_REAPED_FULL);
+    }
+
+    /**
+     * @return average fill of the completed URB buffers, 0.0 - 1.0
+     */
+    public double getUsbUrbAverageFill() {
+        final long reaped = get(OFFSET_USB_URBS_REAPED);
+        final long urbSize = get(OFFSET_USB_URB_SIZE);
+        if (reaped == 0 || urbSize == 0) return 0;
+        return (double)get(OFFSET_USB_URB_BYTES) / (double)(reaped * urbSize);
+    }
+
+    /**
+     * @return size of the native receive ring buffer, bytes
+     */
+    public long getUsbRingSize() {
+        return get(OFFSET_USB_RING_SIZE);
+    }
+
+    /**
+     * @return maximum fill level of the receive ring buffer since connect, bytes
+     */
+    public long getUsbRingHighWater() {
+        return get(OFFSET_USB_RING_HIGH_WATER);
+    }
+
+    /**
+     * @return number of received bytes lost on receive ring buffer overflow
+     */
+    public long getUsbDroppedBytes() {
+        return get(OFFSET_USB_DROPPED_BYTES);
+    }
+
+    /**
+     * @return line rate used by the native reader scheduler, 0 if unknown
+     */
+    public long getUsbBaudrate() {
+        return get(OFFSET_USB_BAUDRATE);
+    }
+
+    /**
+     * @return current poll interval of the synchronous bulk reader, microseconds.
+     * 0 if the asynchronous URB reader is used
+     */
+    public long getUsbPollIntervalUs() {
+        return get(OFFSET_USB_CYCLE_US);
+    }
+
+    /**
+     * @return current request size of the synchronous bulk reader, bytes.
+     * 0 if the asynchronous URB reader is used
+     */
+    public long getUsbRequestSize() {
+        return get(OFFSET_USB_REQ_LEN);
+    }
+
+    /**
+     * @return number of USB reader thread wakeups since connect
+     */
+    public long getUsbReaderWakeups() {
+        return get(OFFSET_USB_READER_WAKEUPS);
+    }
+
+    /**
+     * @return number of wakeups of the thread parsing the received data since connect
+     */
+    public long getUsbConsumerWakeups() {
+        return get(OFFSET_USB_CONSUMER_WAKEUPS);
+    }
+
+    /**
+     * @return average USB reader thread wakeups per second since connect
+     */
+    public double getUsbReaderWakeupsPerSecond() {
+        return getRatePerSecond(get(OFFSET_USB_READER_WAKEUPS));
+    }
+
+    /**
+     * @return average parser thread wakeups per second since connect
+     */
+    public double getUsbConsumerWakeupsPerSecond() {
+        return getRatePerSecond(get(OFFSET_USB_CONSUMER_WAKEUPS));
+    }
+
+    /**
+     * @return average number of bytes received per USB reader thread wakeup
+     */
+    public double getUsbBytesPerReaderWakeup() {
+        final long wakeups = get(OFFSET_USB_READER_WAKEUPS);
+        if (wakeups == 0) return 0;
+        return (double)get(OFFSET_USB_READER_BYTES) / (double)wakeups;
+    }
+
+    /**
+     * @return average number of bytes handled per parser thread wakeup
+     */
+    public double getUsbBytesPerConsumerWakeup() {
+        final long wakeups = get(OFFSET_USB_CONSUMER_WAKEUPS);
+        if (wakeups == 0) return 0;
+        return (double)get(OFFSET_RCVD_BYTES) / (double)wakeups;
+    }
+
+    /**
+     * @return time spent by the parser thread on message framing since connect, nanoseconds
+     */
+    public long getPipelineFramerNs() {
+        return get(OFFSET_PIPELINE_FRAMER_NS);
+    }
+
+    /**
+     * @return time spent by the parser thread on message parsing since connect, nanoseconds
+     */
+    public long getPipelineParserNs() {
+        return get(OFFSET_PIPELINE_PARSER_NS);
+    }
+
+    /**
+     * @return time spent in the location callbacks to Java since connect, nanoseconds.
+     * Includes the location provider update
+     */
+    public long getPipelineReportNs() {
+        return get(OFFSET_PIPELINE_REPORT_NS);
+    }
+
+    /**
+     * @return number of locations reported by the native parser since connect
+     */
+    public long getPipelineFixes() {
+        return get(OFFSET_PIPELINE_FIXES);
+    }
+
+    /**
+     * @param window one of RATE_WINDOW_*
+     * @return number of the complete seconds covered by the window. Less than the
+     * window length during the first seconds after the reader start
+     */
+    public long getRateWindowSeconds(int window) {
+        return get(OFFSET_RATE_SECONDS + 8 * window);
+    }
+
+    /**
+     * @param window one of RATE_WINDOW_*
+     * @return received bytes per second over the last complete seconds of the window
+     */
+    public double getByteRate(int window) {
+        return getRate(window, RATE_BYTES);
+    }
+
+    /**
+     * @param window one of RATE_WINDOW_*
+     * @param type message type, one of UsbGpsConverter.MSG_TYPE_*
+     * @return valid messages of the type per second over the window
+     */
+    public double getMsgRate(int window, int type) {
+        return getRate(window, RATE_MSGS + type);
+    }
+
+    /**
+     * @param window one of RATE_WINDOW_*
+     * @return reported locations per second over the window
+     */
+    public double getFixRate(int window) {
+        return getRate(window, RATE_FIXES);
+    }
+
+    /**
+     * @param window one of RATE_WINDOW_*
+     * @return share of the received bytes not in valid messages over the window, 0.0 - 1.0
+     */
+    public double getJunkRatio(int window) {
+        final long bytes = getRateSum(window, RATE_BYTES);
+        if (bytes == 0) return 0;
+        return (double)getRateSum(window, RATE_JUNK) / (double)bytes;
+    }
+
+    private double getRate(int window, int counter) {
+        final long seconds = getRateWindowSeconds(window);
+        if (seconds == 0) return 0;
+        return (double)getRateSum(window, counter) / seconds;
+    }
+
+    private long getRateSum(int window, int counter) {
+        return get(OFFSET_RATE_SUM + 8 * (window * RATE_NB + counter));
+    }
+
+    /**
+     * @return true if the data logger has a log file open
+     */
+    public boolean isDataLoggerActive() {
+        return get(OFFSET_DATALOGGER_ACTIVE) != 0;
+    }
+
+    /**
+     * @return total size of the native data logger buffers, bytes
+     */
+    public long getDataLoggerBufferSize() {
+        return get(OFFSET_DATALOGGER_BUFFER_SIZE);
+    }
+
+    /**
+     * @return bytes in the data logger buffers not yet written to the log file
+     */
+    public long getDataLoggerBuffered() {
+        return get(OFFSET_DATALOGGER_BUFFER_POS);
+    }
+
+    /**
+     * @return maximum fill level of the data logger buffers since the log file start, bytes
+     */
+    public long getDataLoggerBufferHighWater() {
+        return get(OFFSET_DATALOGGER_BUFFER_HIGH_WATER);
+    }
+
+    /**
+     * @return bytes written to the log file
+     */
+    public long getDataLoggerBytesWritten() {
+        return get(OFFSET_DATALOGGER_BYTES_WRITTEN);
+    }
+
+    /**
+     * @return bytes not written to the log file: dropped buffers and write errors
+     */
+    public long getDataLoggerBytesLost() {
+        return get(OFFSET_DATALOGGER_BYTES_LOST);
+    }
+
+    /**
+     * @return number of the data logger buffers dropped because the storage
+     * is slower than the received data
+     */
+    public long getDataLoggerBuffersDropped() {
+        return get(OFFSET_DATALOGGER_BUFFERS_DROPPED);
+    }
+
+    /**
+     * @param stage one of LATENCY_*
+     * @return latency histogram of the fixes reported since connect
+     */
+    public LatencyHistogram getLatency(int stage) {
+        return mLatency[stage];
+    }
+
+    /**
+     * @param stage one of LATENCY_*
+     * @return median latency of the stage, microseconds
+     */
+    public long getLatencyP50Us(int stage) {
+        return mLatency[stage].getP50Us();
+    }
+
+    /**
+     * @param stage one of LATENCY_*
+     * @return 99th percentile latency of the stage, microseconds
+     */
+    public long getLatencyP99Us(int stage) {
+        return mLatency[stage].getP99Us();
+    }
+
+    /**
+     * @param stage one of LATENCY_*
+     * @return maximum latency of the stage, microseconds
+     */
+    public long getLatencyMaxUs(int stage) {
+        return mLatency[stage].getMaxUs();
+    }
+
+    /**
+     * Prints the counters in the text form for dumpsys
+     */
+    synchronized void dump(PrintWriter pw, String prefix) {
+        final long lastByteTs = get(OFFSET_LAST_BYTE_TS);
+
+        pw.println(prefix + "snapshots: " + getPublishCount()
+                + " published: " + formatAge(get(OFFSET_PUBLISH_TS))
+                + " started: " + formatAge(get(OFFSET_START_TS))
+                + " last byte: " + formatAge(lastByteTs));
+        pw.println(prefix + "received: bytes=" + get(OFFSET_RCVD_BYTES)
+                + " junk=" + get(OFFSET_RCVD_JUNK)
+                + " valid msgs=" + getValidMsgCount());
+
+        pw.println(prefix + "nmea: total=" + get(OFFSET_NMEA_TOTAL)
+                + " gga=" + get(OFFSET_NMEA_GGA) + " rmc=" + get(OFFSET_NMEA_RMC)
+                + " gll=" + get(OFFSET_NMEA_GLL) + " gst=" + get(OFFSET_NMEA_GST)
+                + " gsa=" + get(OFFSET_NMEA_GSA) + " vtg=" + get(OFFSET_NMEA_VTG)
+                + " zda=" + get(OFFSET_NMEA_ZDA) + " gsv=" + get(OFFSET_NMEA_GSV)
+                + " pubx=" + get(OFFSET_NMEA_PUBX) + " other=" + get(OFFSET_NMEA_OTHER));
+        pw.print(prefix + "nmea talkers:");
+        for (int i = 0; i < NMEA_TALKER_NB; ++i) {
+            pw.print(" " + NMEA_TALKER_NAMES[i] + "=" + getNmeaTalkerCount(i));
+        }
+        pw.println();
+        pw.println(prefix + "nmea epochs: early=" + getNmeaEpochsClosedEarly()
+                + " late=" + getNmeaEpochsClosedLate()
+                + " timeout=" + getNmeaEpochsClosedTimeout()
+                + String.format(Locale.US, " avg latency=%.1fms saved=%.1fms",
+                        getNmeaEpochAverageLatencyMs(), getNmeaEpochAverageSavedMs()));
+        pw.println(prefix + "sirf: total=" + get(OFFSET_SIRF_TOTAL)
+                + " mid41=" + get(OFFSET_SIRF_MID41));
+        pw.println(prefix + "ublox: total=" + get(OFFSET_UBLOX_TOTAL)
+                + " nav-pvt=" + getUbloxNavPvt()
+                + " nav-posllh=" + getUbloxNavPosllh()
+                + " nav-status=" + get(OFFSET_UBLOX_NAV_STATUS));
+        pw.println(prefix + "rtcm3: total=" + getRtcm3Total());
+        for (int type = 0; type < PROTOCOL_NB; ++type) {
+            pw.println(prefix + "protocol " + PROTOCOL_NAMES[type]
+                    + ": msgs=" + getProtocolMsgCount(type)
+                    + " bytes=" + getProtocolBytes(type));
+        }
+
+        for (int w = 0; w < RATE_WINDOW_NB; ++w) {
+            pw.print(prefix + "rate " + RATE_WINDOW_NAMES[w]
+                    + " (" + getRateWindowSeconds(w) + "s):"
+                    + String.format(Locale.US, " %.1fB/s junk=%.1f%% fixes=%.2f/s",
+                            getByteRate(w), 100.0 * getJunkRatio(w), getFixRate(w)));
+            for (int type = 0; type < PROTOCOL_NB; ++type) {
+                pw.print(String.format(Locale.US, " %s=%.2f/s",
+                        PROTOCOL_NAMES[type], getMsgRate(w, type)));
+            }
+            pw.println();
+        }
+
+        pw.println(prefix + "usb: baudrate=" + getUsbBaudrate()
+                + " urbs=" + getUsbUrbQueueSize()
+                + " in flight=" + getUsbUrbsInFlight() + "/" + getUsbUrbsMaxInFlight() + " max"
+                + " reaped=" + getUsbUrbsReaped() + " full=" + getUsbUrbsReapedFull()
+                + String.format(Locale.US, " avg fill=%.1f%%", 100.0 * getUsbUrbAverageFill())
+                + " poll=" + getUsbPollIntervalUs() + "us"
+                + " req=" + getUsbRequestSize());
+        pw.println(prefix + "usb ring: size=" + getUsbRingSize()
+                + " high water=" + getUsbRingHighWater()
+                + " dropped=" + getUsbDroppedBytes());
+        pw.println(prefix + "usb wakeups: reader=" + getUsbReaderWakeups()
+                + " consumer=" + getUsbConsumerWakeups()
+                + String.format(Locale.US, " (%.1f/s, %.1f/s; %.1fB, %.1fB per wakeup)",
+                        getUsbReaderWakeupsPerSecond(), getUsbConsumerWakeupsPerSecond(),
+                        getUsbBytesPerReaderWakeup(), getUsbBytesPerConsumerWakeup()));
+        pw.println(prefix + "pipeline: fixes=" + getPipelineFixes()
+                + " framer=" + getPipelineFramerNs() / 1000 + "us"
+                + " parser=" + getPipelineParserNs() / 1000 + "us"
+                + " report=" + getPipelineReportNs() / 1000 + "us");
+
+        pw.println(prefix + "datalogger: " + (isDataLoggerActive() ? "active" : "inactive")
+                + " buffered=" + getDataLoggerBuffered() + "/" + getDataLoggerBufferSize()
+                + " high water=" + getDataLoggerBufferHighWater()
+                + " written=" + getDataLoggerBytesWritten()
+                + " lost=" + getDataLoggerBytesLost()
+                + " dropped buffers=" + getDataLoggerBuffersDropped());
+
+        for (int stage = 0; stage < LATENCY_STAGE_NB; ++stage) {
+            final LatencyHistogram h = mLatency[stage];
+            pw.println(prefix + "latency " + LATENCY_STAGE_NAMES[stage] + ":"
+                    + " count=" + h.getCount()
+                    + " p50=" + h.getP50Us() + "us"
+                    + " p99=" + h.getP99Us() + "us"
+                    + " max=" + h.getMaxUs() + "us");
+        }
+    }
+
+    private static String formatAge(long ts) {
+        if (ts == 0) return "never";
+        return (SystemClock.uptimeMillis() - ts) + "ms ago";
+    }
+
+    private double getRatePerSecond(long count) {
+        // Start time is CLOCK_MONOTONIC, same as SystemClock.uptimeMillis()
+        final long startTs = get(OFFSET_START_TS);
+        final long elapsed = SystemClock.uptimeMillis() - startTs;
+        if (startTs == 0 || elapsed <= 0) return 0;
+        return 1000.0 * count / elapsed;
+    }
+
+    private long get(int offset) {
+        return mBuf.getLong(offset);
+    }
+
+    /**
+     * Copies the stats from another object
+     */
     public synchronized void set(final StatsNative src) {
-        setStats(src.mStartTs, src.mLastReceivedByteTs, src.mReceivedBytes, src.mReceivedJunk);
-        setNmeaStats(mNmeaLastMsgTs, mNmeaTotal, mNmeaGga, mNmeaRmc, mNmeaGll, mNmeaGst,
-                mNmeaGsa, mNmeaVtg, mNmeaZda, mNmeaGsv, mNmeaPubx, mNmeaOther);
-        setSirfStats(mSirfLastMsgTs, mSirfTotal, mSirfMid41);
-        setUbloxStats(mUbloxLastMsgTs, mUbloxTotal);
-    }
-
-    // used by native code
-    @Keep
-    void setStats(long startTs, long lastByteTs, long rcvdBytes, long rcvdJunk) {
-        mStartTs = startTs;
-        mLastReceivedByteTs = lastByteTs;
-        mReceivedBytes = rcvdBytes;
-        mReceivedJunk = rcvdJunk;
-    }
-
-    // used by native code
-    @Keep
-    void setNmeaStats(long lastMsgTs, long total, long gga,
-            long rmc, long gll, long gst, long gsa, long vtg, long zda, long gsv,
-            long pubx, long other) {
-        mNmeaLastMsgTs = lastMsgTs;
-        mNmeaTotal = total;
-        mNmeaRmc = rmc;
-        mNmeaGll = gll;
-        mNmeaGst = gst;
-        mNmeaGsa = gsa;
-        mNmeaVtg = vtg;
-        mNmeaZda = zda;
-        mNmeaGsv = gsv;
-        mNmeaPubx = pubx;
-        mNmeaOther = other;
-    }
-
-    // used by native code
-    @Keep
-    void setSirfStats(long lastMsgTs, long total, long mid41) {
-        mSirfLastMsgTs = lastMsgTs;
-        mSirfTotal = total;
-        mSirfMid41 = mid41;
-    }
-
-    // used by native code
-    @Keep
-    void setUbloxStats(long lastMsgTs, long total) {
-        mUbloxLastMsgTs = lastMsgTs;
-        mUbloxTotal = total;
-    }
-}
\ No newline at end of file
+        final ByteBuffer s;
+
+        s = src.mBuf.duplicate();
+        s.clear();
+        mBuf.clear();
+        mBuf.put(s);
+        for (int i = 0; i < LATENCY_STAGE_NB; ++i) {
+            mLatency[i].set(src.mLatency[i]);
+        }
+    }
+
+    /**
+     * Copies the snapshot of struct stats_snapshot_t made by native code
+     */
+    synchronized void set(final ByteBuffer src) {
+        final ByteBuffer s;
+
+        s = src.duplicate();
+        s.clear();
+        s.limit(SIZE);
+        mBuf.clear();
+        mBuf.put(s);
+    }
+
+    /**
+     * Copies the latency histogram of the stage recorded on the Java side
+     */
+    synchronized void setLatency(int stage, final LatencyHistogram src) {
+        mLatency[stage].set(src);
+    }
+}
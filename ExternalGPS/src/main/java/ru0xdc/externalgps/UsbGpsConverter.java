@@ -13,10 +13,12 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.ConditionVariable;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import ru0xdc.externalgps.usb.AutobaudTask;
+import ru0xdc.externalgps.usb.ProtocolSwitchTask;
 import ru0xdc.externalgps.usb.SerialLineConfiguration;
 import ru0xdc.externalgps.usb.UsbSerialController;
 import ru0xdc.externalgps.usb.UsbSerialController.UsbControllerException;
@@ -29,6 +31,9 @@ import proguard.annotation.Keep;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -52,9 +57,16 @@ public class UsbGpsConverter {
     public final static String ACTION_VALID_LOCATION_RECEIVED =
             UsbGpsConverter.class.getName() + ".ACTION_VALID_LOCATION_RECEIVED";
 
+    /* Navigation rate is not sustained. EXTRA_PIPELINE_STAGE: PipelineBudget.Stage name */
+    public final static String ACTION_PIPELINE_OVERLOADED =
+            UsbGpsConverter.class.getName() + ".ACTION_PIPELINE_OVERLOADED";
+
     public final static String EXTRA_DATA =
             UsbGpsConverter.class.getName() + ".EXTRA_DATA";
 
+    public final static String EXTRA_PIPELINE_STAGE =
+            UsbGpsConverter.class.getName() + ".EXTRA_PIPELINE_STAGE";
+
 
     // Constants that indicate the current connection state
     public static enum TransportState {
@@ -70,6 +82,20 @@ public class UsbGpsConverter {
 
     public static final int RECONNECT_TIMEOUT_MS = 2000;
 
+    /* Message types reported by native code. See MSG_TYPE_* in usbconverter.h */
+    public static final int MSG_TYPE_NMEA = 0;
+    public static final int MSG_TYPE_SIRF = 1;
+    public static final int MSG_TYPE_UBLOX = 2;
+    public static final int MSG_TYPE_RTCM3 = 3;
+
+    /* Protocol bitmasks for setEnabledProtocols() */
+    public static final int PROTOCOL_NMEA = 1 << MSG_TYPE_NMEA;
+    public static final int PROTOCOL_SIRF = 1 << MSG_TYPE_SIRF;
+    public static final int PROTOCOL_UBLOX = 1 << MSG_TYPE_UBLOX;
+    public static final int PROTOCOL_RTCM3 = 1 << MSG_TYPE_RTCM3;
+    public static final int PROTOCOL_ALL = PROTOCOL_NMEA | PROTOCOL_SIRF
+            | PROTOCOL_UBLOX | PROTOCOL_RTCM3;
+
     private final Context mContext;
     final UsbReceiver mUsbReceiver;
     private final LocalBroadcastManager mBroadcastManager;
@@ -123,6 +149,59 @@ public class UsbGpsConverter {
         mUsbReceiver.setDataLoggerConfiguration(conf);
     }
 
+    /**
+     * Sets the protocols the native framer looks for in the received stream.
+     * Protocols the receiver never sends can be disabled to shorten the resync.
+     * @param protocols bitmask of the PROTOCOL_* constants
+     */
+    public void setEnabledProtocols(int protocols) {
+        if ((protocols & PROTOCOL_ALL) == 0) throw new IllegalArgumentException("no protocols enabled");
+        mUsbReceiver.setEnabledProtocols(protocols);
+    }
+
+    public int getEnabledProtocols() {
+        return mUsbReceiver.getEnabledProtocols();
+    }
+
+    /**
+     * Enables detection of the receiver chipset on connect and switch of the
+     * receiver from NMEA to its binary protocol
+     */
+    public void setBinaryProtocolSwitchEnabled(boolean enabled) {
+        mUsbReceiver.setBinaryProtocolSwitchEnabled(enabled);
+    }
+
+    /**
+     * Sets the navigation rate on u-blox receivers on connect and enables
+     * the periodic check of the receive pipeline budget
+     * @param hz navigation rate, Hz. 0 - keep the receiver default
+     */
+    public void setNavigationRate(int hz) {
+        if (hz < 0) throw new IllegalArgumentException();
+        mUsbReceiver.setNavigationRate(hz);
+    }
+
+    /**
+     * Copies the satellites in view of the last complete epoch
+     * @return true if dst is updated, false if no epoch is received since the last call
+     */
+    public boolean getSatellites(SatelliteTable dst) {
+        if (dst == null) throw new NullPointerException();
+        return mUsbReceiver.getSatellites(dst);
+    }
+
+    /**
+     * Prints the transport state, configuration and stats for dumpsys.
+     * The state is copied under its locks and printed outside of them
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        final MockLocationProvider provider = mLocationProvider;
+        pw.println(prefix + "provider: " + provider.getName()
+                + (provider.isAttached() ? " attached" : " detached")
+                + " status=" + provider.getDeviceStatus());
+        mUsbReceiver.dump(pw, prefix);
+    }
+
     private class UsbReceiver {
 
         final String ACTION_USB_PERMISSION = UsbReceiver.class.getName() + ".USB_PERMISSION";
@@ -135,6 +214,15 @@ public class UsbGpsConverter {
         @GuardedBy("UsbReceiver.this.mLock")
         private final DataLoggerConfiguration mDataLoggerConfiguration;
 
+        @GuardedBy("UsbReceiver.this.mLock")
+        private int mEnabledProtocols = PROTOCOL_ALL;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private boolean mBinaryProtocolSwitchEnabled = false;
+
+        @GuardedBy("UsbReceiver.this.mLock")
+        private int mNavigationRate = 0;
+
         private UsbManager mUsbManager;
 
         final ConditionVariable mIsUsbDeviceReadyCondvar;
@@ -173,6 +261,38 @@ public class UsbGpsConverter {
             }
         }
 
+        public void setEnabledProtocols(int protocols) {
+            synchronized(UsbReceiver.this.mLock) {
+                mEnabledProtocols = protocols;
+                if (mUsbReceiver.mServiceThread != null) {
+                    mUsbReceiver.mServiceThread.refreshEnabledProtocols();
+                }
+            }
+        }
+
+        public int getEnabledProtocols() {
+            synchronized(UsbReceiver.this.mLock) {
+                return mEnabledProtocols;
+            }
+        }
+
+        public void setBinaryProtocolSwitchEnabled(boolean enabled) {
+            synchronized(UsbReceiver.this.mLock) {
+                mBinaryProtocolSwitchEnabled = enabled;
+            }
+        }
+
+        public void setNavigationRate(int hz) {
+            synchronized(UsbReceiver.this.mLock) {
+                mNavigationRate = hz;
+            }
+        }
+
+        public boolean getSatellites(SatelliteTable dst) {
+            final UsbServiceThread serviceThread = mServiceThread;
+            return serviceThread != null && serviceThread.getSatellites(dst);
+        }
+
         @SuppressWarnings("unused")
         public DataLoggerConfiguration getDataLoggerConfiguration() {
             synchronized(UsbReceiver.this.mLock) {
@@ -210,6 +330,39 @@ public class UsbGpsConverter {
             }
         }
 
+        void dump(PrintWriter pw, String prefix) {
+            final UsbServiceThread serviceThread;
+            final SerialLineConfiguration serialLineConfiguration;
+            final DataLoggerConfiguration dataLoggerConfiguration;
+            final int enabledProtocols;
+            final boolean binaryProtocolSwitchEnabled;
+            final int navigationRate;
+
+            synchronized(UsbReceiver.this.mLock) {
+                serviceThread = mServiceThread;
+                serialLineConfiguration = new SerialLineConfiguration(mSerialLineConfiguration);
+                dataLoggerConfiguration = new DataLoggerConfiguration(mDataLoggerConfiguration);
+                enabledProtocols = mEnabledProtocols;
+                binaryProtocolSwitchEnabled = mBinaryProtocolSwitchEnabled;
+                navigationRate = mNavigationRate;
+            }
+
+            pw.println(prefix + "line configuration: " + serialLineConfiguration);
+            pw.println(prefix + "enabled protocols: 0x" + Integer.toHexString(enabledProtocols)
+                    + " binary protocol switch: " + binaryProtocolSwitchEnabled
+                    + " navigation rate: " + navigationRate + "Hz");
+            pw.println(prefix + "datalogger: "
+                    + (dataLoggerConfiguration.isEnabled() ? "enabled" : "disabled")
+                    + " format=" + dataLoggerConfiguration.getFormat()
+                    + " dir=" + dataLoggerConfiguration.getStorageDir()
+                    + " prefix=" + dataLoggerConfiguration.getFilePrefix());
+            if (serviceThread == null) {
+                pw.println(prefix + "service thread: not running");
+            }else {
+                serviceThread.dump(pw, prefix);
+            }
+        }
+
         @SuppressWarnings("unused")
         public boolean isDeviceReady() {
             return mIsUsbDeviceReadyCondvar.block(1);
@@ -325,8 +478,64 @@ public class UsbGpsConverter {
             @GuardedBy("UsbReceiver.this.mLock")
             private volatile AutobaudTask mAutobaudThread;
 
+            @GuardedBy("UsbReceiver.this.mLock")
+            private volatile ProtocolSwitchTask mProtocolSwitchThread;
+
+            /* Write path to the receiver used by the configuration tasks */
+            private final OutputStream mDeviceOutputStream = new OutputStream() {
+                @Override
+                public void write(int oneByte) throws IOException {
+                    write(new byte[] { (byte)oneByte }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    UsbServiceThread.this.write(buffer, offset, count);
+                }
+            };
+
             private final Location mReportedLocation = new Location("");
-            private final Bundle mReportedLocationBundle = new Bundle(1);
+            private final Bundle mReportedLocationBundle = new Bundle(4);
+
+            /* Time spent in MockLocationProvider.setLocation(), nanoseconds */
+            @GuardedBy("this")
+            private long mProviderNs;
+
+            @GuardedBy("UsbReceiver.this.mLock")
+            private volatile PipelineBudget mPipelineBudget;
+
+            @GuardedBy("this")
+            private long mPipelineCheckTime;
+
+            /* Satellites in view written by native code */
+            @GuardedBy("mSatellitesBuffer")
+            private final ByteBuffer mSatellitesBuffer;
+
+            /* Snapshot of the native stats copied by native_get_stats() */
+            @GuardedBy("mStatsBuffer")
+            private final ByteBuffer mStatsBuffer = ByteBuffer.allocateDirect(StatsNative.SIZE)
+                    .order(ByteOrder.nativeOrder());
+
+            /* Fixes written by native code, read in onFixesReported() */
+            private final ByteBuffer mFixRingBuffer;
+            @GuardedBy("this")
+            private int mFixRingTail;
+            @GuardedBy("this")
+            private final FixRecord mFixRecord = new FixRecord();
+
+            /* Fix latency by stage, indexed by StatsNative.LATENCY_* */
+            private final LatencyHistogram mLatency[] =
+                    new LatencyHistogram[StatsNative.LATENCY_STAGE_NB];
+
+            private final MockLocationProvider.LatencyListener mInjectionLatencyListener =
+                    new MockLocationProvider.LatencyListener() {
+                @Override
+                public void onLocationInjected(long dispatchUs, long injectUs, long totalUs) {
+                    mLatency[StatsNative.LATENCY_DISPATCH].record(dispatchUs);
+                    mLatency[StatsNative.LATENCY_INJECT].record(injectUs);
+                    mLatency[StatsNative.LATENCY_TOTAL].record(totalUs);
+                }
+            };
 
             public UsbServiceThread() {
                 mInputStream = null;
@@ -335,9 +544,16 @@ public class UsbGpsConverter {
                 cancelRequested = false;
                 mUsbController = null;
                 mAutobaudThread = null;
+                mProtocolSwitchThread = null;
                 mIsControllerSet = new ConditionVariable(false);
                 mFirstValidLocationReceived = false;
                 native_create();
+                mSatellitesBuffer = native_get_satellites_buffer().order(ByteOrder.nativeOrder());
+                mFixRingBuffer = native_get_fix_ring_buffer().order(ByteOrder.nativeOrder());
+                mFixRingTail = FixRecord.getRingHead(mFixRingBuffer);
+                for (int i = 0; i < StatsNative.LATENCY_STAGE_NB; ++i) {
+                    mLatency[i] = new LatencyHistogram();
+                }
             }
 
             public void setController(UsbSerialController controller) {
@@ -379,13 +595,71 @@ public class UsbGpsConverter {
             }
 
             public StatsNative getStats() {
-                StatsNative dst = new StatsNative();
-                synchronized (dst) {
-                    native_get_stats(dst);
+                final StatsNative dst = new StatsNative();
+                synchronized (mStatsBuffer) {
+                    native_get_stats(mStatsBuffer);
+                    dst.set(mStatsBuffer);
+                }
+                for (int i = 0; i < StatsNative.LATENCY_STAGE_NB; ++i) {
+                    dst.setLatency(i, mLatency[i]);
                 }
                 return dst;
             }
 
+            /**
+             * Copies the stats to a buffer of its own: mStatsBuffer is also
+             * used by the reader thread.
+             * mConnectionState and the fields guarded by mLock are copied in
+             * separate blocks: the reader thread takes mLock while holding this
+             */
+            void dump(PrintWriter pw, String prefix) {
+                final TransportState connectionState;
+                final String controllerDesc;
+                final boolean autobaud, protocolSwitch, firstValidLocationReceived;
+                final ByteBuffer statsBuffer;
+                final StatsNative stats;
+
+                synchronized(this) {
+                    connectionState = mConnectionState;
+                }
+
+                synchronized(UsbReceiver.this.mLock) {
+                    final UsbSerialController controller = mUsbController;
+                    if (controller == null) {
+                        controllerDesc = "none";
+                    }else {
+                        controllerDesc = controller.getClass().getSimpleName()
+                                + " " + controller.getDevice().getDeviceName()
+                                + " " + controller.getSerialLineConfiguration();
+                    }
+                    autobaud = mAutobaudThread != null;
+                    protocolSwitch = mProtocolSwitchThread != null;
+                    firstValidLocationReceived = mFirstValidLocationReceived;
+                }
+
+                pw.println(prefix + "transport: " + connectionState
+                        + (autobaud ? " autobaud" : "")
+                        + (protocolSwitch ? " protocol switch" : "")
+                        + (firstValidLocationReceived ? " has location" : ""));
+                pw.println(prefix + "controller: " + controllerDesc);
+
+                statsBuffer = ByteBuffer.allocateDirect(StatsNative.SIZE)
+                        .order(ByteOrder.nativeOrder());
+                native_get_stats(statsBuffer);
+                stats = new StatsNative();
+                stats.set(statsBuffer);
+                for (int i = 0; i < StatsNative.LATENCY_STAGE_NB; ++i) {
+                    stats.setLatency(i, mLatency[i]);
+                }
+                stats.dump(pw, prefix + "  ");
+            }
+
+            public boolean getSatellites(SatelliteTable dst) {
+                synchronized (mSatellitesBuffer) {
+                    return dst.set(mSatellitesBuffer);
+                }
+            }
+
             @Override
             public void run() {
                 Log.i(TAG, "BEGIN UsbToLocalSocket-USB");
@@ -401,7 +675,10 @@ public class UsbGpsConverter {
                         mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STARTED));
 
                         startInitBaudrate();
+                        for (LatencyHistogram h: mLatency) h.reset();
+                        mLocationProvider.setLatencyListener(mInjectionLatencyListener);
                         native_read_loop(mInputStream, mOutputStream);
+                        mLocationProvider.setLatencyListener(null);
                         throwIfCancelRequested();
 
                         synchronized(this) {
@@ -418,6 +695,9 @@ public class UsbGpsConverter {
                         if (mAutobaudThread != null) {
                             mAutobaudThread.interrupt();
                         }
+                        if (mProtocolSwitchThread != null) {
+                            mProtocolSwitchThread.interrupt();
+                        }
                     }
                 }
             }
@@ -428,54 +708,91 @@ public class UsbGpsConverter {
                 super.finalize();
             }
 
-            // Called from native code
+            // Called from native code on the reader thread with the fixes written
+            // to the ring since the last call
             @Keep
-            synchronized void reportLocation(
-                    long time,
-                    double latitude,
-                    double longitude,
-                    double altitude,
-                    float accuracy,
-                    float bearing,
-                    float speed,
-                    int satellites,
-                    boolean isValid,
-                    boolean hasAccuracy,
-                    boolean hasAltitude,
-                    boolean hasBearing,
-                    boolean hasSpeed
-                    ) {
+            synchronized void onFixesReported() {
+                final long upcallNs = System.nanoTime();
+                final int head = FixRecord.getRingHead(mFixRingBuffer);
+
+                // Can not happen: native code reports before the ring is full
+                if (head - mFixRingTail > FixRecord.RING_SIZE) {
+                    mFixRingTail = head - FixRecord.RING_SIZE;
+                }
+
+                while (mFixRingTail != head) {
+                    mFixRecord.set(mFixRingBuffer, mFixRingTail);
+                    mFixRingTail += 1;
+                    recordLatency(mFixRecord, upcallNs);
+                    reportLocation(mFixRecord, upcallNs);
+                }
+            }
+
+            private void recordLatency(FixRecord fix, long upcallNs) {
+                mLatency[StatsNative.LATENCY_EPOCH].record(
+                        (fix.getFramedNanos() - fix.getEpochNanos()) / 1000);
+                mLatency[StatsNative.LATENCY_PARSE].record(
+                        (fix.getParsedNanos() - fix.getFramedNanos()) / 1000);
+                mLatency[StatsNative.LATENCY_UPCALL].record(
+                        (upcallNs - fix.getParsedNanos()) / 1000);
+            }
+
+            private void reportLocation(FixRecord fix, long upcallNs) {
+                final long providerStartNs;
+                final PipelineBudget budget;
+                final int satellites;
+
+                if (DBG) assertTrue(Thread.holdsLock(this));
 
                 try {
-                    if (!isValid) {
+                    if (!fix.isValid()) {
                         if (DBG) Log.v(TAG, "loc: null");
                         mLocationProvider.setLocation(null);
                         return;
                     }
 
                     mReportedLocation.reset();
-                    mReportedLocation.setTime(time);
-                    mReportedLocation.setLatitude(latitude);
-                    mReportedLocation.setLongitude(longitude);
-                    if (hasAltitude) {
-                        mReportedLocation.setAltitude(altitude);
+                    mReportedLocation.setTime(fix.getTime());
+                    mReportedLocation.setLatitude(fix.getLatitude());
+                    mReportedLocation.setLongitude(fix.getLongitude());
+                    if (fix.hasAltitude()) {
+                        mReportedLocation.setAltitude(fix.getAltitude());
                     }
-                    if (hasAccuracy) {
-                        mReportedLocation.setAccuracy(accuracy);
+                    if (fix.hasAccuracy()) {
+                        mReportedLocation.setAccuracy(fix.getAccuracy());
                     }
-                    if (hasBearing) {
-                        mReportedLocation.setBearing(bearing);
+                    if (fix.hasBearing()) {
+                        mReportedLocation.setBearing(fix.getBearing());
                     }
-                    if (hasSpeed) {
-                        mReportedLocation.setSpeed(speed);
+                    if (fix.hasSpeed()) {
+                        mReportedLocation.setSpeed(fix.getSpeed());
                     }
 
+                    mReportedLocationBundle.clear();
+                    satellites = fix.getSatellites();
                     if (satellites > 0) {
                         mReportedLocationBundle.putInt("satellites", satellites);
+                    }
+                    if (!Float.isNaN(fix.getHdop())) {
+                        mReportedLocationBundle.putFloat("hdop", fix.getHdop());
+                    }
+                    if (!Float.isNaN(fix.getPdop())) {
+                        mReportedLocationBundle.putFloat("pdop", fix.getPdop());
+                    }
+                    if (!Float.isNaN(fix.getVdop())) {
+                        mReportedLocationBundle.putFloat("vdop", fix.getVdop());
+                    }
+                    if (!mReportedLocationBundle.isEmpty()) {
                         mReportedLocation.setExtras(mReportedLocationBundle);
                     }
 
-                    mLocationProvider.setLocation(mReportedLocation);
+                    providerStartNs = System.nanoTime();
+                    mLocationProvider.setLocation(mReportedLocation, upcallNs,
+                            fix.getEpochNanos());
+                    mProviderNs += System.nanoTime() - providerStartNs;
+
+                    budget = mPipelineBudget;
+                    if (budget != null) checkPipelineBudget(budget);
 
                     if (!mFirstValidLocationReceived) {
                         mFirstValidLocationReceived = true;
@@ -496,9 +813,33 @@ public class UsbGpsConverter {
                     if (mAutobaudThread != null) {
                         mAutobaudThread.onGpsMessageReceived(buf, start, size, type);
                     }
+                    if (mProtocolSwitchThread != null) {
+                        mProtocolSwitchThread.onGpsMessageReceived(buf, start, size, type);
+                    }
                 }
             }
 
+            private void checkPipelineBudget(PipelineBudget budget) {
+                final long now = SystemClock.elapsedRealtime();
+                final PipelineBudget.Stage bottleneck;
+
+                if (DBG) assertTrue(Thread.holdsLock(this));
+                if (now - mPipelineCheckTime < PipelineBudget.CHECK_INTERVAL_MS) return;
+                mPipelineCheckTime = now;
+
+                bottleneck = budget.check(getStats(), mProviderNs, now);
+                if (bottleneck != null) {
+                    final Intent intent = new Intent(ACTION_PIPELINE_OVERLOADED);
+                    intent.putExtra(EXTRA_PIPELINE_STAGE, bottleneck.name());
+                    mBroadcastManager.sendBroadcast(intent);
+                }
+            }
+
+            private void startPipelineBudgetCheck(int navigationRate) {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                mPipelineBudget = navigationRate > 0 ? new PipelineBudget(navigationRate) : null;
+            }
+
             void refreshDataLoggerCofiguration() {
                 synchronized(UsbReceiver.this.mLock) {
                     refreshDataLoggerCofiguration(mDataLoggerConfiguration);
@@ -513,6 +854,12 @@ public class UsbGpsConverter {
                         conf.getFilePrefix());
             }
 
+            void refreshEnabledProtocols() {
+                synchronized(UsbReceiver.this.mLock) {
+                    native_set_enabled_protocols(mEnabledProtocols);
+                }
+            }
+
             private synchronized void setState(TransportState state) {
                 TransportState oldState = mConnectionState;
                 mConnectionState = state;
@@ -553,20 +900,50 @@ public class UsbGpsConverter {
                         if (DBG) Log.v(TAG, "onAutobaudCompleted() " +
                                 (isSuccessful ? "successful" : "failed") + " " + baudrate);
                         mAutobaudThread = null;
-                        native_msg_rcvd_cb(false);
-                        mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STOPPED));
+                        if (isSuccessful) native_set_baudrate(baudrate);
                         if (!isSuccessful) {
+                            native_msg_rcvd_cb(false);
+                            mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STOPPED));
                             // XXX: report error
                             UsbServiceThread.this.cancel();
+                        }else if (mBinaryProtocolSwitchEnabled || mNavigationRate > 0) {
+                            native_msg_rcvd_cb(true);
+                            mProtocolSwitchThread = new ProtocolSwitchTask(mContext,
+                                    mDeviceOutputStream, baudrate,
+                                    mBinaryProtocolSwitchEnabled, mNavigationRate,
+                                    mProtocolSwitchThreadCallbacks);
+                            mProtocolSwitchThread.setName("ProtocolSwitchThread");
+                            mProtocolSwitchThread.start();
                         }else {
-                            mDataLoggerConfiguration.createStorageDir();
-                            refreshDataLoggerCofiguration();
-                            native_datalogger_start();
+                            native_msg_rcvd_cb(false);
+                            mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STOPPED));
+                            startDataLogger();
                         }
+                        startPipelineBudgetCheck(isSuccessful ? mNavigationRate : 0);
+                    }
+                }
+            };
+
+            private final ProtocolSwitchTask.Callbacks mProtocolSwitchThreadCallbacks = new ProtocolSwitchTask.Callbacks() {
+                @Override
+                public void onProtocolSwitchCompleted(int msgType) {
+                    synchronized(UsbReceiver.this.mLock) {
+                        if (DBG) Log.v(TAG, "onProtocolSwitchCompleted() " + msgType);
+                        mProtocolSwitchThread = null;
+                        native_msg_rcvd_cb(false);
+                        mBroadcastManager.sendBroadcast(new Intent(ACTION_AUTOCONF_STOPPED));
+                        if (!cancelRequested) startDataLogger();
                     }
                 }
             };
 
+            private void startDataLogger() {
+                if (DBG) assertTrue(Thread.holdsLock(mLock));
+                mDataLoggerConfiguration.createStorageDir();
+                refreshDataLoggerCofiguration();
+                native_datalogger_start();
+            }
+
             private void connect() throws UsbControllerException, CancelRequestedException {
 
                 mIsControllerSet.block();
@@ -577,6 +954,8 @@ public class UsbGpsConverter {
 
                     if (DBG) Log.v(TAG, "attach(). "+ mUsbController.getSerialLineConfiguration().toString());
                     mUsbController.setSerialLineConfiguration(mSerialLineConfiguration);
+                    native_set_baudrate(mSerialLineConfiguration.getBaudrate());
+                    native_set_enabled_protocols(mEnabledProtocols);
                     mUsbController.attach();
                     mInputStream = mUsbController.getInputStream();
                     mOutputStream = mUsbController.getOutputStream();
@@ -613,8 +992,12 @@ public class UsbGpsConverter {
             private native void native_create();
             private native void native_read_loop(UsbSerialInputStream inputStream, UsbSerialOutputStream outputStream);
             private native void native_destroy();
-            private native void native_get_stats(StatsNative dst);
+            private native void native_get_stats(ByteBuffer dst);
+            private native ByteBuffer native_get_satellites_buffer();
+            private native ByteBuffer native_get_fix_ring_buffer();
             private native synchronized void native_msg_rcvd_cb(boolean activate);
+            private native void native_set_baudrate(int baudrate);
+            private native void native_set_enabled_protocols(int protocols);
 
             // TODO: notify user on errors
             native void native_datalogger_configure(boolean enabled, int format, String tracksDir, String filePrefix);
@@ -34,6 +34,9 @@ import android.util.Log;
 
 import ru0xdc.externalgps.usb.SerialLineConfiguration;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 
 /**
  * TODO
@@ -69,6 +72,8 @@ public class UsbGpsProviderService extends Service {
 	public static final String PREF_USB_SERIAL_PARITY = "usbSerialParity";
 	public static final String PREF_USB_SERIAL_STOP_BITS = "usbSerialStopBits";
 	public static final String PREF_USB_SERIAL_LAST_KNOWN_AUTO_BAUDRATE = "usbSerialLastKnownAutoBaudrate";
+	public static final String PREF_SWITCH_TO_BINARY_PROTOCOL = "switchToBinaryProtocol";
+	public static final String PREF_NAVIGATION_RATE = "navigationRate";
 	public static final String PREF_ABOUT = "about";
 
 	public static final String PREF_SIRF_GPS = "sirfGps";
@@ -126,6 +131,20 @@ public class UsbGpsProviderService extends Service {
         return mConverter.isActive();
     }
 
+    /**
+     * adb shell dumpsys activity service UsbGpsProviderService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final UsbGpsConverter converter = mConverter;
+        if (converter == null) {
+            pw.println("not created");
+            return;
+        }
+        pw.println("started: " + converter.isActive());
+        converter.dump(pw, "  ");
+    }
+
 
     private void processStartGpsProvider() {
         final SharedPreferences prefs;
@@ -152,6 +171,8 @@ public class UsbGpsProviderService extends Service {
         mConverter.setLocationProvider(provider);
         mConverter.setDataLoggerConfiguration(dataLoggerConf);
         mConverter.setSerialLineConfiguration(usbSerialLineConf);
+        mConverter.setBinaryProtocolSwitchEnabled(prefs.getBoolean(PREF_SWITCH_TO_BINARY_PROTOCOL, false));
+        mConverter.setNavigationRate(Integer.valueOf(prefs.getString(PREF_NAVIGATION_RATE, "0")));
         mConverter.start();
 
         startForeground(Notificator.FOREGROUND_NOTIFICATION_ID,
@@ -0,0 +1,293 @@
+package ru0xdc.externalgps.usb;
+
+import android.content.Context;
+import android.util.Log;
+
+import ru0xdc.externalgps.BuildConfig;
+import ru0xdc.externalgps.R;
+import ru0xdc.externalgps.UsbGpsConverter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Detects the receiver chipset and switches it from NMEA to its binary protocol.
+ * u-blox receivers are detected by the MON-VER poll and switched to NAV-PVT output,
+ * SiRF receivers are switched by the PSRF100 command. If binary messages do not
+ * arrive after the switch, the receiver is switched back to NMEA.
+ * The navigation rate is set by CFG-RATE on u-blox receivers only.
+ */
+public class ProtocolSwitchTask extends Thread {
+
+    // Debugging
+    private static final String TAG = ProtocolSwitchTask.class.getSimpleName();
+    private static final boolean DBG = BuildConfig.DEBUG & true;
+
+    public static final int PROBE_TIMEOUT_MS = 1500;
+    public static final int WAIT_MSG_TIMEOUT_MS = 3000;
+    public static final int MIN_VALID_MSG_CNT = 2;
+
+    private static final int UBX_CLASS_NAV = 0x01;
+    private static final int UBX_NAV_PVT = 0x07;
+    private static final int UBX_CLASS_MON = 0x0a;
+    private static final int UBX_MON_VER = 0x04;
+    private static final int UBX_CLASS_CFG = 0x06;
+    private static final int UBX_CFG_MSG = 0x01;
+    private static final int UBX_CFG_RATE = 0x08;
+    private static final int UBX_CLASS_NMEA = 0xf0;
+
+    /* NMEA GGA, GLL, GSA, GSV, RMC, VTG */
+    private static final int UBX_NMEA_IDS[] = new int[] { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05 };
+
+    private static ProtocolSwitchTask.Callbacks sDummyCallbacks = new Callbacks() {
+        @Override
+        public void onProtocolSwitchCompleted(int msgType) {}
+    };
+
+    private final Context mContext;
+    private final OutputStream mOutputStream;
+    private final int mBaudrate;
+    private final boolean mSwitchToBinary;
+    private final int mNavigationRate;
+    private ProtocolSwitchTask.Callbacks mCallbacks;
+
+    @GuardedBy("this")
+    private final int mReceivedMsgCnt[] = new int[UsbGpsConverter.MSG_TYPE_RTCM3 + 1];
+
+    @GuardedBy("this")
+    private int mUbxMonVerCnt;
+
+    @GuardedBy("this")
+    private int mUbxNavPvtCnt;
+
+    public static interface Callbacks {
+        /**
+         * @param msgType protocol of the receiver output, UsbGpsConverter.MSG_TYPE_*
+         */
+        void onProtocolSwitchCompleted(int msgType);
+    };
+
+    /**
+     * @param switchToBinary switch the receiver to the binary protocol
+     * @param navigationRate navigation rate to set, Hz. 0 - keep receiver default
+     */
+    public ProtocolSwitchTask(Context ctx, OutputStream os, int baudrate,
+            boolean switchToBinary, int navigationRate,
+            ProtocolSwitchTask.Callbacks callbacks) {
+        mContext = ctx;
+        mOutputStream = os;
+        mBaudrate = baudrate;
+        mSwitchToBinary = switchToBinary;
+        mNavigationRate = navigationRate;
+        mCallbacks = callbacks != null ? callbacks : sDummyCallbacks;
+    }
+
+    /*
+     * Commands are written without holding the monitor: the write path takes
+     * the lock held by the caller of onGpsMessageReceived()
+     */
+    @Override
+    public void run() {
+        final boolean sirfActive;
+        int msgType = UsbGpsConverter.MSG_TYPE_NMEA;
+
+        try {
+            if (probeUblox()) {
+                if (mNavigationRate > 0) setUbloxNavigationRate(mNavigationRate);
+                if (mSwitchToBinary) {
+                    msgType = switchUbloxToBinary() ? UsbGpsConverter.MSG_TYPE_UBLOX
+                            : UsbGpsConverter.MSG_TYPE_NMEA;
+                }
+            }else if (mSwitchToBinary) {
+                synchronized (this) {
+                    sirfActive = mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_SIRF] > 0;
+                }
+                if (sirfActive) {
+                    if (DBG) Log.v(TAG, "SiRF binary protocol is already active");
+                    msgType = UsbGpsConverter.MSG_TYPE_SIRF;
+                }else {
+                    msgType = switchSirfToBinary() ? UsbGpsConverter.MSG_TYPE_SIRF
+                            : UsbGpsConverter.MSG_TYPE_NMEA;
+                }
+            }else if (mNavigationRate > 0) {
+                Log.i(TAG, "Navigation rate can be set on u-blox receivers only");
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Interrupted: " + e.toString());
+        } catch (IOException e) {
+            Log.i(TAG, "Write error: " + e.toString());
+        } finally {
+            mCallbacks.onProtocolSwitchCompleted(msgType);
+        }
+    }
+
+    public synchronized void onGpsMessageReceived(java.nio.ByteBuffer buf, int start, int size, int type) {
+        if (type < 0 || type >= mReceivedMsgCnt.length) return;
+        mReceivedMsgCnt[type] += 1;
+        if (type == UsbGpsConverter.MSG_TYPE_UBLOX && size >= 8) {
+            final int cls = buf.get(start + 2) & 0xff;
+            final int id = buf.get(start + 3) & 0xff;
+            if (cls == UBX_CLASS_MON && id == UBX_MON_VER) mUbxMonVerCnt += 1;
+            if (cls == UBX_CLASS_NAV && id == UBX_NAV_PVT) mUbxNavPvtCnt += 1;
+        }
+        notifyAll();
+    }
+
+    private boolean probeUblox() throws IOException, InterruptedException {
+        final long deadline;
+
+        synchronized (this) {
+            mUbxMonVerCnt = 0;
+        }
+        writeUbx(UBX_CLASS_MON, UBX_MON_VER, new byte[0]);
+
+        deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+        synchronized (this) {
+            while (mUbxMonVerCnt == 0 && waitUntil(deadline));
+            if (DBG) Log.v(TAG, "u-blox MON-VER responses: " + mUbxMonVerCnt);
+            return mUbxMonVerCnt > 0;
+        }
+    }
+
+    private boolean switchUbloxToBinary() throws IOException, InterruptedException {
+        final long deadline;
+
+        if (DBG) Log.v(TAG, "Switching u-blox receiver to NAV-PVT");
+        synchronized (this) {
+            mUbxNavPvtCnt = 0;
+        }
+        setUbloxMsgRate(UBX_CLASS_NAV, UBX_NAV_PVT, 1);
+        for (int id: UBX_NMEA_IDS) setUbloxMsgRate(UBX_CLASS_NMEA, id, 0);
+
+        deadline = System.currentTimeMillis() + WAIT_MSG_TIMEOUT_MS;
+        synchronized (this) {
+            while (mUbxNavPvtCnt < MIN_VALID_MSG_CNT && waitUntil(deadline));
+            if (mUbxNavPvtCnt >= MIN_VALID_MSG_CNT) return true;
+        }
+
+        Log.i(TAG, "No NAV-PVT messages received. Switching back to NMEA");
+        for (int id: UBX_NMEA_IDS) setUbloxMsgRate(UBX_CLASS_NMEA, id, 1);
+        setUbloxMsgRate(UBX_CLASS_NAV, UBX_NAV_PVT, 0);
+        return false;
+    }
+
+    private boolean switchSirfToBinary() throws IOException, InterruptedException {
+        final int nmeaCnt;
+        final long deadline;
+
+        if (DBG) Log.v(TAG, "Switching SiRF receiver to binary protocol");
+        synchronized (this) {
+            mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_SIRF] = 0;
+        }
+        writeNmea(mContext.getString(R.string.sirf_nmea_to_binary_alt, mBaudrate));
+
+        deadline = System.currentTimeMillis() + WAIT_MSG_TIMEOUT_MS;
+        synchronized (this) {
+            // NMEA sentences queued before the command are not counted
+            nmeaCnt = mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_NMEA] + MIN_VALID_MSG_CNT;
+            while (mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_SIRF] < MIN_VALID_MSG_CNT
+                    && waitUntil(deadline));
+            if (mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_SIRF] >= MIN_VALID_MSG_CNT) return true;
+            // Still sends NMEA: not a SiRF receiver
+            if (mReceivedMsgCnt[UsbGpsConverter.MSG_TYPE_NMEA] > nmeaCnt) return false;
+        }
+
+        // NMEA is turned off, but binary messages are not received
+        Log.i(TAG, "No SiRF binary messages received. Switching back to NMEA");
+        // GGA 1, GLL 0, GSA 1, GSV 5, RMC 1, VTG 0, MSS 0, EPE 0, ZDA 0
+        writeSirf(mContext.getString(R.string.sirf_bin_to_nmea_alt,
+                1, 0, 1, 5, 1, 0, 0, 0, 0, mBaudrate));
+        return false;
+    }
+
+    /**
+     * Waits for the next received message
+     * @return false if the deadline has passed
+     */
+    private boolean waitUntil(long deadline) throws InterruptedException {
+        final long left = deadline - System.currentTimeMillis();
+        if (left <= 0) return false;
+        wait(left);
+        return true;
+    }
+
+    private void setUbloxMsgRate(int cls, int id, int rate) throws IOException {
+        writeUbx(UBX_CLASS_CFG, UBX_CFG_MSG, new byte[] { (byte)cls, (byte)id, (byte)rate });
+    }
+
+    /**
+     * CFG-RATE: measurement period, one navigation solution per measurement, GPS time
+     */
+    private void setUbloxNavigationRate(int hz) throws IOException {
+        final int measRateMs = 1000 / hz;
+
+        if (DBG) Log.v(TAG, "Setting u-blox navigation rate " + hz + " Hz");
+        writeUbx(UBX_CLASS_CFG, UBX_CFG_RATE, new byte[] {
+                (byte)(measRateMs & 0xff), (byte)((measRateMs >> 8) & 0xff),
+                1, 0,
+                1, 0 });
+    }
+
+    private void writeUbx(int cls, int id, byte[] payload) throws IOException {
+        final byte msg[] = new byte[payload.length + 8];
+        int ckA, ckB;
+
+        msg[0] = (byte)0xb5;
+        msg[1] = (byte)0x62;
+        msg[2] = (byte)cls;
+        msg[3] = (byte)id;
+        msg[4] = (byte)(payload.length & 0xff);
+        msg[5] = (byte)((payload.length >> 8) & 0xff);
+        System.arraycopy(payload, 0, msg, 6, payload.length);
+
+        ckA = ckB = 0;
+        for (int i = 2; i < payload.length + 6; ++i) {
+            ckA = (ckA + (msg[i] & 0xff)) & 0xff;
+            ckB = (ckB + ckA) & 0xff;
+        }
+        msg[payload.length + 6] = (byte)ckA;
+        msg[payload.length + 7] = (byte)ckB;
+
+        mOutputStream.write(msg, 0, msg.length);
+    }
+
+    private void writeNmea(String body) throws IOException {
+        final byte msg[];
+        int csum = 0;
+
+        for (int i = 0; i < body.length(); ++i) csum ^= body.charAt(i);
+        msg = String.format(Locale.US, "$%s*%02X\r\n", body, csum).getBytes("US-ASCII");
+
+        mOutputStream.write(msg, 0, msg.length);
+    }
+
+    /**
+     * @param payloadHex SiRF binary message payload, hex string
+     */
+    private void writeSirf(String payloadHex) throws IOException {
+        final String hex = payloadHex.replaceAll("\\s", "");
+        final int payloadLength = hex.length() / 2;
+        final byte msg[] = new byte[payloadLength + 8];
+        int csum;
+
+        msg[0] = (byte)0xa0;
+        msg[1] = (byte)0xa2;
+        msg[2] = (byte)((payloadLength >> 8) & 0x7f);
+        msg[3] = (byte)(payloadLength & 0xff);
+
+        csum = 0;
+        for (int i = 0; i < payloadLength; ++i) {
+            msg[4 + i] = (byte)Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            csum = (csum + (msg[4 + i] & 0xff)) & 0x7fff;
+        }
+        msg[payloadLength + 4] = (byte)((csum >> 8) & 0xff);
+        msg[payloadLength + 5] = (byte)(csum & 0xff);
+        msg[payloadLength + 6] = (byte)0xb0;
+        msg[payloadLength + 7] = (byte)0xb3;
+
+        mOutputStream.write(msg, 0, msg.length);
+    }
+}
@@ -7,8 +7,12 @@ LOCAL_LDLIBS += -llog
 
 LOCAL_SRC_FILES := \
         datalogger.c \
+        framer.c \
+        gpstime.c \
         nmea.c \
         onload.c \
+        protocols.c \
+        rtcm3.c \
         sirf.c \
         stats.c \
         ublox.c \
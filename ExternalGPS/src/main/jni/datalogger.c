@@ -24,25 +24,51 @@
 #define LOGI(x...) __android_log_print(ANDROID_LOG_INFO,TAG,x)
 
 static void logfile_write_unlocked(struct datalogger_t * __restrict logger, const uint8_t * __restrict data, size_t size);
-static bool logfile_flush_unlocked(struct datalogger_t *logger);
-static void logfile_purge_unlocked(struct datalogger_t *logger);
+static void logfile_queue_unlocked(struct datalogger_t *logger);
 static void datalogger_stop_unlocked(struct datalogger_t *logger);
+static void *datalogger_writer_thread(void *arg);
+static size_t logfile_write_buffer(const char *file_name, const char *data, size_t size);
 
 void datalogger_init(struct datalogger_t *datalogger)
 {
+  int err;
+
   pthread_mutex_init(&datalogger->mtx, NULL);
+  pthread_cond_init(&datalogger->buffer_queued_cond, NULL);
+  pthread_cond_init(&datalogger->buffer_written_cond, NULL);
   datalogger->enabled = true;
-  datalogger->buffer_pos = 0;
   datalogger->format = DATALOGGER_FORMAT_RAW;
   datalogger->logs_dir[0] = '\0';
   datalogger->log_prefix[0] = '\0';
   datalogger->cur_file_name[0] = '\0';
+  datalogger->queue_head = 0;
+  datalogger->queued_nb = 0;
+  datalogger->buffered = 0;
+  memset(&datalogger->stats, 0, sizeof(datalogger->stats));
   clock_gettime(CLOCK_MONOTONIC, &datalogger->last_flush_ts);
+
+  datalogger->writer_cancel_requested = false;
+  err = pthread_create(&datalogger->writer_thread, NULL, datalogger_writer_thread, datalogger);
+  datalogger->is_writer_running = err == 0;
+  if (err != 0)
+    LOGI("pthread_create() error %s, logging disabled", strerror(err));
 }
 
 void datalogger_destroy(struct datalogger_t *logger)
 {
   datalogger_stop(logger);
+
+  if (logger->is_writer_running) {
+    pthread_mutex_lock(&logger->mtx);
+    logger->writer_cancel_requested = true;
+    pthread_cond_signal(&logger->buffer_queued_cond);
+    pthread_mutex_unlock(&logger->mtx);
+    pthread_join(logger->writer_thread, NULL);
+    logger->is_writer_running = false;
+  }
+
+  pthread_cond_destroy(&logger->buffer_queued_cond);
+  pthread_cond_destroy(&logger->buffer_written_cond);
   pthread_mutex_destroy(&logger->mtx);
 }
 
@@ -114,7 +140,7 @@ void datalogger_start(struct datalogger_t *logger)
     datalogger_stop_unlocked(logger);
   }
 
-  if (!logger->enabled) {
+  if (!logger->enabled || !logger->is_writer_running) {
     pthread_mutex_unlock(&logger->mtx);
     return;
   }
@@ -125,6 +151,7 @@ void datalogger_start(struct datalogger_t *logger)
     ext = "raw";
 
   clock_gettime(CLOCK_MONOTONIC, &logger->last_flush_ts);
+  memset(&logger->stats, 0, sizeof(logger->stats));
 
   tt = time(NULL);
   if (strftime(timestamp, sizeof(timestamp), "%Y%b%d_%H-%M", localtime(&tt)) == 0) {
@@ -139,11 +166,14 @@ void datalogger_start(struct datalogger_t *logger)
   pthread_mutex_unlock(&logger->mtx);
 }
 
+/*
+ * Queues the filled buffer to the writer thread. Does not wait for the write
+ */
 void datalogger_flush(struct datalogger_t *logger)
 {
-  LOGV("datalogger_stop()");
+  LOGV("datalogger_flush()");
   pthread_mutex_lock(&logger->mtx);
-  logfile_flush_unlocked(logger);
+  logfile_queue_unlocked(logger);
   pthread_mutex_unlock(&logger->mtx);
 }
 
@@ -155,80 +185,73 @@ void datalogger_stop(struct datalogger_t *logger)
   pthread_mutex_unlock(&logger->mtx);
 }
 
+/*
+ * Copies the logger state to the stats. Called by the parser thread
+ * before the stats are published
+ */
+void datalogger_export_stats(struct datalogger_t *logger, struct stats_t *dst)
+{
+  pthread_mutex_lock(&logger->mtx);
+  dst->datalogger.is_active = logger->cur_file_name[0] != '\0';
+  dst->datalogger.buffer_size = sizeof(logger->buffers[0].data) * DATA_LOGGER_BUFFER_NB;
+  dst->datalogger.buffer_pos = logger->buffered;
+  dst->datalogger.buffer_high_water = logger->stats.buffer_high_water;
+  dst->datalogger.bytes_written = logger->stats.bytes_written;
+  dst->datalogger.bytes_lost = logger->stats.bytes_lost;
+  dst->datalogger.buffers_dropped = logger->stats.buffers_dropped;
+  pthread_mutex_unlock(&logger->mtx);
+}
+
+/*
+ * Hands the filled buffer to the writer thread and waits until all the
+ * buffers are written. Called on the configuration change and on the
+ * reader stop, never on the data path
+ */
 static void datalogger_stop_unlocked(struct datalogger_t *logger)
 {
-  if (!logfile_flush_unlocked(logger))
-    logfile_purge_unlocked(logger);
-  assert(logger->buffer_pos == 0);
+  if (logger->cur_file_name[0] != '\0') {
+    while (logger->queued_nb == DATA_LOGGER_BUFFER_NB - 1)
+      pthread_cond_wait(&logger->buffer_written_cond, &logger->mtx);
+    logfile_queue_unlocked(logger);
+    while (logger->queued_nb != 0)
+      pthread_cond_wait(&logger->buffer_written_cond, &logger->mtx);
+  }
+  assert(logger->buffered == 0);
   logger->cur_file_name[0] = '\0';
 }
 
-static bool logfile_flush_unlocked(struct datalogger_t *logger)
+/*
+ * Queues the buffer being filled to the writer thread. If all the other
+ * buffers are still queued, the storage is slower than the data: the
+ * buffer is dropped instead of waiting for the writer.
+ */
+static void logfile_queue_unlocked(struct datalogger_t *logger)
 {
-  int fd;
-  unsigned retry;
-  size_t written_total;
-
-  if (logger->buffer_pos == 0)
-    return true;
+  struct datalogger_buffer_t *buf;
 
-  if (logger->cur_file_name[0] == '\0')
-    return true;
+  buf = &logger->buffers[(logger->queue_head + logger->queued_nb) % DATA_LOGGER_BUFFER_NB];
+  if (buf->pos == 0)
+    return;
 
   clock_gettime(CLOCK_MONOTONIC, &logger->last_flush_ts);
 
-  fd = open(logger->cur_file_name, O_WRONLY | O_APPEND | O_CREAT, 00644);
-  if (fd < 0) {
-    LOGV("open() error %s", strerror(errno));
-    return false;
-  }
-  written_total = 0;
-
-  for (retry=0; retry<10; ++retry) {
-    ssize_t written;
-    written = write(fd, &logger->buffer[written_total], logger->buffer_pos - written_total);
-    if (written < 0) {
-      LOGV("write() error %s", strerror(errno));
-      break;
-    }
-    written_total += written;
-    if (written_total == logger->buffer_pos) {
-      break;
-    }
-    if (written == 0)
-      usleep(200000);
-  }
-
-  if (close(fd) < 0) {
-    LOGI("close() error %s", strerror(errno));
-    written_total = 0;
-  }
-
-  LOGV("flushed %lu bytes", (unsigned long)written_total);
-
-  if (written_total == 0) {
-    LOGV("written_total=0");
-  }else if (written_total == logger->buffer_pos) {
-    logger->buffer_pos = 0;
-  }else {
-    LOGV("written %lu of %lu", (unsigned long)written_total, (unsigned long)logger->buffer_pos);
-    memmove(logger->buffer, &logger->buffer[written_total], logger->buffer_pos - written_total);
-    logger->buffer_pos -= written_total;
+  if (logger->queued_nb == DATA_LOGGER_BUFFER_NB - 1) {
+    LOGV("writer is behind, dropped %lu bytes", (unsigned long)buf->pos);
+    logger->stats.buffers_dropped += 1;
+    logger->stats.bytes_lost += buf->pos;
+    logger->buffered -= buf->pos;
+    buf->pos = 0;
+    return;
   }
 
-  return (logger->buffer_pos == 0);
-}
-
-static void logfile_purge_unlocked(struct datalogger_t *logger)
-{
-  if (logger->buffer_pos != 0) {
-    LOGV("purged %u bytes", logger->buffer_pos);
-    logger->buffer_pos = 0;
-  }
+  logger->queued_nb += 1;
+  pthread_cond_signal(&logger->buffer_queued_cond);
 }
 
 static void logfile_write_unlocked(struct datalogger_t * __restrict logger, const uint8_t * __restrict data, size_t size)
 {
+  struct datalogger_buffer_t *buf;
+
   /* LOGV("logfile_write_unlocked size: %u, file: %s", size, logger->cur_file_name); */
 
   if (size == 0)
@@ -237,29 +260,119 @@ static void logfile_write_unlocked(struct datalogger_t * __restrict logger, cons
   if (logger->cur_file_name[0] == '\0')
     return;
 
-  if (sizeof(logger->buffer) < size) {
+  if (sizeof(buf->data) < size) {
     /* XXX */
+    logger->stats.bytes_lost += size;
     return;
   }
 
-  if (logger->buffer_pos + size >= sizeof(logger->buffer)) {
-    if (!logfile_flush_unlocked(logger))
-      logfile_purge_unlocked(logger);
+  buf = &logger->buffers[(logger->queue_head + logger->queued_nb) % DATA_LOGGER_BUFFER_NB];
+  if (buf->pos + size > sizeof(buf->data)) {
+    logfile_queue_unlocked(logger);
+    buf = &logger->buffers[(logger->queue_head + logger->queued_nb) % DATA_LOGGER_BUFFER_NB];
   }
 
-  memcpy(&logger->buffer[logger->buffer_pos], data, size);
-  logger->buffer_pos += size;
+  memcpy(&buf->data[buf->pos], data, size);
+  buf->pos += size;
+  logger->buffered += size;
+  if (logger->buffered > logger->stats.buffer_high_water)
+    logger->stats.buffer_high_water = logger->buffered;
 
-  assert(logger->buffer_pos < sizeof(logger->buffer));
+  assert(buf->pos <= sizeof(buf->data));
 
-  if ((logger->buffer_pos >= DATA_LOGGER_WATERMARK)) {
-    logfile_flush_unlocked(logger);
+  if ((buf->pos >= DATA_LOGGER_WATERMARK)) {
+    logfile_queue_unlocked(logger);
   }else {
     struct timespec ts;
     clock_gettime(CLOCK_MONOTONIC, &ts);
     if ((ts.tv_sec < logger->last_flush_ts.tv_sec)
         || (ts.tv_sec - logger->last_flush_ts.tv_sec) >= DATA_LOGGER_FLUSH_INTERVAL_SEC) {
-      logfile_flush_unlocked(logger);
+      logfile_queue_unlocked(logger);
     }
   }
 }
+
+/*
+ * Writes the queued buffers to the log file. The file I/O is done without
+ * the mutex: the parser thread keeps filling the next buffer meanwhile.
+ */
+static void *datalogger_writer_thread(void *arg)
+{
+  struct datalogger_t *logger;
+  struct datalogger_buffer_t *buf;
+  size_t written;
+  char file_name[sizeof(logger->cur_file_name)];
+
+  logger = (struct datalogger_t *)arg;
+
+  pthread_mutex_lock(&logger->mtx);
+  for (;;) {
+    while ((logger->queued_nb == 0) && !logger->writer_cancel_requested)
+      pthread_cond_wait(&logger->buffer_queued_cond, &logger->mtx);
+    if (logger->queued_nb == 0)
+      break;
+
+    buf = &logger->buffers[logger->queue_head];
+    /* The file is not changed until the queue is drained */
+    strcpy(file_name, logger->cur_file_name);
+    pthread_mutex_unlock(&logger->mtx);
+
+    written = logfile_write_buffer(file_name, buf->data, buf->pos);
+
+    pthread_mutex_lock(&logger->mtx);
+    logger->stats.bytes_written += written;
+    logger->stats.bytes_lost += buf->pos - written;
+    logger->buffered -= buf->pos;
+    buf->pos = 0;
+    logger->queue_head = (logger->queue_head + 1) % DATA_LOGGER_BUFFER_NB;
+    logger->queued_nb -= 1;
+    pthread_cond_broadcast(&logger->buffer_written_cond);
+  }
+  pthread_mutex_unlock(&logger->mtx);
+
+  return NULL;
+}
+
+/*
+ * Appends data to the file.
+ * Returns number of bytes written, 0 on open() or close() error
+ */
+static size_t logfile_write_buffer(const char *file_name, const char *data, size_t size)
+{
+  int fd;
+  unsigned retry;
+  size_t written_total;
+
+  fd = open(file_name, O_WRONLY | O_APPEND | O_CREAT, 00644);
+  if (fd < 0) {
+    LOGV("open() error %s", strerror(errno));
+    return 0;
+  }
+  written_total = 0;
+
+  for (retry=0; retry<10; ++retry) {
+    ssize_t written;
+    written = write(fd, &data[written_total], size - written_total);
+    if (written < 0) {
+      LOGV("write() error %s", strerror(errno));
+      break;
+    }
+    written_total += written;
+    if (written_total == size) {
+      break;
+    }
+    if (written == 0)
+      usleep(200000);
+  }
+
+  if (close(fd) < 0) {
+    LOGI("close() error %s", strerror(errno));
+    written_total = 0;
+  }
+
+  LOGV("flushed %lu bytes", (unsigned long)written_total);
+  if (written_total != size)
+    LOGV("written %lu of %lu", (unsigned long)written_total, (unsigned long)size);
+
+  return written_total;
+}
@@ -3,13 +3,20 @@
 #ifndef _DATALOGGER_H
 #define _DATALOGGER_H
 
-#define DATA_LOGGER_BUFFER_SIZE (512*1024)
+/* Buffers are filled by the parser thread and written to the log file by
+ * the writer thread */
+#define DATA_LOGGER_BUFFER_NB 3
+#define DATA_LOGGER_BUFFER_SIZE (128*1024)
 #define DATA_LOGGER_WATERMARK (DATA_LOGGER_BUFFER_SIZE-8*1024)
 #define DATA_LOGGER_FLUSH_INTERVAL_SEC 3*60
 
+struct datalogger_buffer_t {
+  size_t pos;
+  char data[DATA_LOGGER_BUFFER_SIZE];
+};
+
 struct datalogger_t {
   pthread_mutex_t mtx;
-  size_t buffer_pos;
   bool enabled;
   struct timespec last_flush_ts;
   enum {
@@ -22,7 +29,29 @@ struct datalogger_t {
 
   char cur_file_name[NAME_MAX+PATH_MAX];
 
-  char buffer[DATA_LOGGER_BUFFER_SIZE];
+  /* Writer thread */
+  pthread_t writer_thread;
+  bool is_writer_running;
+  bool writer_cancel_requested;
+  pthread_cond_t buffer_queued_cond;
+  pthread_cond_t buffer_written_cond;
+
+  /* Buffers queued to the writer thread are buffers[queue_head], ... in
+   * the queue order. The buffer after them is being filled. The writer
+   * owns buffers[queue_head] while queued_nb is not 0 */
+  unsigned queue_head;
+  unsigned queued_nb;
+  size_t buffered;     /* Bytes in the queued and filled buffers */
+
+  /* Since datalogger_start() */
+  struct {
+    size_t buffer_high_water;
+    unsigned long long bytes_written;
+    unsigned long long bytes_lost;   /* Dropped, not written on errors or too large */
+    unsigned buffers_dropped;        /* Full buffers dropped on the slow writer */
+  } stats;
+
+  struct datalogger_buffer_t buffers[DATA_LOGGER_BUFFER_NB];
 };
 
 void datalogger_init(struct datalogger_t *datalogger);
@@ -40,6 +69,7 @@ void datalogger_log_msg(struct datalogger_t * __restrict logger,
     const struct gps_msg_metadata_t * __restrict metadata);
 void datalogger_flush(struct datalogger_t *logger);
 void datalogger_stop(struct datalogger_t *logger);
+void datalogger_export_stats(struct datalogger_t *logger, struct stats_t *dst);
 void datalogger_destroy(struct datalogger_t *logger);
 
 #endif /* _DATALOGGER_H */
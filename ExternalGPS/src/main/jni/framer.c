@@ -0,0 +1,348 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <assert.h>
+#include <ctype.h>
+#include <string.h>
+
+#include <jni.h>
+#include <android/log.h>
+
+#include "usbconverter.h"
+
+#define TAG "nativeFramer"
+#ifdef ENABLE_LOG
+#define LOGV(x...) __android_log_print(ANDROID_LOG_INFO,TAG,x)
+#else
+#define LOGV(...)  do {} while (0)
+#endif
+
+/* Scores are halved when one of them reaches this value */
+#define FRAMER_SCORE_MAX 256
+
+#define MIN(a, b) ((a)<(b)?(a):(b))
+
+static void account_msg(struct gps_framer_t *ctx, unsigned type);
+static inline bool frame_msg(struct gps_framer_t *ctx, unsigned type,
+    struct gps_framer_state_t *state,
+    const uint8_t *buf, int msg_pos, int buf_size,
+    struct gps_msg_metadata_t *res);
+static bool resume_from_window(struct gps_framer_t *ctx, unsigned type,
+    struct gps_framer_state_t *state,
+    const uint8_t *buf, int msg_pos, int buf_size);
+static void extend_window(struct gps_framer_t *ctx, unsigned type,
+    const uint8_t *buf, int msg_pos, int end_pos);
+
+/*
+ * Resets the framer state. The set of the enabled protocols is kept
+ */
+void reset_gps_framer(struct gps_framer_t *ctx)
+{
+  unsigned i;
+
+  for (i=0; i < GPS_MSG_TYPE_NB; ++i) {
+    ctx->score[i] = 0;
+    ctx->order[i] = i;
+    ctx->window[i].len = 0;
+  }
+  ctx->pending_type = -1;
+}
+
+/*
+ * Sets the protocols the framer looks for.
+ * type_mask - bitmask of the message types (1 << MSG_TYPE_*)
+ */
+void gps_framer_set_enabled(struct gps_framer_t *ctx, unsigned type_mask)
+{
+  unsigned i;
+
+  type_mask &= (1 << GPS_MSG_TYPE_NB) - 1;
+
+  memset(ctx->sync_table, 0, sizeof(ctx->sync_table));
+  for (i=0; i < GPS_MSG_TYPE_NB; ++i) {
+    if (type_mask & (1 << i))
+      ctx->sync_table[GPS_PROTOCOLS[i].sync] |= 1 << i;
+    else
+      ctx->window[i].len = 0;
+  }
+
+  if (ctx->pending_type >= 0 && (type_mask & (1 << ctx->pending_type)) == 0)
+    ctx->pending_type = -1;
+
+  ctx->enabled = type_mask;
+}
+
+/*
+ * Forgets the truncated message returned by the last find_gps_msg() call.
+ * Must be called if the next call will not start at this message.
+ */
+void gps_framer_drop_pending(struct gps_framer_t *ctx)
+{
+  ctx->pending_type = -1;
+}
+
+/*
+ * Finds the first GPS message in buf starting from start_pos.
+ * stream_pos - position of buf[0] in the received stream.
+ * Only the bytes that can start a message of the enabled protocols are
+ * checked; where several
+ * protocols share a sync byte, the most frequent one in the recent stream
+ * is tried first.
+ * If the last call returned a truncated message, the next call must start
+ * at this message (or gps_framer_drop_pending() must be called first):
+ * framing of the message is resumed where it stopped.
+ *
+ * Resync after a failed message is bounded: the checksums of the bytes
+ * checked by the failed message are kept as prefix sums, so the
+ * candidates inside it are checked without rescanning these bytes.
+ *
+ * Returns position of the message or -1 if no message found.
+ */
+int find_gps_msg(struct gps_framer_t *ctx, const uint8_t *buf, unsigned stream_pos,
+    int start_pos, int buf_size, struct gps_msg_metadata_t *res)
+{
+  int msg_pos;
+  unsigned i, type;
+  unsigned candidates;
+  struct gps_framer_state_t state;
+
+  msg_pos = start_pos;
+  ctx->stream_pos = stream_pos;
+
+  /* Resume the truncated message */
+  if (ctx->pending_type >= 0 && msg_pos < buf_size) {
+    type = (unsigned)ctx->pending_type;
+    ctx->pending_type = -1;
+    state = ctx->pending;
+    if (frame_msg(ctx, type, &state, buf, msg_pos, buf_size, res))
+      return msg_pos;
+    msg_pos += 1;
+  }
+
+  for (;;) {
+    /* Skip to the next sync byte */
+    while (msg_pos < buf_size && ctx->sync_table[buf[msg_pos]] == 0)
+      msg_pos += 1;
+
+    if (msg_pos >= buf_size)
+      break;
+
+    candidates = ctx->sync_table[buf[msg_pos]];
+    for (i=0; i < GPS_MSG_TYPE_NB; ++i) {
+      type = ctx->order[i];
+      if ((candidates & (1 << type)) == 0)
+        continue;
+
+      memset(&state, 0, sizeof(state));
+      if (resume_from_window(ctx, type, &state, buf, msg_pos, buf_size)
+          && frame_msg(ctx, type, &state, buf, msg_pos, buf_size, res))
+        return msg_pos;
+    }
+
+    msg_pos += 1;
+  }
+
+  return -1;
+}
+
+/*
+ * Runs framer of the given type on the message at msg_pos.
+ * Returns true if the message is found (complete or truncated).
+ */
+static inline bool frame_msg(struct gps_framer_t *ctx, unsigned type,
+    struct gps_framer_state_t *state,
+    const uint8_t *buf, int msg_pos, int buf_size,
+    struct gps_msg_metadata_t *res)
+{
+  int msg_size;
+
+  msg_size = GPS_PROTOCOLS[type].frame(state, &buf[msg_pos], buf_size - msg_pos);
+  if (msg_size == LOOKS_NOT_LIKE_GPS_MSG) {
+    if (state->scanned > GPS_PROTOCOLS[type].header_len)
+      extend_window(ctx, type, buf, msg_pos, msg_pos + (int)state->scanned);
+    return false;
+  }
+
+  res->type = type;
+  if (msg_size == LOOKS_LIKE_TRUNCATED_MSG) {
+    res->size = buf_size - msg_pos;
+    res->is_truncated = true;
+    ctx->pending_type = (int)type;
+    ctx->pending = *state;
+  }else {
+    res->size = msg_size;
+    res->is_truncated = false;
+    account_msg(ctx, type);
+  }
+
+  return true;
+}
+
+/*
+ * Updates protocol scores and keeps ctx->order sorted by the score
+ */
+static void account_msg(struct gps_framer_t *ctx, unsigned type)
+{
+  unsigned i;
+  uint8_t tmp;
+
+  ctx->score[type] += 1;
+  if (ctx->score[type] >= FRAMER_SCORE_MAX) {
+    for (i=0; i < GPS_MSG_TYPE_NB; ++i)
+      ctx->score[i] /= 2;
+  }
+
+  for (i=1; i < GPS_MSG_TYPE_NB; ++i) {
+    if (ctx->order[i] != type)
+      continue;
+    while (i > 0 && ctx->score[ctx->order[i-1]] < ctx->score[type]) {
+      tmp = ctx->order[i-1];
+      ctx->order[i-1] = ctx->order[i];
+      ctx->order[i] = tmp;
+      i -= 1;
+    }
+    break;
+  }
+}
+
+/*
+ * Checks the header of the message at msg_pos and, if the window of the
+ * message type covers the bytes after the header, sets the framer state
+ * from the window prefix sums.
+ * Returns false if the header is not valid.
+ */
+static bool resume_from_window(struct gps_framer_t *ctx, unsigned type,
+    struct gps_framer_state_t *state,
+    const uint8_t *buf, int msg_pos, int buf_size)
+{
+  struct gps_framer_window_t *win;
+  unsigned header_len;
+  unsigned payload_length;
+  int x, y, end, star;
+
+  win = &ctx->window[type];
+  header_len = GPS_PROTOCOLS[type].header_len;
+
+  /* Offset of the message from the window start */
+  x = (int)(ctx->stream_pos + msg_pos - win->start);
+
+  if (win->len == 0
+      || x < 0
+      || x + (int)header_len >= win->len
+      || msg_pos + (int)header_len > buf_size)
+    return true;
+
+  /* Header */
+  if (GPS_PROTOCOLS[type].frame(state, &buf[msg_pos], header_len) == LOOKS_NOT_LIKE_GPS_MSG)
+    return false;
+
+  y = win->len;
+
+  switch (type) {
+    case MSG_TYPE_NMEA:
+      y = MIN(y, x + NMEA_MAX + 1);
+      state->csum = (win->a[y] ^ win->a[x + 1]) & 0x7f;
+      star = win->last_star;
+      if (star > x && star < y) {
+        state->csum_pos = star - x;
+        state->csum2 = (win->a[star] ^ win->a[x + 1]) & 0x7f;
+      }else {
+        state->csum_pos = -1;
+      }
+      break;
+    case MSG_TYPE_SIRF:
+      payload_length = (unsigned)buf[msg_pos+2] << 8 | buf[msg_pos+3];
+      y = MIN(y, x + 4 + (int)payload_length);
+      state->csum = (win->a[y] - win->a[x + 4]) & 0x7fff;
+      break;
+    case MSG_TYPE_UBLOX:
+      payload_length = buf[msg_pos+4] | (unsigned)buf[msg_pos+5] << 8;
+      y = MIN(y, x + 6 + (int)payload_length);
+      state->csum = (win->a[y] - win->a[x + 2]) & 0xff;
+      state->csum2 = (win->b[y] - win->b[x + 2] - (y - x - 2) * win->a[x + 2]) & 0xff;
+      break;
+    default:
+      /* No prefix sums for the message type */
+      return true;
+  }
+
+  end = y - x;
+  if (end > (int)state->scanned)
+    state->scanned = end;
+  else
+    memset(state, 0, sizeof(*state));
+
+  return true;
+}
+
+/*
+ * Adds prefix sums of the bytes up to end_pos to the window of the message
+ * type. Window is restarted at msg_pos if the failed message at msg_pos
+ * is not inside the window or next to it.
+ */
+static void extend_window(struct gps_framer_t *ctx, unsigned type,
+    const uint8_t *buf, int msg_pos, int end_pos)
+{
+  struct gps_framer_window_t *win;
+  int i, n, x, shift;
+
+  switch (type) {
+    case MSG_TYPE_NMEA:
+    case MSG_TYPE_SIRF:
+    case MSG_TYPE_UBLOX:
+      break;
+    default:
+      /* No prefix sums for the message type */
+      return;
+  }
+
+  win = &ctx->window[type];
+
+  x = (int)(ctx->stream_pos + msg_pos - win->start);
+  if (win->len == 0 || x < 0 || x > win->len) {
+    win->start = ctx->stream_pos + msg_pos;
+    win->len = 0;
+    win->last_star = -1;
+    win->a[0] = 0;
+    win->b[0] = 0;
+    x = 0;
+  }
+
+  /* Buffer position of the window end */
+  i = msg_pos - x + win->len;
+  if (end_pos <= i)
+    return;
+
+  /* Next candidates are after msg_pos: drop the bytes before it */
+  if (end_pos - (msg_pos - x) > GPS_FRAMER_WINDOW_SIZE) {
+    shift = x;
+    memmove(&win->a[0], &win->a[shift], (win->len - shift + 1) * sizeof(win->a[0]));
+    memmove(&win->b[0], &win->b[shift], (win->len - shift + 1) * sizeof(win->b[0]));
+    win->start += shift;
+    win->len -= shift;
+    win->last_star = win->last_star >= shift ? win->last_star - shift : -1;
+  }
+  assert(end_pos - i + win->len <= GPS_FRAMER_WINDOW_SIZE);
+
+  for (n=win->len; i < end_pos; ++i, ++n) {
+    switch (type) {
+      case MSG_TYPE_NMEA:
+        /* Only the text part checked by the NMEA framer */
+        if (buf[i] == 0x0d || !isprint(buf[i]))
+          goto extend_window_done;
+        if (buf[i] == '*')
+          win->last_star = n;
+        win->a[n+1] = win->a[n] ^ (buf[i] & 0x7f);
+        break;
+      case MSG_TYPE_SIRF:
+        win->a[n+1] = (win->a[n] + buf[i]) & 0x7fff;
+        break;
+      case MSG_TYPE_UBLOX:
+        win->a[n+1] = (win->a[n] + buf[i]) & 0xff;
+        win->b[n+1] = (win->b[n] + win->a[n+1]) & 0xff;
+        break;
+    }
+  }
+
+extend_window_done:
+  win->len = n;
+}
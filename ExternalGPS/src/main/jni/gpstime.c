@@ -0,0 +1,111 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <assert.h>
+#include <time.h>
+
+#include "usbconverter.h"
+
+#define DAY_MS 86400000ll
+
+static void set_day_number(struct utc_day_t *day, long long days);
+static void civil_from_days(long long days, int *y, unsigned *m, unsigned *d);
+
+/*
+ * Initializes the day from the system clock. Used until the date is
+ * received from the receiver.
+ */
+void reset_utc_day(struct utc_day_t *day)
+{
+  long long now;
+
+  now = (long long)time(NULL);
+  set_day_number(day, (now >= 0 ? now : now - 86399) / 86400);
+  day->last_tod_ms = UTC_TOD_UNKNOWN;
+}
+
+/*
+ * Converts the date and time of day received from the receiver to UTC
+ * time, ms since the epoch. The day number is recomputed only when the
+ * date changes.
+ */
+long long utc_day_date_time_ms(struct utc_day_t *day, int year, unsigned month, unsigned mday,
+    unsigned tod_ms)
+{
+  assert((month >= 1) && (month <= 12));
+  assert((mday >= 1) && (mday <= 31));
+
+  if ((year != day->year) || (month != day->month) || (mday != day->mday)) {
+    day->year = year;
+    day->month = month;
+    day->mday = mday;
+    day->start_ms = days_from_civil(year, month, mday) * DAY_MS;
+  }
+
+  day->last_tod_ms = tod_ms;
+  return day->start_ms + tod_ms;
+}
+
+/*
+ * Converts time of day to UTC time, ms since the epoch.
+ * Used for the fixes without date: a time of day more than 12 hours
+ * before the previous one means midnight has passed, the day is
+ * advanced. A time more than 12 hours after the previous one belongs to
+ * the previous day and does not change the day.
+ */
+long long utc_day_time_ms(struct utc_day_t *day, unsigned tod_ms)
+{
+  if (day->last_tod_ms != UTC_TOD_UNKNOWN) {
+    if ((long long)tod_ms + DAY_MS / 2 < (long long)day->last_tod_ms) {
+      set_day_number(day, day->start_ms / DAY_MS + 1);
+    }else if ((long long)tod_ms > (long long)day->last_tod_ms + DAY_MS / 2) {
+      return day->start_ms - DAY_MS + tod_ms;
+    }
+  }
+
+  day->last_tod_ms = tod_ms;
+  return day->start_ms + tod_ms;
+}
+
+/*
+ * Number of days since 1970-01-01 of the proleptic Gregorian calendar date
+ */
+long long days_from_civil(int y, unsigned m, unsigned d)
+{
+  int era;
+  unsigned yoe, doy, doe;
+
+  y -= m <= 2;
+  era = (y >= 0 ? y : y - 399) / 400;
+  yoe = (unsigned)(y - era * 400);
+  doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+  doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+  return (long long)era * 146097 + (long long)doe - 719468;
+}
+
+static void set_day_number(struct utc_day_t *day, long long days)
+{
+  civil_from_days(days, &day->year, &day->month, &day->mday);
+  day->start_ms = days * DAY_MS;
+}
+
+/*
+ * Proleptic Gregorian calendar date of the day number since 1970-01-01.
+ * Inverse of days_from_civil()
+ */
+static void civil_from_days(long long days, int *y, unsigned *m, unsigned *d)
+{
+  long long era;
+  unsigned doe, yoe, doy, mp;
+
+  days += 719468;
+  era = (days >= 0 ? days : days - 146096) / 146097;
+  doe = (unsigned)(days - era * 146097);
+  yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+  doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+  mp = (5 * doy + 2) / 153;
+
+  *d = doy - (153 * mp + 2) / 5 + 1;
+  *m = mp < 10 ? mp + 3 : mp - 9;
+  *y = (int)(yoe + era * 400) + (*m <= 2);
+}
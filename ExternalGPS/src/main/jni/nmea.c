@@ -3,10 +3,12 @@
 #include <assert.h>
 #include <ctype.h>
 #include <errno.h>
+#include <limits.h>
 #include <math.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <stdarg.h>
+#include <string.h>
 
 #include <jni.h>
 #include <android/log.h>
@@ -20,9 +22,110 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
+#define MIN(a, b) ((a)<(b)?(a):(b))
+
 #define KNOTS_TO_MPS 0.514444
 #define KMPH_TO_MPS (1000.0 / 3600.0)
 
+/* Time-tagged sentences of the fix. See nmea_parser_t.epoch_sentences */
+#define NMEA_FIX_GGA 0x01
+#define NMEA_FIX_RMC 0x02
+#define NMEA_FIX_GLL 0x04
+#define NMEA_FIX_GST 0x08
+#define NMEA_FIX_PUBX00 0x10
+#define NMEA_FIX_PUBX04 0x20
+
+/* Sentences that carry the position */
+#define NMEA_FIX_POSITION (NMEA_FIX_GGA | NMEA_FIX_RMC | NMEA_FIX_PUBX00)
+
+/* Sentence key for the end of epoch detection. sub: PUBX message ID,
+ * GSV signal ID and NMEA_EPOCH_GSV_LAST on the last sentence of the sequence */
+#define NMEA_EPOCH_KEY(type, talker, sub) \
+  (((unsigned)(type) << 16) | ((unsigned)(talker) << 8) | (unsigned)(sub))
+#define NMEA_EPOCH_KEY_NONE 0xffffffffu
+#define NMEA_EPOCH_GSV_LAST 0x10
+
+/* Maximum number of the fields split from the sentence */
+#define NMEA_MAX_FIELDS 32
+
+/* Field of the sentence. Points into the message, not null-terminated */
+struct nmea_field_t {
+  const char *s;
+  unsigned len;
+};
+
+enum nmea_sentence_t {
+  NMEA_SENTENCE_UNKNOWN = 0,
+  NMEA_SENTENCE_GGA,
+  NMEA_SENTENCE_RMC,
+  NMEA_SENTENCE_GLL,
+  NMEA_SENTENCE_GST,
+  NMEA_SENTENCE_GSA,
+  NMEA_SENTENCE_VTG,
+  NMEA_SENTENCE_ZDA,
+  NMEA_SENTENCE_GSV,
+  NMEA_SENTENCE_PUBX
+};
+
+#define NMEA_KEY(a, b, c) (((unsigned)(a) << 16) | ((unsigned)(b) << 8) | (unsigned)(c))
+
+/* Multiplicative hash of the sentence type. Collisions are reported by -Woverride-init */
+#define NMEA_HASH_BITS 5
+#define NMEA_HASH(key) ((unsigned)((key) * 0x9e3779b1u) >> (32 - NMEA_HASH_BITS))
+
+#define NMEA_SENTENCE_SLOT(a, b, c, type) \
+  [NMEA_HASH(NMEA_KEY(a, b, c))] = { NMEA_KEY(a, b, c), (type) }
+
+/* Sentence types of the standard talkers indexed by NMEA_HASH() */
+static const struct {
+  unsigned key;
+  enum nmea_sentence_t type;
+} NMEA_SENTENCES[1 << NMEA_HASH_BITS] = {
+  NMEA_SENTENCE_SLOT('G', 'G', 'A', NMEA_SENTENCE_GGA),
+  NMEA_SENTENCE_SLOT('R', 'M', 'C', NMEA_SENTENCE_RMC),
+  NMEA_SENTENCE_SLOT('G', 'L', 'L', NMEA_SENTENCE_GLL),
+  NMEA_SENTENCE_SLOT('G', 'S', 'T', NMEA_SENTENCE_GST),
+  NMEA_SENTENCE_SLOT('G', 'S', 'A', NMEA_SENTENCE_GSA),
+  NMEA_SENTENCE_SLOT('V', 'T', 'G', NMEA_SENTENCE_VTG),
+  NMEA_SENTENCE_SLOT('Z', 'D', 'A', NMEA_SENTENCE_ZDA),
+  NMEA_SENTENCE_SLOT('G', 'S', 'V', NMEA_SENTENCE_GSV),
+};
+
+/* Byte classes of the NMEA framer. Bytes outside of the sentence alphabet are 0 */
+#define NMEA_CHAR_INVALID 0
+#define NMEA_CHAR_DATA 1
+#define NMEA_CHAR_STAR 2
+#define NMEA_CHAR_CR 3
+
+/* Printable ASCII, same as isprint() in the C locale */
+static const uint8_t NMEA_CHARS[256] = {
+  [0x20 ... 0x29] = NMEA_CHAR_DATA,
+  ['*'] = NMEA_CHAR_STAR,
+  [0x2b ... 0x7e] = NMEA_CHAR_DATA,
+  [0x0d] = NMEA_CHAR_CR,
+};
+
+/* Hex digit value or'ed with NMEA_HEX_VALID. Other bytes are 0 */
+#define NMEA_HEX_VALID 0x10
+#define NMEA_HEX_DIGIT(c, v) [c] = NMEA_HEX_VALID | (v)
+
+static const uint8_t NMEA_HEX[256] = {
+  NMEA_HEX_DIGIT('0', 0), NMEA_HEX_DIGIT('1', 1), NMEA_HEX_DIGIT('2', 2),
+  NMEA_HEX_DIGIT('3', 3), NMEA_HEX_DIGIT('4', 4), NMEA_HEX_DIGIT('5', 5),
+  NMEA_HEX_DIGIT('6', 6), NMEA_HEX_DIGIT('7', 7), NMEA_HEX_DIGIT('8', 8),
+  NMEA_HEX_DIGIT('9', 9),
+  NMEA_HEX_DIGIT('A', 10), NMEA_HEX_DIGIT('B', 11), NMEA_HEX_DIGIT('C', 12),
+  NMEA_HEX_DIGIT('D', 13), NMEA_HEX_DIGIT('E', 14), NMEA_HEX_DIGIT('F', 15),
+  NMEA_HEX_DIGIT('a', 10), NMEA_HEX_DIGIT('b', 11), NMEA_HEX_DIGIT('c', 12),
+  NMEA_HEX_DIGIT('d', 13), NMEA_HEX_DIGIT('e', 14), NMEA_HEX_DIGIT('f', 15),
+};
+
+/* Powers of 10 exactly representable as double */
+static const double POW10[] = {
+  1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+  1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+};
+
 typedef enum {
   FIELD_INVALID = -1,
   FIELD_UNDEFINED = 0,
@@ -30,105 +133,177 @@ typedef enum {
 } parse_error_t;
 
 
-static bool parse_gga(const uint8_t *msg, size_t msg_size, struct nmea_gpgga_t *dst,
-    struct gps_msg_status_t *status);
+static bool parse_gga(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_gpgga_t *dst, struct gps_msg_status_t *status);
 static bool parse_rmc(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gprmc_t *dst, struct gps_msg_status_t *status);
-static bool parse_gll(const uint8_t *msg, size_t msg_size, struct nmea_gpgll_t *dst,
-    struct gps_msg_status_t *status);
+static bool parse_gll(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_gpgll_t *dst, struct gps_msg_status_t *status);
 static bool parse_vtg(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpvtg_t *dst, struct gps_msg_status_t *status);
 static bool parse_gsa(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgsa_t *dst, struct gps_msg_status_t *status);
 static bool parse_zda(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpzda_t *dst, struct gps_msg_status_t *status);
 static bool parse_gst(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgst_t *dst, struct gps_msg_status_t *status);
+static bool parse_gsv(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_gpgsv_t *dst, struct gps_msg_status_t *status);
+static bool parse_pubx00(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_pubx00_t *dst, struct gps_msg_status_t *status);
+static bool parse_pubx04(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_pubx04_t *dst, struct gps_msg_status_t *status);
 
 static unsigned split_nmea_str(const uint8_t *msg, size_t msg_size,
-    const char **fields, int fields_size, char *buf);
-static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix_time_t *dst);
-static bool parse_nmea_latitude(const char * __restrict deg_str,
-    const char * __restrict ns,
+    struct nmea_field_t *fields, unsigned fields_size);
+static enum nmea_sentence_t decode_nmea_address(const struct nmea_field_t *addr,
+    enum nmea_talker_t *talker);
+static inline enum nmea_talker_t decode_nmea_talker(char t1, char t2);
+static inline char field_char(const struct nmea_field_t *f);
+static inline const char *field_str(const struct nmea_field_t *f, char *dst, size_t dst_size);
+static inline bool parse_fixed_point(const struct nmea_field_t *f,
+    uint64_t *mantissa, unsigned *scale, bool *negative);
+static inline bool parse_digits(const char *s, unsigned len, unsigned long *dst);
+static bool parse_ulong(const struct nmea_field_t *f, unsigned long *dst);
+static bool parse_long(const struct nmea_field_t *f, long *dst);
+static parse_error_t parse_nmea_fix_time(const struct nmea_field_t *f, struct nmea_fix_time_t *dst);
+static parse_error_t parse_nmea_fix_time_str(const struct nmea_field_t *f,
+    struct nmea_fix_time_t *dst);
+static bool parse_nmea_latitude(const struct nmea_field_t *deg,
+    const struct nmea_field_t *ns,
     double * __restrict dst,
     bool * dst_is_defined);
-static bool parse_nmea_longitude(const char * __restrict deg_str,
-    const char * __restrict ew,
+static bool parse_nmea_longitude(const struct nmea_field_t *deg,
+    const struct nmea_field_t *ew,
     double * __restrict dst,
     bool * __restrict dst_is_defined
     );
-static bool parse_float(const char * __restrict str,
+static bool parse_float(const struct nmea_field_t *f,
     float * __restrict dst,
     bool * __restrict dst_is_defined
     );
+static bool parse_double(const struct nmea_field_t *f, double *dst);
 
 static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time);
+static void next_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status,
+    struct nmea_fix_time_t time);
+static void close_nmea_fix_if_ready(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
 static inline bool is_same_fix_time(struct nmea_fix_time_t t1, struct nmea_fix_time_t t2);
 static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
+static inline unsigned long long timespec_diff_ns(const struct timespec *t1,
+    const struct timespec *t2);
 static void merge_full_time(struct nmea_parser_t *ctx);
 static bool compose_location(const struct nmea_parser_t *ctx, struct location_t *dst);
+static void put_satellites_in_view(struct nmea_parser_t *ctx, enum nmea_talker_t talker,
+    const struct nmea_gpgsv_t *gsv, struct gps_msg_status_t *status);
+static void publish_satellites(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
+static void reset_satellites(struct nmea_parser_t *ctx);
+static void put_satellites_used(struct nmea_gsa_set_t *set, enum nmea_talker_t talker,
+    const struct nmea_gpgsa_t *gsa);
+static inline bool is_satellite_used(const struct nmea_gsa_set_t *set,
+    enum nmea_talker_t talker, unsigned prn);
+static void reset_gsa_set(struct nmea_gsa_set_t *set);
 static bool set_nmea_error(struct gps_msg_status_t *status,
     const uint8_t *nmea_msg, size_t nmea_msg_size, char *fmt, ...);
 
-inline int looks_like_nmea(const uint8_t *msg, size_t max_len)
+int looks_like_nmea(const uint8_t *msg, size_t max_len)
 {
-  unsigned i;
+  struct gps_framer_state_t state;
+
+  memset(&state, 0, sizeof(state));
+  return frame_nmea(&state, msg, max_len);
+}
+
+/*
+ * Resumable NMEA framer. state - zeroed before the first call, then kept
+ * between the calls on the same message while it is truncated.
+ * Bytes checked on the previous calls are not checked again, checksum is
+ * updated as the bytes arrive. On return state->scanned is the position
+ * where the check stopped.
+ * Validation, checksum and CR/LF search are done in one pass with the
+ * NMEA_CHARS table: the inner loop stops only on '*', CR and invalid bytes.
+ */
+int frame_nmea(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len)
+{
+  unsigned i, end, csum;
+  unsigned hi, lo;
   int crlf_pos;
-  int csum_pos;
 
   assert(max_len > 0);
 
-  if (msg[0] != '$')
-    return LOOKS_NOT_LIKE_GPS_MSG;
+  if (state->scanned == 0) {
+    if (msg[0] != '$')
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 1;
+    state->csum = 0;
+    state->csum_pos = -1;
+  }
 
+  /* Bytes after NMEA_MAX are never part of the sentence */
+  end = (unsigned)MIN(max_len, NMEA_MAX + 1);
+  csum = state->csum;
   crlf_pos = -1;
-  csum_pos = -1;
+  i = state->scanned;
 
-  for (i=1; i < max_len; ++i) {
+  for (;;) {
+    while ((i < end) && (NMEA_CHARS[msg[i]] == NMEA_CHAR_DATA))
+      csum ^= msg[i++];
 
-    if (i > NMEA_MAX)
-        return LOOKS_NOT_LIKE_GPS_MSG;
+    if (i == end)
+      break;
 
-    if (msg[i] == '*') {
-      csum_pos = (int)i;
-    }else if (msg[i] == 0x0d) {
+    if (NMEA_CHARS[msg[i]] == NMEA_CHAR_STAR) {
+      state->csum_pos = (int)i;
+      state->csum2 = csum;
+      csum ^= msg[i++];
+    }else if (NMEA_CHARS[msg[i]] == NMEA_CHAR_CR) {
       if (i + 1 == max_len) {
-        return LOOKS_LIKE_TRUNCATED_MSG;
+        break;
       }else if (msg[i+1] != 0x0a) {
+        state->scanned = i;
         return LOOKS_NOT_LIKE_GPS_MSG;
       }else {
         crlf_pos = (int)i;
         break;
       }
-    }else if (!isprint(msg[i])) {
+    }else {
+      state->scanned = i;
       return LOOKS_NOT_LIKE_GPS_MSG;
     }
   }
 
-  if (crlf_pos < 0)
-    return LOOKS_LIKE_TRUNCATED_MSG;
+  state->scanned = i;
+  state->csum = csum;
 
-  if (csum_pos > 0) {
-    unsigned msg_csum;
-    unsigned our_csum;
-    unsigned char csum_str[3];
-    char *endptr;
+  if (crlf_pos < 0) {
+    if (i > NMEA_MAX)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    return LOOKS_LIKE_TRUNCATED_MSG;
+  }
 
+  if (state->csum_pos > 0) {
     // Optional checksum (*XX<CR><LF>)
-    if (csum_pos + 3 != crlf_pos)
+    if (state->csum_pos + 3 != crlf_pos)
       return LOOKS_NOT_LIKE_GPS_MSG;
-    csum_str[0] = msg[csum_pos+1];
-    csum_str[1] = msg[csum_pos+2];
-    csum_str[2] = '\0';
 
-    msg_csum = (unsigned)strtol((const char *)csum_str, &endptr, 16);
-    if (*endptr != '\0')
+    hi = NMEA_HEX[msg[crlf_pos - 2]];
+    lo = NMEA_HEX[msg[crlf_pos - 1]];
+    if (!(hi & lo & NMEA_HEX_VALID))
       return LOOKS_NOT_LIKE_GPS_MSG;
 
-    our_csum = 0;
-    for (i=1; i < (unsigned)csum_pos; ++i) our_csum ^= msg[i] & 0x7f;
-    if (our_csum != msg_csum) {
-      LOGV("NMEA Checksum mismatch. 0x%x != 0x%x", msg_csum, our_csum);
+    if (state->csum2 != (((hi & 0x0f) << 4) | (lo & 0x0f))) {
+      LOGV("NMEA Checksum mismatch. 0x%x != 0x%x",
+          ((hi & 0x0f) << 4) | (lo & 0x0f), state->csum2);
       return LOOKS_NOT_LIKE_GPS_MSG;
     }
   }
@@ -139,121 +314,158 @@ inline int looks_like_nmea(const uint8_t *msg, size_t max_len)
 
 bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
 {
-  unsigned i;
-  char msg_id[9];
+  struct nmea_field_t fields[NMEA_MAX_FIELDS];
+  unsigned fields_nb;
+  enum nmea_talker_t talker;
+  enum nmea_sentence_t sentence;
+  unsigned epoch_sub;
 
   assert(msg_size > 1 &&  msg_size <= NMEA_MAX);
   assert((size_t)looks_like_nmea(msg, msg_size) == msg_size);
 
   status->is_valid = false;
   status->location_changed = false;
+  status->satellites = NULL;
   status->err[0] = '\0';
 
   ctx->stats->rcvd.nmea.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
   ctx->stats->rcvd.nmea.total += 1;
 
-  for (i=0; i < sizeof(msg_id); ++i) {
-    if (i >= msg_size) {
-      msg_id[i] = '\0';
+  fields_nb = split_nmea_str(msg, msg_size, fields, NMEA_MAX_FIELDS);
+
+  sentence = decode_nmea_address(&fields[0], &talker);
+  epoch_sub = 0;
+  switch (sentence) {
+    case NMEA_SENTENCE_GGA:
+      {
+        struct nmea_gpgga_t gxgga;
+        if (parse_gga(msg, msg_size, fields, fields_nb, &gxgga, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgga.fix_time))
+            next_nmea_fix(ctx, status, gxgga.fix_time);
+          ctx->fix.gpgga_active = true;
+          ctx->fix.gpgga = gxgga;
+          ctx->stats->rcvd.nmea.gga += 1;
+        }
+      }
       break;
-    }else {
-      if (msg[i] == ',') {
-        msg_id[i] = '\0';
-        break;
-      }else {
-        msg_id[i] = (char)msg[i];
+    case NMEA_SENTENCE_RMC:
+      {
+        struct nmea_gprmc_t gxrmc;
+        if (parse_rmc(msg, msg_size, fields, fields_nb, &gxrmc, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxrmc.fix_time))
+            next_nmea_fix(ctx, status, gxrmc.fix_time);
+          ctx->fix.gprmc_active = true;
+          ctx->fix.gprmc = gxrmc;
+          ctx->stats->rcvd.nmea.rmc += 1;
+        }
       }
-    }
-  }
-  msg_id[sizeof(msg_id)-1] = '\0';
-
-  if (
-      (strcmp("$GPGGA", msg_id) == 0)
-      || (strcmp("$GNGGA", msg_id) == 0)
-      || (strcmp("$GLGGA", msg_id) == 0)
-      || (strcmp("$GAGGA", msg_id) == 0)
-      ) {
-    struct nmea_gpgga_t gxgga;
-    if (parse_gga(msg, msg_size, &gxgga, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxgga.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxgga.fix_time);
+      break;
+    case NMEA_SENTENCE_GLL:
+      {
+        struct nmea_gpgll_t gxgll;
+        if (parse_gll(msg, msg_size, fields, fields_nb, &gxgll, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgll.fix_time))
+            next_nmea_fix(ctx, status, gxgll.fix_time);
+          ctx->fix.gpgll_active = true;
+          ctx->fix.gpgll = gxgll;
+          ctx->stats->rcvd.nmea.gll += 1;
+        }
       }
-      ctx->fix.gpgga_active = true;
-      ctx->fix.gpgga = gxgga;
-      ctx->stats->rcvd.nmea.gga += 1;
-    }
-  }else if (
-      (strcmp("$GPRMC", msg_id) == 0)
-      || (strcmp("$GNRMC", msg_id) == 0)
-      || (strcmp("$GLRMC", msg_id) == 0)
-      || (strcmp("$GARMC", msg_id) == 0)
-      ) {
-    struct nmea_gprmc_t gxrmc;
-    if (parse_rmc(msg, msg_size, &gxrmc, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxrmc.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxrmc.fix_time);
+      break;
+    case NMEA_SENTENCE_GST:
+      {
+        struct nmea_gpgst_t gxgst;
+        if (parse_gst(msg, msg_size, fields, fields_nb, &gxgst, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, gxgst.fix_time))
+            next_nmea_fix(ctx, status, gxgst.fix_time);
+          ctx->fix.gpgst_active = true;
+          ctx->fix.gpgst = gxgst;
+          ctx->stats->rcvd.nmea.gst += 1;
+        }
       }
-      ctx->fix.gprmc_active = true;
-      ctx->fix.gprmc = gxrmc;
-      ctx->stats->rcvd.nmea.rmc += 1;
-    }
-  }else if (strcmp("$GPGLL", msg_id) == 0) {
-    struct nmea_gpgll_t gxgll;
-    if (parse_gll(msg, msg_size, &gxgll, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gxgll.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gxgll.fix_time);
+      break;
+    case NMEA_SENTENCE_GSA:
+      {
+        struct nmea_gpgsa_t gxgsa;
+        memset(&gxgsa, 0, sizeof(gxgsa));
+        if (parse_gsa(msg, msg_size, fields, fields_nb, &gxgsa, status)) {
+          put_satellites_used(&ctx->gsa, talker, &gxgsa);
+          ctx->stats->rcvd.nmea.gsa += 1;
+        }
       }
-      ctx->fix.gpgll_active = true;
-      ctx->fix.gpgll = gxgll;
-      ctx->stats->rcvd.nmea.gll += 1;
-    }
-  }else if (strcmp("$GPGST", msg_id) == 0) {
-    struct nmea_gpgst_t gpgst;
-    if (parse_gst(msg, msg_size, &gpgst, status)) {
-      if (!is_same_fix_time(ctx->fix.fix_time, gpgst.fix_time)) {
-        close_nmea_fix(ctx, status);
-        open_nmea_fix(&ctx->fix, gpgst.fix_time);
+      break;
+    case NMEA_SENTENCE_VTG:
+      {
+        struct nmea_gpvtg_t gxvtg;
+        if (parse_vtg(msg, msg_size, fields, fields_nb, &gxvtg, status)) {
+          gxvtg.is_valid = true;
+          ctx->gpvtg = gxvtg;
+          ctx->stats->rcvd.nmea.vtg += 1;
+        }
       }
-      ctx->fix.gpgst_active = true;
-      ctx->fix.gpgst = gpgst;
-      ctx->stats->rcvd.nmea.gst += 1;
-    }
-  }else if (strcmp("$GPGSA", msg_id) == 0) {
-    struct nmea_gpgsa_t gpgsa;
-    if (parse_gsa(msg, msg_size, &gpgsa, status)) {
-      gpgsa.is_valid = true;
-      ctx->gpgsa = gpgsa;
-      ctx->stats->rcvd.nmea.gsa += 1;
-    }
-  }else if (strcmp("$GPVTG", msg_id) == 0) {
-    struct nmea_gpvtg_t gpvtg;
-    if (parse_vtg(msg, msg_size, &gpvtg, status)) {
-      gpvtg.is_valid = true;
-      ctx->gpvtg = gpvtg;
-      ctx->stats->rcvd.nmea.vtg += 1;
-    }
-  }else if (strcmp("$GPZDA", msg_id) == 0) {
-    struct nmea_gpzda_t gpzda;
-    if (parse_zda(msg, msg_size, &gpzda, status)) {
-      ctx->fix.gpzda_active = true;
-      ctx->fix.gpzda = gpzda;
-      ctx->stats->rcvd.nmea.zda += 1;
-    }
-  }else if (strcmp("$GPGSV", msg_id) == 0) {
-    // TODO
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.gsv += 1;
-  }else if (strcmp("$PUBX", msg_id) == 0) {
-    // TODO
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.pubx += 1;
-  } else {
-    set_nmea_error(status, msg, msg_size, "unk msg");
-    status->is_valid = true;
-    ctx->stats->rcvd.nmea.other += 1;
+      break;
+    case NMEA_SENTENCE_ZDA:
+      {
+        struct nmea_gpzda_t gxzda;
+        if (parse_zda(msg, msg_size, fields, fields_nb, &gxzda, status)) {
+          ctx->fix.gpzda_active = true;
+          ctx->fix.gpzda = gxzda;
+          ctx->stats->rcvd.nmea.zda += 1;
+        }
+      }
+      break;
+    case NMEA_SENTENCE_GSV:
+      {
+        struct nmea_gpgsv_t gxgsv;
+        memset(&gxgsv, 0, sizeof(gxgsv));
+        if (parse_gsv(msg, msg_size, fields, fields_nb, &gxgsv, status)) {
+          put_satellites_in_view(ctx, talker, &gxgsv, status);
+          ctx->stats->rcvd.nmea.gsv += 1;
+          epoch_sub = gxgsv.signal_id
+            | (gxgsv.msg_num == gxgsv.msg_nb ? NMEA_EPOCH_GSV_LAST : 0);
+        }
+      }
+      break;
+    case NMEA_SENTENCE_PUBX:
+      /* Field 1. Message ID */
+      if ((fields_nb > 1) && (fields[1].len == 2) && (fields[1].s[0] == '0')
+          && (fields[1].s[1] == '0')) {
+        struct nmea_pubx00_t pubx00;
+        if (parse_pubx00(msg, msg_size, fields, fields_nb, &pubx00, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, pubx00.fix_time))
+            next_nmea_fix(ctx, status, pubx00.fix_time);
+          ctx->fix.pubx00_active = true;
+          ctx->fix.pubx00 = pubx00;
+          ctx->stats->rcvd.nmea.pubx += 1;
+        }
+      }else if ((fields_nb > 1) && (fields[1].len == 2) && (fields[1].s[0] == '0')
+          && (fields[1].s[1] == '4')) {
+        struct nmea_pubx04_t pubx04;
+        if (parse_pubx04(msg, msg_size, fields, fields_nb, &pubx04, status)) {
+          if (!is_same_fix_time(ctx->fix.fix_time, pubx04.fix_time))
+            next_nmea_fix(ctx, status, pubx04.fix_time);
+          ctx->fix.pubx04_active = true;
+          ctx->fix.pubx04 = pubx04;
+          ctx->stats->rcvd.nmea.pubx += 1;
+        }
+        epoch_sub = 4;
+      }else {
+        status->is_valid = true;
+        ctx->stats->rcvd.nmea.pubx += 1;
+        epoch_sub = 0xff;
+      }
+      break;
+    default:
+      set_nmea_error(status, msg, msg_size, "unk msg");
+      status->is_valid = true;
+      ctx->stats->rcvd.nmea.other += 1;
+      break;
+  }
+
+  if (status->is_valid) {
+    ctx->stats->rcvd.nmea.talker[talker] += 1;
+    ctx->epoch_last = NMEA_EPOCH_KEY(sentence, talker, epoch_sub);
+    close_nmea_fix_if_ready(ctx, status);
   }
 
   return status->is_valid;
@@ -262,21 +474,21 @@ bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size
 void put_nmea_timedout(struct nmea_parser_t *ctx, struct gps_msg_status_t *status)
 {
   status->is_valid = false;
+  status->satellites = NULL;
   status->err[0] = '\0';
+  if (!ctx->fix.is_closed)
+    ctx->stats->rcvd.nmea.epoch.closed_timeout += 1;
   close_nmea_fix(ctx, status);
+  ctx->fix.is_closed = true;
+  ctx->epoch_closed_early = false;
+  publish_satellites(ctx, status);
 }
 
 static bool parse_gga(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgga_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gpgga_t gpgga;
-  const char *fields[15];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 15) {
     return set_nmea_error(status, msg, msg_size,
@@ -284,31 +496,28 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 1. Time of fix */
-  if (parse_nmea_fix_time(fields[1], &gpgga.fix_time) != FIELD_VALID)
+  if (parse_nmea_fix_time(&fields[1], &gpgga.fix_time) != FIELD_VALID)
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Fields 2,3 latitude */
-  if (!parse_nmea_latitude(fields[2], fields[3], &gpgga.latitude, &gpgga.has_latitude))
+  if (!parse_nmea_latitude(&fields[2], &fields[3], &gpgga.latitude, &gpgga.has_latitude))
     return set_nmea_error(status, msg, msg_size,
-        "Invalid latitude '%s:%s'", fields[2], fields[3]);
+        "Invalid latitude '%.*s:%.*s'",
+        (int)fields[2].len, fields[2].s, (int)fields[3].len, fields[3].s);
 
   /* Fields 4,5 longitude */
-  if (!parse_nmea_longitude(fields[4], fields[5], &gpgga.longitude, &gpgga.has_longitude))
+  if (!parse_nmea_longitude(&fields[4], &fields[5], &gpgga.longitude, &gpgga.has_longitude))
     return set_nmea_error(status, msg, msg_size,
-        "Invalid longitude '%s:%s'", fields[4], fields[5]);
+        "Invalid longitude '%.*s:%.*s'",
+        (int)fields[4].len, fields[4].s, (int)fields[5].len, fields[5].s);
 
   /* Field 6 fix quality */
-  if (fields[6][0] == '\0') {
+  if (fields[6].len == 0) {
     return set_nmea_error(status, msg, msg_size,
         "Undefined fix quality");
   }else {
-    char *endptr;
     unsigned long fixq;
-    errno = 0;
-    fixq = strtoul(fields[6], &endptr, 10);
-    if ((errno == ERANGE && fixq == ULONG_MAX)
-        || (errno != 0 && fixq == 0)
-        || *endptr != '\0') {
+    if (!parse_ulong(&fields[6], &fixq)) {
       return set_nmea_error(status, msg, msg_size,
           "Invalid fix quality");
     }
@@ -316,14 +525,9 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 7. Number of satellites being tracked */
-  if ( (gpgga.has_sattelites_nb = (fields[7][0] != '\0'))) {
+  if ( (gpgga.has_sattelites_nb = (fields[7].len != 0))) {
     unsigned long sat_nb;
-    char *endptr;
-    errno = 0;
-    sat_nb = strtoul(fields[7], &endptr, 10);
-    if ((errno == ERANGE && sat_nb == LONG_MAX)
-        || (errno != 0 && sat_nb == 0)
-        || *endptr != '\0') {
+    if (!parse_ulong(&fields[7], &sat_nb)) {
       return set_nmea_error(status, msg, msg_size,
           "Invalid number of satellites");
     }
@@ -331,33 +535,19 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 8. HDOP */
-  if (!parse_float(fields[8], &gpgga.hdop, &gpgga.has_hdop))
+  if (!parse_float(&fields[8], &gpgga.hdop, &gpgga.has_hdop))
       return set_nmea_error(status, msg, msg_size, "Invalid HDOP");
 
   /* Field 9.  Altitude above mean sea level */
-  if ( (gpgga.has_altitude = (fields[9][0] != '\0'))) {
-    char *endptr;
-    errno = 0;
-    gpgga.altitude = strtod(fields[9], &endptr);
-    if ((errno == ERANGE && (gpgga.altitude == HUGE_VAL || gpgga.altitude == -HUGE_VAL))
-        || (errno != 0 && gpgga.altitude == 0)
-        || (*endptr != '\0')
-       ) {
+  if ( (gpgga.has_altitude = (fields[9].len != 0))) {
+    if (!parse_double(&fields[9], &gpgga.altitude))
       return set_nmea_error(status, msg, msg_size, "Invalid altitude");
-    }
   }
 
   /* Field 11. Geoid height */
-  if ( (gpgga.has_geoid_height = (fields[11][0] != '\0'))) {
-    char *endptr;
-    errno = 0;
-    gpgga.geoid_height = strtod(fields[11], &endptr);
-    if ((errno == ERANGE && (gpgga.geoid_height == HUGE_VAL || gpgga.geoid_height == -HUGE_VAL))
-        || (errno != 0 && gpgga.geoid_height == 0)
-        || (*endptr != '\0')
-       ) {
+  if ( (gpgga.has_geoid_height = (fields[11].len != 0))) {
+    if (!parse_double(&fields[11], &gpgga.geoid_height))
       return set_nmea_error(status, msg, msg_size, "Invalid geoid height");
-    }
   }
 
   status->is_valid = true;
@@ -367,55 +557,46 @@ static bool parse_gga(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_rmc(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gprmc_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gprmc_t gprmc;
-  const char *fields[12];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 12)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1. Time of fix */
-  if (parse_nmea_fix_time(fields[1], &gprmc.fix_time) != FIELD_VALID)
+  if (parse_nmea_fix_time(&fields[1], &gprmc.fix_time) != FIELD_VALID)
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Field 2. Status */
-  gprmc.status_active = fields[2][0] == 'A';
+  gprmc.status_active = field_char(&fields[2]) == 'A';
 
   /* Fields 3,4 latitude */
-  if (!parse_nmea_latitude(fields[3], fields[4], &gprmc.latitude, &gprmc.has_latitude))
+  if (!parse_nmea_latitude(&fields[3], &fields[4], &gprmc.latitude, &gprmc.has_latitude))
     return set_nmea_error(status, msg, msg_size,
         "Invalid latitude");
 
   /* Fields 5,6 longitude */
-  if (!parse_nmea_longitude(fields[5], fields[6], &gprmc.longitude, &gprmc.has_longitude))
+  if (!parse_nmea_longitude(&fields[5], &fields[6], &gprmc.longitude, &gprmc.has_longitude))
     return set_nmea_error(status, msg, msg_size,
         "Invalid longitude");
 
   /* Field 7. Speed over the ground  */
-  if (!parse_float(fields[7], &gprmc.speed, &gprmc.has_speed))
+  if (!parse_float(&fields[7], &gprmc.speed, &gprmc.has_speed))
     return set_nmea_error(status, msg, msg_size, "Invalid speed");
   else
     gprmc.speed *= KNOTS_TO_MPS;
 
   /* Field 8 course */
-  if (!parse_float(fields[8], &gprmc.course, &gprmc.has_course))
+  if (!parse_float(&fields[8], &gprmc.course, &gprmc.has_course))
     return set_nmea_error(status, msg, msg_size, "Invalid course");
 
   /* Field 9. Date */
-  if ( (gprmc.has_ddmmyy = (fields[9][0] != '\0'))) {
-    char *endptr;
+  if ( (gprmc.has_ddmmyy = (fields[9].len != 0))) {
     unsigned long ddmmyy;
-    errno = 0;
-    ddmmyy = strtoul(fields[9], &endptr, 10);
-    if ((ddmmyy > 311299)
-        || (errno != 0 && ddmmyy == 0)
-        || *endptr != '\0') {
+    if (!parse_ulong(&fields[9], &ddmmyy)
+        || (ddmmyy > 311299)) {
       return set_nmea_error(status, msg, msg_size, "Invalid date");
     }
     gprmc.ddmmyy = ddmmyy;
@@ -428,16 +609,10 @@ static bool parse_rmc(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gll(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgll_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gpgll_t gpgll;
-  const char *fields[6];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 5) {
     return set_nmea_error(status, msg, msg_size,
@@ -445,19 +620,19 @@ static bool parse_gll(const uint8_t *msg, size_t msg_size,
   }
 
   /* Fields 1,2 latitude */
-  if (!parse_nmea_latitude(fields[1], fields[2], &gpgll.latitude, &gpgll.has_latitude))
+  if (!parse_nmea_latitude(&fields[1], &fields[2], &gpgll.latitude, &gpgll.has_latitude))
     return set_nmea_error(status, msg, msg_size,
         "Invalid latitude");
 
   /* Fields 3,4 longitude */
-  if (!parse_nmea_longitude(fields[3], fields[4], &gpgll.longitude, &gpgll.has_longitude))
+  if (!parse_nmea_longitude(&fields[3], &fields[4], &gpgll.longitude, &gpgll.has_longitude))
     return set_nmea_error(status, msg, msg_size,
         "Invalid longitude");
 
   if (fields_nb < 6) {
     gpgll.status = true;
   }else {
-    gpgll.status = fields[5][0] != 'N';
+    gpgll.status = field_char(&fields[5]) != 'N';
   }
 
   status->is_valid = true;
@@ -467,40 +642,35 @@ static bool parse_gll(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_vtg(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpvtg_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gpvtg_t gpvtg;
-  const char *fields[10];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 9)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1, 2. True course made good over ground */
-  if (!parse_float(fields[1], &gpvtg.course_true, &gpvtg.has_course_true))
+  if (!parse_float(&fields[1], &gpvtg.course_true, &gpvtg.has_course_true))
     return set_nmea_error(status, msg, msg_size, "Invalid true course");
 
   /* Field 3, 4. Magnetic course made good over ground */
-  if (!parse_float(fields[3], &gpvtg.course_magn, &gpvtg.has_course_magn))
+  if (!parse_float(&fields[3], &gpvtg.course_magn, &gpvtg.has_course_magn))
     return set_nmea_error(status, msg, msg_size, "Invalid magnetic course");
 
   /* Field 5, 6. Speed, Knots*/
-  if (!parse_float(fields[5], &gpvtg.speed_knots, &gpvtg.has_speed_knots))
+  if (!parse_float(&fields[5], &gpvtg.speed_knots, &gpvtg.has_speed_knots))
     return set_nmea_error(status, msg, msg_size, "Invalid ground speed (knots)");
 
   /* Field 7, 8. Speed, kmph*/
-  if (!parse_float(fields[7], &gpvtg.speed_kmph, &gpvtg.has_speed_kmph))
+  if (!parse_float(&fields[7], &gpvtg.speed_kmph, &gpvtg.has_speed_kmph))
     return set_nmea_error(status, msg, msg_size, "Invalid ground speed (kmph)");
 
   /* Field 9. Mode indicator */
   if (fields_nb < 10) {
     gpvtg.fix_mode = 0;
   }else {
-    gpvtg.fix_mode = fields[9][0];
+    gpvtg.fix_mode = field_char(&fields[9]);
   }
 
   gpvtg.is_valid = true;
@@ -512,69 +682,59 @@ static bool parse_vtg(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gsa(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgsa_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   unsigned i;
   struct nmea_gpgsa_t gpgsa;
-  const char *fields[18];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 18)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1. Fix mode */
-  gpgsa.fix_mode = (int)fields[1];
+  gpgsa.fix_mode = field_char(&fields[1]);
 
   /* Field 2. Fix type */
-  if (fields[2][0] == '\0')
+  if (fields[2].len == 0)
     gpgsa.fix_type = -1;
   else {
-    char *endptr;
     unsigned long type;
-    errno = 0;
-    type = strtoul(fields[2], &endptr, 10);
-    if ((errno == ERANGE && type == ULONG_MAX)
-        || (errno != 0 && type == 0)
-        || *endptr != '\0') {
+    if (!parse_ulong(&fields[2], &type))
       return set_nmea_error(status, msg, msg_size, "Invalid fix type");
-    }
     gpgsa.fix_type = (int)type;
   }
 
   /* Field 3-14 PRN's of Satellite Vechicles */
   for (i=0; i<12; ++i) {
-    if (fields[3+i][0] == '\0')
-      gpgsa.prn[0] = 0;
+    if (fields[3+i].len == 0)
+      gpgsa.prn[i] = 0;
     else {
-      char *endptr;
       unsigned long prn;
-      errno = 0;
-      prn = strtoul(fields[3+i], &endptr, 10);
-      if ((errno == ERANGE && prn == ULONG_MAX)
-          || (errno != 0 && prn == 0)
-          || *endptr != '\0') {
+      if (!parse_ulong(&fields[3+i], &prn))
         return set_nmea_error(status, msg, msg_size, "Invalid PRN");
-      }
       gpgsa.prn[i] = (unsigned)prn;
     }
   }
 
   /* Field 15. PDOP */
-  if (!parse_float(fields[15], &gpgsa.pdop, &gpgsa.has_pdop))
+  if (!parse_float(&fields[15], &gpgsa.pdop, &gpgsa.has_pdop))
     return set_nmea_error(status, msg, msg_size, "Invalid PDOP");
 
   /* Field 16. HDOP */
-  if (!parse_float(fields[16], &gpgsa.hdop, &gpgsa.has_hdop))
+  if (!parse_float(&fields[16], &gpgsa.hdop, &gpgsa.has_hdop))
     return set_nmea_error(status, msg, msg_size, "Invalid HDOP");
 
   /* Field 17. VDOP */
-  if (!parse_float(fields[17], &gpgsa.vdop, &gpgsa.has_vdop))
+  if (!parse_float(&fields[17], &gpgsa.vdop, &gpgsa.has_vdop))
     return set_nmea_error(status, msg, msg_size, "Invalid VDOP");
 
+  /* Field 18. NMEA 4.10 GNSS system ID */
+  gpgsa.system_id = 0;
+  if ((fields_nb > 18) && (fields[18].len == 1)
+      && (fields[18].s[0] >= '1') && (fields[18].s[0] <= '6')) {
+    gpgsa.system_id = (unsigned)(fields[18].s[0] - '0');
+  }
+
   *dst = gpgsa;
   status->is_valid = true;
   status->err[0] = '\0';
@@ -582,32 +742,24 @@ static bool parse_gsa(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_zda(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpzda_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gpzda_t gpzda;
-  const char *fields[8];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 5)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1. UTC Time */
-  if (parse_nmea_fix_time(fields[1], &gpzda.fix_time) != FIELD_VALID)
+  if (parse_nmea_fix_time(&fields[1], &gpzda.fix_time) != FIELD_VALID)
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Field 2 UTC day */
-  if (fields[2][0] == '\0')
+  if (fields[2].len == 0)
     gpzda.day = 0;
   else {
-    char *endptr;
     unsigned long day;
-    errno = 0;
-    day = strtoul(fields[2], &endptr, 10);
-    if ((*endptr != '\0')
+    if (!parse_ulong(&fields[2], &day)
         || (day < 1 || day > 31)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid day");
@@ -616,14 +768,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 3 UTC month */
-  if (fields[3][0] == '\0')
+  if (fields[3].len == 0)
     gpzda.month = 0;
   else {
-    char *endptr;
     unsigned long month;
-    errno = 0;
-    month = strtoul(fields[3], &endptr, 10);
-    if ((*endptr != '\0')
+    if (!parse_ulong(&fields[3], &month)
         || ( month < 1 || month > 12)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid month");
@@ -632,14 +781,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   }
 
   /* Field 4 UTC 4-digit year */
-  if (fields[4][0] == '\0')
+  if (fields[4].len == 0)
     gpzda.year = 0;
   else {
-    char *endptr;
     unsigned long year;
-    errno = 0;
-    year = strtoul(fields[4], &endptr, 10);
-    if ((*endptr != '\0')
+    if (!parse_ulong(&fields[4], &year)
         || (year < 1990 || year > 2089)
         ) {
       return set_nmea_error(status, msg, msg_size, "Invalid year");
@@ -651,15 +797,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   if (fields_nb <= 5) {
     gpzda.zone_hours = 0;
   }else {
-    if (fields[5][0] == '\0'){
+    if (fields[5].len == 0){
       gpzda.zone_hours = 0;
     }else {
-      char *endptr;
       long zone_hours;
-      errno = 0;
-      zone_hours = strtol(fields[5], &endptr, 10);
-      if ((errno != 0 && zone_hours == 0)
-          || *endptr != '\0'
+      if (!parse_long(&fields[5], &zone_hours)
           || (zone_hours < -13 || zone_hours > 13)
          ) {
         return set_nmea_error(status, msg, msg_size, "Invalid local zone hours");
@@ -672,16 +814,11 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
   if (fields_nb <= 6) {
     gpzda.zone_minutes = 0;
   }else {
-    if (fields[6][0] == '\0'){
+    if (fields[6].len == 0){
       gpzda.zone_minutes = 0;
     }else {
-      char *endptr;
       unsigned long min;
-      errno = 0;
-
-      min = strtoul(fields[6], &endptr, 10);
-      if ((errno != 0 && min == 0)
-          || (*endptr != '\0')
+      if (!parse_ulong(&fields[6], &min)
           || (min > 59)
           ) {
         return set_nmea_error(status, msg, msg_size, "Invalid local zone minutes");
@@ -697,49 +834,44 @@ static bool parse_zda(const uint8_t *msg, size_t msg_size,
 }
 
 static bool parse_gst(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
     struct nmea_gpgst_t *dst, struct gps_msg_status_t *status)
 {
-  unsigned fields_nb;
   struct nmea_gpgst_t gpgst;
-  const char *fields[9];
-  char buf[NMEA_MAX];
-
-  assert(msg_size <= sizeof(buf));
-  fields_nb = split_nmea_str(msg, msg_size, fields, sizeof(fields)/sizeof(fields[0]), buf);
 
   if (fields_nb < 9)
     return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
 
   /* Field 1. Time of fix */
-  if (parse_nmea_fix_time(fields[1], &gpgst.fix_time) != FIELD_VALID)
+  if (parse_nmea_fix_time(&fields[1], &gpgst.fix_time) != FIELD_VALID)
     return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
 
   /* Field 2. RMS deviation */
-  if (!parse_float(fields[2], &gpgst.range_rms, &gpgst.has_range_rms))
+  if (!parse_float(&fields[2], &gpgst.range_rms, &gpgst.has_range_rms))
     return set_nmea_error(status, msg, msg_size, "Invalid RMS deviation");
 
   /* Field 3. Semi-major deviation */
-  if (!parse_float(fields[3], &gpgst.std_major, &gpgst.has_std_major))
+  if (!parse_float(&fields[3], &gpgst.std_major, &gpgst.has_std_major))
     return set_nmea_error(status, msg, msg_size, "Invalid Semi-major deviation");
 
   /* Field 4. Semi-minor deviation */
-  if (!parse_float(fields[4], &gpgst.std_minor, &gpgst.has_std_minor))
+  if (!parse_float(&fields[4], &gpgst.std_minor, &gpgst.has_std_minor))
     return set_nmea_error(status, msg, msg_size, "Invalid Semi-minor deviation");
 
   /* Field 5. Semi-major orientation */
-  if (!parse_float(fields[5], &gpgst.orient, &gpgst.has_orient))
+  if (!parse_float(&fields[5], &gpgst.orient, &gpgst.has_orient))
     return set_nmea_error(status, msg, msg_size, "Invalid Semi-major orientation");
 
   /* Field 6. Latitude error deviation */
-  if (!parse_float(fields[6], &gpgst.std_lat, &gpgst.has_std_lat))
+  if (!parse_float(&fields[6], &gpgst.std_lat, &gpgst.has_std_lat))
     return set_nmea_error(status, msg, msg_size, "Invalid Latitude error");
 
   /* Field 7. Longitude error deviation */
-  if (!parse_float(fields[7], &gpgst.std_lon, &gpgst.has_std_lon))
+  if (!parse_float(&fields[7], &gpgst.std_lon, &gpgst.has_std_lon))
     return set_nmea_error(status, msg, msg_size, "Invalid Longitude error");
 
   /* Field 8. Altitude error deviation */
-  if (!parse_float(fields[8], &gpgst.std_alt, &gpgst.has_std_alt))
+  if (!parse_float(&fields[8], &gpgst.std_alt, &gpgst.has_std_alt))
     return set_nmea_error(status, msg, msg_size, "Invalid altitude error");
 
   *dst = gpgst;
@@ -749,43 +881,293 @@ static bool parse_gst(const uint8_t *msg, size_t msg_size,
   return status->is_valid;
 }
 
-static unsigned split_nmea_str(const uint8_t *msg, size_t msg_size,
-    const char **fields, int fields_size, char *buf)
+static bool parse_gsv(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_gpgsv_t *dst, struct gps_msg_status_t *status)
 {
   unsigned i;
-  int fields_nb;
+  unsigned long val;
+  long elevation;
+  struct nmea_gpgsv_t gpgsv;
+  struct gps_satellite_t *sv;
 
-  buf[0] = msg[0];
-  fields[0] = &buf[0];
-  fields_nb = 1;
-  for (i=1; i < msg_size; ++i) {
-    if (msg[i] == ',') {
-      buf[i] = '\0';
-    }else {
-      buf[i] = (char)msg[i];
+  if (fields_nb < 4)
+    return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
+
+  /* Field 1. Number of sentences */
+  if (!parse_ulong(&fields[1], &val) || (val == 0))
+    return set_nmea_error(status, msg, msg_size, "Invalid number of sentences");
+  gpgsv.msg_nb = (unsigned)val;
+
+  /* Field 2. Sentence number */
+  if (!parse_ulong(&fields[2], &val) || (val == 0) || (val > gpgsv.msg_nb))
+    return set_nmea_error(status, msg, msg_size, "Invalid sentence number");
+  gpgsv.msg_num = (unsigned)val;
+
+  /* Field 3. Number of satellites in view. Not used: sequence can be truncated */
+
+  /* NMEA 4.10 signal ID after the last satellite */
+  gpgsv.signal_id = 0;
+  if (((fields_nb - 4) % 4) == 1) {
+    const struct nmea_field_t *f = &fields[fields_nb - 1];
+    if ((f->len == 1) && isxdigit((unsigned char)f->s[0])) {
+      gpgsv.signal_id = isdigit((unsigned char)f->s[0]) ? (unsigned)(f->s[0] - '0')
+        : (unsigned)(toupper((unsigned char)f->s[0]) - 'A' + 10);
     }
+  }
 
-    if (msg[i-1] == ',') {
-      if (fields_nb >= fields_size)
-        break;
-      else
-        fields[fields_nb++] = &buf[i];
+  /* Fields 4-7, 8-11, 12-15, 16-19. Satellite ID, elevation, azimuth, SNR */
+  gpgsv.sv_nb = 0;
+  for (i=4; (i + 4 <= fields_nb) && (gpgsv.sv_nb < 4); i += 4) {
+    /* Empty padding */
+    if (fields[i].len == 0)
+      continue;
+
+    sv = &gpgsv.sv[gpgsv.sv_nb];
+    sv->talker = NMEA_TALKER_OTHER;
+    sv->flags = 0;
+
+    if (!parse_ulong(&fields[i], &val) || (val == 0) || (val > UINT16_MAX))
+      return set_nmea_error(status, msg, msg_size, "Invalid satellite ID");
+    sv->prn = (uint16_t)val;
+
+    if (fields[i+1].len == 0)
+      sv->elevation = GPS_SATELLITE_ELEVATION_UNKNOWN;
+    else if (!parse_long(&fields[i+1], &elevation) || (elevation < -90) || (elevation > 90))
+      return set_nmea_error(status, msg, msg_size, "Invalid elevation");
+    else
+      sv->elevation = (int8_t)elevation;
+
+    if (fields[i+2].len == 0)
+      sv->azimuth = GPS_SATELLITE_AZIMUTH_UNKNOWN;
+    else if (!parse_ulong(&fields[i+2], &val) || (val > 360))
+      return set_nmea_error(status, msg, msg_size, "Invalid azimuth");
+    else
+      sv->azimuth = (uint16_t)(val % 360);
+
+    if (fields[i+3].len == 0)
+      sv->snr = 0;
+    else if (!parse_ulong(&fields[i+3], &val) || (val > 99))
+      return set_nmea_error(status, msg, msg_size, "Invalid SNR");
+    else
+      sv->snr = (uint8_t)val;
+
+    gpgsv.sv_nb += 1;
+  }
+
+  *dst = gpgsv;
+  status->is_valid = true;
+  status->err[0] = '\0';
+  return status->is_valid;
+}
+
+static bool parse_pubx00(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_pubx00_t *dst, struct gps_msg_status_t *status)
+{
+  struct nmea_pubx00_t pubx00;
+
+  if (fields_nb < 19)
+    return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
+
+  /* Field 2. Time of fix */
+  if (parse_nmea_fix_time(&fields[2], &pubx00.fix_time) != FIELD_VALID)
+    return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
+
+  /* Fields 3,4 latitude */
+  if (!parse_nmea_latitude(&fields[3], &fields[4], &pubx00.latitude, &pubx00.has_latitude))
+    return set_nmea_error(status, msg, msg_size, "Invalid latitude");
+
+  /* Fields 5,6 longitude */
+  if (!parse_nmea_longitude(&fields[5], &fields[6], &pubx00.longitude, &pubx00.has_longitude))
+    return set_nmea_error(status, msg, msg_size, "Invalid longitude");
+
+  /* Field 7. Altitude above the user datum ellipsoid */
+  if ( (pubx00.has_altitude = (fields[7].len != 0))) {
+    if (!parse_double(&fields[7], &pubx00.altitude))
+      return set_nmea_error(status, msg, msg_size, "Invalid altitude");
+  }
+
+  /* Field 8. Navigation status */
+  if (fields[8].len == 2)
+    pubx00.nav_stat = NMEA_NAV_STAT(fields[8].s[0], fields[8].s[1]);
+  else if (fields[8].len == 0)
+    pubx00.nav_stat = 0;
+  else
+    return set_nmea_error(status, msg, msg_size, "Invalid navigation status");
+
+  /* Field 9. Horizontal accuracy estimate */
+  if (!parse_float(&fields[9], &pubx00.h_acc, &pubx00.has_h_acc))
+    return set_nmea_error(status, msg, msg_size, "Invalid horizontal accuracy");
+
+  /* Field 10. Vertical accuracy estimate */
+  if (!parse_float(&fields[10], &pubx00.v_acc, &pubx00.has_v_acc))
+    return set_nmea_error(status, msg, msg_size, "Invalid vertical accuracy");
+
+  /* Field 11. Speed over ground, km/h */
+  if (!parse_float(&fields[11], &pubx00.speed, &pubx00.has_speed))
+    return set_nmea_error(status, msg, msg_size, "Invalid speed");
+  else
+    pubx00.speed *= KMPH_TO_MPS;
+
+  /* Field 12. Course over ground */
+  if (!parse_float(&fields[12], &pubx00.course, &pubx00.has_course))
+    return set_nmea_error(status, msg, msg_size, "Invalid course");
+
+  /* Field 13. Vertical velocity */
+  if (!parse_float(&fields[13], &pubx00.v_vel, &pubx00.has_v_vel))
+    return set_nmea_error(status, msg, msg_size, "Invalid vertical velocity");
+
+  /* Field 15. HDOP */
+  if (!parse_float(&fields[15], &pubx00.hdop, &pubx00.has_hdop))
+    return set_nmea_error(status, msg, msg_size, "Invalid HDOP");
+
+  /* Field 16. VDOP */
+  if (!parse_float(&fields[16], &pubx00.vdop, &pubx00.has_vdop))
+    return set_nmea_error(status, msg, msg_size, "Invalid VDOP");
+
+  /* Field 18. Number of satellites used in the navigation solution */
+  if ( (pubx00.has_sattelites_nb = (fields[18].len != 0))) {
+    unsigned long sat_nb;
+    if (!parse_ulong(&fields[18], &sat_nb))
+      return set_nmea_error(status, msg, msg_size, "Invalid number of satellites");
+    pubx00.sattelites_nb = (int)sat_nb;
+  }
+
+  status->is_valid = true;
+  status->err[0] = '\0';
+  *dst = pubx00;
+  return status->is_valid;
+}
+
+static bool parse_pubx04(const uint8_t *msg, size_t msg_size,
+    const struct nmea_field_t *fields, unsigned fields_nb,
+    struct nmea_pubx04_t *dst, struct gps_msg_status_t *status)
+{
+  struct nmea_pubx04_t pubx04;
+  struct nmea_field_t leap_sec;
+
+  if (fields_nb < 10)
+    return set_nmea_error(status, msg, msg_size, "Invalid field count %u", fields_nb);
+
+  /* Field 2. UTC time */
+  if (parse_nmea_fix_time(&fields[2], &pubx04.fix_time) != FIELD_VALID)
+    return set_nmea_error(status, msg, msg_size, "Invalid NMEA fix time");
+
+  /* Field 3. UTC date */
+  if ( (pubx04.has_ddmmyy = (fields[3].len != 0))) {
+    unsigned long ddmmyy;
+    if (!parse_ulong(&fields[3], &ddmmyy)
+        || (ddmmyy > 311299)) {
+      return set_nmea_error(status, msg, msg_size, "Invalid date");
     }
+    pubx04.ddmmyy = ddmmyy;
+  }
 
-    if ((msg[i] == '*') || (msg[i] == 0x0d) || (msg[i] == 0x0a)) {
-      buf[i] = '\0';
-      break;
+  /* Field 6. Leap seconds, 'D' suffix - firmware default */
+  leap_sec = fields[6];
+  pubx04.leap_sec_is_default = (leap_sec.len > 0) && (leap_sec.s[leap_sec.len - 1] == 'D');
+  if (pubx04.leap_sec_is_default)
+    leap_sec.len -= 1;
+  if ( (pubx04.has_leap_sec = (leap_sec.len != 0))) {
+    long val;
+    if (!parse_long(&leap_sec, &val))
+      return set_nmea_error(status, msg, msg_size, "Invalid leap seconds");
+    pubx04.leap_sec = (int)val;
+  }
+
+  status->is_valid = true;
+  status->err[0] = '\0';
+  *dst = pubx04;
+  return status->is_valid;
+}
+
+/*
+ * Splits the sentence into fields without copying. Field 0 is the address
+ * field ($GPGGA), the last field ends on the checksum delimiter or CR.
+ * Fields beyond fields_size are not stored.
+ * Returns number of the stored fields
+ */
+static unsigned split_nmea_str(const uint8_t *msg, size_t msg_size,
+    struct nmea_field_t *fields, unsigned fields_size)
+{
+  unsigned i, start;
+  unsigned fields_nb;
+
+  assert(fields_size > 0);
+
+  fields_nb = 0;
+  start = 0;
+  for (i=1; i < msg_size; ++i) {
+    /* All the delimiters are below '-', digits and letters are above */
+    if (msg[i] > ',')
+      continue;
+    if ((msg[i] == ',') || (msg[i] == '*') || (msg[i] == 0x0d) || (msg[i] == 0x0a)) {
+      fields[fields_nb].s = (const char *)&msg[start];
+      fields[fields_nb].len = i - start;
+      fields_nb += 1;
+      if ((msg[i] != ',') || (fields_nb == fields_size))
+        return fields_nb;
+      start = i + 1;
     }
+  }
 
+  fields[fields_nb].s = (const char *)&msg[start];
+  fields[fields_nb].len = msg_size - start;
+  return fields_nb + 1;
+}
+
+/*
+ * Decodes the address field: $ttsss - talker tt and sentence type sss
+ * of any talker, $Psss... - proprietary sentence
+ */
+static enum nmea_sentence_t decode_nmea_address(const struct nmea_field_t *addr,
+    enum nmea_talker_t *talker)
+{
+  const char *s;
+  unsigned key;
+
+  s = addr->s;
+
+  if ((addr->len >= 2) && (s[1] == 'P')) {
+    *talker = NMEA_TALKER_PROPRIETARY;
+    if ((addr->len == 5) && (s[2] == 'U') && (s[3] == 'B') && (s[4] == 'X'))
+      return NMEA_SENTENCE_PUBX;
+    return NMEA_SENTENCE_UNKNOWN;
+  }
+
+  if (addr->len != 6) {
+    *talker = NMEA_TALKER_OTHER;
+    return NMEA_SENTENCE_UNKNOWN;
   }
-  buf[msg_size-1] = '\0';
 
-  return fields_nb;
+  *talker = decode_nmea_talker(s[1], s[2]);
+
+  key = NMEA_KEY(s[3], s[4], s[5]);
+  if (NMEA_SENTENCES[NMEA_HASH(key)].key != key)
+    return NMEA_SENTENCE_UNKNOWN;
+
+  return NMEA_SENTENCES[NMEA_HASH(key)].type;
+}
+
+static inline enum nmea_talker_t decode_nmea_talker(char t1, char t2)
+{
+  switch (NMEA_KEY(0, t1, t2)) {
+    case NMEA_KEY(0, 'G', 'P'): return NMEA_TALKER_GP;
+    case NMEA_KEY(0, 'G', 'L'): return NMEA_TALKER_GL;
+    case NMEA_KEY(0, 'G', 'A'): return NMEA_TALKER_GA;
+    case NMEA_KEY(0, 'G', 'B'):
+    case NMEA_KEY(0, 'B', 'D'): return NMEA_TALKER_GB;
+    case NMEA_KEY(0, 'G', 'Q'):
+    case NMEA_KEY(0, 'Q', 'Z'): return NMEA_TALKER_GQ;
+    case NMEA_KEY(0, 'G', 'I'): return NMEA_TALKER_GI;
+    case NMEA_KEY(0, 'G', 'N'): return NMEA_TALKER_GN;
+    default: return NMEA_TALKER_OTHER;
+  }
 }
 
 void reset_nmea_parser(struct nmea_parser_t *ctx)
 {
-  time_t curtime;
 
   ctx->fix.fix_time.hhmmss = 0;
   ctx->fix.fix_time.mss = 0;
@@ -795,12 +1177,23 @@ void reset_nmea_parser(struct nmea_parser_t *ctx)
   ctx->fix.gprmc_active = false;
   ctx->fix.gpgst_active = false;
   ctx->fix.gpzda_active = false;
-
-  time(&curtime);
-  gmtime_r(&curtime, &ctx->time_full);
-
-  ctx->gpgsa.is_valid = false;
+  ctx->fix.pubx00_active = false;
+  ctx->fix.pubx04_active = false;
+  ctx->epoch_sentences = 0;
+  ctx->epoch_last = NMEA_EPOCH_KEY_NONE;
+  ctx->epoch_last_prev = NMEA_EPOCH_KEY_NONE;
+  ctx->epoch_last_learned = NMEA_EPOCH_KEY_NONE;
+  ctx->epoch_closed_early = false;
+
+  reset_utc_day(&ctx->utc_day);
+  ctx->fix_time_ms = 0;
+
+  reset_gsa_set(&ctx->gsa);
   ctx->gpvtg.is_valid = false;
+
+  ctx->satellites_fill = 0;
+  ctx->satellites[1].count = 0;
+  reset_satellites(ctx);
 }
 
 static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time)
@@ -812,14 +1205,90 @@ static void open_nmea_fix(struct nmea_fix_t *fix, struct nmea_fix_time_t time)
   fix->gprmc_active = false;
   fix->gpgst_active = false;
   fix->gpzda_active = false;
+  fix->pubx00_active = false;
+  fix->pubx04_active = false;
 }
 
-static inline bool fix_ready_to_close(struct nmea_fix_t *fix)
+static inline unsigned fix_sentences(const struct nmea_fix_t *fix)
 {
-  if (fix) {}
-  /* XXX */
-  /* return fix->gpgga_active && fix->gprmc_active && fix->gpgst_active; */
-  return false;
+  return (fix->gpgga_active ? NMEA_FIX_GGA : 0)
+    | (fix->gprmc_active ? NMEA_FIX_RMC : 0)
+    | (fix->gpgll_active ? NMEA_FIX_GLL : 0)
+    | (fix->gpgst_active ? NMEA_FIX_GST : 0)
+    | (fix->pubx00_active ? NMEA_FIX_PUBX00 : 0)
+    | (fix->pubx04_active ? NMEA_FIX_PUBX04 : 0);
+}
+
+/*
+ * The fix is ready if all the time-tagged sentences of the previous epoch
+ * are received. Untagged sentences (GSA, VTG, GSV) can follow them:
+ * wait for the last sentence of the epoch if the receiver order is stable
+ */
+static inline bool fix_ready_to_close(const struct nmea_parser_t *ctx)
+{
+  unsigned expected;
+
+  expected = ctx->epoch_sentences;
+  if ((expected & NMEA_FIX_POSITION) == 0)
+    return false;
+
+  if ((fix_sentences(&ctx->fix) & expected) != expected)
+    return false;
+
+  return (ctx->epoch_last_learned == NMEA_EPOCH_KEY_NONE)
+    || (ctx->epoch_last == ctx->epoch_last_learned);
+}
+
+/*
+ * Closes the current fix and starts the epoch with the given time
+ */
+static void next_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status,
+    struct nmea_fix_time_t time)
+{
+  const struct timespec *now;
+
+  now = &ctx->stats->rcvd.nmea.last_msg_ts;
+  if (!ctx->fix.is_closed) {
+    ctx->stats->rcvd.nmea.epoch.closed_late += 1;
+    ctx->stats->rcvd.nmea.epoch.latency_ns += timespec_diff_ns(now, &ctx->epoch_start_ts);
+  }else if (ctx->epoch_closed_early) {
+    ctx->stats->rcvd.nmea.epoch.saved_ns += timespec_diff_ns(now, &ctx->epoch_close_ts);
+  }
+
+  close_nmea_fix(ctx, status);
+  publish_satellites(ctx, status);
+  if (fix_sentences(&ctx->fix) != 0) {
+    ctx->epoch_sentences = fix_sentences(&ctx->fix);
+    ctx->epoch_last_learned = ctx->epoch_last == ctx->epoch_last_prev
+      ? ctx->epoch_last : NMEA_EPOCH_KEY_NONE;
+    ctx->epoch_last_prev = ctx->epoch_last;
+  }
+  open_nmea_fix(&ctx->fix, time);
+  ctx->epoch_start_ts = *now;
+  ctx->epoch_closed_early = false;
+}
+
+/*
+ * Closes the fix without waiting for the next epoch if it is complete
+ */
+static void close_nmea_fix_if_ready(struct nmea_parser_t *ctx, struct gps_msg_status_t *status)
+{
+  const struct timespec *now;
+
+  /* Previous fix is reported by this message: close on the next one */
+  if (ctx->fix.is_closed || status->location_changed || !fix_ready_to_close(ctx))
+    return;
+
+  close_nmea_fix(ctx, status);
+  ctx->fix.is_closed = true;
+  if (status->satellites == NULL)
+    publish_satellites(ctx, status);
+
+  now = &ctx->stats->rcvd.nmea.last_msg_ts;
+  ctx->epoch_closed_early = true;
+  ctx->epoch_close_ts = *now;
+  ctx->stats->rcvd.nmea.epoch.closed_early += 1;
+  ctx->stats->rcvd.nmea.epoch.latency_ns += timespec_diff_ns(now, &ctx->epoch_start_ts);
 }
 
 static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *status)
@@ -834,9 +1303,12 @@ static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *s
     return false;
 
   status->location_changed = true;
-  if (!fix->gpgga_active && !fix->gprmc_active && !fix->gpgll_active) {
+  if (ctx->epoch_start_ts.tv_sec != 0 || ctx->epoch_start_ts.tv_nsec != 0)
+    status->epoch_ts = ctx->epoch_start_ts;
+  if (!fix->gpgga_active && !fix->gprmc_active && !fix->gpgll_active
+      && !fix->pubx00_active) {
     snprintf(status->err, sizeof(status->err),
-        "No GPGGA/GPGLL/GPRMC sentences received on NMEA fix time %06u.%03u",
+        "No GPGGA/GPGLL/GPRMC/PUBX sentences received on NMEA fix time %06u.%03u",
         fix->fix_time.hhmmss, fix->fix_time.mss);
     fix->is_closed = true;
     status->location.is_valid = false;
@@ -848,51 +1320,85 @@ static bool close_nmea_fix(struct nmea_parser_t *ctx, struct gps_msg_status_t *s
   return status->location_changed;
 }
 
+/*
+ * Sets UTC time of the fix from the fix time and the date received in the
+ * epoch. Fixes without date are on the day of the previous fixes.
+ */
 static void merge_full_time(struct nmea_parser_t *ctx)
 {
-  unsigned gpzda_year;
+  const struct nmea_fix_t *fix;
+  int year;
+  unsigned month, mday;
+  unsigned ddmmyy;
+  unsigned tod_ms;
 
-  if (ctx->fix.gpzda_active
-      && (ctx->fix.gpzda.zone_hours == 0)
-      && (ctx->fix.gpzda.zone_minutes == 0)) {
-    gpzda_year = ctx->fix.gpzda.year;
-    ctx->time_full.tm_year = gpzda_year - 1900;
-  }else {
-    gpzda_year = 0;
+  fix = &ctx->fix;
+  year = 0;
+  month = 0;
+  mday = 0;
+
+  /* ZDA is not time-tagged to the fix, it can be left from the previous epoch */
+  if (fix->gpzda_active
+      && is_same_fix_time(fix->fix_time, fix->gpzda.fix_time)
+      && (fix->gpzda.zone_hours == 0)
+      && (fix->gpzda.zone_minutes == 0)) {
+    year = (int)fix->gpzda.year;
+    month = fix->gpzda.month;
+    mday = fix->gpzda.day;
   }
 
-  if (ctx->fix.gprmc_active && (ctx->fix.gprmc.ddmmyy != 0)) {
-    if (gpzda_year == 0) {
-      int gprmc_year;
-      gprmc_year = ctx->time_full.tm_year + 1900;
-      gprmc_year = gprmc_year - gprmc_year % 100 + ctx->fix.gprmc.ddmmyy % 100;
-      ctx->time_full.tm_year = gprmc_year - 1900;
-    }
-    ctx->time_full.tm_mon = ((ctx->fix.gprmc.ddmmyy / 100) % 100) - 1;
-    ctx->time_full.tm_mday = (ctx->fix.gprmc.ddmmyy / 10000) % 100;
+  if (fix->gprmc_active && fix->gprmc.has_ddmmyy)
+    ddmmyy = fix->gprmc.ddmmyy;
+  else if (fix->pubx04_active && fix->pubx04.has_ddmmyy)
+    ddmmyy = fix->pubx04.ddmmyy;
+  else
+    ddmmyy = 0;
+
+  if (ddmmyy != 0) {
+    /* Century of the ZDA year or of the current day */
+    if (year == 0)
+      year = ctx->utc_day.year - ctx->utc_day.year % 100 + (int)(ddmmyy % 100);
+    month = (ddmmyy / 100) % 100;
+    mday = (ddmmyy / 10000) % 100;
+  }
+
+  tod_ms = ((fix->fix_time.hhmmss / 10000) * 3600u
+      + ((fix->fix_time.hhmmss / 100) % 100) * 60u
+      + fix->fix_time.hhmmss % 100) * 1000u
+    + fix->fix_time.mss;
+
+  if ((year != 0)
+      && (month >= 1) && (month <= 12)
+      && (mday >= 1) && (mday <= 31)) {
+    ctx->fix_time_ms = utc_day_date_time_ms(&ctx->utc_day, year, month, mday, tod_ms);
+  }else {
+    ctx->fix_time_ms = utc_day_time_ms(&ctx->utc_day, tod_ms);
   }
-  ctx->time_full.tm_hour = (ctx->fix.fix_time.hhmmss / 10000) % 100;
-  ctx->time_full.tm_min = (ctx->fix.fix_time.hhmmss / 100) % 100;
-  ctx->time_full.tm_sec = ctx->fix.fix_time.hhmmss % 100;
 }
 
 static bool compose_location(const struct nmea_parser_t *ctx, struct location_t *dst)
 {
   const struct nmea_fix_t *fix;
-  bool  min_gga, min_rmc, min_gll;
+  bool  min_gga, min_rmc, min_gll, min_pubx;
   bool is_valid;
-  struct tm time_full;
 
   fix = &ctx->fix;
   min_gga = fix->gpgga_active && fix->gpgga.has_latitude && fix->gpgga.has_longitude;
   min_rmc = fix->gprmc_active && fix->gprmc.has_latitude && fix->gprmc.has_longitude;
   min_gll = fix->gpgll_active && fix->gpgll.has_latitude && fix->gpgll.has_longitude;
+  min_pubx = fix->pubx00_active && fix->pubx00.has_latitude && fix->pubx00.has_longitude;
 
-  is_valid = min_gga || min_rmc || min_gll;
+  is_valid = min_gga || min_rmc || min_gll || min_pubx;
   if (fix->gpgga_active)
     is_valid &= fix->gpgga.fix_quality != 0;
   if (fix->gprmc_active)
     is_valid &= fix->gprmc.status_active;
+  if (fix->pubx00_active) {
+    /* No fix, time only */
+    is_valid &= (fix->pubx00.nav_stat != 0)
+      && (fix->pubx00.nav_stat != NMEA_NAV_STAT('N', 'F'))
+      && (fix->pubx00.nav_stat != NMEA_NAV_STAT('T', 'T'));
+  }
 
   if (!is_valid) {
     dst->is_valid = false;
@@ -900,13 +1406,15 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   }
 
   dst->is_valid = true;
-  time_full = ctx->time_full;
-  dst->time = 1000ll * (long long)timegm64(&time_full) + ctx->fix.fix_time.mss;
+  dst->time = ctx->fix_time_ms;
 
   // Latitude, longitude
   if (min_gga) {
     dst->latitude = fix->gpgga.latitude;
     dst->longitude = fix->gpgga.longitude;
+  }else if (min_pubx) {
+    dst->latitude = fix->pubx00.latitude;
+    dst->longitude = fix->pubx00.longitude;
   }else if(min_rmc) {
     dst->latitude = fix->gprmc.latitude;
     dst->longitude = fix->gprmc.longitude;
@@ -920,6 +1428,9 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   if (min_gga && fix->gpgga.has_altitude) {
     dst->has_altitude = true;
     dst->altitude = fix->gpgga.altitude;
+  }else if (min_pubx && fix->pubx00.has_altitude) {
+    dst->has_altitude = true;
+    dst->altitude = fix->pubx00.altitude;
   }else {
     dst->has_altitude = false;
     dst->altitude = 0;
@@ -928,13 +1439,10 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   // Satellites
   if (min_gga && fix->gpgga.has_sattelites_nb) {
     dst->satellites = fix->gpgga.sattelites_nb;
-  }else if (ctx->gpgsa.is_valid) {
-    unsigned i;
-    dst->satellites = 0;
-    for (i=0; i<sizeof(ctx->gpgsa.prn)/sizeof(ctx->gpgsa.prn[0]); ++i) {
-      if (ctx->gpgsa.prn[i] > 0)
-        dst->satellites += 1;
-    }
+  }else if (min_pubx && fix->pubx00.has_sattelites_nb) {
+    dst->satellites = fix->pubx00.sattelites_nb;
+  }else if ((ctx->gsa.sentences != 0) && !ctx->gsa.is_closed) {
+    dst->satellites = (int)ctx->gsa.used_nb;
   }else {
     dst->satellites = -1;
   }
@@ -943,6 +1451,9 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   if (fix->gprmc_active && fix->gprmc.has_course) {
     dst->has_bearing = true;
     dst->bearing = fix->gprmc.course;
+  }else if (fix->pubx00_active && fix->pubx00.has_course) {
+    dst->has_bearing = true;
+    dst->bearing = fix->pubx00.course;
   }else if (ctx->gpvtg.is_valid
       && (ctx->gpvtg.fix_mode != 'N')
       && ctx->gpvtg.has_course_true) {
@@ -957,6 +1468,9 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
   if (fix->gprmc_active && fix->gprmc.has_speed) {
     dst->has_speed = true;
     dst->speed = fix->gprmc.speed;
+  }else if (fix->pubx00_active && fix->pubx00.has_speed) {
+    dst->has_speed = true;
+    dst->speed = fix->pubx00.speed;
   }else if (ctx->gpvtg.is_valid
       && (ctx->gpvtg.fix_mode != 'N')
       && ctx->gpvtg.has_speed_kmph) {
@@ -981,10 +1495,214 @@ static bool compose_location(const struct nmea_parser_t *ctx, struct location_t
       assert(!dst->has_accuracy);
     }
   }
+  if (!dst->has_accuracy && fix->pubx00_active && fix->pubx00.has_h_acc) {
+    dst->has_accuracy = true;
+    dst->accuracy = fix->pubx00.h_acc;
+  }
+
+  // DOP: combined from the GSA set, HDOP also from GGA and PUBX
+  dst->pdop = NAN;
+  dst->hdop = NAN;
+  dst->vdop = NAN;
+  if ((ctx->gsa.sentences != 0) && !ctx->gsa.is_closed) {
+    if (ctx->gsa.has_pdop)
+      dst->pdop = ctx->gsa.pdop;
+    if (ctx->gsa.has_hdop)
+      dst->hdop = ctx->gsa.hdop;
+    if (ctx->gsa.has_vdop)
+      dst->vdop = ctx->gsa.vdop;
+  }
+  if (isnan(dst->hdop) && min_gga && fix->gpgga.has_hdop)
+    dst->hdop = fix->gpgga.hdop;
+  if (isnan(dst->hdop) && min_pubx && fix->pubx00.has_hdop)
+    dst->hdop = fix->pubx00.hdop;
+  if (isnan(dst->vdop) && min_pubx && fix->pubx00.has_vdop)
+    dst->vdop = fix->pubx00.vdop;
 
   return dst->is_valid;
 }
 
+/*
+ * Adds satellites from the GSV sentence to the table of the current epoch
+ */
+static void put_satellites_in_view(struct nmea_parser_t *ctx, enum nmea_talker_t talker,
+    const struct nmea_gpgsv_t *gsv, struct gps_msg_status_t *status)
+{
+  unsigned i, j;
+  struct gps_satellites_t *table;
+
+  /* Sequence is repeated without time-tagged sentences between them: new epoch */
+  if ((gsv->msg_num == 1)
+      && (ctx->gsv_complete[talker] & (1u << gsv->signal_id)))
+    publish_satellites(ctx, status);
+
+  table = &ctx->satellites[ctx->satellites_fill];
+  for (i=0; i < gsv->sv_nb; ++i) {
+    /* Satellite is listed in the sequence of each signal since NMEA 4.10 */
+    for (j=0; j < table->count; ++j) {
+      if ((table->sat[j].prn == gsv->sv[i].prn) && (table->sat[j].talker == talker))
+        break;
+    }
+
+    if (j == table->count) {
+      if (table->count == GPS_SATELLITES_MAX)
+        break;
+      table->sat[j] = gsv->sv[i];
+      table->sat[j].talker = (uint8_t)talker;
+      table->count += 1;
+    }else if (gsv->sv[i].snr > table->sat[j].snr) {
+      table->sat[j].snr = gsv->sv[i].snr;
+    }
+  }
+
+  ctx->gsv_sentences += 1;
+  if (gsv->msg_num == gsv->msg_nb)
+    ctx->gsv_complete[talker] |= 1u << gsv->signal_id;
+}
+
+/*
+ * Completes the satellite table of the epoch and starts the new one.
+ * Also closes the GSA set of the epoch, called on every epoch boundary.
+ */
+static void publish_satellites(struct nmea_parser_t *ctx, struct gps_msg_status_t *status)
+{
+  unsigned i;
+  struct gps_satellites_t *table;
+  const struct nmea_gsa_set_t *gsa;
+
+  gsa = &ctx->gsa;
+
+  /* No GSV in this epoch */
+  if (ctx->gsv_sentences == 0) {
+    ctx->gsa.is_closed = true;
+    return;
+  }
+
+  table = &ctx->satellites[ctx->satellites_fill];
+  if ((gsa->sentences != 0) && !gsa->is_closed) {
+    for (i=0; i < table->count; ++i) {
+      struct gps_satellite_t *sat = &table->sat[i];
+      if (is_satellite_used(gsa, (enum nmea_talker_t)sat->talker, sat->prn))
+        sat->flags |= GPS_SATELLITE_USED_IN_FIX;
+    }
+    table->used_nb = gsa->used_nb;
+    table->pdop = gsa->has_pdop ? gsa->pdop : NAN;
+    table->hdop = gsa->has_hdop ? gsa->hdop : NAN;
+    table->vdop = gsa->has_vdop ? gsa->vdop : NAN;
+  }else {
+    table->used_nb = 0;
+    table->pdop = table->hdop = table->vdop = NAN;
+  }
+  table->hhmmss = ctx->fix.fix_time.hhmmss;
+  table->mss = ctx->fix.fix_time.mss;
+  status->satellites = table;
+
+  ctx->satellites_fill ^= 1;
+  reset_satellites(ctx);
+  ctx->gsa.is_closed = true;
+}
+
+static void reset_satellites(struct nmea_parser_t *ctx)
+{
+  ctx->satellites[ctx->satellites_fill].count = 0;
+  ctx->gsv_sentences = 0;
+  memset(ctx->gsv_complete, 0, sizeof(ctx->gsv_complete));
+}
+
+/*
+ * Merges used satellites of the GSA sentence into the set of the epoch.
+ * The first GSA after the fix is closed starts the new set.
+ */
+static void put_satellites_used(struct nmea_gsa_set_t *set, enum nmea_talker_t talker,
+    const struct nmea_gpgsa_t *gsa)
+{
+  static const enum nmea_talker_t SYSTEM_TALKERS[] = {
+    [1] = NMEA_TALKER_GP,
+    [2] = NMEA_TALKER_GL,
+    [3] = NMEA_TALKER_GA,
+    [4] = NMEA_TALKER_GB,
+    [5] = NMEA_TALKER_GQ,
+    [6] = NMEA_TALKER_GI
+  };
+  unsigned i;
+  uint32_t *used;
+
+  if (set->is_closed)
+    reset_gsa_set(set);
+
+  /* NMEA 4.10 system ID identifies the constellation of the GNGSA */
+  if (gsa->system_id != 0)
+    talker = SYSTEM_TALKERS[gsa->system_id];
+  used = set->used[talker];
+
+  for (i=0; i < sizeof(gsa->prn) / sizeof(gsa->prn[0]); ++i) {
+    unsigned prn = gsa->prn[i];
+    if ((prn == 0) || (prn > 255))
+      continue;
+    if (!(used[prn / 32] & (1u << (prn % 32)))) {
+      used[prn / 32] |= 1u << (prn % 32);
+      set->used_nb += 1;
+    }
+  }
+
+  if (gsa->fix_type > set->fix_type)
+    set->fix_type = gsa->fix_type;
+  if (!set->has_pdop && gsa->has_pdop) {
+    set->pdop = gsa->pdop;
+    set->has_pdop = true;
+  }
+  if (!set->has_hdop && gsa->has_hdop) {
+    set->hdop = gsa->hdop;
+    set->has_hdop = true;
+  }
+  if (!set->has_vdop && gsa->has_vdop) {
+    set->vdop = gsa->vdop;
+    set->has_vdop = true;
+  }
+  set->sentences += 1;
+}
+
+/*
+ * GNGSA without system ID matches satellites of any constellation
+ */
+static inline bool is_satellite_used(const struct nmea_gsa_set_t *set,
+    enum nmea_talker_t talker, unsigned prn)
+{
+  uint32_t mask;
+
+  if ((prn == 0) || (prn > 255) || (talker >= NMEA_TALKER_NB))
+    return false;
+
+  mask = 1u << (prn % 32);
+  return (set->used[talker][prn / 32] & mask)
+    || (set->used[NMEA_TALKER_GN][prn / 32] & mask);
+}
+
+static void reset_gsa_set(struct nmea_gsa_set_t *set)
+{
+  memset(set->used, 0, sizeof(set->used));
+  set->used_nb = 0;
+  set->fix_type = -1;
+  set->has_pdop = false;
+  set->has_hdop = false;
+  set->has_vdop = false;
+  set->sentences = 0;
+  set->is_closed = false;
+}
+
+/*
+ * t1 - t2, ns. 0 if t1 is before t2
+ */
+static inline unsigned long long timespec_diff_ns(const struct timespec *t1,
+    const struct timespec *t2)
+{
+  long long diff;
+
+  diff = (long long)(t1->tv_sec - t2->tv_sec) * 1000000000ll
+    + (t1->tv_nsec - t2->tv_nsec);
+  return diff > 0 ? (unsigned long long)diff : 0;
+}
+
 static inline bool is_same_fix_time(struct nmea_fix_time_t t1, struct nmea_fix_time_t t2)
 {
   if (t1.hhmmss != t2.hhmmss)
@@ -993,20 +1711,206 @@ static inline bool is_same_fix_time(struct nmea_fix_time_t t1, struct nmea_fix_t
     return abs((int)t2.mss - (int)t1.mss) < 50;
 }
 
-static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix_time_t *dst)
+static inline char field_char(const struct nmea_field_t *f)
+{
+  return f->len > 0 ? f->s[0] : '\0';
+}
+
+/*
+ * Copies the field into the null-terminated string for the C library parsers
+ */
+static inline const char *field_str(const struct nmea_field_t *f, char *dst, size_t dst_size)
+{
+  size_t len;
+
+  len = MIN(f->len, dst_size - 1);
+  memcpy(dst, f->s, len);
+  dst[len] = '\0';
+  return dst;
+}
+
+/*
+ * Parses [-]digits[.digits] field into integer mantissa and number of
+ * fraction digits. Returns false on any other format and on more than
+ * 18 digits, such fields are left to the C library parsers.
+ */
+static inline bool parse_fixed_point(const struct nmea_field_t *f,
+    uint64_t *mantissa, unsigned *scale, bool *negative)
+{
+  const char *p, *end;
+  uint64_t m;
+  unsigned digits, frac_digits;
+  bool has_point;
+
+  p = f->s;
+  end = f->s + f->len;
+  *negative = false;
+  if ((p != end) && (*p == '-')) {
+    *negative = true;
+    p += 1;
+  }
+
+  m = 0;
+  digits = 0;
+  frac_digits = 0;
+  has_point = false;
+  for (; p != end; ++p) {
+    if ((*p >= '0') && (*p <= '9')) {
+      if (++digits > 18)
+        return false;
+      m = 10 * m + (unsigned)(*p - '0');
+      if (has_point)
+        frac_digits += 1;
+    }else if ((*p == '.') && !has_point) {
+      has_point = true;
+    }else {
+      return false;
+    }
+  }
+
+  if (digits == 0)
+    return false;
+
+  *mantissa = m;
+  *scale = frac_digits;
+  return true;
+}
+
+/*
+ * Parses field of 1 - 9 decimal digits
+ */
+static inline bool parse_digits(const char *s, unsigned len, unsigned long *dst)
+{
+  unsigned i;
+  unsigned long res;
+
+  if ((len == 0) || (len > 9))
+    return false;
+
+  res = 0;
+  for (i=0; i < len; ++i) {
+    if ((s[i] < '0') || (s[i] > '9'))
+      return false;
+    res = 10 * res + (unsigned)(s[i] - '0');
+  }
+
+  *dst = res;
+  return true;
+}
+
+static bool parse_ulong(const struct nmea_field_t *f, unsigned long *dst)
 {
+  char str[NMEA_MAX];
   char *endptr;
+
+  if (parse_digits(f->s, f->len, dst))
+    return true;
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtoul(str, &endptr, 10);
+  if ((errno == ERANGE && *dst == ULONG_MAX)
+      || (errno != 0 && *dst == 0)
+      || *endptr != '\0') {
+    return false;
+  }
+  return true;
+}
+
+static bool parse_long(const struct nmea_field_t *f, long *dst)
+{
+  char str[NMEA_MAX];
+  char *endptr;
+  unsigned long res;
+
+  if ((f->len > 1) && (f->s[0] == '-')) {
+    if (parse_digits(f->s + 1, f->len - 1, &res)) {
+      *dst = -(long)res;
+      return true;
+    }
+  }else if (parse_digits(f->s, f->len, &res)) {
+    *dst = (long)res;
+    return true;
+  }
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtol(str, &endptr, 10);
+  if ((errno == ERANGE && (*dst == LONG_MAX || *dst == LONG_MIN))
+      || (errno != 0 && *dst == 0)
+      || *endptr != '\0') {
+    return false;
+  }
+  return true;
+}
+
+static parse_error_t parse_nmea_fix_time(const struct nmea_field_t *f, struct nmea_fix_time_t *dst)
+{
+  unsigned i, hhmmss_len;
   unsigned long hhmmss;
   unsigned mss;
 
   assert(dst);
 
-  if (hhmmss_mss[0] == '\0') {
+  if (f->len == 0) {
     dst->hhmmss = 0;
     dst->mss = 0;
     return FIELD_UNDEFINED;
   }
 
+  for (hhmmss_len=0; hhmmss_len < f->len; ++hhmmss_len) {
+    if (f->s[hhmmss_len] == '.')
+      break;
+  }
+
+  if (hhmmss_len == 0) {
+    hhmmss = 0;
+  }else if (!parse_digits(f->s, hhmmss_len, &hhmmss)) {
+    return parse_nmea_fix_time_str(f, dst);
+  }
+
+  if (hhmmss > 240000)
+    return FIELD_INVALID;
+
+  if ((hhmmss % 10000) > 6000)
+    return FIELD_INVALID;
+
+  if ((hhmmss % 100) > 60)
+    return FIELD_INVALID;
+
+  /* Milliseconds: first 3 digits of the fraction */
+  mss = 0;
+  for (i=0; i < 3; ++i) {
+    char c;
+    mss *= 10;
+    if (hhmmss_len + 1 + i >= f->len)
+      continue;
+    c = f->s[hhmmss_len + 1 + i];
+    if ((c < '0') || (c > '9'))
+      return parse_nmea_fix_time_str(f, dst);
+    mss += (unsigned)(c - '0');
+  }
+
+  dst->hhmmss = hhmmss;
+  dst->mss = mss;
+
+  return FIELD_VALID;
+}
+
+/*
+ * Fix time parser for the fields not in hhmmss[.sss] format
+ */
+static parse_error_t parse_nmea_fix_time_str(const struct nmea_field_t *f,
+    struct nmea_fix_time_t *dst)
+{
+  char str[NMEA_MAX];
+  const char *hhmmss_mss;
+  char *endptr;
+  unsigned long hhmmss;
+  unsigned mss;
+
+  hhmmss_mss = field_str(f, str, sizeof(str));
+
   hhmmss = strtoul(hhmmss_mss, &endptr, 10);
   if ((*endptr != '.') && (*endptr != '\0')) {
     return FIELD_INVALID;
@@ -1033,9 +1937,8 @@ static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix
     }
 
     mss = strtoul(mss_s, &endptr, 10);
-    if (*endptr != '\0')
+    if ((*endptr != '\0') || (mss >= 1000))
       return FIELD_INVALID;
-    assert(mss < 1000);
   }else {
     mss = 0;
   }
@@ -1046,79 +1949,133 @@ static parse_error_t parse_nmea_fix_time(const char *hhmmss_mss, struct nmea_fix
   return FIELD_VALID;
 }
 
-static inline bool parse_nmea_degrees(const char * __restrict deg_str,
+static inline bool parse_nmea_degrees(const struct nmea_field_t *deg,
     bool reverse_direction,
     double * __restrict dst,
     bool * __restrict dst_is_defined)
 {
-  char *endptr;
   double res, degrees, minutes;
 
-  if (deg_str[0] == '\0') {
+  if (deg->len == 0) {
     *dst_is_defined = false;
     return true;
   }else {
     *dst_is_defined = true;
   }
 
-  errno = 0;
-  res = strtod(deg_str, &endptr);
-  if ((errno == ERANGE && (res == HUGE_VAL || res == -HUGE_VAL))
-      || (errno != 0 && res == 0)
-      || (*endptr != '\0')
-      )
+  if (!parse_double(deg, &res))
     return false;
 
-  minutes = 100.0 * modf(res / 100.0, &degrees);
+  /* Out of range of latitude and longitude. Also guards the integer cast */
+  if (!(fabs(res) < 1.0e6))
+    return false;
+
+  /* Same as modf(): q - trunc(q) is exact */
+  res = res / 100.0;
+  degrees = (double)(long)res;
+  minutes = 100.0 * (res - degrees);
 
   *dst = (reverse_direction ? -1.0 : 1.0) * (degrees + minutes / 60.0);
 
   return true;
 }
 
-static bool parse_nmea_latitude(const char * __restrict deg_str,
-    const char * __restrict ns,
+static bool parse_nmea_latitude(const struct nmea_field_t *deg,
+    const struct nmea_field_t *ns,
     double * __restrict dst,
     bool * dst_is_defined)
 {
-  if (!parse_nmea_degrees(deg_str, *ns == 'S', dst, dst_is_defined))
+  if (!parse_nmea_degrees(deg, field_char(ns) == 'S', dst, dst_is_defined))
     return false;
   if (!*dst_is_defined)
     return true;
   return ((*dst >= -90.0) && (*dst <= 90.0));
 }
 
-static bool parse_nmea_longitude(const char * __restrict deg_str,
-    const char * __restrict ew,
+static bool parse_nmea_longitude(const struct nmea_field_t *deg,
+    const struct nmea_field_t *ew,
     double * __restrict dst,
     bool * __restrict dst_is_defined
     )
 {
-  if (!parse_nmea_degrees(deg_str, *ew == 'W', dst, dst_is_defined))
+  if (!parse_nmea_degrees(deg, field_char(ew) == 'W', dst, dst_is_defined))
     return false;
   if (!*dst_is_defined)
     return true;
   return ((*dst >= -180.0) && (*dst <= 180.0));
 }
 
-static bool parse_float(const char * __restrict str,
+/*
+ * Mantissa and 10^scale are exact floats: quotient computed in double
+ * and rounded to float is correctly rounded, same as strtof()
+ */
+static bool parse_float(const struct nmea_field_t *f,
     float * __restrict dst,
     bool * __restrict dst_is_defined
     )
 {
+  char str[NMEA_MAX];
   char *endptr;
-  errno = 0;
-  if (*str == '\0') {
+  uint64_t mantissa;
+  unsigned scale;
+  bool negative;
+
+  if (f->len == 0) {
     *dst_is_defined = false;
-  }else {
-    *dst_is_defined = true;
-    *dst = strtof(str, &endptr);
-    if ((errno == ERANGE && (*dst == HUGE_VALF || *dst == -HUGE_VALF))
-        || (errno != 0 && *dst == 0)
-        || (*endptr != '\0')
-       ) {
-      return false;
-    }
+    return true;
+  }
+
+  *dst_is_defined = true;
+  if (parse_fixed_point(f, &mantissa, &scale, &negative)
+      && (mantissa <= (1ull << 24))
+      && (scale <= 10)) {
+    *dst = (float)((double)mantissa / POW10[scale]);
+    if (negative)
+      *dst = -*dst;
+    return true;
+  }
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtof(str, &endptr);
+  if ((errno == ERANGE && (*dst == HUGE_VALF || *dst == -HUGE_VALF))
+      || (errno != 0 && *dst == 0)
+      || (*endptr != '\0')
+     ) {
+    return false;
+  }
+  return true;
+}
+
+/*
+ * Mantissa below 2^53 and 10^scale up to 10^22 are exact doubles:
+ * the quotient is correctly rounded, same as strtod()
+ */
+static bool parse_double(const struct nmea_field_t *f, double *dst)
+{
+  char str[NMEA_MAX];
+  char *endptr;
+  uint64_t mantissa;
+  unsigned scale;
+  bool negative;
+
+  if (parse_fixed_point(f, &mantissa, &scale, &negative)
+      && (mantissa < (1ull << 53))
+      && (scale < sizeof(POW10) / sizeof(POW10[0]))) {
+    *dst = (double)mantissa / POW10[scale];
+    if (negative)
+      *dst = -*dst;
+    return true;
+  }
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtod(str, &endptr);
+  if ((errno == ERANGE && (*dst == HUGE_VAL || *dst == -HUGE_VAL))
+      || (errno != 0 && *dst == 0)
+      || (*endptr != '\0')
+     ) {
+    return false;
   }
   return true;
 }
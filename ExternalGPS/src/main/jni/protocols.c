@@ -0,0 +1,68 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+
+static void reset_nmea(void *parser);
+static bool put_nmea(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status);
+static void reset_sirf(void *parser);
+static bool put_sirf(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status);
+static void reset_ublox(void *parser);
+static bool put_ublox(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status);
+static void reset_rtcm3(void *parser);
+static bool put_rtcm3(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status);
+
+/*
+ * Supported protocols, indexed by message type.
+ * To add a protocol: add the message type, the framer and the parser
+ * to usbconverter.h, the entry here and the parser to struct native_ctx_t.
+ */
+const struct gps_protocol_t GPS_PROTOCOLS[GPS_MSG_TYPE_NB] = {
+  [MSG_TYPE_NMEA] = { "NMEA", '$', 1, frame_nmea, reset_nmea, put_nmea },
+  [MSG_TYPE_SIRF] = { "SiRF", 0xa0, 4, frame_sirf, reset_sirf, put_sirf },
+  [MSG_TYPE_UBLOX] = { "UBX", 0xb5, 6, frame_ublox, reset_ublox, put_ublox },
+  [MSG_TYPE_RTCM3] = { "RTCM3", 0xd3, 3, frame_rtcm3, reset_rtcm3, put_rtcm3 },
+};
+
+static void reset_nmea(void *parser)
+{
+  reset_nmea_parser((struct nmea_parser_t *)parser);
+}
+
+static bool put_nmea(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
+{
+  return put_nmea_msg((struct nmea_parser_t *)parser, msg, msg_size, status);
+}
+
+static void reset_sirf(void *parser)
+{
+  reset_sirf_parser((struct sirf_parser_t *)parser);
+}
+
+static bool put_sirf(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
+{
+  return put_sirf_msg((struct sirf_parser_t *)parser, msg, msg_size, status);
+}
+
+static void reset_ublox(void *parser)
+{
+  reset_ublox_parser((struct ublox_parser_t *)parser);
+}
+
+static bool put_ublox(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
+{
+  return put_ublox_msg((struct ublox_parser_t *)parser, msg, msg_size, status);
+}
+
+static void reset_rtcm3(void *parser)
+{
+  reset_rtcm3_parser((struct rtcm3_parser_t *)parser);
+}
+
+static bool put_rtcm3(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status)
+{
+  return put_rtcm3_msg((struct rtcm3_parser_t *)parser, msg, msg_size, status);
+}
@@ -2,6 +2,7 @@
 
 #include <arpa/inet.h>
 #include <assert.h>
+#include <math.h>
 #include <stdio.h>
 #include <string.h>
 
@@ -10,6 +11,8 @@
 
 #include "usbconverter.h"
 
+#define MIN(a, b) ((a)<(b)?(a):(b))
+
 #define TAG "nativeSirf"
 #ifdef ENABLE_LOG
 #define LOGV(x...) __android_log_print(ANDROID_LOG_INFO,TAG,x)
@@ -17,34 +20,60 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
-static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
+static void parse_tracker_data(struct sirf_parser_t *ctx, const uint8_t *msg, size_t msg_size,
     struct gps_msg_status_t *status);
-static unsigned sirf_csum(const uint8_t *payload, unsigned payload_length);
 
 static inline uint16_t get2u(const uint8_t *buf);
 static inline uint32_t get4u(const uint8_t *buf);
 static inline int32_t get4s(const uint8_t *buf);
 
-inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
+int looks_like_sirf(const uint8_t *msg, size_t max_len)
+{
+  struct gps_framer_state_t state;
+
+  memset(&state, 0, sizeof(state));
+  return frame_sirf(&state, msg, max_len);
+}
+
+/*
+ * Resumable SiRF binary framer. See frame_nmea()
+ */
+int frame_sirf(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len)
 {
+  unsigned i, end;
   unsigned payload_length;
-  unsigned computed_csum, msg_csum;
+  unsigned msg_csum;
 
   assert(max_len > 0);
 
-  if (msg[0] != 0xa0)
-    return LOOKS_NOT_LIKE_GPS_MSG;
-
-  if (max_len < 8)
-    return LOOKS_LIKE_TRUNCATED_MSG;
+  if (state->scanned == 0) {
+    if (msg[0] != 0xa0)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 1;
+    state->csum = 0;
+  }
 
-  if (msg[1] != 0xa2)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+  if (state->scanned < 4) {
+    if (max_len < 2)
+      return LOOKS_LIKE_TRUNCATED_MSG;
+    if (msg[1] != 0xa2)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    if (max_len < 4) {
+      state->scanned = 2;
+      return LOOKS_LIKE_TRUNCATED_MSG;
+    }
+    if (get2u(&msg[2]) > SIRF_MAX)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 4;
+  }
 
   payload_length = get2u(&msg[2]);
 
-  if (payload_length > SIRF_MAX)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+  /* Payload checksum */
+  end = MIN(max_len, 4 + payload_length);
+  for (i=state->scanned; i < end; ++i)
+    state->csum = 0x7fff & (state->csum + msg[i]);
+  state->scanned = i;
 
   if (max_len < payload_length + 8)
     return LOOKS_LIKE_TRUNCATED_MSG;
@@ -54,11 +83,10 @@ inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
     return LOOKS_NOT_LIKE_GPS_MSG;
 
   msg_csum = get2u(&msg[4+payload_length]);
-  computed_csum = sirf_csum(&msg[4], payload_length);
 
-  if (msg_csum != computed_csum) {
+  if (msg_csum != state->csum) {
     LOGV("SiRF checksum mismatch. 0x%04x != 0x%04x",
-        msg_csum, computed_csum);
+        msg_csum, state->csum);
     return LOOKS_NOT_LIKE_GPS_MSG;
   }
 
@@ -67,6 +95,7 @@ inline int looks_like_sirf(const uint8_t *msg, size_t max_len)
 
 void reset_sirf_parser(struct sirf_parser_t *ctx)
 {
+  reset_utc_day(&ctx->utc_day);
 }
 
 bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg,
@@ -80,10 +109,12 @@ bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg,
   ctx->stats->rcvd.sirf.total += 1;
   ctx->stats->rcvd.sirf.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
 
+  status->satellites = NULL;
+
   mid = msg[4];
   switch (mid) {
     case 41:
-      parse_tracker_data(msg, msg_size, status);
+      parse_tracker_data(ctx, msg, msg_size, status);
       ctx->stats->rcvd.sirf.mid41 += 1;
       break;
     default:
@@ -96,14 +127,12 @@ bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg,
   return status->is_valid;
 }
 
-static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
+static void parse_tracker_data(struct sirf_parser_t *ctx, const uint8_t *msg, size_t msg_size,
     struct gps_msg_status_t *status)
 {
   unsigned payload_size;
   unsigned nav_type;
-  unsigned mss;
-  time_t cur_time;
-  struct tm loc_tm;
+  unsigned tod_ms;
   struct location_t l;
 
   if (msg_size) {}
@@ -118,18 +147,12 @@ static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
   nav_type = get2u(&msg[7]) & 0x07;
   l.is_valid = nav_type != 0;
 
-  /* Time */
-  cur_time = time(NULL);
-  gmtime_r(&cur_time, &loc_tm);
-  loc_tm.tm_year = get2u(&msg[15]) - 1900;
-  loc_tm.tm_mon = msg[17] - 1;
-  loc_tm.tm_mday = msg[18];
-  loc_tm.tm_hour = msg[19];
-  loc_tm.tm_min = msg[20];
-  mss = get2u(&msg[21]);
-  loc_tm.tm_sec = mss / 1000;
-
-  l.time = 1000ll * (long long)timegm64(&loc_tm) + (mss % 1000);
+  /* Time. Date out of range: the day of the previous fixes */
+  tod_ms = msg[19] * 3600000u + msg[20] * 60000u + get2u(&msg[21]);
+  if ((msg[17] >= 1) && (msg[17] <= 12) && (msg[18] >= 1) && (msg[18] <= 31))
+    l.time = utc_day_date_time_ms(&ctx->utc_day, get2u(&msg[15]), msg[17], msg[18], tod_ms);
+  else
+    l.time = utc_day_time_ms(&ctx->utc_day, tod_ms);
 
   /* latitude, longitude */
   l.latitude = 1.0e-7 * get4s(&msg[27]);
@@ -154,25 +177,17 @@ static void parse_tracker_data(const uint8_t *msg, size_t msg_size,
   /* Number of satellites used to derive the fix */
   l.satellites = msg[92];
 
+  /* HDOP, 0.2 units */
+  l.pdop = NAN;
+  l.hdop = msg[93] != 0 ? msg[93] * 0.2f : NAN;
+  l.vdop = NAN;
+
   status->location = l;
   status->is_valid = true;
   status->location_changed = true;
   status->err[0] = '\0';
 }
 
-static unsigned sirf_csum(const uint8_t *payload, unsigned payload_length)
-{
-  unsigned i;
-  unsigned csum;
-
-  csum = 0;
-  for (i=0; i<payload_length; ++i) {
-    csum = 0x7fff & (csum + (payload[i] & 0xff));
-  }
-
-  return csum;
-}
-
 static inline uint16_t get2u(const uint8_t *buf)
 {
   return (buf[0] << 8) | buf[1];
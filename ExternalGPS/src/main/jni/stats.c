@@ -1,14 +1,16 @@
 /* vim: set tabstop=2 shiftwidth=2 expandtab: */
 
 #include <assert.h>
+#include <sched.h>
 #include <stdio.h>
 #include <string.h>
 
-#include <jni.h>
 #include <android/log.h>
 
 #include "usbconverter.h"
 
+#define MIN(a, b) ((a)<(b)?(a):(b))
+
 #define TAG "nativeStats"
 #ifdef ENABLE_LOG
 #define LOGV(x...) __android_log_print(ANDROID_LOG_INFO,TAG,x)
@@ -16,119 +18,272 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
+/* Lengths of the rate windows, seconds */
+static const unsigned STATS_RATE_WINDOWS[STATS_RATE_WINDOW_NB] = { 1, 10, 60 };
+
+static void stats_fill_snapshot(const struct stats_t *stats, struct stats_snapshot_t *dst);
+static unsigned long long stats_rate_total(const struct stats_t *stats, unsigned counter);
+static void stats_rate_close_second(struct stats_t *stats, const unsigned long long *counts);
+
 void stats_init(struct stats_t *stats)
 {
-  memset(&stats, 0, sizeof(stats));
-  pthread_mutex_init(&stats->mtx, NULL);
+  memset(stats, 0, sizeof(*stats));
 }
 
-void stats_destroy(struct stats_t *stats)
+void stats_reset(struct stats_t *stats)
+{
+  unsigned long long pending[STATS_RATE_NB];
+  unsigned i;
+
+  /* Counts of the current second are kept for the rates */
+  for (i=0; i < STATS_RATE_NB; ++i)
+    pending[i] = stats_rate_total(stats, i) - stats->rates.base[i];
+
+  memset(&stats->rcvd, 0, sizeof(stats->rcvd));
+  memset(&stats->usb, 0, sizeof(stats->usb));
+  stats->start_ts.tv_sec = 0;
+  stats->start_ts.tv_nsec = 0;
+
+  /* Unsigned wrap-around: next delta is the new total plus pending */
+  for (i=0; i < STATS_RATE_NB; ++i)
+    stats->rates.base[i] = stats_rate_total(stats, i) - pending[i];
+}
+
+
+void stats_start(struct stats_t *stats)
 {
-  pthread_mutex_destroy(&stats->mtx);
+  stats_reset(stats);
+  clock_gettime(CLOCK_MONOTONIC, &stats->start_ts);
 }
 
-void stats_lock(struct stats_t *stats)
+/*
+ * Advances the rate windows to the second of now. Called by the parser
+ * thread before the counters of the data received at now are updated, so
+ * the counts since the last call belong to the last counted second.
+ * Costs nothing until the second changes.
+ */
+void stats_tick(struct stats_t *stats, const struct timespec *now)
 {
-  pthread_mutex_lock(&stats->mtx);
+  unsigned long long counts[STATS_RATE_NB];
+  unsigned i, closed;
+
+  if (!stats->rates.is_started) {
+    stats->rates.is_started = true;
+    stats->rates.cur_sec = now->tv_sec;
+    for (i=0; i < STATS_RATE_NB; ++i)
+      stats->rates.base[i] = stats_rate_total(stats, i);
+    return;
+  }
+
+  if (now->tv_sec <= stats->rates.cur_sec)
+    return;
+
+  for (i=0; i < STATS_RATE_NB; ++i) {
+    unsigned long long total;
+    total = stats_rate_total(stats, i);
+    counts[i] = total - stats->rates.base[i];
+    stats->rates.base[i] = total;
+  }
+
+  /* Idle seconds are counted as zeroes. The ring is all zeroes after
+   * STATS_RATE_SLOTS of them */
+  for (closed=0; stats->rates.cur_sec < now->tv_sec; ++closed) {
+    if (closed > STATS_RATE_SLOTS) {
+      stats->rates.cur_sec = now->tv_sec;
+      break;
+    }
+    stats_rate_close_second(stats, counts);
+    memset(counts, 0, sizeof(counts));
+    stats->rates.cur_sec += 1;
+  }
 }
 
-void stats_unlock(struct stats_t *stats)
+/*
+ * True if the rate windows are all zeroes and nothing is counted in the
+ * current second: stats_tick() has nothing left to close until new data
+ */
+bool stats_rates_are_drained(const struct stats_t *stats)
 {
-  pthread_mutex_unlock(&stats->mtx);
+  unsigned w, i;
+
+  for (i=0; i < STATS_RATE_NB; ++i) {
+    if (stats_rate_total(stats, i) != stats->rates.base[i])
+      return false;
+    for (w=0; w < STATS_RATE_WINDOW_NB; ++w) {
+      if (stats->rates.sum[w][i] != 0)
+        return false;
+    }
+  }
+  return true;
 }
 
-void stats_reset_unlocked(struct stats_t *stats)
+static void stats_rate_close_second(struct stats_t *stats, const unsigned long long *counts)
 {
-  memset(&stats->rcvd, 0, sizeof(stats->rcvd));
-  stats->start_ts.tv_sec = 0;
-  stats->start_ts.tv_nsec = 0;
+  unsigned w, i;
+  long long sec;
+  const unsigned long long *leaving;
+  unsigned long long *slot;
+
+  sec = stats->rates.cur_sec;
+  for (w=0; w < STATS_RATE_WINDOW_NB; ++w) {
+    /* Slot of the second leaving the window */
+    leaving = stats->rates.slot[(sec - STATS_RATE_WINDOWS[w]) & (STATS_RATE_SLOTS - 1)];
+    for (i=0; i < STATS_RATE_NB; ++i)
+      stats->rates.sum[w][i] += counts[i] - leaving[i];
+  }
+
+  slot = stats->rates.slot[sec & (STATS_RATE_SLOTS - 1)];
+  memcpy(slot, counts, sizeof(stats->rates.slot[0]));
+
+  if (stats->rates.seconds < STATS_RATE_SLOTS)
+    stats->rates.seconds += 1;
 }
 
+static unsigned long long stats_rate_total(const struct stats_t *stats, unsigned counter)
+{
+  switch (counter) {
+    case STATS_RATE_BYTES:
+      return stats->rcvd.bytes;
+    case STATS_RATE_JUNK:
+      return stats->rcvd.junk;
+    case STATS_RATE_FIXES:
+      return stats->pipeline.fixes;
+    default:
+      assert(counter - STATS_RATE_MSGS < GPS_MSG_TYPE_NB);
+      return stats->rcvd.proto[counter - STATS_RATE_MSGS].msgs;
+  }
+}
 
-void stats_start_unlocked(struct stats_t *stats)
+static inline int64_t timespec2java_ts(struct timespec ts)
 {
-  stats_reset_unlocked(stats);
-  clock_gettime(CLOCK_MONOTONIC, &stats->start_ts);
+  return (int64_t)1000 * ts.tv_sec + ts.tv_nsec / 1000000;
 }
 
-static inline jlong timespec2java_ts(struct timespec ts)
+/*
+ * Publishes the counters. Called by the parser thread, the only writer
+ * of stats and dst. Readers retry on the odd or changed seq.
+ */
+void stats_publish(const struct stats_t *stats, struct stats_snapshot_t *dst)
 {
-  return (jlong)1000 * ts.tv_sec + ts.tv_nsec / 1000000;
+  volatile uint32_t *seq;
+
+  seq = &dst->seq;
+  *seq += 1;
+  __sync_synchronize();
+  stats_fill_snapshot(stats, dst);
+  __sync_synchronize();
+  *seq += 1;
 }
 
-void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst)
+/*
+ * Copies the snapshot published by stats_publish(). Never blocks the
+ * writer: the copy is repeated if the writer has updated src meanwhile.
+ */
+void stats_read_snapshot(const struct stats_snapshot_t *src, struct stats_snapshot_t *dst)
 {
-  static jmethodID method_set_stats;
-  static jmethodID method_set_nmea_stats;
-  static jmethodID method_set_sirf_stats;
-  static jmethodID method_set_ublox_stats;
-
- if (method_set_stats == NULL) {
-    jclass class_stats_native;
-
-    class_stats_native = (*env)->GetObjectClass(env, j_dst);
-
-    method_set_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setStats", "(JJJJ)V");
-    if (method_set_stats == NULL)
-      return;
-    method_set_nmea_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setNmeaStats", "(JJJJJJJJJJJJ)V");
-    if (method_set_nmea_stats == NULL)
-      return;
-    method_set_sirf_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setSirfStats", "(JJJ)V");
-    if (method_set_sirf_stats == NULL)
-      return;
-    method_set_ublox_stats = (*env)->GetMethodID(env,
-        class_stats_native, "setUbloxStats", "(JJ)V");
-    if (method_set_ublox_stats == NULL)
-      return;
-  }
+  const volatile uint32_t *seq;
+  uint32_t seq0;
 
-  stats_lock(stats);
-
-  (*env)->CallVoidMethod(env, j_dst, method_set_stats,
-      timespec2java_ts(stats->start_ts),
-      timespec2java_ts(stats->rcvd.last_byte_ts),
-      (jlong)stats->rcvd.bytes,
-      (jlong)stats->rcvd.junk
-      );
-  if ((*env)->ExceptionOccurred(env))
-    goto stats_to_java_return;
-
-  (*env)->CallVoidMethod(env, j_dst, method_set_nmea_stats,
-      timespec2java_ts(stats->rcvd.nmea.last_msg_ts),
-      (jlong)stats->rcvd.nmea.total,
-      (jlong)stats->rcvd.nmea.gga,
-      (jlong)stats->rcvd.nmea.rmc,
-      (jlong)stats->rcvd.nmea.gll,
-      (jlong)stats->rcvd.nmea.gst,
-      (jlong)stats->rcvd.nmea.gsa,
-      (jlong)stats->rcvd.nmea.vtg,
-      (jlong)stats->rcvd.nmea.zda,
-      (jlong)stats->rcvd.nmea.gsv,
-      (jlong)stats->rcvd.nmea.pubx,
-      (jlong)stats->rcvd.nmea.other
-      );
-  if ((*env)->ExceptionOccurred(env))
-    goto stats_to_java_return;
-
-  (*env)->CallVoidMethod(env, j_dst, method_set_sirf_stats,
-      timespec2java_ts(stats->rcvd.sirf.last_msg_ts),
-      (jlong)stats->rcvd.sirf.total,
-      (jlong)stats->rcvd.sirf.mid41
-      );
-  if ((*env)->ExceptionOccurred(env))
-    goto stats_to_java_return;
-
-  (*env)->CallVoidMethod(env, j_dst, method_set_ublox_stats,
-      timespec2java_ts(stats->rcvd.ublox.last_msg_ts),
-      (jlong)stats->rcvd.ublox.total);
-  if ((*env)->ExceptionOccurred(env))
-    goto stats_to_java_return;
-
-stats_to_java_return:
-  stats_unlock(stats);
+  seq = &src->seq;
+  for (;;) {
+    seq0 = *seq;
+    if (seq0 & 1) {
+      sched_yield();
+      continue;
+    }
+    __sync_synchronize();
+    memcpy(dst, src, sizeof(*dst));
+    __sync_synchronize();
+    if (*seq == seq0)
+      break;
+  }
+  dst->seq = seq0;
 }
 
+static void stats_fill_snapshot(const struct stats_t *stats, struct stats_snapshot_t *dst)
+{
+  unsigned i, w;
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  dst->publish_ts = timespec2java_ts(now);
+
+  dst->start_ts = timespec2java_ts(stats->start_ts);
+  dst->last_byte_ts = timespec2java_ts(stats->rcvd.last_byte_ts);
+  dst->rcvd_bytes = stats->rcvd.bytes;
+  dst->rcvd_junk = stats->rcvd.junk;
+
+  dst->nmea_last_msg_ts = timespec2java_ts(stats->rcvd.nmea.last_msg_ts);
+  dst->nmea_total = stats->rcvd.nmea.total;
+  dst->nmea_gga = stats->rcvd.nmea.gga;
+  dst->nmea_rmc = stats->rcvd.nmea.rmc;
+  dst->nmea_gll = stats->rcvd.nmea.gll;
+  dst->nmea_gst = stats->rcvd.nmea.gst;
+  dst->nmea_gsa = stats->rcvd.nmea.gsa;
+  dst->nmea_vtg = stats->rcvd.nmea.vtg;
+  dst->nmea_zda = stats->rcvd.nmea.zda;
+  dst->nmea_gsv = stats->rcvd.nmea.gsv;
+  dst->nmea_pubx = stats->rcvd.nmea.pubx;
+  dst->nmea_other = stats->rcvd.nmea.other;
+  for (i=0; i < NMEA_TALKER_NB; ++i)
+    dst->nmea_talker[i] = stats->rcvd.nmea.talker[i];
+  dst->nmea_epoch_closed_early = stats->rcvd.nmea.epoch.closed_early;
+  dst->nmea_epoch_closed_late = stats->rcvd.nmea.epoch.closed_late;
+  dst->nmea_epoch_closed_timeout = stats->rcvd.nmea.epoch.closed_timeout;
+  dst->nmea_epoch_latency_ns = stats->rcvd.nmea.epoch.latency_ns;
+  dst->nmea_epoch_saved_ns = stats->rcvd.nmea.epoch.saved_ns;
+
+  dst->sirf_last_msg_ts = timespec2java_ts(stats->rcvd.sirf.last_msg_ts);
+  dst->sirf_total = stats->rcvd.sirf.total;
+  dst->sirf_mid41 = stats->rcvd.sirf.mid41;
+
+  dst->ublox_last_msg_ts = timespec2java_ts(stats->rcvd.ublox.last_msg_ts);
+  dst->ublox_total = stats->rcvd.ublox.total;
+  dst->ublox_nav_pvt = stats->rcvd.ublox.nav_pvt;
+  dst->ublox_nav_posllh = stats->rcvd.ublox.nav_posllh;
+  dst->ublox_nav_status = stats->rcvd.ublox.nav_status;
+
+  dst->rtcm3_last_msg_ts = timespec2java_ts(stats->rcvd.rtcm3.last_msg_ts);
+  dst->rtcm3_total = stats->rcvd.rtcm3.total;
+
+  for (i=0; i < GPS_MSG_TYPE_NB; ++i) {
+    dst->proto_msgs[i] = stats->rcvd.proto[i].msgs;
+    dst->proto_bytes[i] = stats->rcvd.proto[i].bytes;
+  }
+
+  dst->usb_urb_nb = stats->usb.urb_nb;
+  dst->usb_urb_size = stats->usb.urb_size;
+  dst->usb_urbs_in_flight = stats->usb.urbs_in_flight;
+  dst->usb_urbs_max_in_flight = stats->usb.urbs_max_in_flight;
+  dst->usb_urbs_reaped = stats->usb.urbs_reaped;
+  dst->usb_urbs_reaped_full = stats->usb.urbs_reaped_full;
+  dst->usb_urb_bytes = stats->usb.urb_bytes;
+  dst->usb_ring_size = stats->usb.ring_size;
+  dst->usb_ring_high_water = stats->usb.ring_high_water;
+  dst->usb_dropped_bytes = stats->usb.dropped_bytes;
+  dst->usb_baudrate = stats->usb.baudrate;
+  dst->usb_cycle_us = stats->usb.cycle_us;
+  dst->usb_req_len = stats->usb.req_len;
+  dst->usb_reader_wakeups = stats->usb.reader_wakeups;
+  dst->usb_reader_bytes = stats->usb.reader_bytes;
+  dst->usb_consumer_wakeups = stats->usb.consumer_wakeups;
+
+  dst->pipeline_framer_ns = stats->pipeline.framer_ns;
+  dst->pipeline_parser_ns = stats->pipeline.parser_ns;
+  dst->pipeline_report_ns = stats->pipeline.report_ns;
+  dst->pipeline_fixes = stats->pipeline.fixes;
+
+  for (w=0; w < STATS_RATE_WINDOW_NB; ++w) {
+    dst->rate_seconds[w] = MIN(stats->rates.seconds, STATS_RATE_WINDOWS[w]);
+    for (i=0; i < STATS_RATE_NB; ++i)
+      dst->rate_sum[w][i] = stats->rates.sum[w][i];
+  }
+
+  dst->datalogger_active = stats->datalogger.is_active;
+  dst->datalogger_buffer_size = stats->datalogger.buffer_size;
+  dst->datalogger_buffer_pos = stats->datalogger.buffer_pos;
+  dst->datalogger_buffer_high_water = stats->datalogger.buffer_high_water;
+  dst->datalogger_bytes_written = stats->datalogger.bytes_written;
+  dst->datalogger_bytes_lost = stats->datalogger.bytes_lost;
+  dst->datalogger_buffers_dropped = stats->datalogger.buffers_dropped;
+}
@@ -1,12 +1,31 @@
 /* vim: set tabstop=2 shiftwidth=2 expandtab: */
 
 #include <assert.h>
+#include <math.h>
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
 
 #include <jni.h>
 #include <android/log.h>
 
 #include "usbconverter.h"
 
+#define MIN(a, b) ((a)<(b)?(a):(b))
+
+#define UBX_CLASS_NAV 0x01
+#define UBX_NAV_POSLLH 0x02
+#define UBX_NAV_STATUS 0x03
+#define UBX_NAV_PVT 0x07
+
+#define UBX_NAV_POSLLH_LEN 28
+#define UBX_NAV_STATUS_LEN 16
+#define UBX_NAV_PVT_LEN 92
+
+/* Horizontal accuracy of a NAV-POSLLH without fix is ~4.3e6 m. Used when
+ * the NAV-STATUS of the epoch is not available */
+#define UBX_POSLLH_MAX_HACC_MM 100000000u
+
 #define TAG "nativeUblox"
 #ifdef ENABLE_LOG
 #define LOGV(x...) __android_log_print(ANDROID_LOG_INFO,TAG,x)
@@ -14,35 +33,87 @@
 #define LOGV(...)  do {} while (0)
 #endif
 
-inline int looks_like_ublox(const uint8_t *msg, size_t max_len) {
-  unsigned payload_length;
-  uint8_t ck_a, ck_b;
-  unsigned i;
+static bool parse_nav_pvt(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status);
+static bool parse_nav_posllh(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status);
+static void parse_nav_status(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status);
+static long long itow_to_utc_ms(const struct ublox_parser_t *ctx, unsigned itow);
 
-  assert(max_len > 0);
+static inline unsigned get_u2(const uint8_t *p)
+{
+  return p[0] | (unsigned)p[1] << 8;
+}
 
-  if (msg[0] != 0xb5)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+static inline uint32_t get_u4(const uint8_t *p)
+{
+  return p[0] | (uint32_t)p[1] << 8 | (uint32_t)p[2] << 16 | (uint32_t)p[3] << 24;
+}
 
-  if (max_len < 8)
-    return LOOKS_LIKE_TRUNCATED_MSG;
+static inline int32_t get_i4(const uint8_t *p)
+{
+  return (int32_t)get_u4(p);
+}
 
-  if (msg[1] != 0x62)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+int looks_like_ublox(const uint8_t *msg, size_t max_len)
+{
+  struct gps_framer_state_t state;
 
-  payload_length = (msg[4] & 0xff) | (msg[5] << 8 & 0xff00);
+  memset(&state, 0, sizeof(state));
+  return frame_ublox(&state, msg, max_len);
+}
 
-  if (payload_length > UBLOX_MAX)
-    return LOOKS_NOT_LIKE_GPS_MSG;
+/*
+ * Resumable u-blox UBX framer. See frame_nmea()
+ */
+int frame_ublox(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len)
+{
+  unsigned payload_length;
+  unsigned i, end;
+  uint8_t ck_a, ck_b;
 
-  if (max_len < payload_length + 8)
-    return LOOKS_LIKE_TRUNCATED_MSG;
+  assert(max_len > 0);
 
-  ck_a = ck_b = 0;
-  for (i=2; i < payload_length + 4 + 2; ++i) {
+  if (state->scanned == 0) {
+    if (msg[0] != 0xb5)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 1;
+    state->csum = state->csum2 = 0;
+  }
+
+  if (state->scanned < 2) {
+    if (max_len < 2)
+      return LOOKS_LIKE_TRUNCATED_MSG;
+    if (msg[1] != 0x62)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 2;
+  }
+
+  if (max_len < 6) {
+    /* Length field is not received yet */
+    payload_length = 0;
+    end = max_len;
+  }else {
+    payload_length = (msg[4] & 0xff) | (msg[5] << 8 & 0xff00);
+    if (payload_length > UBLOX_MAX)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    end = MIN(max_len, payload_length + 4 + 2);
+  }
+
+  /* Checksum over class, id, length and payload */
+  ck_a = state->csum;
+  ck_b = state->csum2;
+  for (i=state->scanned; i < end; ++i) {
     ck_a = (ck_a + msg[i]) & 0xff;
     ck_b = (ck_b + ck_a) & 0xff;
   }
+  state->csum = ck_a;
+  state->csum2 = ck_b;
+  state->scanned = i;
+
+  if (max_len < 8 || max_len < payload_length + 8)
+    return LOOKS_LIKE_TRUNCATED_MSG;
 
   if ((ck_a != msg[payload_length + 6]) ||
       (ck_b != msg[payload_length + 7])) {
@@ -55,4 +126,269 @@ inline int looks_like_ublox(const uint8_t *msg, size_t max_len) {
   return payload_length + 8;
 }
 
+void reset_ublox_parser(struct ublox_parser_t *ctx)
+{
+  ctx->week_start_ms = 0;
+  ctx->has_week_start = false;
+  ctx->last_pvt_itow = 0;
+  ctx->has_last_pvt = false;
+  reset_utc_day(&ctx->utc_day);
+  ctx->status_itow = 0;
+  ctx->has_status = false;
+  ctx->status_fix_ok = false;
+  ctx->has_posllh = false;
+  ctx->posllh_waits_status = false;
+  ctx->has_last_posllh = false;
+}
+
+bool put_ublox_msg(struct ublox_parser_t *ctx, const uint8_t *msg,
+    size_t msg_size, struct gps_msg_status_t *status)
+{
+  unsigned payload_length;
+
+  assert(msg_size >= 8 && msg_size <= UBLOX_MAX + 8);
+  assert((size_t)looks_like_ublox(msg, msg_size) == msg_size);
+
+  LOGV("U-BLOX: 0x%02hhx:%02hhx", msg[2], msg[3]);
+
+  ctx->stats->rcvd.ublox.total += 1;
+  ctx->stats->rcvd.ublox.last_msg_ts = ctx->stats->rcvd.last_byte_ts;
+
+  status->is_valid = true;
+  status->location_changed = false;
+  status->satellites = NULL;
+  status->err[0] = '\0';
+
+  if (msg[2] != UBX_CLASS_NAV)
+    return true;
+
+  payload_length = msg_size - 8;
+  switch (msg[3]) {
+    case UBX_NAV_PVT:
+      if (payload_length < UBX_NAV_PVT_LEN)
+        goto put_ublox_msg_short;
+      ctx->stats->rcvd.ublox.nav_pvt += 1;
+      parse_nav_pvt(ctx, &msg[6], status);
+      break;
+    case UBX_NAV_POSLLH:
+      if (payload_length < UBX_NAV_POSLLH_LEN)
+        goto put_ublox_msg_short;
+      ctx->stats->rcvd.ublox.nav_posllh += 1;
+      parse_nav_posllh(ctx, &msg[6], status);
+      break;
+    case UBX_NAV_STATUS:
+      if (payload_length < UBX_NAV_STATUS_LEN)
+        goto put_ublox_msg_short;
+      ctx->stats->rcvd.ublox.nav_status += 1;
+      parse_nav_status(ctx, &msg[6], status);
+      break;
+    default:
+      break;
+  }
+
+  return true;
+
+put_ublox_msg_short:
+  /* Poll request or unknown message version */
+  snprintf(status->err, sizeof(status->err),
+      "u-blox NAV 0x%02hhx: unexpected payload length %u", msg[3], payload_length);
+  return true;
+}
+
+/*
+ * NAV-PVT: time, position, velocity and fix type of the navigation epoch
+ */
+static bool parse_nav_pvt(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status)
+{
+  struct location_t *dst;
+  unsigned itow, valid, fix_type, flags;
+  int32_t nano;
+  long long time_ms;
+
+  dst = &status->location;
+
+  itow = get_u4(&payload[0]);
+  valid = payload[11];
+  fix_type = payload[20];
+  flags = payload[21];
+
+  /* validDate and validTime */
+  if (((valid & 0x03) == 0x03)
+      && (payload[6] >= 1) && (payload[6] <= 12)
+      && (payload[7] >= 1) && (payload[7] <= 31)) {
+    nano = get_i4(&payload[16]);
+    time_ms = utc_day_date_time_ms(&ctx->utc_day, get_u2(&payload[4]), payload[6], payload[7],
+        payload[8] * 3600000u + payload[9] * 60000u + payload[10] * 1000u)
+      + (nano + (nano >= 0 ? 500000 : -500000)) / 1000000;
+    ctx->week_start_ms = time_ms - itow;
+    ctx->has_week_start = true;
+  }else {
+    time_ms = itow_to_utc_ms(ctx, itow);
+  }
+
+  ctx->last_pvt_itow = itow;
+  ctx->has_last_pvt = true;
+
+  status->location_changed = true;
+
+  /* gnssFixOK, fix type: 1 - dead reckoning, 2 - 2D, 3 - 3D, 4 - GNSS + DR */
+  if (((flags & 0x01) == 0 && fix_type != 1)
+      || fix_type < 1 || fix_type > 4) {
+    dst->is_valid = false;
+    return false;
+  }
+
+  dst->is_valid = true;
+  dst->time = time_ms;
+
+  dst->longitude = get_i4(&payload[24]) * 1e-7;
+  dst->latitude = get_i4(&payload[28]) * 1e-7;
+
+  /* Height above mean sea level, same as the NMEA GGA altitude */
+  dst->has_altitude = fix_type != 2;
+  dst->altitude = dst->has_altitude ? get_i4(&payload[36]) * 1e-3 : 0;
+
+  dst->satellites = payload[23];
+
+  dst->has_accuracy = true;
+  dst->accuracy = get_u4(&payload[40]) * 1e-3f;
+
+  dst->has_speed = true;
+  dst->speed = get_i4(&payload[60]) * 1e-3f;
+
+  dst->has_bearing = true;
+  dst->bearing = get_i4(&payload[64]) * 1e-5f;
+
+  dst->pdop = get_u2(&payload[76]) * 0.01f;
+  dst->hdop = NAN;
+  dst->vdop = NAN;
+
+  return true;
+}
+
+/*
+ * NAV-POSLLH: position only. Ignored if NAV-PVT is received for the epoch.
+ * Validity is taken from the NAV-STATUS of the same epoch: the fix is held
+ * until it arrives. Without NAV-STATUS the fix is valid if the horizontal
+ * accuracy is plausible.
+ */
+static bool parse_nav_posllh(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status)
+{
+  struct location_t *dst;
+  unsigned itow;
+
+  itow = get_u4(&payload[0]);
+
+  if (ctx->has_last_pvt && ctx->last_pvt_itow == itow)
+    return false;
+
+  ctx->last_posllh_itow = itow;
+  ctx->has_last_posllh = true;
+
+  if (ctx->has_posllh) {
+    /* NAV-STATUS of the held epoch is not received. The held fix is
+     * superseded by this one */
+    LOGV("NAV-STATUS of iTOW %u not received", ctx->posllh_itow);
+    ctx->has_posllh = false;
+    ctx->posllh_waits_status = false;
+  }
 
+  if (ctx->has_status && (ctx->status_itow == itow)) {
+    dst = &status->location;
+    dst->is_valid = ctx->status_fix_ok;
+  }else if (ctx->posllh_waits_status) {
+    dst = &ctx->posllh;
+    ctx->posllh_itow = itow;
+    ctx->posllh_ts = status->epoch_ts;
+    ctx->has_posllh = true;
+  }else {
+    dst = &status->location;
+    dst->is_valid = get_u4(&payload[20]) < UBX_POSLLH_MAX_HACC_MM;
+  }
+
+  dst->time = itow_to_utc_ms(ctx, itow);
+
+  dst->longitude = get_i4(&payload[4]) * 1e-7;
+  dst->latitude = get_i4(&payload[8]) * 1e-7;
+
+  dst->has_altitude = true;
+  dst->altitude = get_i4(&payload[16]) * 1e-3;
+
+  dst->has_accuracy = true;
+  dst->accuracy = get_u4(&payload[20]) * 1e-3f;
+
+  dst->satellites = -1;
+  dst->has_speed = false;
+  dst->speed = 0;
+  dst->has_bearing = false;
+  dst->bearing = 0;
+
+  dst->pdop = NAN;
+  dst->hdop = NAN;
+  dst->vdop = NAN;
+
+  if (ctx->has_posllh)
+    return false;
+
+  status->location_changed = true;
+  return dst->is_valid;
+}
+
+/*
+ * NAV-STATUS: fix type and gpsFixOk flag of the epoch. Reports the
+ * NAV-POSLLH of the epoch if it is held. Dead reckoning only fix is valid
+ * without gpsFixOk, same as in NAV-PVT
+ */
+static void parse_nav_status(struct ublox_parser_t *ctx, const uint8_t *payload,
+    struct gps_msg_status_t *status)
+{
+  unsigned fix_type;
+
+  fix_type = payload[4];
+  ctx->status_itow = get_u4(&payload[0]);
+  ctx->status_fix_ok = ((payload[5] & 0x01) || fix_type == 1)
+    && fix_type >= 1 && fix_type <= 4;
+  ctx->has_status = true;
+
+  if (ctx->has_posllh) {
+    if (ctx->posllh_itow != ctx->status_itow)
+      return;
+    status->location = ctx->posllh;
+    status->location.is_valid = ctx->status_fix_ok;
+    status->location_changed = true;
+    status->epoch_ts = ctx->posllh_ts;
+    ctx->has_posllh = false;
+  }else if (ctx->has_last_posllh && (ctx->last_posllh_itow == ctx->status_itow)) {
+    /* Reported without the status. Wait for it from the next epoch */
+    ctx->posllh_waits_status = true;
+  }
+}
+
+/*
+ * Converts GPS time of week to UTC time, ms.
+ * The week is taken from the last NAV-PVT with valid time or, if no such
+ * message received, from the system clock.
+ */
+static long long itow_to_utc_ms(const struct ublox_parser_t *ctx, unsigned itow)
+{
+  long long gps_ms, week_start_ms;
+
+  if (ctx->has_week_start) {
+    week_start_ms = ctx->week_start_ms;
+    /* Week rollover since the last NAV-PVT */
+    if ((long long)itow + GPS_WEEK_MS / 2 < (long long)ctx->last_pvt_itow)
+      week_start_ms += GPS_WEEK_MS;
+    return week_start_ms + itow;
+  }
+
+  gps_ms = ((long long)time(NULL) - GPS_EPOCH_UNIX + GPS_LEAP_SECONDS) * 1000ll;
+  week_start_ms = gps_ms - gps_ms % GPS_WEEK_MS;
+  if ((long long)itow + GPS_WEEK_MS / 2 < gps_ms % GPS_WEEK_MS)
+    week_start_ms += GPS_WEEK_MS;
+  else if ((long long)itow > gps_ms % GPS_WEEK_MS + GPS_WEEK_MS / 2)
+    week_start_ms -= GPS_WEEK_MS;
+
+  return week_start_ms + itow + (GPS_EPOCH_UNIX - GPS_LEAP_SECONDS) * 1000ll;
+}
@@ -31,8 +31,13 @@ static const struct timespec READ_TIMEOUT = {
   1, 500l*1e6
 };
 
+/* Stats tick interval while the line is idle and the rate windows are not drained */
+static const struct timespec IDLE_TICK_TIMEOUT = {
+  1, 0
+};
+
 static jfieldID m_object_field;
-static jmethodID method_report_location;
+static jmethodID method_on_fixes_reported;
 static jmethodID method_on_gps_message_received;
 
 struct usb_read_stream_t {
@@ -41,9 +46,12 @@ struct usb_read_stream_t {
 
   struct timespec last_event_ts;
 
-  int rxbuf_pos;
+  /* Ring position of the first byte not yet consumed by the framer */
+  unsigned rx_tail;
+  /* Ring position of the first byte not yet seen by handle_rcvd() */
+  unsigned rx_seen;
+  /* Direct ByteBuffer view of the whole receive ring (with the mirror) */
   jobject rx_buf_direct;
-  uint8_t rx_buf[USB_READER_BUF_SIZE];
 };
 
 struct native_ctx_t {
@@ -51,20 +59,47 @@ struct native_ctx_t {
 
   struct nmea_parser_t nmea;
   struct sirf_parser_t sirf;
+  struct ublox_parser_t ublox;
+  struct rtcm3_parser_t rtcm3;
+  /* Parsers indexed by message type. See GPS_PROTOCOLS */
+  void *parsers[GPS_MSG_TYPE_NB];
+  struct gps_framer_t  framer;
+  /* Protocols requested by Java. Applied to framer by the parser thread */
+  volatile unsigned enabled_protocols;
   struct stats_t       stats;
+  /* stats published to the other threads */
+  struct stats_snapshot_t stats_snapshot;
   struct usb_read_stream_t stream;
   struct datalogger_t datalogger;
+
+  /* Satellites in view of the last epoch shared with Java. Guarded by the
+   * monitor of satellites_direct */
+  struct gps_satellites_t satellites;
+  /* Direct ByteBuffer view of satellites */
+  jobject satellites_direct;
+
+  /* Fixes shared with Java. Written and read on the reader thread only */
+  struct fix_ring_t fixes;
+  /* fixes.head at the last onFixesReported() upcall */
+  unsigned fixes_reported;
+  /* Direct ByteBuffer view of fixes */
+  jobject fixes_direct;
 };
 
 static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *stream);
 static void handle_rcvd(JNIEnv *env, jobject this,
-    struct native_ctx_t *reader, unsigned rcvd_last);
+    struct native_ctx_t *reader);
 static void handle_timedout(JNIEnv *env, jobject this, struct native_ctx_t *reader);
-static int find_msg(uint8_t *buf, int start_pos, int buf_size, struct gps_msg_metadata_t *res);
+static void handle_idle_tick(struct native_ctx_t *reader);
 static bool handle_msg(JNIEnv *env, jobject this, struct native_ctx_t *reader, uint8_t *msg, struct gps_msg_metadata_t *metadata);
 static void report_msg_rcvd(JNIEnv *env, jobject this, struct native_ctx_t *reader, uint8_t *msg, struct gps_msg_metadata_t *metadata);
-static void report_location(JNIEnv *env, jobject this, struct location_t *location);
+static void put_fix(struct native_ctx_t *reader, const struct gps_msg_status_t *status,
+    unsigned msg_type, const struct timespec *framed_ts, const struct timespec *parsed_ts);
+static void report_fixes(JNIEnv *env, jobject this, struct native_ctx_t *reader);
+static void report_satellites(JNIEnv *env, struct native_ctx_t *reader,
+    const struct gps_satellites_t *satellites);
 
+static inline void stopwatch_lap(struct timespec *ts, unsigned long long *acc_ns);
 static inline struct native_ctx_t *get_ctx(JNIEnv* env, jobject thiz);
 static inline void throw_exception(JNIEnv *env, const char *clazzName, const char *message);
 
@@ -72,6 +107,8 @@ static inline void throw_exception(JNIEnv *env, const char *clazzName, const cha
 static void native_create(JNIEnv* env, jobject thiz)
 {
   struct native_ctx_t *nctx;
+  jobject satellites_direct;
+  jobject fixes_direct;
 
   LOGV("native_create()");
 
@@ -85,10 +122,38 @@ static void native_create(JNIEnv* env, jobject thiz)
   stats_init(&nctx->stats);
   nctx->nmea.stats = &nctx->stats;
   nctx->sirf.stats = &nctx->stats;
+  nctx->ublox.stats = &nctx->stats;
+  nctx->rtcm3.stats = &nctx->stats;
+
+  nctx->parsers[MSG_TYPE_NMEA] = &nctx->nmea;
+  nctx->parsers[MSG_TYPE_SIRF] = &nctx->sirf;
+  nctx->parsers[MSG_TYPE_UBLOX] = &nctx->ublox;
+  nctx->parsers[MSG_TYPE_RTCM3] = &nctx->rtcm3;
+
+  gps_framer_set_enabled(&nctx->framer, (1 << GPS_MSG_TYPE_NB) - 1);
+  nctx->enabled_protocols = nctx->framer.enabled;
 
   nctx->msg_rcvd_cb_active = true;
   datalogger_init(&nctx->datalogger);
 
+  satellites_direct = (*env)->NewDirectByteBuffer(env, &nctx->satellites,
+      sizeof(nctx->satellites));
+  if (satellites_direct == NULL) {
+    datalogger_destroy(&nctx->datalogger);
+    free(nctx);
+    return;
+  }
+  nctx->satellites_direct = (*env)->NewGlobalRef(env, satellites_direct);
+
+  fixes_direct = (*env)->NewDirectByteBuffer(env, &nctx->fixes, sizeof(nctx->fixes));
+  if (fixes_direct == NULL) {
+    (*env)->DeleteGlobalRef(env, nctx->satellites_direct);
+    datalogger_destroy(&nctx->datalogger);
+    free(nctx);
+    return;
+  }
+  nctx->fixes_direct = (*env)->NewGlobalRef(env, fixes_direct);
+
   (*env)->SetLongField(env, thiz, m_object_field, (long)nctx);
 }
 
@@ -104,8 +169,9 @@ static void native_destroy(JNIEnv *env, jobject thiz)
     return;
   }
 
-  stats_destroy(&nctx->stats);
-  datalogger_init(&nctx->datalogger);
+  datalogger_destroy(&nctx->datalogger);
+  (*env)->DeleteGlobalRef(env, nctx->satellites_direct);
+  (*env)->DeleteGlobalRef(env, nctx->fixes_direct);
 
   free(nctx);
   (*env)->SetLongField(env, thiz, m_object_field, 0L);
@@ -161,8 +227,8 @@ static void native_read_loop(JNIEnv *env, jobject this,
       return;
   }
 
-  direct_buf = (*env)->NewDirectByteBuffer(env, reader->stream.rx_buf,
-      sizeof(reader->stream.rx_buf));
+  direct_buf = (*env)->NewDirectByteBuffer(env, reader->stream.read_thread_ctx.ring.buf,
+      sizeof(reader->stream.read_thread_ctx.ring.buf));
   if (direct_buf == NULL)
     return;
  reader->stream.rx_buf_direct = (*env)->NewGlobalRef(env, direct_buf);
@@ -197,6 +263,8 @@ static void native_read_loop(JNIEnv *env, jobject this,
 static void native_get_stats(JNIEnv *env, jobject this, jobject dst)
 {
   struct native_ctx_t *reader;
+  struct stats_snapshot_t snapshot;
+  void *dst_p;
 
   if (dst == NULL)
     return throw_exception(env, EXCEPTION_NULL_POINTER, "dst is null");
@@ -205,7 +273,40 @@ static void native_get_stats(JNIEnv *env, jobject this, jobject dst)
   if (reader == NULL)
     return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
 
-  stats_export_to_java(env, &reader->stats, dst);
+  dst_p = (*env)->GetDirectBufferAddress(env, dst);
+  if (dst_p == NULL)
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "dst is not a direct buffer");
+  if ((*env)->GetDirectBufferCapacity(env, dst) < (jlong)sizeof(snapshot))
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "dst is too small");
+
+  stats_read_snapshot(&reader->stats_snapshot, &snapshot);
+  memcpy(dst_p, &snapshot, sizeof(snapshot));
+}
+
+static jobject native_get_satellites_buffer(JNIEnv *env, jobject this)
+{
+  struct native_ctx_t *reader;
+
+  reader = get_ctx(env, this);
+  if (reader == NULL) {
+    throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+    return NULL;
+  }
+
+  return (*env)->NewLocalRef(env, reader->satellites_direct);
+}
+
+static jobject native_get_fix_ring_buffer(JNIEnv *env, jobject this)
+{
+  struct native_ctx_t *reader;
+
+  reader = get_ctx(env, this);
+  if (reader == NULL) {
+    throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+    return NULL;
+  }
+
+  return (*env)->NewLocalRef(env, reader->fixes_direct);
 }
 
 static void native_msg_rcvd_cb(JNIEnv *env, jobject this, jboolean enable)
@@ -218,6 +319,34 @@ static void native_msg_rcvd_cb(JNIEnv *env, jobject this, jboolean enable)
   reader->msg_rcvd_cb_active = enable;
 }
 
+static void native_set_baudrate(JNIEnv *env, jobject this, jint baudrate)
+{
+  struct native_ctx_t *reader;
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  if (baudrate < 0)
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "baudrate < 0");
+
+  usb_reader_set_baudrate(&reader->stream.read_thread_ctx, (unsigned)baudrate);
+}
+
+static void native_set_enabled_protocols(JNIEnv *env, jobject this, jint type_mask)
+{
+  struct native_ctx_t *reader;
+  reader = get_ctx(env, this);
+  if (reader == NULL)
+    return throw_exception(env, EXCEPTION_NULL_POINTER, "mObject is null");
+
+  if ((type_mask & ((1 << GPS_MSG_TYPE_NB) - 1)) == 0)
+    return throw_exception(env, EXCEPTION_ILLEGAL_ARGUMENT, "no protocols enabled");
+
+  /* The framer is owned by the parser thread. See handle_rcvd() */
+  reader->enabled_protocols = (unsigned)type_mask;
+  __sync_synchronize();
+}
+
 static void native_datalogger_configure(JNIEnv *env, jobject this,
     jboolean enabled, jint format, jstring j_tracks_dir, jstring j_file_prefix)
 {
@@ -272,17 +401,21 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 {
   int rcvd;
   int last_errno;
+  bool idle;
+  unsigned i;
   struct usb_read_stream_t *stream;
+  const struct timespec *timeout;
 
-  reset_nmea_parser(&reader->nmea);
-  reset_sirf_parser(&reader->sirf);
+  for (i=0; i < GPS_MSG_TYPE_NB; ++i)
+    GPS_PROTOCOLS[i].reset_parser(reader->parsers[i]);
+  reset_gps_framer(&reader->framer);
 
-  stats_lock(&reader->stats);
-  stats_start_unlocked(&reader->stats);
-  stats_unlock(&reader->stats);
+  stats_start(&reader->stats);
+  stats_publish(&reader->stats, &reader->stats_snapshot);
 
   stream = &reader->stream;
-  stream->rxbuf_pos = 0;
+  stream->rx_tail = 0;
+  stream->rx_seen = 0;
   stream->last_event_ts.tv_sec = 0;
   stream->last_event_ts.tv_nsec = 0;
 
@@ -292,28 +425,40 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
     return;
   }
 
+  idle = false;
   for (;;) {
-    rcvd = usb_read(&stream->read_thread_ctx,
-        &stream->rx_buf[stream->rxbuf_pos],
-        sizeof(stream->rx_buf)-stream->rxbuf_pos,
-        &READ_TIMEOUT);
+    /* Timeout is handled once. While idle, the stats are ticked once a
+     * second until the rate windows drain to zero, then wait for the next
+     * byte without wakeups */
+    if (!idle)
+      timeout = &READ_TIMEOUT;
+    else if (!stats_rates_are_drained(&reader->stats))
+      timeout = &IDLE_TICK_TIMEOUT;
+    else
+      timeout = NULL;
+
+    rcvd = usb_read_wait(&stream->read_thread_ctx, stream->rx_seen, timeout);
     last_errno = errno;
     clock_gettime(CLOCK_MONOTONIC, &stream->last_event_ts);
     if (rcvd < 0) {
       if (last_errno == ETIMEDOUT) {
-        LOGV("usb read timeout");
-        handle_timedout(env, this, reader);
+        if (idle) {
+          handle_idle_tick(reader);
+        }else {
+          LOGV("usb read timeout");
+          handle_timedout(env, this, reader);
+          idle = true;
+        }
         continue;
       }else {
         break;
       }
     }else if (rcvd == 0) {
-      LOGV("usb_read() rcvd 0");
+      LOGV("usb_read_wait() rcvd 0");
       continue;
     }else {
-      datalogger_log_raw_data(&reader->datalogger, &stream->rx_buf[stream->rxbuf_pos], rcvd);
-      stream->rxbuf_pos += rcvd;
-      handle_rcvd(env, this, reader, (unsigned)rcvd);
+      handle_rcvd(env, this, reader);
+      idle = false;
     }
   }
 
@@ -325,126 +470,133 @@ static void read_loop(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 static void handle_timedout(JNIEnv *env, jobject this, struct native_ctx_t *reader)
 {
   struct gps_msg_status_t status;
+  struct timespec ts;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  stats_tick(&reader->stats, &ts);
+  reader->stats.usb.consumer_wakeups += 1;
+  usb_reader_export_stats(&reader->stream.read_thread_ctx, &reader->stats);
+
+  status.epoch_ts = reader->stats.rcvd.last_byte_ts;
   put_nmea_timedout(&reader->nmea, &status);
-  if (status.location_changed)
-    report_location(env, this, &status.location);
+  if (status.location_changed) {
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    put_fix(reader, &status, MSG_TYPE_NMEA, &ts, &ts);
+    report_fixes(env, this, reader);
+  }
+  if (status.satellites != NULL)
+    report_satellites(env, reader, status.satellites);
   datalogger_flush(&reader->datalogger);
+  datalogger_export_stats(&reader->datalogger, &reader->stats);
+
+  stats_publish(&reader->stats, &reader->stats_snapshot);
+}
+
+/*
+ * Closes the idle seconds of the rate windows and publishes the stats
+ */
+static void handle_idle_tick(struct native_ctx_t *reader)
+{
+  struct timespec ts;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  stats_tick(&reader->stats, &ts);
+  reader->stats.usb.consumer_wakeups += 1;
+  usb_reader_export_stats(&reader->stream.read_thread_ctx, &reader->stats);
+  datalogger_export_stats(&reader->datalogger, &reader->stats);
+
+  stats_publish(&reader->stats, &reader->stats_snapshot);
 }
 
+/*
+ * Frames messages directly in the receive ring. Complete messages are
+ * handled in place, truncated message is kept in the ring until the
+ * rest of it is received.
+ */
 static void handle_rcvd(JNIEnv *env, jobject this,
-    struct native_ctx_t *reader, unsigned rcvd_last) {
-  int pred_msg_pos, msg_pos;
-  int pred_msg_len;
+    struct native_ctx_t *reader) {
+  unsigned head, pos;
+  unsigned avail, len;
+  int msg_pos;
+  uint8_t *buf;
   struct gps_msg_metadata_t msg;
   struct usb_read_stream_t *stream;
+  struct usb_reader_thread_ctx_t *ring;
+  struct timespec ts;
 
   stream = &reader->stream;
+  ring = &stream->read_thread_ctx;
 
-  if (stream->rxbuf_pos == 0)
+  head = usb_read_head(ring);
+  if (head == stream->rx_seen)
     return;
 
-  stats_lock(&reader->stats);
-  reader->stats.rcvd.bytes += rcvd_last;
+  /* Raw data logger */
+  for (pos = stream->rx_seen; pos != head; pos += len) {
+    len = usb_read_contiguous(pos, head - pos);
+    datalogger_log_raw_data(&reader->datalogger, usb_read_ptr(ring, pos), len);
+  }
+
+  if (reader->enabled_protocols != reader->framer.enabled)
+    gps_framer_set_enabled(&reader->framer, reader->enabled_protocols);
+
+  stats_tick(&reader->stats, &reader->stream.last_event_ts);
+
+  reader->stats.usb.consumer_wakeups += 1;
+  reader->stats.rcvd.bytes += head - stream->rx_seen;
   reader->stats.rcvd.last_byte_ts = reader->stream.last_event_ts;
+  usb_reader_export_stats(ring, &reader->stats);
+  stream->rx_seen = head;
 
-  pred_msg_pos = 0;
-  pred_msg_len = 0;
-  msg_pos = find_msg(stream->rx_buf, 0, stream->rxbuf_pos, &msg);
-  for (;;) {
+  pos = stream->rx_tail;
+  while (pos != head) {
+    avail = head - pos;
+    len = usb_read_contiguous(pos, avail);
+    buf = usb_read_ptr(ring, pos);
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    msg_pos = find_gps_msg(&reader->framer, buf, pos, 0, len, &msg);
+    stopwatch_lap(&ts, &reader->stats.pipeline.framer_ns);
 
-    // No nessages found in buffer
+    // No nessages found
     if (msg_pos < 0) {
-      // LOGV("junk %u", stream->rxbuf_pos);
-      reader->stats.rcvd.junk += stream->rxbuf_pos;
-      stream->rxbuf_pos = 0;
-      break;
+      reader->stats.rcvd.junk += len;
+      pos += len;
+      continue;
     }
+
     // Junk between messages
-    if (pred_msg_pos + pred_msg_len != msg_pos) {
-      reader->stats.rcvd.junk += msg_pos - pred_msg_pos - pred_msg_len;
-      //LOGV("inter msg junk %u", msg_pos - pred_msg_pos - pred_msg_len);
+    if (msg_pos != 0) {
+      reader->stats.rcvd.junk += msg_pos;
+      //LOGV("inter msg junk %u", msg_pos);
+      pos += msg_pos;
     }
 
     if (!msg.is_truncated) {
-      handle_msg(env, this, reader, &stream->rx_buf[msg_pos], &msg);
-      pred_msg_pos = msg_pos;
-      pred_msg_len = msg.size;
-    }else {
-      // Truncated message
-      if (msg_pos == 0) {
-        if (stream->rxbuf_pos == sizeof(stream->rx_buf)) {
-          pred_msg_pos = msg_pos+1;
-          pred_msg_len = 0;
-          reader->stats.rcvd.junk += 1;
-          // FALLTHROUGH
-        }else {
-          break;
-        }
-      }else {
-        memmove(&stream->rx_buf[0], &stream->rx_buf[msg_pos], msg.size);
-        stream->rxbuf_pos = msg.size;
+      handle_msg(env, this, reader, &buf[msg_pos], &msg);
+      pos += msg.size;
+    }else if (msg_pos == 0) {
+      if (len == avail) {
+        // Truncated message. Wait for the rest of it
         break;
+      }else {
+        // Can not happen: view is not shorter than the maximum message size
+        gps_framer_drop_pending(&reader->framer);
+        reader->stats.rcvd.junk += 1;
+        pos += 1;
       }
     }
-
-    if (pred_msg_pos+pred_msg_len == stream->rxbuf_pos) {
-      stream->rxbuf_pos = 0;
-      break;
-    }
-
-    assert(pred_msg_pos+pred_msg_len < stream->rxbuf_pos);
-    msg_pos = find_msg(stream->rx_buf, pred_msg_pos+pred_msg_len, stream->rxbuf_pos, &msg);
+    // else: truncated message at the end of the view. The framer resumes
+    // it on the next iteration
   }
-  stats_unlock(&reader->stats);
-}
-
-static int find_msg(uint8_t *buf, int start_pos, int buf_size, struct gps_msg_metadata_t *res)
-{
-  int msg_pos;
-  int msg_size;
-  int msg_type;
-
-  msg_pos = start_pos;
-  msg_type = -1;
-  while (msg_pos < buf_size) {
-
-    /* Check for NMEA message */
-    msg_size = looks_like_nmea(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_NMEA;
-      break;
-    }
 
-    /* Check for SiRF message */
-    msg_size = looks_like_sirf(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_SIRF;
-      break;
-    }
+  stream->rx_tail = pos;
+  usb_read_release(ring, pos);
 
-    /* Check for u-blox message */
-    msg_size = looks_like_ublox(&buf[msg_pos], buf_size - msg_pos);
-    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
-      msg_type = MSG_TYPE_UBLOX;
-      break;
-    }
-
-    msg_pos += 1;
-  }
+  report_fixes(env, this, reader);
 
-  if (msg_type >= 0) {
-    res->type = msg_type;
-    if (msg_size == LOOKS_LIKE_TRUNCATED_MSG) {
-      res->size = buf_size - msg_pos;
-      res->is_truncated = true;
-    }else {
-      res->size = msg_size;
-      res->is_truncated = false;
-    }
-    return msg_pos;
-  }
-
-  return -1;
+  datalogger_export_stats(&reader->datalogger, &reader->stats);
+  stats_publish(&reader->stats, &reader->stats_snapshot);
 }
 
 static bool handle_msg(JNIEnv *env,
@@ -454,6 +606,7 @@ static bool handle_msg(JNIEnv *env,
     struct gps_msg_metadata_t *metadata) {
 
   struct gps_msg_status_t result;
+  struct timespec ts, framed_ts;
 
   assert(env);
   assert(this);
@@ -462,38 +615,20 @@ static bool handle_msg(JNIEnv *env,
 
   datalogger_log_msg(&reader->datalogger, msg, metadata);
 
-  if (reader->msg_rcvd_cb_active) {
-    stats_unlock(&reader->stats);
+  if (reader->msg_rcvd_cb_active)
     report_msg_rcvd(env, this, reader, msg, metadata);
-    stats_lock(&reader->stats);
-  }
 
-  switch (metadata->type) {
-    case MSG_TYPE_NMEA:
-      put_nmea_msg(&reader->nmea, msg, metadata->size, &result);
-      break;
-    case MSG_TYPE_SIRF:
-      put_sirf_msg(&reader->sirf, msg,  metadata->size, &result);
-      break;
-    case MSG_TYPE_UBLOX:
-      {
-        assert(metadata->size > 8);
-        assert(msg[0] == 0xb5);
-        LOGV("U-BLOX: 0x%02hhx:%02hhx", msg[2], msg[3]);
-        result.is_valid = true;
-        result.location_changed = false;
-        result.err[0] = '\0';
-
-        reader->stats.rcvd.ublox.total += 1;
-        reader->stats.rcvd.ublox.last_msg_ts = reader->stats.rcvd.last_byte_ts;
-      }
-      break;
-    default:
-      result.is_valid = true;
-      result.location_changed = false;
-      result.err[0] = '\0';
-      break;
-  }
+  assert(metadata->type < GPS_MSG_TYPE_NB);
+
+  reader->stats.rcvd.proto[metadata->type].msgs += 1;
+  reader->stats.rcvd.proto[metadata->type].bytes += metadata->size;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  framed_ts = ts;
+  result.epoch_ts = reader->stats.rcvd.last_byte_ts;
+  GPS_PROTOCOLS[metadata->type].put_msg(reader->parsers[metadata->type],
+      msg, metadata->size, &result);
+  stopwatch_lap(&ts, &reader->stats.pipeline.parser_ns);
 
   if (result.err[0] != '\0') {
     if (result.is_valid)
@@ -502,40 +637,105 @@ static bool handle_msg(JNIEnv *env,
       LOGV("%s", result.err);
   }
 
+  if (result.satellites != NULL)
+    report_satellites(env, reader, result.satellites);
+
   if (result.location_changed) {
-    stats_unlock(&reader->stats);
-    report_location(env, this, &result.location);
-    stats_lock(&reader->stats);
+    /* Can not happen on a single read unless the receiver floods fixes */
+    if (reader->fixes.head - reader->fixes_reported == FIX_RING_SIZE)
+      report_fixes(env, this, reader);
+    put_fix(reader, &result, metadata->type, &framed_ts, &ts);
+    reader->stats.pipeline.fixes += 1;
   }
 
   return result.is_valid;
 }
 
-static void report_location(JNIEnv *env, jobject this, struct location_t *location)
+/*
+ * Writes the fix to the ring shared with Java. Java reads it on the next
+ * report_fixes()
+ */
+static void put_fix(struct native_ctx_t *reader, const struct gps_msg_status_t *status,
+    unsigned msg_type, const struct timespec *framed_ts, const struct timespec *parsed_ts)
 {
-  (*env)->CallVoidMethod(env, this, method_report_location,
-      (jlong)location->time,
-      (jdouble)location->latitude,
-      (jdouble)location->longitude,
-      (jdouble)location->altitude,
-      (jfloat)location->accuracy,
-      (jfloat)location->bearing,
-      (jfloat)location->speed,
-      (jint)location->satellites,
-      (jboolean)location->is_valid,
-      (jboolean)location->has_accuracy,
-      (jboolean)location->has_altitude,
-      (jboolean)location->has_bearing,
-      (jboolean)location->has_speed
-      );
+  const struct location_t *location;
+  struct fix_record_t *rec;
+
+  assert(reader->fixes.head - reader->fixes_reported < FIX_RING_SIZE);
+
+  location = &status->location;
+  rec = &reader->fixes.rec[reader->fixes.head % FIX_RING_SIZE];
+  rec->time = location->time;
+  rec->latitude = location->latitude;
+  rec->longitude = location->longitude;
+  rec->altitude = location->altitude;
+  rec->rcvd_ns = (int64_t)reader->stats.rcvd.last_byte_ts.tv_sec * 1000000000ll
+    + reader->stats.rcvd.last_byte_ts.tv_nsec;
+  rec->parsed_ns = (int64_t)parsed_ts->tv_sec * 1000000000ll + parsed_ts->tv_nsec;
+  rec->epoch_ns = (int64_t)status->epoch_ts.tv_sec * 1000000000ll + status->epoch_ts.tv_nsec;
+  rec->framed_ns = (int64_t)framed_ts->tv_sec * 1000000000ll + framed_ts->tv_nsec;
+  rec->accuracy = location->accuracy;
+  rec->bearing = location->bearing;
+  rec->speed = location->speed;
+  rec->pdop = location->pdop;
+  rec->hdop = location->hdop;
+  rec->vdop = location->vdop;
+  rec->satellites = location->satellites;
+  rec->msg_type = (uint8_t)msg_type;
+  rec->flags = (location->is_valid ? FIX_RECORD_VALID : 0)
+    | (location->has_accuracy ? FIX_RECORD_HAS_ACCURACY : 0)
+    | (location->has_altitude ? FIX_RECORD_HAS_ALTITUDE : 0)
+    | (location->has_bearing ? FIX_RECORD_HAS_BEARING : 0)
+    | (location->has_speed ? FIX_RECORD_HAS_SPEED : 0);
+
+  reader->fixes.head += 1;
+}
+
+/*
+ * Reports all the fixes written since the last call with a single upcall
+ */
+static void report_fixes(JNIEnv *env, jobject this, struct native_ctx_t *reader)
+{
+  struct timespec ts;
+
+  if (reader->fixes.head == reader->fixes_reported)
+    return;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  (*env)->CallVoidMethod(env, this, method_on_fixes_reported);
   (*env)->ExceptionClear(env);
+  reader->fixes_reported = reader->fixes.head;
+
+  stopwatch_lap(&ts, &reader->stats.pipeline.report_ns);
+}
+
+/*
+ * Copies the satellite table to the buffer shared with Java. Java side
+ * copies it out under the same monitor
+ */
+static void report_satellites(JNIEnv *env, struct native_ctx_t *reader,
+    const struct gps_satellites_t *satellites)
+{
+  struct gps_satellites_t *dst;
+  uint32_t seq;
+
+  dst = &reader->satellites;
+  if ((*env)->MonitorEnter(env, reader->satellites_direct) != JNI_OK) {
+    (*env)->ExceptionClear(env);
+    return;
+  }
+  seq = dst->seq;
+  memcpy(dst, satellites, offsetof(struct gps_satellites_t, sat)
+      + satellites->count * sizeof(satellites->sat[0]));
+  dst->seq = seq + 1;
+  (*env)->MonitorExit(env, reader->satellites_direct);
 }
 
 static void report_msg_rcvd(JNIEnv *env, jobject this, struct native_ctx_t *reader, uint8_t *msg, struct gps_msg_metadata_t *metadata)
 {
   (*env)->CallVoidMethod(env, this, method_on_gps_message_received,
       reader->stream.rx_buf_direct,
-      (jint)(msg - reader->stream.rx_buf),
+      (jint)(msg - reader->stream.read_thread_ctx.ring.buf),
       (jint)metadata->size,
       (jint)metadata->type
       );
@@ -548,6 +748,19 @@ static inline void throw_exception(JNIEnv *env, const char *clazzName, const cha
       message);
 }
 
+/*
+ * Adds time since ts to acc_ns and restarts ts
+ */
+static inline void stopwatch_lap(struct timespec *ts, unsigned long long *acc_ns)
+{
+  struct timespec now;
+
+  clock_gettime(CLOCK_MONOTONIC, &now);
+  *acc_ns += (unsigned long long)(now.tv_sec - ts->tv_sec) * 1000000000ull
+    + now.tv_nsec - ts->tv_nsec;
+  *ts = now;
+}
+
 static inline struct native_ctx_t *get_ctx(JNIEnv* env, jobject thiz)
 {
   return (struct native_ctx_t *)(uintptr_t)(*env)->GetLongField(env, thiz, m_object_field);
@@ -561,9 +774,13 @@ static JNINativeMethod native_methods[] = {
       "Lru0xdc/externalgps/usb/UsbSerialController$UsbSerialOutputStream;"
       ")V", (void*)native_read_loop},
   { "native_get_stats",
-    "(Lru0xdc/externalgps/StatsNative;)V",
+    "(Ljava/nio/ByteBuffer;)V",
     (void*)native_get_stats},
+  { "native_get_satellites_buffer", "()Ljava/nio/ByteBuffer;", (void*)native_get_satellites_buffer },
+  { "native_get_fix_ring_buffer", "()Ljava/nio/ByteBuffer;", (void*)native_get_fix_ring_buffer },
   { "native_msg_rcvd_cb", "(Z)V", (void*)native_msg_rcvd_cb },
+  { "native_set_baudrate", "(I)V", (void*)native_set_baudrate },
+  { "native_set_enabled_protocols", "(I)V", (void*)native_set_enabled_protocols },
   { "native_datalogger_configure", "(ZILjava/lang/String;Ljava/lang/String;)V", (void*)native_datalogger_configure },
   { "native_datalogger_start", "()V", (void*)native_datalogger_start },
   { "native_datalogger_stop", "()V", (void*)native_datalogger_stop },
@@ -583,9 +800,9 @@ int register_usb_converter_natives(JNIEnv* env) {
   if (m_object_field == NULL)
     return JNI_FALSE;
 
-  method_report_location = (*env)->GetMethodID(env,
-      clazz, "reportLocation", "(JDDDFFFIZZZZZ)V");
-  if (method_report_location == NULL)
+  method_on_fixes_reported = (*env)->GetMethodID(env,
+      clazz, "onFixesReported", "()V");
+  if (method_on_fixes_reported == NULL)
     return JNI_FALSE;
 
   method_on_gps_message_received = (*env)->GetMethodID(env,
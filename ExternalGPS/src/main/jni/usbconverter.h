@@ -8,7 +8,7 @@
 #include <stddef.h>
 #include <stdint.h>
 #include <stdio.h>
-#include <time64.h>
+#include <time.h>
 
 #include "jni.h"
 
@@ -16,6 +16,33 @@
 #define NMEA_MAX 512
 #define SIRF_MAX 1023
 #define UBLOX_MAX 4096
+#define RTCM3_MAX 1023
+
+/* Number of supported message types (protocols) */
+#define GPS_MSG_TYPE_NB 4
+
+/* NMEA talkers counted in stats. See StatsNative.NMEA_TALKER_* */
+enum nmea_talker_t {
+  NMEA_TALKER_GP = 0,      /* GPS */
+  NMEA_TALKER_GL = 1,      /* GLONASS */
+  NMEA_TALKER_GA = 2,      /* Galileo */
+  NMEA_TALKER_GB = 3,      /* BeiDou, GB and BD */
+  NMEA_TALKER_GQ = 4,      /* QZSS, GQ and QZ */
+  NMEA_TALKER_GI = 5,      /* NavIC */
+  NMEA_TALKER_GN = 6,      /* Combined GNSS */
+  NMEA_TALKER_PROPRIETARY = 7, /* $P... */
+  NMEA_TALKER_OTHER = 8
+};
+#define NMEA_TALKER_NB 9
+
+/* Maximum number of satellites in view in the satellite table */
+#define GPS_SATELLITES_MAX 128
+
+#define GPS_SATELLITE_ELEVATION_UNKNOWN INT8_MIN
+#define GPS_SATELLITE_AZIMUTH_UNKNOWN UINT16_MAX
+
+/* gps_satellite_t flags */
+#define GPS_SATELLITE_USED_IN_FIX 0x01
 
 #define LOOKS_NOT_LIKE_GPS_MSG 0
 #define LOOKS_LIKE_TRUNCATED_MSG -1
@@ -31,6 +58,11 @@ struct location_t {
   float     bearing;
   float     speed;
 
+  /* Dilution of precision. NaN - undefined */
+  float     pdop;
+  float     hdop;
+  float     vdop;
+
   /* - the number of satellites used to derive the fix */
   int satellites;
 
@@ -41,6 +73,68 @@ struct location_t {
   bool has_speed;
 };
 
+/* Satellite in view. Layout is shared with SatelliteTable.java */
+struct gps_satellite_t {
+  uint16_t prn;         /* Satellite ID as reported by the receiver */
+  uint8_t talker;       /* enum nmea_talker_t */
+  int8_t elevation;     /* Degrees */
+  uint16_t azimuth;     /* Degrees true */
+  uint8_t snr;          /* C/N0, dB-Hz. 0 - not tracked */
+  uint8_t flags;
+};
+
+/* Satellites in view of one epoch. Layout is shared with SatelliteTable.java */
+struct gps_satellites_t {
+  uint32_t seq;         /* Number of the tables published to Java */
+  uint32_t count;
+  uint32_t hhmmss;      /* Fix time of the epoch, UTC. See nmea_fix_time_t */
+  uint32_t mss;
+  uint32_t used_nb;     /* Satellites used in fix from GSA */
+  float pdop;           /* Dilution of precision from GSA. NaN - undefined */
+  float hdop;
+  float vdop;
+  struct gps_satellite_t sat[GPS_SATELLITES_MAX];
+};
+
+/* Number of the fix records in the ring shared with Java */
+#define FIX_RING_SIZE 16
+
+/* fix_record_t flags */
+#define FIX_RECORD_VALID 0x01
+#define FIX_RECORD_HAS_ACCURACY 0x02
+#define FIX_RECORD_HAS_ALTITUDE 0x04
+#define FIX_RECORD_HAS_BEARING 0x08
+#define FIX_RECORD_HAS_SPEED 0x10
+
+/* Fix reported to Java. Layout is shared with FixRecord.java */
+struct fix_record_t {
+  int64_t time;         /* UTC, ms */
+  double latitude;
+  double longitude;
+  double altitude;
+  int64_t rcvd_ns;      /* CLOCK_MONOTONIC time of the last byte of the message */
+  int64_t parsed_ns;    /* CLOCK_MONOTONIC time the message is parsed */
+  float accuracy;
+  float bearing;
+  float speed;
+  float pdop;           /* NaN - undefined */
+  float hdop;
+  float vdop;
+  int32_t satellites;   /* -1 - undefined */
+  uint8_t msg_type;     /* Protocol of the message, MSG_TYPE_* */
+  uint8_t flags;
+  uint16_t reserved;
+  int64_t epoch_ns;     /* CLOCK_MONOTONIC receive time of the first message of the epoch */
+  int64_t framed_ns;    /* CLOCK_MONOTONIC time the message is framed */
+};
+
+/* Fixes reported to Java. Layout is shared with FixRecord.java */
+struct fix_ring_t {
+  uint32_t head;        /* Number of the records written. Record head % FIX_RING_SIZE is next */
+  uint32_t reserved;
+  struct fix_record_t rec[FIX_RING_SIZE];
+};
+
 struct nmea_fix_time_t {
   unsigned hhmmss;
   unsigned mss;
@@ -122,7 +216,30 @@ struct nmea_gpgsa_t {
   bool has_hdop;
   bool has_vdop;
 
-  bool is_valid;
+  unsigned system_id; /* NMEA 4.10 GNSS system ID. 0 - undefined */
+};
+
+/* Used satellites and DOP merged from all GSA sentences of the epoch,
+ * one sentence per constellation */
+struct nmea_gsa_set_t {
+  /* Bitmap of the used PRNs 0 - 255 by the talker of the constellation.
+   * NMEA_TALKER_GN - constellation is unknown */
+  uint32_t used[NMEA_TALKER_NB][8];
+  /* Number of the bits set */
+  unsigned used_nb;
+  /* Best fix type of the sentences. -1 - undefined */
+  int fix_type;
+  /* DOP of the first sentence that has it. Combined for all constellations */
+  float pdop;
+  float hdop;
+  float vdop;
+  bool has_pdop;
+  bool has_hdop;
+  bool has_vdop;
+  /* Number of the GSA sentences merged. 0 - none */
+  unsigned sentences;
+  /* The set is used by the closed fix. Cleared on the next GSA */
+  bool is_closed;
 };
 
 /* GNSS Pseudo Range Error Statistics */
@@ -145,6 +262,15 @@ struct nmea_gpgst_t {
   bool has_std_alt;
 };
 
+/* GPGSV Satellites in view */
+struct nmea_gpgsv_t {
+  unsigned msg_nb;      /* Number of sentences in the sequence */
+  unsigned msg_num;     /* Sentence number, 1 - msg_nb */
+  unsigned signal_id;   /* NMEA 4.10 signal ID. 0 - undefined */
+  unsigned sv_nb;       /* Number of satellites in this sentence, 0 - 4 */
+  struct gps_satellite_t sv[4];
+};
+
 struct nmea_gpzda_t {
   struct   nmea_fix_time_t fix_time; /* Current epoch time (hhmmss mss, UTC) */
   unsigned day;         /* UTC day (01 to 31). 0 - undefined */
@@ -154,6 +280,49 @@ struct nmea_gpzda_t {
   unsigned zone_minutes; /* Offset to local time zone in minutes (00 to 59) */
 };
 
+/* Two-character navigation status of PUBX,00 */
+#define NMEA_NAV_STAT(a, b) (((int)(a) << 8) | (int)(b))
+
+/* PUBX,00 u-blox Lat/Long Position Data */
+struct nmea_pubx00_t {
+  struct nmea_fix_time_t fix_time;
+  double latitude;
+  double longitude;
+  double altitude;     /* Altitude above the user datum ellipsoid */
+  int nav_stat;        /* Navigation status, NMEA_NAV_STAT('G', '3'). 0 - undefined */
+  float h_acc;         /* Horizontal accuracy estimate, m */
+  float v_acc;         /* Vertical accuracy estimate, m */
+  float speed;         /* Speed over ground, m/s */
+  float course;        /* Course over ground, degrees */
+  float v_vel;         /* Vertical velocity, m/s, positive downwards */
+  float hdop;
+  float vdop;
+  int sattelites_nb;   /* Number of satellites used in the navigation solution */
+
+  bool has_latitude;
+  bool has_longitude;
+  bool has_altitude;
+  bool has_h_acc;
+  bool has_v_acc;
+  bool has_speed;
+  bool has_course;
+  bool has_v_vel;
+  bool has_hdop;
+  bool has_vdop;
+  bool has_sattelites_nb;
+};
+
+/* PUBX,04 u-blox Time of Day and Clock Information */
+struct nmea_pubx04_t {
+  struct nmea_fix_time_t fix_time;
+  unsigned ddmmyy;     /* UTC date */
+  int leap_sec;        /* GPS - UTC leap seconds */
+
+  bool has_ddmmyy;
+  bool has_leap_sec;
+  bool leap_sec_is_default; /* Leap seconds are firmware default, not received from the satellites */
+};
+
 struct nmea_fix_t {
   /* Current NMEA fix */
   struct nmea_fix_time_t fix_time; /* Current epoch time (hhmmss mss, UTC) */
@@ -165,38 +334,148 @@ struct nmea_fix_t {
   bool gpgll_active;
   bool gpgst_active;
   bool gpzda_active;
+  bool pubx00_active;
+  bool pubx04_active;
 
   struct nmea_gpgga_t gpgga;
   struct nmea_gprmc_t gprmc;
   struct nmea_gpgll_t gpgll;
   struct nmea_gpgst_t gpgst;
   struct nmea_gpzda_t gpzda;
+  struct nmea_pubx00_t pubx00;
+  struct nmea_pubx04_t pubx04;
 };
 
+/* UTC day of the fixes. See gpstime.c */
+struct utc_day_t {
+  int year;
+  unsigned month;
+  unsigned mday;
+  /* UTC time of 00:00:00 of the day, ms since the epoch */
+  long long start_ms;
+  /* Time of day of the last fix, ms. UTC_TOD_UNKNOWN - none */
+  unsigned last_tod_ms;
+};
+
+#define UTC_TOD_UNKNOWN 0xffffffffu
+
+/* GPS - UTC offset used when the GPS week is taken from the system clock */
+#define GPS_LEAP_SECONDS 18
+/* 1980-01-06 00:00:00 UTC */
+#define GPS_EPOCH_UNIX 315964800ll
+#define GPS_WEEK_MS (7ll * 24 * 3600 * 1000)
+
 struct nmea_parser_t {
-  struct tm time_full;        /* Curent time and date, UTC */
+  /* Date of the fixes: received in RMC, ZDA, PUBX,04 or taken from the system clock */
+  struct utc_day_t utc_day;
+  /* UTC time of the current fix, ms. Set by merge_full_time() */
+  long long fix_time_ms;
   struct nmea_fix_t fix;
 
-  struct nmea_gpgsa_t gpgsa;
+  /* Time-tagged sentences of the last complete epoch. The fix is closed
+   * as soon as all of them are received */
+  unsigned epoch_sentences;
+
+  /* Key of the last sentence received. See NMEA_EPOCH_KEY() */
+  unsigned epoch_last;
+  /* Last sentence of the previous epoch */
+  unsigned epoch_last_prev;
+  /* Last sentence of the epoch, same in the two previous epochs. The fix
+   * is closed when it is received. NMEA_EPOCH_KEY_NONE - not learned */
+  unsigned epoch_last_learned;
+
+  /* Receive time of the first sentence of the epoch */
+  struct timespec epoch_start_ts;
+  /* Receive time of the sentence that closed the fix before the next epoch */
+  struct timespec epoch_close_ts;
+  bool epoch_closed_early;
+
+  struct nmea_gsa_set_t gsa;
   struct nmea_gpvtg_t gpvtg;
 
+  /* Satellites in view from GSV: the table being filled and the last
+   * published one. See satellites_fill */
+  struct gps_satellites_t satellites[2];
+  unsigned satellites_fill;
+  /* GSV sentences in the table being filled */
+  unsigned gsv_sentences;
+  /* GSV sequences completed in the table being filled. Bitmask of the signal IDs by talker */
+  uint16_t gsv_complete[NMEA_TALKER_NB];
+
   struct stats_t *stats;
 };
 
 struct sirf_parser_t {
+  struct utc_day_t utc_day;
   struct stats_t *stats;
 };
 
+struct ublox_parser_t {
+  /* UTC time of the start of the current GPS week, ms. Set from NAV-PVT */
+  long long week_start_ms;
+  bool has_week_start;
+  /* iTOW of the last fix reported from NAV-PVT */
+  unsigned last_pvt_itow;
+  bool has_last_pvt;
+  /* Date of the last NAV-PVT */
+  struct utc_day_t utc_day;
+
+  /* Last NAV-STATUS */
+  unsigned status_itow;
+  bool has_status;
+  bool status_fix_ok;
+
+  /* NAV-POSLLH held until the NAV-STATUS of its epoch, which the receiver
+   * sends after it. posllh_waits_status is learned: set when a NAV-STATUS
+   * follows the POSLLH of its epoch, cleared when it does not */
+  struct location_t posllh;
+  struct timespec posllh_ts;
+  unsigned posllh_itow;
+  bool has_posllh;
+  bool posllh_waits_status;
+  unsigned last_posllh_itow;
+  bool has_last_posllh;
+
+  struct stats_t *stats;
+};
+
+struct rtcm3_parser_t {
+  struct stats_t *stats;
+  unsigned last_msg_number;
+};
+
 struct gps_msg_status_t  {
   bool is_valid;
   bool location_changed;
   struct location_t location;
+  /* Satellites in view of the completed epoch. NULL - not changed */
+  const struct gps_satellites_t *satellites;
+  /* Receive time of the first message of the reported fix. Set by the
+   * caller to the receive time of the message, multi-message NMEA epochs
+   * override it */
+  struct timespec epoch_ts;
   char err[200];
 };
 
-struct stats_t {
-  pthread_mutex_t mtx;
+/* Windowed rates. Counters, see stats_rate_total() */
+enum stats_rate_counter_t {
+  STATS_RATE_BYTES = 0,
+  STATS_RATE_JUNK = 1,
+  STATS_RATE_FIXES = 2,
+  STATS_RATE_MSGS = 3    /* + message type */
+};
+#define STATS_RATE_NB (STATS_RATE_MSGS + GPS_MSG_TYPE_NB)
+
+/* Windows of 1, 10 and 60 seconds */
+#define STATS_RATE_WINDOW_NB 3
+/* Seconds kept. Power of two, not less than the longest window */
+#define STATS_RATE_SLOTS 64
 
+/*
+ * Counters of the parser thread. Written by the parser thread only, other
+ * threads read the published stats_snapshot_t
+ */
+struct stats_t {
   struct timespec start_ts;
 
   struct {
@@ -218,6 +497,21 @@ struct stats_t {
       unsigned pubx;
       unsigned other;
 
+      /* Sentences by talker, enum nmea_talker_t */
+      unsigned talker[NMEA_TALKER_NB];
+
+      /* Fix close */
+      struct {
+        unsigned closed_early;    /* On the learned last sentence of the epoch */
+        unsigned closed_late;     /* On the first sentence of the next epoch */
+        unsigned closed_timeout;  /* On the read timeout */
+        /* Sum of the times from the first sentence of the epoch to the fix
+         * close, early and late closes, ns */
+        unsigned long long latency_ns;
+        /* Sum of the times from the early close to the next epoch, ns */
+        unsigned long long saved_ns;
+      } epoch;
+
       struct timespec last_msg_ts;
     } nmea;
 
@@ -229,48 +523,288 @@ struct stats_t {
 
     struct {
       unsigned total;
+      unsigned nav_pvt;
+      unsigned nav_posllh;
+      unsigned nav_status;
       struct timespec last_msg_ts;
     } ublox;
 
+    struct {
+      unsigned total;
+      struct timespec last_msg_ts;
+    } rtcm3;
+
+    /* Per protocol counters maintained by the dispatcher */
+    struct {
+      unsigned long long msgs;
+      unsigned long long bytes;
+    } proto[GPS_MSG_TYPE_NB];
+
   } rcvd;
+
+  /* USB reader */
+  struct {
+    unsigned urb_nb;     /* URB queue depth. 0 - synchronous bulk reader */
+    unsigned urb_size;
+    unsigned urbs_in_flight;
+    unsigned urbs_max_in_flight;
+    unsigned long long urbs_reaped;
+    unsigned long long urbs_reaped_full;
+    unsigned long long urb_bytes;
+
+    unsigned ring_size;
+    unsigned ring_high_water;
+    unsigned long long dropped_bytes;  /* Bytes lost on receive ring overflow */
+
+    unsigned baudrate;   /* Line rate used by the scheduler. 0 - unknown */
+    unsigned cycle_us;   /* Current poll interval of the bulk reader */
+    unsigned req_len;    /* Current request size of the bulk reader */
+    unsigned long long reader_wakeups;
+    unsigned long long reader_bytes;
+    unsigned long long consumer_wakeups;
+  } usb;
+
+  /* Busy time of the parser thread by pipeline stage, ns */
+  struct {
+    unsigned long long framer_ns;
+    unsigned long long parser_ns;
+    unsigned long long report_ns;   /* JNI and Java location callback */
+    unsigned long long fixes;       /* Reported locations */
+  } pipeline;
+
+  /* Data logger. See datalogger_export_stats() */
+  struct {
+    bool is_active;      /* Log file is open */
+    unsigned buffer_size;
+    unsigned buffer_pos;
+    unsigned buffer_high_water;
+    unsigned long long bytes_written;
+    unsigned long long bytes_lost;
+    unsigned buffers_dropped;  /* On the slow storage */
+  } datalogger;
+
+  /* Counts of the last complete seconds for the windowed rates. Kept on
+   * reconnect. See stats_tick() */
+  struct {
+    bool is_started;
+    long long cur_sec;    /* CLOCK_MONOTONIC second being counted */
+    /* Totals at the start of cur_sec */
+    unsigned long long base[STATS_RATE_NB];
+    /* Counts of the complete seconds, indexed by second % STATS_RATE_SLOTS */
+    unsigned long long slot[STATS_RATE_SLOTS][STATS_RATE_NB];
+    /* Sums of the last 1, 10, 60 complete seconds */
+    unsigned long long sum[STATS_RATE_WINDOW_NB][STATS_RATE_NB];
+    unsigned seconds;     /* Complete seconds counted, up to STATS_RATE_SLOTS */
+  } rates;
+};
+
+/*
+ * Copy of stats_t published by the parser thread. Layout is shared with
+ * StatsNative.java. Timestamps are CLOCK_MONOTONIC, ms.
+ * seq is odd while the copy is being written (seqlock)
+ */
+struct stats_snapshot_t {
+  uint32_t seq;
+  uint32_t reserved;
+
+  int64_t start_ts;
+  int64_t last_byte_ts;
+  int64_t rcvd_bytes;
+  int64_t rcvd_junk;
+
+  int64_t nmea_last_msg_ts;
+  int64_t nmea_total;
+  int64_t nmea_gga;
+  int64_t nmea_rmc;
+  int64_t nmea_gll;
+  int64_t nmea_gst;
+  int64_t nmea_gsa;
+  int64_t nmea_vtg;
+  int64_t nmea_zda;
+  int64_t nmea_gsv;
+  int64_t nmea_pubx;
+  int64_t nmea_other;
+  int64_t nmea_talker[NMEA_TALKER_NB];
+  int64_t nmea_epoch_closed_early;
+  int64_t nmea_epoch_closed_late;
+  int64_t nmea_epoch_closed_timeout;
+  int64_t nmea_epoch_latency_ns;
+  int64_t nmea_epoch_saved_ns;
+
+  int64_t sirf_last_msg_ts;
+  int64_t sirf_total;
+  int64_t sirf_mid41;
+
+  int64_t ublox_last_msg_ts;
+  int64_t ublox_total;
+  int64_t ublox_nav_pvt;
+  int64_t ublox_nav_posllh;
+  int64_t ublox_nav_status;
+
+  int64_t rtcm3_last_msg_ts;
+  int64_t rtcm3_total;
+
+  int64_t proto_msgs[GPS_MSG_TYPE_NB];
+  int64_t proto_bytes[GPS_MSG_TYPE_NB];
+
+  int64_t usb_urb_nb;
+  int64_t usb_urb_size;
+  int64_t usb_urbs_in_flight;
+  int64_t usb_urbs_max_in_flight;
+  int64_t usb_urbs_reaped;
+  int64_t usb_urbs_reaped_full;
+  int64_t usb_urb_bytes;
+  int64_t usb_ring_size;
+  int64_t usb_ring_high_water;
+  int64_t usb_dropped_bytes;
+  int64_t usb_baudrate;
+  int64_t usb_cycle_us;
+  int64_t usb_req_len;
+  int64_t usb_reader_wakeups;
+  int64_t usb_reader_bytes;
+  int64_t usb_consumer_wakeups;
+
+  int64_t pipeline_framer_ns;
+  int64_t pipeline_parser_ns;
+  int64_t pipeline_report_ns;
+  int64_t pipeline_fixes;
+
+  /* Windowed rates: seconds covered by the window and the sums of the
+   * counters (enum stats_rate_counter_t) over these seconds */
+  int64_t rate_seconds[STATS_RATE_WINDOW_NB];
+  int64_t rate_sum[STATS_RATE_WINDOW_NB][STATS_RATE_NB];
+
+  int64_t datalogger_active;
+  int64_t datalogger_buffer_size;
+  int64_t datalogger_buffer_pos;
+  int64_t datalogger_buffer_high_water;
+  int64_t datalogger_bytes_written;
+  int64_t datalogger_bytes_lost;
+  int64_t datalogger_buffers_dropped;
+
+  /* Time of stats_publish(). Not updated while the line is idle and the
+   * rate windows are drained */
+  int64_t publish_ts;
 };
 
 struct gps_msg_metadata_t {
   enum {
     MSG_TYPE_NMEA = 0,
     MSG_TYPE_SIRF = 1,
-    MSG_TYPE_UBLOX = 2
+    MSG_TYPE_UBLOX = 2,
+    MSG_TYPE_RTCM3 = 3
   } type;
   size_t size;
   bool is_truncated;
 };
 
+/* Window of the resync prefix checksums. Not less than twice the maximum message size */
+#define GPS_FRAMER_WINDOW_SIZE (2 * (UBLOX_MAX + 8))
+
+/* State of the resumable framer on a truncated message */
+struct gps_framer_state_t {
+  unsigned scanned;  /* Number of message bytes already checked. 0 - none */
+  unsigned csum;     /* Running checksum. u-blox: CK_A */
+  unsigned csum2;    /* NMEA: checksum before '*'. u-blox: CK_B */
+  int csum_pos;      /* NMEA: position of '*' */
+};
+
+/*
+ * Protocol registry entry
+ */
+struct gps_protocol_t {
+  const char *name;
+  /* First byte of the messages */
+  uint8_t sync;
+  /* Bytes checked before the checksummed data */
+  unsigned header_len;
+  int (*frame)(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
+  void (*reset_parser)(void *parser);
+  bool (*put_msg)(void *parser, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *status);
+};
+
+struct gps_framer_t {
+  /* Bitmask of the enabled message types */
+  unsigned enabled;
+  /* Bitmask of the enabled message types that can start with the byte */
+  uint8_t sync_table[256];
+
+  /* Number of recently framed messages of each type, decayed */
+  unsigned score[GPS_MSG_TYPE_NB];
+  /* Message types sorted by score */
+  uint8_t order[GPS_MSG_TYPE_NB];
+
+  /* Truncated message returned by the last find_gps_msg() call. -1 - none */
+  int pending_type;
+  struct gps_framer_state_t pending;
+
+  /* Stream position of buf[0] of the current find_gps_msg() call */
+  unsigned stream_pos;
+
+  /* Prefix checksums of the bytes already checked by the failed messages, per message type */
+  struct gps_framer_window_t {
+    unsigned start; /* Stream position of the first byte */
+    int len;        /* Number of bytes. 0 - empty window */
+    int last_star;  /* NMEA: offset of the last '*' from start. -1 - none */
+    uint16_t a[GPS_FRAMER_WINDOW_SIZE+1];  /* NMEA: XOR, SiRF: sum, u-blox: CK_A */
+    uint8_t b[GPS_FRAMER_WINDOW_SIZE+1];   /* u-blox: CK_B */
+  } window[GPS_MSG_TYPE_NB];
+};
+
 struct datalogger_t;
 
 /* usbconverter.c */
 int register_usb_converter_natives(JNIEnv* env);
 
+/* protocols.c */
+extern const struct gps_protocol_t GPS_PROTOCOLS[GPS_MSG_TYPE_NB];
+
+/* framer.c */
+void reset_gps_framer(struct gps_framer_t *ctx);
+void gps_framer_set_enabled(struct gps_framer_t *ctx, unsigned type_mask);
+int find_gps_msg(struct gps_framer_t *ctx, const uint8_t *buf, unsigned stream_pos,
+    int start_pos, int buf_size, struct gps_msg_metadata_t *res);
+void gps_framer_drop_pending(struct gps_framer_t *ctx);
+
+/* gpstime.c */
+void reset_utc_day(struct utc_day_t *day);
+long long utc_day_date_time_ms(struct utc_day_t *day, int year, unsigned month, unsigned mday,
+    unsigned tod_ms);
+long long utc_day_time_ms(struct utc_day_t *day, unsigned tod_ms);
+long long days_from_civil(int y, unsigned m, unsigned d);
+
 /* nmea.c */
 int looks_like_nmea(const uint8_t *msg, size_t max_len);
+int frame_nmea(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
 void reset_nmea_parser(struct nmea_parser_t *ctx);
 bool put_nmea_msg(struct nmea_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
 void put_nmea_timedout(struct nmea_parser_t *ctx, struct gps_msg_status_t *status);
 
 /* sirf.c */
 int looks_like_sirf(const uint8_t *msg, size_t max_len);
+int frame_sirf(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
 void reset_sirf_parser(struct sirf_parser_t *ctx);
 bool put_sirf_msg(struct sirf_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
 
 /* ublox.c */
 int looks_like_ublox(const uint8_t *msg, size_t max_len);
+int frame_ublox(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
+void reset_ublox_parser(struct ublox_parser_t *ctx);
+bool put_ublox_msg(struct ublox_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
+
+/* rtcm3.c */
+int looks_like_rtcm3(const uint8_t *msg, size_t max_len);
+int frame_rtcm3(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
+void reset_rtcm3_parser(struct rtcm3_parser_t *ctx);
+bool put_rtcm3_msg(struct rtcm3_parser_t *ctx, const uint8_t *msg, size_t msg_size, struct gps_msg_status_t *res);
 
 /* stats.c */
 void stats_init(struct stats_t *stats);
-void stats_destroy(struct stats_t *stats);
-void stats_lock(struct stats_t *stats);
-void stats_unlock(struct stats_t *stats);
-void stats_reset_unlocked(struct stats_t *stats);
-void stats_start_unlocked(struct stats_t *stats);
-void stats_export_to_java(JNIEnv *env, struct stats_t *stats, jobject j_dst);
+void stats_reset(struct stats_t *stats);
+void stats_start(struct stats_t *stats);
+void stats_tick(struct stats_t *stats, const struct timespec *now);
+bool stats_rates_are_drained(const struct stats_t *stats);
+void stats_publish(const struct stats_t *stats, struct stats_snapshot_t *dst);
+void stats_read_snapshot(const struct stats_snapshot_t *src, struct stats_snapshot_t *dst);
 
 #endif /* _USBCONVERTER_H  */
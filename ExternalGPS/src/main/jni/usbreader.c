@@ -15,14 +15,19 @@
 #include <jni.h>
 #include <android/log.h>
 
+#include "usbconverter.h"
 #include "usbreader.h"
 
 #define READ_TIMEOUT_MS 1100
-#define DEFAULT_CYCLE_US 16666 /* (192 * (1+8+0+1) * 1000000ll / 115200) */
 
-#define USB_IOCTL_WATERMARK 64
+/* Bulk read timeout when there is no traffic on the line */
+#define IDLE_READ_TIMEOUT_MS 10000
+
+/* Bits per character on the line: 8N1 */
+#define LINE_CHAR_BITS 10
 
 #define MIN(a, b) ((a)<(b)?(a):(b))
+#define MAX(a, b) ((a)>(b)?(a):(b))
 
 #define TAG "NativeUsbReader"
 #ifdef ENABLE_LOG
@@ -37,10 +42,19 @@ static const JavaVMAttachArgs USB_READER_THREAD_ATTACH_ARGS = {
   NULL
 };
 
-static unsigned share(struct usb_reader_thread_ctx_t * ctx,
-    uint8_t *buf, unsigned rxbuf_pos);
+static void share(struct usb_reader_thread_ctx_t *ctx,
+    const uint8_t *data, unsigned size);
+static inline void share_commit(struct usb_reader_thread_ctx_t *ctx, unsigned size);
+static void wake_consumer(struct usb_reader_thread_ctx_t *ctx);
+static int bulk_read_loop(struct usb_reader_thread_ctx_t *ctx);
+static int urb_read_loop(struct usb_reader_thread_ctx_t *ctx);
+static int submit_urb(struct usb_reader_thread_ctx_t *ctx, struct usbdevfs_urb *urb);
+static void discard_urbs(struct usb_reader_thread_ctx_t *ctx);
 static void usb_reader_cleanup(void *arg);
 static inline void sleep_cycle(struct usb_reader_thread_ctx_t *ctx);
+static void sched_reset(struct usb_reader_thread_ctx_t *ctx);
+static void sched_update(struct usb_reader_thread_ctx_t *ctx, unsigned rcvd, unsigned req_len);
+static inline void count_wakeup(struct usb_reader_thread_ctx_t *ctx, unsigned rcvd);
 
 void usb_reader_init(struct usb_reader_thread_ctx_t *ctx,
         JavaVM *jvm,
@@ -51,12 +65,18 @@ void usb_reader_init(struct usb_reader_thread_ctx_t *ctx,
   ctx->endpoint = endpoint;
   ctx->max_pkt_size = max_pkt_size;
 
-  ctx->cycle_us = DEFAULT_CYCLE_US;
-  ctx->fast_cycle = true;
+  sched_reset(ctx);
+  ctx->mode = USB_READER_MODE_URB;
+  memset(&ctx->urb_stats, 0, sizeof(ctx->urb_stats));
+  memset(&ctx->wakeup_stats, 0, sizeof(ctx->wakeup_stats));
 
   pthread_mutex_init(&ctx->mtx, NULL);
   pthread_cond_init(&ctx->data_available_cond, NULL);
-  ctx->shared_rxbuf_pos = 0;
+  ctx->ring.head = 0;
+  ctx->ring.tail = 0;
+  ctx->ring.consumer_waiting = 0;
+  ctx->ring.high_water = 0;
+  ctx->ring.dropped_bytes = 0;
   ctx->is_running = true; // XXX
   ctx->last_event_errno = 0;
 }
@@ -69,14 +89,9 @@ void usb_reader_destroy(struct usb_reader_thread_ctx_t *ctx)
 
 void *usb_reader_thread(void *arg)
 {
-  int rcvd;
   int last_event_errno;
   struct usb_reader_thread_ctx_t *ctx;
-  struct usbdevfs_bulktransfer ctrl;
   JavaVMAttachArgs attachArgs;
-  unsigned rxbuf_pos;
-  unsigned req_len;
-  uint8_t rx_buf[USB_READER_BUF_SIZE];
 
   ctx = (struct usb_reader_thread_ctx_t *)arg;
   attachArgs = USB_READER_THREAD_ATTACH_ARGS;
@@ -85,107 +100,322 @@ void *usb_reader_thread(void *arg)
 
   pthread_mutex_lock(&ctx->mtx);
   ctx->is_running = true;
-  ctx->cycle_us = DEFAULT_CYCLE_US;
-  ctx->fast_cycle = true;
   pthread_mutex_unlock(&ctx->mtx);
+  sched_reset(ctx);
 
   LOGV("istream_fd: %i, endpoint: 0x%x, max_pkt_size: %i", ctx->fd,
       ctx->endpoint, ctx->max_pkt_size);
 
-  rxbuf_pos = 0;
+  last_event_errno = 0;
+  if (ctx->mode == USB_READER_MODE_URB) {
+    if (urb_read_loop(ctx) < 0) {
+      last_event_errno = errno;
+      if (last_event_errno == ENOTTY || last_event_errno == EINVAL) {
+        LOGV("URB reader not available (%s), falling back to bulk reader",
+            strerror(last_event_errno));
+        ctx->mode = USB_READER_MODE_BULK;
+      }
+    }
+  }
+
+  if (ctx->mode == USB_READER_MODE_BULK) {
+    if (bulk_read_loop(ctx) < 0)
+      last_event_errno = errno;
+  }
+
+  pthread_mutex_lock(&ctx->mtx);
+  ctx->last_event_errno = last_event_errno;
+  pthread_mutex_unlock(&ctx->mtx);
+
+  pthread_cleanup_pop(1);
+
+  return NULL;
+}
+
+/*
+ * Sets line rate used by the bulk reader polling scheduler.
+ * Can be called from any thread, before usb_reader_init() as well.
+ * baudrate 0 - unknown.
+ */
+void usb_reader_set_baudrate(struct usb_reader_thread_ctx_t *ctx, unsigned baudrate)
+{
+  ctx->sched.baudrate = baudrate;
+}
+
+static int bulk_read_loop(struct usb_reader_thread_ctx_t *ctx)
+{
+  int rcvd;
+  int last_event_errno;
+  unsigned req_len;
+  unsigned head, free_space;
+  bool direct;
+  struct usbdevfs_bulktransfer ctrl;
+  uint8_t rx_buf[USB_READER_BUF_SIZE];
+
   for (;;) {
-    sleep_cycle(ctx);
+    if (ctx->sched.baudrate != ctx->sched.cur_baudrate)
+      sched_reset(ctx);
 
-    req_len = MIN(ctx->max_pkt_size, (int)(sizeof(rx_buf)-rxbuf_pos));
+    if (!ctx->sched.idle)
+      sleep_cycle(ctx);
+
+    req_len = MIN(ctx->sched.req_len, sizeof(rx_buf));
+
+    /* Read directly into the ring if there is enough contiguous space */
+    head = ctx->ring.head;
+    free_space = USB_READER_RING_SIZE - (head - ctx->ring.tail);
+    free_space = MIN(free_space, USB_READER_RING_SIZE - (head & USB_READER_RING_MASK));
+    direct = free_space >= req_len;
 
     memset(&ctrl, 0, sizeof(ctrl));
     ctrl.ep = ctx->endpoint;
     ctrl.len = req_len;
-    ctrl.data = &rx_buf[rxbuf_pos];
-    ctrl.timeout = READ_TIMEOUT_MS;
+    ctrl.data = direct ? &ctx->ring.buf[head & USB_READER_RING_MASK] : rx_buf;
+    ctrl.timeout = ctx->sched.idle ? IDLE_READ_TIMEOUT_MS : READ_TIMEOUT_MS;
 
     rcvd = ioctl(ctx->fd, USBDEVFS_BULK, &ctrl);
     last_event_errno = errno;
-    //LOGV("rcvd %i pos %i req_len %i", rcvd, rxbuf_pos, req_len);
+    //LOGV("rcvd %i req_len %i", rcvd, req_len);
+    count_wakeup(ctx, rcvd > 0 ? (unsigned)rcvd : 0);
     if (rcvd < 0) {
       if (last_event_errno == ETIMEDOUT) {
         LOGV("usb read timeout");
+        /* No traffic: block in the kernel until the next byte */
+        ctx->sched.idle = true;
         continue;
       }else {
-        pthread_mutex_lock(&ctx->mtx);
-        ctx->last_event_errno = last_event_errno;
-        pthread_mutex_unlock(&ctx->mtx);
-        LOGV("read_loop(): rcvd %i, error: %s", rcvd, strerror(errno));
-        break;
+        LOGV("bulk_read_loop(): rcvd %i, error: %s", rcvd, strerror(last_event_errno));
+        errno = last_event_errno;
+        return -1;
       }
     }else if (rcvd == 0) {
       // XXX: EOF
       continue;
     }else {
-      if ((unsigned)rcvd >= req_len) {
-        ctx->fast_cycle = true;
-      }
+      sched_update(ctx, (unsigned)rcvd, req_len);
 
-      rxbuf_pos += rcvd;
-      rxbuf_pos = share(ctx, rx_buf, rxbuf_pos);
-      if (rxbuf_pos >= sizeof(rx_buf)-USB_IOCTL_WATERMARK) {
-        // XXX
-        rxbuf_pos = 0;
-      }
+      if (direct)
+        share_commit(ctx, (unsigned)rcvd);
+      else
+        share(ctx, rx_buf, (unsigned)rcvd);
     }
-  } //
+  }
 
-  if (rxbuf_pos != 0) {
-    share(ctx, rx_buf, rxbuf_pos);
+  return 0;
+}
+
+static int urb_read_loop(struct usb_reader_thread_ctx_t *ctx)
+{
+  unsigned i;
+  unsigned urb_size;
+  int last_event_errno;
+  struct usbdevfs_urb *urb;
+
+  /* Multiple of wMaxPacketSize: the transfer must not end in the middle of a packet */
+  urb_size = USB_READER_URB_BUF_SIZE - USB_READER_URB_BUF_SIZE % ctx->max_pkt_size;
+  if (urb_size == 0)
+    urb_size = USB_READER_URB_BUF_SIZE;
+
+  pthread_mutex_lock(&ctx->mtx);
+  memset(&ctx->urb_stats, 0, sizeof(ctx->urb_stats));
+  ctx->urb_stats.urb_size = urb_size;
+  pthread_mutex_unlock(&ctx->mtx);
+
+  for (i=0; i < USB_READER_URB_NB; ++i) {
+    urb = &ctx->urbs[i];
+    memset(urb, 0, sizeof(*urb));
+    urb->type = USBDEVFS_URB_TYPE_BULK;
+    urb->endpoint = ctx->endpoint;
+    urb->buffer = ctx->urb_bufs[i];
+    urb->buffer_length = urb_size;
+    urb->usercontext = ctx;
+    if (submit_urb(ctx, urb) < 0) {
+      last_event_errno = errno;
+      discard_urbs(ctx);
+      errno = last_event_errno;
+      return -1;
+    }
   }
 
-  pthread_cleanup_pop(1);
+  LOGV("urb_read_loop() %u URBs of %u bytes submitted", USB_READER_URB_NB, urb_size);
 
-  return NULL;
+  for (;;) {
+    urb = NULL;
+    if (ioctl(ctx->fd, USBDEVFS_REAPURB, &urb) < 0) {
+      last_event_errno = errno;
+      if (last_event_errno == EINTR)
+        continue;
+      LOGV("urb_read_loop(): reap error: %s", strerror(last_event_errno));
+      break;
+    }
+
+    pthread_mutex_lock(&ctx->mtx);
+    ctx->urb_stats.in_flight -= 1;
+    ctx->urb_stats.reaped += 1;
+    ctx->wakeup_stats.wakeups += 1;
+    if (urb->status == 0) {
+      ctx->urb_stats.bytes += urb->actual_length;
+      ctx->wakeup_stats.bytes += urb->actual_length;
+      if (urb->actual_length >= urb->buffer_length)
+        ctx->urb_stats.reaped_full += 1;
+    }
+    pthread_mutex_unlock(&ctx->mtx);
+
+    if (urb->status != 0) {
+      last_event_errno = -urb->status;
+      LOGV("urb_read_loop(): urb status: %s", strerror(last_event_errno));
+      break;
+    }
+
+    if (urb->actual_length > 0) {
+      share(ctx, (const uint8_t *)urb->buffer, (unsigned)urb->actual_length);
+    }
+
+    if (submit_urb(ctx, urb) < 0) {
+      last_event_errno = errno;
+      LOGV("urb_read_loop(): submit error: %s", strerror(last_event_errno));
+      break;
+    }
+  }
+
+  discard_urbs(ctx);
+  errno = last_event_errno;
+  return -1;
 }
 
-ssize_t usb_read(struct usb_reader_thread_ctx_t *ctx,
-    uint8_t *dst,
-    size_t dst_size,
-    const struct timespec *timeout)
+static int submit_urb(struct usb_reader_thread_ctx_t *ctx, struct usbdevfs_urb *urb)
+{
+  urb->status = 0;
+  urb->actual_length = 0;
+  if (ioctl(ctx->fd, USBDEVFS_SUBMITURB, urb) < 0)
+    return -1;
+
+  pthread_mutex_lock(&ctx->mtx);
+  ctx->urb_stats.in_flight += 1;
+  if (ctx->urb_stats.in_flight > ctx->urb_stats.max_in_flight)
+    ctx->urb_stats.max_in_flight = ctx->urb_stats.in_flight;
+  pthread_mutex_unlock(&ctx->mtx);
+
+  return 0;
+}
+
+static void discard_urbs(struct usb_reader_thread_ctx_t *ctx)
 {
-  ssize_t bytes_read;
+  unsigned i;
+  struct usbdevfs_urb *urb;
 
   pthread_mutex_lock(&ctx->mtx);
+  if (ctx->urb_stats.in_flight == 0) {
+    pthread_mutex_unlock(&ctx->mtx);
+    return;
+  }
+  pthread_mutex_unlock(&ctx->mtx);
 
-  if ( (ctx->shared_rxbuf_pos == 0) && (!ctx->is_running)) {
-    errno = ctx->last_event_errno;
+  for (i=0; i < USB_READER_URB_NB; ++i)
+    ioctl(ctx->fd, USBDEVFS_DISCARDURB, &ctx->urbs[i]);
+
+  /* URB buffers are owned by the kernel until reaped */
+  for (;;) {
+    urb = NULL;
+    if (ioctl(ctx->fd, USBDEVFS_REAPURBNDELAY, &urb) < 0)
+      break;
+    pthread_mutex_lock(&ctx->mtx);
+    ctx->urb_stats.in_flight -= 1;
     pthread_mutex_unlock(&ctx->mtx);
-    return -1;
   }
+}
 
-  if (ctx->shared_rxbuf_pos == 0)  {
-    if (pthread_cond_timedwait_relative_np(&ctx->data_available_cond, &ctx->mtx, timeout) != 0) {
+/*
+ * Waits for data past position pos. Returns number of bytes available
+ * from pos, or -1 on timeout (errno ETIMEDOUT) or reader thread termination.
+ * timeout NULL - wait infinitely.
+ */
+ssize_t usb_read_wait(struct usb_reader_thread_ctx_t *ctx,
+    unsigned pos,
+    const struct timespec *timeout)
+{
+  unsigned head;
+
+  head = ctx->ring.head;
+
+  if (head == pos) {
+    int wait_res;
+
+    pthread_mutex_lock(&ctx->mtx);
+    ctx->ring.consumer_waiting = 1;
+    __sync_synchronize();
+    head = ctx->ring.head;
+    wait_res = 0;
+    if ((head == pos) && ctx->is_running) {
+      if (timeout == NULL)
+        wait_res = pthread_cond_wait(&ctx->data_available_cond, &ctx->mtx);
+      else
+        wait_res = pthread_cond_timedwait_relative_np(&ctx->data_available_cond,
+            &ctx->mtx, timeout);
+      head = ctx->ring.head;
+    }
+    ctx->ring.consumer_waiting = 0;
+
+    if (head == pos) {
       if (!ctx->is_running) {
         errno = ctx->last_event_errno;
-      }else {
+        pthread_mutex_unlock(&ctx->mtx);
+        return -1;
+      }else if (wait_res != 0) {
         errno = ETIMEDOUT;
+        pthread_mutex_unlock(&ctx->mtx);
+        return -1;
       }
-      pthread_mutex_unlock(&ctx->mtx);
-      return -1;
     }
-  }
-
-  if (dst_size == 0) {
     pthread_mutex_unlock(&ctx->mtx);
-    return 0;
   }
 
-  bytes_read = MIN(dst_size, ctx->shared_rxbuf_pos);
-  memcpy(dst, ctx->shared_rxbuf, bytes_read);
-  if ((unsigned)bytes_read != ctx->shared_rxbuf_pos) {
-    memmove(ctx->shared_rxbuf, &ctx->shared_rxbuf[bytes_read], ctx->shared_rxbuf_pos - bytes_read);
-  }
-  ctx->shared_rxbuf_pos -= bytes_read;
+  /* Pairs with the barrier in share_commit(): data is visible after head */
+  __sync_synchronize();
 
-  pthread_mutex_unlock(&ctx->mtx);
+  return head - pos;
+}
 
-  return bytes_read;
+/*
+ * Returns the ring position up to which the data is available
+ */
+unsigned usb_read_head(struct usb_reader_thread_ctx_t *ctx)
+{
+  unsigned head;
+  head = ctx->ring.head;
+  __sync_synchronize();
+  return head;
+}
+
+/*
+ * Releases ring space up to position pos
+ */
+void usb_read_release(struct usb_reader_thread_ctx_t *ctx, unsigned pos)
+{
+  __sync_synchronize();
+  ctx->ring.tail = pos;
+}
+
+void usb_reader_export_stats(struct usb_reader_thread_ctx_t *ctx,
+    struct stats_t *dst)
+{
+  pthread_mutex_lock(&ctx->mtx);
+  dst->usb.urb_nb = ctx->mode == USB_READER_MODE_URB ? USB_READER_URB_NB : 0;
+  dst->usb.urb_size = ctx->urb_stats.urb_size;
+  dst->usb.urbs_in_flight = ctx->urb_stats.in_flight;
+  dst->usb.urbs_max_in_flight = ctx->urb_stats.max_in_flight;
+  dst->usb.urbs_reaped = ctx->urb_stats.reaped;
+  dst->usb.urbs_reaped_full = ctx->urb_stats.reaped_full;
+  dst->usb.urb_bytes = ctx->urb_stats.bytes;
+  dst->usb.ring_size = USB_READER_RING_SIZE;
+  dst->usb.ring_high_water = ctx->ring.high_water;
+  dst->usb.dropped_bytes = ctx->ring.dropped_bytes;
+  dst->usb.baudrate = ctx->sched.cur_baudrate;
+  dst->usb.cycle_us = ctx->mode == USB_READER_MODE_BULK ? ctx->cycle_us : 0;
+  dst->usb.req_len = ctx->mode == USB_READER_MODE_BULK ? ctx->sched.req_len : 0;
+  dst->usb.reader_wakeups = ctx->wakeup_stats.wakeups;
+  dst->usb.reader_bytes = ctx->wakeup_stats.bytes;
+  pthread_mutex_unlock(&ctx->mtx);
 }
 
 static void usb_reader_cleanup(void *arg)
@@ -196,33 +426,162 @@ static void usb_reader_cleanup(void *arg)
   ctx = (struct usb_reader_thread_ctx_t *)arg;
   pthread_mutex_lock(&ctx->mtx);
   ctx->is_running = false;
+  pthread_cond_signal(&ctx->data_available_cond);
   pthread_mutex_unlock(&ctx->mtx);
   (*ctx->jvm)->DetachCurrentThread(ctx->jvm);
 }
 
-static unsigned share(struct usb_reader_thread_ctx_t *ctx,
-    uint8_t *buf, unsigned rxbuf_pos)
+/*
+ * Copies received data into the ring. Data that does not fit is dropped and
+ * accounted in dropped_bytes: the reader thread never waits for the consumer.
+ */
+static void share(struct usb_reader_thread_ctx_t *ctx,
+    const uint8_t *data, unsigned size)
 {
-  unsigned moved_bytes;
+  unsigned head, free_space;
+  unsigned moved_bytes, chunk;
 
-  if (rxbuf_pos == 0)
-    return 0;
+  if (size == 0)
+    return;
 
-  pthread_mutex_lock(&ctx->mtx);
-  moved_bytes = MIN(rxbuf_pos, sizeof(ctx->shared_rxbuf) - ctx->shared_rxbuf_pos);
-  if (moved_bytes > 0) {
-    memcpy(&ctx->shared_rxbuf[ctx->shared_rxbuf_pos], buf, moved_bytes);
-    ctx->shared_rxbuf_pos += moved_bytes;
-    if (ctx->shared_rxbuf_pos == moved_bytes)
-      pthread_cond_signal(&ctx->data_available_cond);
+  head = ctx->ring.head;
+  free_space = USB_READER_RING_SIZE - (head - ctx->ring.tail);
+  moved_bytes = MIN(size, free_space);
+
+  if (moved_bytes != size) {
+    pthread_mutex_lock(&ctx->mtx);
+    ctx->ring.dropped_bytes += size - moved_bytes;
+    pthread_mutex_unlock(&ctx->mtx);
+    LOGV("ring overflow, %u bytes dropped", size - moved_bytes);
+  }
+
+  if (moved_bytes == 0)
+    return;
+
+  chunk = MIN(moved_bytes, USB_READER_RING_SIZE - (head & USB_READER_RING_MASK));
+  memcpy(&ctx->ring.buf[head & USB_READER_RING_MASK], data, chunk);
+  if (chunk != moved_bytes)
+    memcpy(&ctx->ring.buf[0], &data[chunk], moved_bytes - chunk);
+
+  share_commit(ctx, moved_bytes);
+}
+
+/*
+ * Publishes size bytes written at the ring head
+ */
+static inline void share_commit(struct usb_reader_thread_ctx_t *ctx, unsigned size)
+{
+  unsigned used;
+  unsigned start, end;
+
+  /* Update the mirror of the ring start */
+  start = ctx->ring.head & USB_READER_RING_MASK;
+  end = start + size;
+  if (start < USB_READER_RING_MIRROR_SIZE) {
+    memcpy(&ctx->ring.buf[USB_READER_RING_SIZE + start], &ctx->ring.buf[start],
+        MIN(end, USB_READER_RING_MIRROR_SIZE) - start);
+  }
+  if (end > USB_READER_RING_SIZE) {
+    memcpy(&ctx->ring.buf[USB_READER_RING_SIZE], &ctx->ring.buf[0],
+        MIN(end - USB_READER_RING_SIZE, USB_READER_RING_MIRROR_SIZE));
   }
+
+  __sync_synchronize();
+  ctx->ring.head += size;
+  __sync_synchronize();
+
+  /* Locked only when the mark rises, read without mtx by its only writer */
+  used = ctx->ring.head - ctx->ring.tail;
+  if (used > ctx->ring.high_water) {
+    pthread_mutex_lock(&ctx->mtx);
+    ctx->ring.high_water = used;
+    pthread_mutex_unlock(&ctx->mtx);
+  }
+
+  if (ctx->ring.consumer_waiting)
+    wake_consumer(ctx);
+}
+
+static void wake_consumer(struct usb_reader_thread_ctx_t *ctx)
+{
+  pthread_mutex_lock(&ctx->mtx);
+  pthread_cond_signal(&ctx->data_available_cond);
   pthread_mutex_unlock(&ctx->mtx);
+}
 
-  if ((rxbuf_pos != moved_bytes) && (moved_bytes > 0)) {
-    memmove(buf, &buf[moved_bytes], rxbuf_pos - moved_bytes);
+static inline void count_wakeup(struct usb_reader_thread_ctx_t *ctx, unsigned rcvd)
+{
+  pthread_mutex_lock(&ctx->mtx);
+  ctx->wakeup_stats.wakeups += 1;
+  ctx->wakeup_stats.bytes += rcvd;
+  pthread_mutex_unlock(&ctx->mtx);
+}
+
+/*
+ * Derives the poll interval limits and the request size from the line rate.
+ * The longest interval is the time to receive USB_READER_SCHED_FIFO_BYTES,
+ * request is large enough to take everything received at the line rate
+ * during this interval.
+ */
+static void sched_reset(struct usb_reader_thread_ctx_t *ctx)
+{
+  unsigned baudrate;
+  unsigned max_pkt_size;
+  unsigned long long cycle_us;
+  unsigned req_len;
+
+  ctx->sched.cur_baudrate = ctx->sched.baudrate;
+  baudrate = ctx->sched.cur_baudrate;
+  if (baudrate == 0)
+    baudrate = USB_READER_DEFAULT_BAUDRATE;
+  max_pkt_size = ctx->max_pkt_size > 0 ? (unsigned)ctx->max_pkt_size : 64;
+
+  cycle_us = USB_READER_SCHED_FIFO_BYTES * LINE_CHAR_BITS * 1000000ull / baudrate;
+  cycle_us = MAX(cycle_us, USB_READER_SCHED_MIN_CYCLE_US);
+  cycle_us = MIN(cycle_us, USB_READER_SCHED_MAX_CYCLE_US);
+
+  req_len = (unsigned)(cycle_us * baudrate / LINE_CHAR_BITS / 1000000) + max_pkt_size;
+  req_len -= req_len % max_pkt_size;
+  req_len = MIN(req_len, USB_READER_BUF_SIZE);
+  req_len = MAX(req_len, max_pkt_size);
+
+  ctx->sched.max_cycle_us = (useconds_t)cycle_us;
+  ctx->sched.min_cycle_us = MAX(ctx->sched.max_cycle_us / 8, USB_READER_SCHED_MIN_CYCLE_US);
+  ctx->sched.req_len = req_len;
+  ctx->sched.fill_avg = 128;
+  ctx->sched.idle = false;
+  ctx->cycle_us = ctx->sched.max_cycle_us;
+  ctx->fast_cycle = true;
+
+  LOGV("sched_reset() baudrate: %u, cycle: %u-%u us, req_len: %u", baudrate,
+      (unsigned)ctx->sched.min_cycle_us, (unsigned)ctx->sched.max_cycle_us, req_len);
+}
+
+/*
+ * Adjusts the poll interval to the fill of the recent reads: shortens it
+ * while the adapter has data queued, lengthens it back on sparse traffic.
+ */
+static void sched_update(struct usb_reader_thread_ctx_t *ctx, unsigned rcvd, unsigned req_len)
+{
+  unsigned fill;
+
+  if (ctx->sched.idle) {
+    ctx->sched.idle = false;
+    ctx->fast_cycle = true;
   }
 
-  return rxbuf_pos - moved_bytes;
+  fill = rcvd >= req_len ? 256 : 256 * rcvd / req_len;
+  ctx->sched.fill_avg = (3 * ctx->sched.fill_avg + fill) / 4;
+
+  if (rcvd >= req_len) {
+    /* More data is queued in the adapter. Poll again without delay */
+    ctx->fast_cycle = true;
+    ctx->cycle_us = MAX(ctx->cycle_us / 2, ctx->sched.min_cycle_us);
+  }else if (ctx->sched.fill_avg > 128) {
+    ctx->cycle_us = MAX(ctx->cycle_us * 3 / 4, ctx->sched.min_cycle_us);
+  }else if (ctx->sched.fill_avg < 64) {
+    ctx->cycle_us = MIN(ctx->cycle_us * 5 / 4 + 1, ctx->sched.max_cycle_us);
+  }
 }
 
 static inline void sleep_cycle(struct usb_reader_thread_ctx_t *ctx)
@@ -240,9 +599,9 @@ static inline void sleep_cycle(struct usb_reader_thread_ctx_t *ctx)
     diff_sec = ctx->last_cycle_ts.tv_sec - ts.tv_sec;
     if (diff_sec >= 0 && diff_sec <= 1) {
       long diff_usec;
-      diff_usec = 1000 * diff_sec + (long)(ctx->last_cycle_ts.tv_nsec / 1000) - (long)(ts.tv_nsec / 1000);
-      if (diff_usec < DEFAULT_CYCLE_US && diff_usec >= 0) {
-        usleep(DEFAULT_CYCLE_US - (useconds_t)diff_usec);
+      diff_usec = 1000000 * diff_sec + (long)(ctx->last_cycle_ts.tv_nsec / 1000) - (long)(ts.tv_nsec / 1000);
+      if (diff_usec < (long)ctx->cycle_us && diff_usec >= 0) {
+        usleep(ctx->cycle_us - (useconds_t)diff_usec);
         clock_gettime(CLOCK_MONOTONIC, &ctx->last_cycle_ts);
       }
     }
@@ -3,14 +3,52 @@
 #ifndef _USB_READER_H
 #define _USB_READER_H
 
+#include <linux/usbdevice_fs.h>
+
 #define USB_READER_BUF_SIZE 8192
 
+/* Size of the receive ring buffer between the reader thread and the
+ * consumer. Must be a power of 2 */
+#define USB_READER_RING_SIZE 65536
+#define USB_READER_RING_MASK (USB_READER_RING_SIZE-1)
+
+/*
+ * The first USB_READER_RING_MIRROR_SIZE bytes of the ring are duplicated
+ * past its end, so a message that wraps around the end of the ring is still
+ * contiguous in memory. Must not be less than the maximum message size.
+ */
+#define USB_READER_RING_MIRROR_SIZE 4608
+
+/* Number of bulk IN URBs kept in flight in USB_READER_MODE_URB */
+#define USB_READER_URB_NB 4
+
+/* Transfer size of one URB. Bulk IN URB completes on short packet, so
+ * a multi-packet buffer does not add latency */
+#define USB_READER_URB_BUF_SIZE 2048
+
+/* Line rate assumed until usb_reader_set_baudrate() is called */
+#define USB_READER_DEFAULT_BAUDRATE 115200
+
+/* Number of bytes the adapter is expected to buffer between two polls of
+ * the bulk reader. The longest poll interval is the time to receive them */
+#define USB_READER_SCHED_FIFO_BYTES 192
+
+#define USB_READER_SCHED_MIN_CYCLE_US 1000
+#define USB_READER_SCHED_MAX_CYCLE_US 250000
+
 struct usb_reader_thread_ctx_t {
   int fd;
   int endpoint;
   int max_pkt_size;
   useconds_t cycle_us;
 
+  enum {
+    /* Synchronous USBDEVFS_BULK polling */
+    USB_READER_MODE_BULK = 0,
+    /* Asynchronous USBDEVFS_SUBMITURB / USBDEVFS_REAPURB */
+    USB_READER_MODE_URB = 1
+  } mode;
+
   JavaVM *jvm;
   JNIEnv *jniEnv;
 
@@ -20,10 +58,60 @@ struct usb_reader_thread_ctx_t {
   struct timespec last_cycle_ts;
   bool fast_cycle;
 
+  /*
+   * Bulk reader polling scheduler. The poll interval and request size are
+   * derived from the line rate and adjusted to the fill of the recent reads.
+   * baudrate is written by usb_reader_set_baudrate(), the rest of the
+   * fields are owned by the reader thread.
+   */
+  struct {
+    volatile unsigned baudrate;
+    unsigned cur_baudrate;
+    useconds_t min_cycle_us;
+    useconds_t max_cycle_us;
+    unsigned req_len;
+    unsigned fill_avg;   /* Average fill of the recent reads, 1/256 */
+    bool idle;
+  } sched;
+
+  /* Reader thread wakeups. Guarded by mtx */
+  struct {
+    unsigned long long wakeups;
+    unsigned long long bytes;
+  } wakeup_stats;
+
   bool is_running;
   int last_event_errno;
-  unsigned shared_rxbuf_pos;
-  uint8_t shared_rxbuf[USB_READER_BUF_SIZE];
+
+  /*
+   * Single-producer / single-consumer receive ring. Positions are free-running:
+   * head is written only by the reader thread, tail only by the consumer.
+   * mtx and data_available_cond are used only to wake the idle consumer.
+   */
+  struct {
+    volatile unsigned head;
+    volatile unsigned tail;
+    volatile int consumer_waiting;
+
+    /* Written only by the reader thread, under mtx */
+    unsigned high_water;
+    unsigned long long dropped_bytes;
+
+    uint8_t buf[USB_READER_RING_SIZE+USB_READER_RING_MIRROR_SIZE];
+  } ring;
+
+  /* URB reader state. Guarded by mtx */
+  struct {
+    unsigned urb_size;
+    unsigned in_flight;
+    unsigned max_in_flight;
+    unsigned long long reaped;
+    unsigned long long reaped_full;
+    unsigned long long bytes;
+  } urb_stats;
+
+  struct usbdevfs_urb urbs[USB_READER_URB_NB];
+  uint8_t urb_bufs[USB_READER_URB_NB][USB_READER_URB_BUF_SIZE];
 };
 
 void usb_reader_init(struct usb_reader_thread_ctx_t *ctx,
@@ -33,9 +121,37 @@ void usb_reader_destroy(struct usb_reader_thread_ctx_t *ctx);
 
 void *usb_reader_thread(void *ctx);
 
-ssize_t usb_read(struct usb_reader_thread_ctx_t *ctx,
-    uint8_t *dst,
-    size_t dst_size,
+void usb_reader_set_baudrate(struct usb_reader_thread_ctx_t *ctx, unsigned baudrate);
+
+ssize_t usb_read_wait(struct usb_reader_thread_ctx_t *ctx,
+    unsigned pos,
     const struct timespec *timeout);
 
+unsigned usb_read_head(struct usb_reader_thread_ctx_t *ctx);
+
+void usb_read_release(struct usb_reader_thread_ctx_t *ctx, unsigned pos);
+
+/*
+ * Returns pointer to the byte at position pos of the receive ring
+ */
+static inline uint8_t *usb_read_ptr(struct usb_reader_thread_ctx_t *ctx, unsigned pos)
+{
+  return &ctx->ring.buf[pos & USB_READER_RING_MASK];
+}
+
+/*
+ * Returns number of bytes from position pos that can be accessed through
+ * usb_read_ptr() as a contiguous block. avail - number of bytes available from pos.
+ * The result is not less than min(avail, USB_READER_RING_MIRROR_SIZE).
+ */
+static inline unsigned usb_read_contiguous(unsigned pos, unsigned avail)
+{
+  unsigned limit;
+  limit = USB_READER_RING_SIZE + USB_READER_RING_MIRROR_SIZE - (pos & USB_READER_RING_MASK);
+  return avail < limit ? avail : limit;
+}
+
+void usb_reader_export_stats(struct usb_reader_thread_ctx_t *ctx,
+    struct stats_t *dst);
+
 #endif
@@ -0,0 +1,189 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Cost of the protocol registry: framing plus parsing through
+ * GPS_PROTOCOLS[type].put_msg() against a switch on the message type,
+ * and NMEA framing with only NMEA enabled against all protocols enabled.
+ */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define BUF_SIZE (1 << 20)
+#define PASSES 50
+/* Best of the rounds is reported */
+#define ROUNDS 5
+
+typedef void (*put_fn)(const uint8_t *msg, const struct gps_msg_metadata_t *meta,
+    struct gps_msg_status_t *status);
+
+static struct stats_t stats;
+static struct nmea_parser_t nmea;
+static struct sirf_parser_t sirf;
+static struct ublox_parser_t ublox;
+static struct rtcm3_parser_t rtcm3;
+static void *parsers[GPS_MSG_TYPE_NB];
+
+static void put_none(const uint8_t *msg, const struct gps_msg_metadata_t *meta,
+    struct gps_msg_status_t *status)
+{
+  (void)msg;
+  (void)meta;
+  status->is_valid = true;
+}
+
+static void put_switch(const uint8_t *msg, const struct gps_msg_metadata_t *meta,
+    struct gps_msg_status_t *status)
+{
+  stats.rcvd.proto[meta->type].msgs += 1;
+  stats.rcvd.proto[meta->type].bytes += meta->size;
+
+  switch (meta->type) {
+    case MSG_TYPE_NMEA:
+      put_nmea_msg(&nmea, msg, meta->size, status);
+      break;
+    case MSG_TYPE_SIRF:
+      put_sirf_msg(&sirf, msg, meta->size, status);
+      break;
+    case MSG_TYPE_UBLOX:
+      put_ublox_msg(&ublox, msg, meta->size, status);
+      break;
+    case MSG_TYPE_RTCM3:
+      put_rtcm3_msg(&rtcm3, msg, meta->size, status);
+      break;
+  }
+}
+
+static void put_registry(const uint8_t *msg, const struct gps_msg_metadata_t *meta,
+    struct gps_msg_status_t *status)
+{
+  stats.rcvd.proto[meta->type].msgs += 1;
+  stats.rcvd.proto[meta->type].bytes += meta->size;
+
+  GPS_PROTOCOLS[meta->type].put_msg(parsers[meta->type], msg, meta->size, status);
+}
+
+/*
+ * Frames and dispatches the buffer PASSES times, best of ROUNDS.
+ * Returns seconds, *msgs - messages per pass
+ */
+static double run(put_fn put, unsigned enabled, const uint8_t *buf, int size, long *msgs)
+{
+  static struct gps_framer_t framer;
+  struct gps_msg_metadata_t meta;
+  struct gps_msg_status_t status;
+  double t0, t, best;
+  int round, pass, pos;
+
+  gps_framer_set_enabled(&framer, enabled);
+  best = 0;
+  for (round = 0; round < ROUNDS; ++round) {
+    *msgs = 0;
+    t0 = now_sec();
+    for (pass = 0; pass < PASSES; ++pass) {
+      reset_gps_framer(&framer);
+      for (pos = 0; pos < size; pos += (int)meta.size) {
+        pos = find_gps_msg(&framer, buf, 0, pos, size, &meta);
+        if (pos < 0 || meta.is_truncated)
+          break;
+        memset(&status, 0, sizeof(status));
+        put(&buf[pos], &meta, &status);
+        *msgs += 1;
+      }
+    }
+    t = now_sec() - t0;
+    if (round == 0 || t < best)
+      best = t;
+  }
+  *msgs /= PASSES;
+  return best;
+}
+
+/*
+ * NMEA GGA+RMC, NAV-SOL, SiRF MID 4 and RTCM 1005 frames in turn
+ */
+static int fill_mixed(uint8_t *buf, int size)
+{
+  uint8_t payload[64];
+  int pos;
+  unsigned i;
+
+  for (i = 0; i < sizeof(payload); ++i)
+    payload[i] = (uint8_t)(i * 7);
+
+  pos = 0;
+  while (pos + 512 < size) {
+    pos += (int)make_nmea(&buf[pos],
+        "GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+    pos += (int)make_nmea(&buf[pos],
+        "GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W");
+    pos += (int)make_ublox(&buf[pos], 0x01, 0x06, payload, 52);
+    payload[0] = 4;
+    pos += (int)make_sirf(&buf[pos], payload, 20);
+    payload[0] = 0x3e;
+    payload[1] = 0xd0;
+    pos += (int)make_rtcm3(&buf[pos], payload, 19);
+  }
+  return pos;
+}
+
+/*
+ * NMEA with 48 random bytes between the sentences
+ */
+static int fill_nmea_noise(uint8_t *buf, int size)
+{
+  int pos, i;
+
+  pos = 0;
+  while (pos + 256 < size) {
+    pos += (int)make_nmea(&buf[pos],
+        "GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,");
+    for (i = 0; i < 48; ++i)
+      buf[pos++] = (uint8_t)test_rand();
+  }
+  return pos;
+}
+
+int main(void)
+{
+  static uint8_t mixed[BUF_SIZE], noise[BUF_SIZE];
+  const unsigned all = (1 << GPS_MSG_TYPE_NB) - 1;
+  int mixed_size, noise_size;
+  long msgs;
+  double t;
+
+  nmea.stats = sirf.stats = ublox.stats = rtcm3.stats = &stats;
+  parsers[MSG_TYPE_NMEA] = &nmea;
+  parsers[MSG_TYPE_SIRF] = &sirf;
+  parsers[MSG_TYPE_UBLOX] = &ublox;
+  parsers[MSG_TYPE_RTCM3] = &rtcm3;
+  reset_nmea_parser(&nmea);
+  reset_sirf_parser(&sirf);
+  reset_ublox_parser(&ublox);
+  reset_rtcm3_parser(&rtcm3);
+
+  test_srand(1);
+  mixed_size = fill_mixed(mixed, BUF_SIZE);
+  noise_size = fill_nmea_noise(noise, BUF_SIZE);
+
+  printf("%d KiB, %d passes, best of %d\n", BUF_SIZE / 1024, PASSES, ROUNDS);
+
+  t = run(put_none, all, mixed, mixed_size, &msgs);
+  printf("mixed, framing only:      %6.0f ns/msg, %ld msgs\n", t / msgs / PASSES * 1e9, msgs);
+  t = run(put_switch, all, mixed, mixed_size, &msgs);
+  printf("mixed, switch dispatch:   %6.0f ns/msg\n", t / msgs / PASSES * 1e9);
+  t = run(put_registry, all, mixed, mixed_size, &msgs);
+  printf("mixed, registry dispatch: %6.0f ns/msg\n", t / msgs / PASSES * 1e9);
+
+  t = run(put_none, all, noise, noise_size, &msgs);
+  printf("NMEA+noise, all enabled:  %6.1f MB/s, %ld msgs\n", (double)noise_size * PASSES / t / 1e6, msgs);
+  t = run(put_none, 1 << MSG_TYPE_NMEA, noise, noise_size, &msgs);
+  printf("NMEA+noise, NMEA only:    %6.1f MB/s, %ld msgs\n", (double)noise_size * PASSES / t / 1e6, msgs);
+
+  CHECK(stats.rcvd.rtcm3.total > 0);
+  return 0;
+}
@@ -0,0 +1,177 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Parser cost per fix: NMEA GGA+RMC+GSA+GST through put_nmea_msg() against
+ * u-blox NAV-PVT and NAV-POSLLH+NAV-STATUS through put_ublox_msg().
+ * The frames are built in advance, one epoch per second.
+ */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define EPOCHS 1000
+#define PASSES 1000
+#define ROUNDS 3
+
+#define ITOW 475200000u
+
+struct frame_t {
+  uint8_t data[128];
+  size_t size;
+};
+
+/* Frames of one epoch */
+struct epoch_t {
+  struct frame_t msg[4];
+  unsigned msg_nb;
+};
+
+static struct epoch_t nmea_epochs[EPOCHS];
+static struct epoch_t pvt_epochs[EPOCHS];
+static struct epoch_t posllh_epochs[EPOCHS];
+
+static void put_u4(uint8_t *p, uint32_t v)
+{
+  p[0] = (uint8_t)v;
+  p[1] = (uint8_t)(v >> 8);
+  p[2] = (uint8_t)(v >> 16);
+  p[3] = (uint8_t)(v >> 24);
+}
+
+static void add_nmea(struct epoch_t *e, const char *body)
+{
+  struct frame_t *f = &e->msg[e->msg_nb++];
+  f->size = make_nmea(f->data, body);
+}
+
+static void add_ublox(struct epoch_t *e, unsigned id, const uint8_t *payload, size_t len)
+{
+  struct frame_t *f = &e->msg[e->msg_nb++];
+  f->size = make_ublox(f->data, 0x01, id, payload, len);
+}
+
+static void build_epochs(void)
+{
+  char body[NMEA_MAX];
+  uint8_t p[92];
+  unsigned i, h, m, s;
+
+  for (i = 0; i < EPOCHS; ++i) {
+    h = 12 + i / 3600;
+    m = i / 60 % 60;
+    s = i % 60;
+
+    sprintf(body, "GPGGA,%02u%02u%02u.00,5545.07407,N,03737.40740,E,1,11,0.9,150.5,M,14.5,M,,",
+        h, m, s);
+    add_nmea(&nmea_epochs[i], body);
+    sprintf(body, "GPRMC,%02u%02u%02u.00,A,5545.07407,N,03737.40740,E,2.399,12.35,161026,,,A",
+        h, m, s);
+    add_nmea(&nmea_epochs[i], body);
+    add_nmea(&nmea_epochs[i], "GPGSA,A,3,01,03,06,09,12,14,17,19,22,25,31,,1.5,0.9,1.2");
+    sprintf(body, "GPGST,%02u%02u%02u.00,1.5,2.0,1.5,45.0,1.8,1.7,3.0", h, m, s);
+    add_nmea(&nmea_epochs[i], body);
+
+    memset(p, 0, sizeof(p));
+    put_u4(&p[0], ITOW + i * 1000);
+    p[4] = 2026 & 0xff;
+    p[5] = 2026 >> 8;
+    p[6] = 10;
+    p[7] = 16;
+    p[8] = (uint8_t)h;
+    p[9] = (uint8_t)m;
+    p[10] = (uint8_t)s;
+    p[11] = 0x07;
+    p[20] = 3;
+    p[21] = 0x01;
+    p[23] = 11;
+    put_u4(&p[24], 376234567);
+    put_u4(&p[28], 557512345);
+    put_u4(&p[36], 150500);
+    put_u4(&p[40], 2500);
+    put_u4(&p[60], 1234);
+    put_u4(&p[64], 1234567);
+    add_ublox(&pvt_epochs[i], 0x07, p, 92);
+
+    memset(p, 0, sizeof(p));
+    put_u4(&p[0], ITOW + i * 1000);
+    put_u4(&p[4], 376234000);
+    put_u4(&p[8], 557512000);
+    put_u4(&p[16], 151000);
+    put_u4(&p[20], 3000);
+    add_ublox(&posllh_epochs[i], 0x02, p, 28);
+    memset(p, 0, sizeof(p));
+    put_u4(&p[0], ITOW + i * 1000);
+    p[4] = 3;
+    p[5] = 0x01;
+    add_ublox(&posllh_epochs[i], 0x03, p, 16);
+  }
+}
+
+typedef bool (*put_fn)(void *parser, const uint8_t *msg, size_t msg_size,
+    struct gps_msg_status_t *status);
+
+/*
+ * Parses EPOCHS epochs PASSES times, best of ROUNDS. Returns ns per fix
+ */
+static double run(void *parser, void (*reset)(void *), put_fn put,
+    const struct epoch_t *epochs, const char *name)
+{
+  struct gps_msg_status_t status;
+  unsigned round, pass, i, k;
+  long fixes;
+  double t0, t, best;
+
+  best = 0;
+  fixes = 0;
+  for (round = 0; round < ROUNDS; ++round) {
+    reset(parser);
+    fixes = 0;
+    t0 = now_sec();
+    for (pass = 0; pass < PASSES; ++pass) {
+      for (i = 0; i < EPOCHS; ++i) {
+        for (k = 0; k < epochs[i].msg_nb; ++k) {
+          put(parser, epochs[i].msg[k].data, epochs[i].msg[k].size, &status);
+          if (status.location_changed && status.location.is_valid)
+            fixes += 1;
+        }
+      }
+    }
+    t = now_sec() - t0;
+    if (round == 0 || t < best)
+      best = t;
+  }
+
+  /* The NMEA parser reports an epoch when the next one starts */
+  CHECK(fixes >= (long)PASSES * (EPOCHS - 1));
+  t = best / fixes * 1e9;
+  printf("%-26s %7.0f ns/fix\n", name, t);
+  return t;
+}
+
+int main(void)
+{
+  static struct stats_t stats;
+  static struct nmea_parser_t nmea;
+  static struct ublox_parser_t ublox;
+  double t_nmea, t_pvt, t_posllh;
+
+  nmea.stats = &stats;
+  ublox.stats = &stats;
+  build_epochs();
+
+  printf("%d epochs, %d passes, best of %d\n", EPOCHS, PASSES, ROUNDS);
+  t_nmea = run(&nmea, (void (*)(void *))reset_nmea_parser,
+      GPS_PROTOCOLS[MSG_TYPE_NMEA].put_msg, nmea_epochs, "NMEA GGA+RMC+GSA+GST");
+  t_pvt = run(&ublox, (void (*)(void *))reset_ublox_parser,
+      GPS_PROTOCOLS[MSG_TYPE_UBLOX].put_msg, pvt_epochs, "UBX NAV-PVT");
+  t_posllh = run(&ublox, (void (*)(void *))reset_ublox_parser,
+      GPS_PROTOCOLS[MSG_TYPE_UBLOX].put_msg, posllh_epochs, "UBX NAV-POSLLH+NAV-STATUS");
+
+  printf("NAV-PVT: %.1f%% of NMEA, NAV-POSLLH+NAV-STATUS: %.1f%% of NMEA\n",
+      100 * t_pvt / t_nmea, 100 * t_posllh / t_nmea);
+  return 0;
+}
@@ -0,0 +1,145 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Framer throughput: find_gps_msg() against the per-offset probing it
+ * replaced, which called looks_like_nmea/sirf/ublox() at every byte offset.
+ */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define BUF_SIZE (1 << 20)
+#define PASSES 20
+
+static const char *NMEA_EPOCH[] = {
+  "GPRMC,123519.00,A,4807.03800,N,01131.00000,E,0.022,84.4,230394,3.1,W,A",
+  "GPGGA,123519.00,4807.03800,N,01131.00000,E,1,08,0.9,545.4,M,46.9,M,,",
+  "GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1",
+  "GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45",
+  "GPGSV,2,2,08,15,40,083,46,17,17,308,41,22,07,344,39,24,22,228,45",
+  "GPVTG,84.4,T,,M,0.022,N,0.041,K,A",
+};
+
+typedef int (*find_fn)(struct gps_framer_t *ctx, const uint8_t *buf, int start_pos,
+    int buf_size, struct gps_msg_metadata_t *res);
+
+/*
+ * Per-offset probing of the NMEA, SiRF and u-blox framers
+ */
+static int find_msg_probe(struct gps_framer_t *ctx, const uint8_t *buf, int start_pos,
+    int buf_size, struct gps_msg_metadata_t *res)
+{
+  int msg_pos;
+  int msg_size;
+
+  (void)ctx;
+  for (msg_pos = start_pos; msg_pos < buf_size; ++msg_pos) {
+    msg_size = looks_like_nmea(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      res->type = MSG_TYPE_NMEA;
+      break;
+    }
+    msg_size = looks_like_sirf(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      res->type = MSG_TYPE_SIRF;
+      break;
+    }
+    msg_size = looks_like_ublox(&buf[msg_pos], buf_size - msg_pos);
+    if (msg_size != LOOKS_NOT_LIKE_GPS_MSG) {
+      res->type = MSG_TYPE_UBLOX;
+      break;
+    }
+  }
+
+  if (msg_pos >= buf_size)
+    return -1;
+
+  if (msg_size == LOOKS_LIKE_TRUNCATED_MSG) {
+    res->size = buf_size - msg_pos;
+    res->is_truncated = true;
+  }else {
+    res->size = msg_size;
+    res->is_truncated = false;
+  }
+  return msg_pos;
+}
+
+static int find_msg_framer(struct gps_framer_t *ctx, const uint8_t *buf, int start_pos,
+    int buf_size, struct gps_msg_metadata_t *res)
+{
+  return find_gps_msg(ctx, buf, 0, start_pos, buf_size, res);
+}
+
+/*
+ * Frames the whole buffer PASSES times. Returns MB/s, *msgs - messages per pass
+ */
+static double run(find_fn find, const uint8_t *buf, int size, long *msgs)
+{
+  static struct gps_framer_t framer;
+  struct gps_msg_metadata_t meta;
+  double t0;
+  int pass, pos;
+
+  gps_framer_set_enabled(&framer,
+      1 << MSG_TYPE_NMEA | 1 << MSG_TYPE_SIRF | 1 << MSG_TYPE_UBLOX);
+  *msgs = 0;
+  t0 = now_sec();
+  for (pass = 0; pass < PASSES; ++pass) {
+    reset_gps_framer(&framer);
+    for (pos = 0; pos < size; ) {
+      pos = find(&framer, buf, pos, size, &meta);
+      if (pos < 0 || meta.is_truncated)
+        break;
+      pos += (int)meta.size;
+      *msgs += 1;
+    }
+  }
+  *msgs /= PASSES;
+  return (double)size * PASSES / (now_sec() - t0) / 1e6;
+}
+
+static int fill_nmea(uint8_t *buf, int size, int junk_len)
+{
+  int pos, i;
+  unsigned k;
+
+  pos = 0;
+  for (k = 0; pos + NMEA_MAX + junk_len < size; k = (k + 1) % ARRAY_SIZE(NMEA_EPOCH)) {
+    for (i = 0; i < junk_len; ++i)
+      buf[pos++] = (uint8_t)test_rand();
+    pos += (int)make_nmea(&buf[pos], NMEA_EPOCH[k]);
+  }
+  return pos;
+}
+
+int main(void)
+{
+  static uint8_t buf[BUF_SIZE];
+  static const struct {
+    const char *name;
+    int junk_len;
+  } inputs[] = {
+    { "clean NMEA", 0 },
+    { "random bytes + NMEA", 256 },
+  };
+  unsigned i;
+  int size;
+  long msgs_probe, msgs_framer;
+  double probe, framer;
+
+  test_srand(1);
+  printf("%d KiB, %d passes\n", BUF_SIZE / 1024, PASSES);
+  for (i = 0; i < ARRAY_SIZE(inputs); ++i) {
+    size = fill_nmea(buf, BUF_SIZE, inputs[i].junk_len);
+    probe = run(find_msg_probe, buf, size, &msgs_probe);
+    framer = run(find_msg_framer, buf, size, &msgs_framer);
+    CHECK(msgs_probe == msgs_framer);
+    printf("%-22s per-offset probe %7.1f MB/s, find_gps_msg() %7.1f MB/s, %ld msgs\n",
+        inputs[i].name, probe, framer, msgs_framer);
+  }
+  return 0;
+}
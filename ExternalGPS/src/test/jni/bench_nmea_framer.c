@@ -0,0 +1,336 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * NMEA framer: the table driven frame_nmea() against the isprint() and
+ * strtol() one it replaced, on a 1 Hz multi-GNSS log and on random bytes
+ * with a '$' every 97 bytes. Both framers are also run on mutated
+ * sentences, split at a random point to exercise the resume, and must
+ * give the same results except for the differences listed at
+ * same_result().
+ */
+
+#include <assert.h>
+#include <ctype.h>
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define BUF_SIZE (4 << 20)
+#define PASSES 20
+#define ROUNDS 3
+#define MUTATED_SENTENCES 2000000
+
+static const char *NMEA_EPOCH[] = {
+  "GNRMC,123519.00,A,5545.07407,N,03737.40740,E,0.024,,161026,,,A",
+  "GNVTG,,T,,M,0.024,N,0.045,K,A",
+  "GNGGA,123519.00,5545.07407,N,03737.40740,E,1,12,0.73,150.5,M,14.5,M,,",
+  "GNGSA,A,3,02,05,06,12,13,15,19,24,25,,,,1.32,0.73,1.10",
+  "GNGSA,A,3,66,67,76,77,78,,,,,,,,1.32,0.73,1.10",
+  "GPGSV,4,1,14,02,45,120,40,05,30,200,35,06,10,300,30,12,60,050,45",
+  "GPGSV,4,2,14,13,45,120,40,15,30,200,35,17,10,300,,19,60,050,45",
+  "GPGSV,4,3,14,20,05,120,,24,30,200,35,25,10,300,30,29,60,050,",
+  "GPGSV,4,4,14,31,45,120,,32,30,200,",
+  "GLGSV,2,1,07,66,45,120,40,67,30,200,35,68,10,300,,76,60,050,45",
+  "GLGSV,2,2,07,77,45,120,40,78,30,200,35,86,10,300,",
+  "GNGLL,5545.07407,N,03737.40740,E,123519.00,A,A",
+};
+
+typedef int (*frame_fn)(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len);
+
+/*
+ * frame_nmea() before the lookup tables, without the log
+ */
+static int frame_nmea_isprint(struct gps_framer_state_t *state, const uint8_t *msg, size_t max_len)
+{
+  unsigned i;
+  int crlf_pos;
+
+  assert(max_len > 0);
+
+  if (state->scanned == 0) {
+    if (msg[0] != '$')
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    state->scanned = 1;
+    state->csum = 0;
+    state->csum_pos = -1;
+  }
+
+  crlf_pos = -1;
+
+  for (i=state->scanned; i < max_len; ++i) {
+
+    if (i > NMEA_MAX) {
+      state->scanned = i;
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    }
+
+    if (msg[i] == '*') {
+      state->csum_pos = (int)i;
+      state->csum2 = state->csum;
+    }else if (msg[i] == 0x0d) {
+      if (i + 1 == max_len) {
+        break;
+      }else if (msg[i+1] != 0x0a) {
+        state->scanned = i;
+        return LOOKS_NOT_LIKE_GPS_MSG;
+      }else {
+        crlf_pos = (int)i;
+        break;
+      }
+    }else if (!isprint(msg[i])) {
+      state->scanned = i;
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    }
+    state->csum ^= msg[i] & 0x7f;
+  }
+
+  state->scanned = i;
+
+  if (crlf_pos < 0)
+    return LOOKS_LIKE_TRUNCATED_MSG;
+
+  if (state->csum_pos > 0) {
+    unsigned msg_csum;
+    unsigned char csum_str[3];
+    char *endptr;
+    int csum_pos;
+
+    // Optional checksum (*XX<CR><LF>)
+    csum_pos = state->csum_pos;
+    if (csum_pos + 3 != crlf_pos)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+    csum_str[0] = msg[csum_pos+1];
+    csum_str[1] = msg[csum_pos+2];
+    csum_str[2] = '\0';
+
+    msg_csum = (unsigned)strtol((const char *)csum_str, &endptr, 16);
+    if (*endptr != '\0')
+      return LOOKS_NOT_LIKE_GPS_MSG;
+
+    if (state->csum2 != msg_csum)
+      return LOOKS_NOT_LIKE_GPS_MSG;
+  }
+
+  return crlf_pos + 2;
+}
+
+/*
+ * Frames msg in two calls, the first one on max_len bytes.
+ * Returns the result of the last call
+ */
+static int frame_split(frame_fn frame, const uint8_t *msg, size_t max_len, size_t size)
+{
+  struct gps_framer_state_t state;
+  int res;
+
+  memset(&state, 0, sizeof(state));
+  res = frame(&state, msg, max_len);
+  if (res == LOOKS_LIKE_TRUNCATED_MSG && max_len < size)
+    res = frame(&state, msg, size);
+  return res;
+}
+
+/*
+ * Same result of both framers, or one of the intended differences:
+ * a candidate without CR is rejected on the call that reaches NMEA_MAX + 1
+ * bytes instead of the next one, and strtol() accepted a space or a sign
+ * in the checksum.
+ */
+static bool same_result(const uint8_t *msg, size_t max_len, size_t size,
+    int res_old, int res_new)
+{
+  const uint8_t *star;
+
+  if (res_old == res_new)
+    return true;
+  if (res_old == LOOKS_LIKE_TRUNCATED_MSG && res_new == LOOKS_NOT_LIKE_GPS_MSG
+      && max_len == NMEA_MAX + 1 && size == max_len)
+    return true;
+  if (res_old > 0 && res_new == LOOKS_NOT_LIKE_GPS_MSG) {
+    star = &msg[res_old - 5];
+    return *star == '*' && !(isxdigit(star[1]) && isxdigit(star[2]));
+  }
+  return false;
+}
+
+/*
+ * Sentence of the epoch with 0-2 mutations: random byte, special byte,
+ * case flip, cut or padding over NMEA_MAX
+ */
+static size_t gen_mutated(uint8_t *dst)
+{
+  static const char SPECIAL[] = "*\r\n$,aF0";
+  unsigned i, mutations;
+  size_t size, pos;
+
+  size = make_nmea(dst, NMEA_EPOCH[test_rand_below(ARRAY_SIZE(NMEA_EPOCH))]);
+  mutations = test_rand_below(3);
+  for (i = 0; i < mutations; ++i) {
+    pos = test_rand_below((unsigned)size);
+    switch (test_rand_below(5)) {
+      case 0:
+        dst[pos] = (uint8_t)test_rand();
+        break;
+      case 1:
+        dst[pos] = (uint8_t)SPECIAL[test_rand_below(sizeof(SPECIAL) - 1)];
+        break;
+      case 2:
+        dst[pos] ^= 0x20;
+        break;
+      case 3:
+        size = pos + 1;
+        break;
+      default:
+        if (size < 600) {
+          memset(&dst[size], 'A', 600 - size);
+          size = 600;
+          dst[size++] = '\r';
+          dst[size++] = '\n';
+        }
+        break;
+    }
+  }
+  return size;
+}
+
+/*
+ * Both intended differences on fixed sentences
+ */
+static void check_intended_differences(void)
+{
+  static const char *SIGNED_CSUM[] = {
+    "$GPTXT,01,01,02,B* F\r\n", "$GPTXT,01,01,02,B*+F\r\n", "$GPTXT,01,01,02,B*0F\r\n",
+  };
+  uint8_t msg[NMEA_MAX + 1];
+  size_t size;
+  unsigned i;
+  int res_old, res_new;
+
+  msg[0] = '$';
+  memset(&msg[1], 'A', NMEA_MAX);
+  res_old = frame_split(frame_nmea_isprint, msg, sizeof(msg), sizeof(msg));
+  res_new = frame_split(frame_nmea, msg, sizeof(msg), sizeof(msg));
+  CHECK(res_old == LOOKS_LIKE_TRUNCATED_MSG && res_new == LOOKS_NOT_LIKE_GPS_MSG);
+  CHECK(same_result(msg, sizeof(msg), sizeof(msg), res_old, res_new));
+
+  for (i = 0; i < ARRAY_SIZE(SIGNED_CSUM); ++i) {
+    size = strlen(SIGNED_CSUM[i]);
+    memcpy(msg, SIGNED_CSUM[i], size);
+    res_old = frame_split(frame_nmea_isprint, msg, size, size);
+    res_new = frame_split(frame_nmea, msg, size, size);
+    CHECK(res_old == (int)size);
+    CHECK(res_new == (i == 2 ? (int)size : LOOKS_NOT_LIKE_GPS_MSG));
+    CHECK(same_result(msg, size, size, res_old, res_new));
+  }
+}
+
+static void check_equivalence(void)
+{
+  uint8_t msg[700];
+  size_t size, max_len;
+  unsigned i;
+  int res_old, res_new;
+  unsigned long differ;
+
+  differ = 0;
+  for (i = 0; i < MUTATED_SENTENCES; ++i) {
+    size = gen_mutated(msg);
+    max_len = 1 + test_rand_below((unsigned)size);
+    res_old = frame_split(frame_nmea_isprint, msg, max_len, size);
+    res_new = frame_split(frame_nmea, msg, max_len, size);
+    if (res_old != res_new)
+      differ += 1;
+    if (!same_result(msg, max_len, size, res_old, res_new)) {
+      fprintf(stderr, "sentence %u, %u of %u bytes: %d != %d\n", i,
+          (unsigned)max_len, (unsigned)size, res_old, res_new);
+      exit(1);
+    }
+  }
+  printf("%d mutated sentences: same results, %lu intended differences\n",
+      MUTATED_SENTENCES, differ);
+}
+
+/*
+ * Frames every '$' candidate of the buffer PASSES times, best of ROUNDS.
+ * Returns MB/s, *msgs - sentences per pass
+ */
+static double run(frame_fn frame, const uint8_t *buf, size_t size, long *msgs)
+{
+  struct gps_framer_state_t state;
+  unsigned round, pass;
+  size_t pos;
+  int res;
+  double t0, t, best;
+
+  best = 0;
+  for (round = 0; round < ROUNDS; ++round) {
+    *msgs = 0;
+    t0 = now_sec();
+    for (pass = 0; pass < PASSES; ++pass) {
+      for (pos = 0; pos < size;) {
+        if (buf[pos] != '$') {
+          pos += 1;
+          continue;
+        }
+        memset(&state, 0, sizeof(state));
+        res = frame(&state, &buf[pos], size - pos);
+        if (res > 0) {
+          *msgs += 1;
+          pos += (size_t)res;
+        }else {
+          pos += 1;
+        }
+      }
+    }
+    t = now_sec() - t0;
+    if (round == 0 || t < best)
+      best = t;
+  }
+  *msgs /= PASSES;
+  return (double)size * PASSES / best / 1e6;
+}
+
+int main(void)
+{
+  static uint8_t log[BUF_SIZE], junk[BUF_SIZE];
+  size_t size, pos;
+  unsigned i;
+  long msgs_old, msgs_new;
+  double t_old, t_new;
+
+  size = 0;
+  while (size + 1024 < BUF_SIZE) {
+    for (i = 0; i < ARRAY_SIZE(NMEA_EPOCH); ++i)
+      size += make_nmea(&log[size], NMEA_EPOCH[i]);
+  }
+
+  /* Random bytes with many '$' candidates and a sentence per KiB */
+  test_srand(1);
+  for (pos = 0; pos < size; ++pos)
+    junk[pos] = (uint8_t)test_rand();
+  for (pos = 0; pos < size; pos += 97)
+    junk[pos] = '$';
+  for (pos = 0; pos + 200 < size; pos += 1024)
+    make_nmea(&junk[pos], NMEA_EPOCH[2]);
+
+  check_intended_differences();
+  check_equivalence();
+
+  printf("%u KiB, %d passes, best of %d\n", (unsigned)(size / 1024), PASSES, ROUNDS);
+  t_old = run(frame_nmea_isprint, log, size, &msgs_old);
+  t_new = run(frame_nmea, log, size, &msgs_new);
+  CHECK(msgs_old == msgs_new);
+  printf("clean log:     isprint/strtol %6.0f MB/s, tables %6.0f MB/s, %ld sentences\n",
+      t_old, t_new, msgs_new);
+
+  t_old = run(frame_nmea_isprint, junk, size, &msgs_old);
+  t_new = run(frame_nmea, junk, size, &msgs_new);
+  CHECK(msgs_old == msgs_new);
+  printf("random + '$':  isprint/strtol %6.0f MB/s, tables %6.0f MB/s, %ld sentences\n",
+      t_old, t_new, msgs_new);
+
+  return 0;
+}
@@ -0,0 +1,139 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * NMEA field number parsers: the fixed point parse_ulong(), parse_float(),
+ * degrees-minutes conversion and parse_nmea_fix_time() against copying the
+ * field and calling strtoul(), strtof(), strtod() and modf(), as before.
+ * Fields are taken from GGA, RMC, GSA and GSV sentences.
+ */
+
+#include "nmea.c"
+
+#include "testutil.h"
+
+#define PASSES 2000000
+#define ROUNDS 3
+
+static const char *INT_FIELDS[] = { "08", "11", "1", "23", "04", "350", "230394" };
+static const char *FLOAT_FIELDS[] = { "545.4", "46.9", "0.9", "022.4", "084.4", "003.1", "1.5" };
+static const char *DEGREE_FIELDS[] = { "4807.038", "01131.000", "5545.07407", "03737.40740" };
+static const char *TIME_FIELDS[] = { "123519", "123519.00", "235959.999", "000001.50" };
+
+static volatile double sink;
+
+static bool str_ulong(const struct nmea_field_t *f, unsigned long *dst)
+{
+  char str[NMEA_MAX];
+  char *endptr;
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtoul(str, &endptr, 10);
+  return !((errno == ERANGE && *dst == ULONG_MAX)
+      || (errno != 0 && *dst == 0)
+      || *endptr != '\0');
+}
+
+static bool str_float(const struct nmea_field_t *f, float *dst)
+{
+  char str[NMEA_MAX];
+  char *endptr;
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtof(str, &endptr);
+  return !((errno == ERANGE && (*dst == HUGE_VALF || *dst == -HUGE_VALF))
+      || (errno != 0 && *dst == 0)
+      || *endptr != '\0');
+}
+
+static bool str_degrees(const struct nmea_field_t *f, double *dst)
+{
+  char str[NMEA_MAX];
+  char *endptr;
+  double degrees, minutes;
+
+  field_str(f, str, sizeof(str));
+  errno = 0;
+  *dst = strtod(str, &endptr);
+  if ((errno == ERANGE && (*dst == HUGE_VAL || *dst == -HUGE_VAL))
+      || (errno != 0 && *dst == 0)
+      || *endptr != '\0')
+    return false;
+  minutes = 100.0 * modf(*dst / 100.0, &degrees);
+  *dst = degrees + minutes / 60.0;
+  return true;
+}
+
+static void to_fields(struct nmea_field_t *dst, const char **src, unsigned nb)
+{
+  unsigned i;
+
+  for (i = 0; i < nb; ++i) {
+    dst[i].s = src[i];
+    dst[i].len = (unsigned)strlen(src[i]);
+  }
+}
+
+/* Best of ROUNDS, ns per field */
+#define RUN(name, fields, nb, expr) do { \
+  unsigned round_, pass_, i_; \
+  double t0_, t_, best_; \
+  best_ = 0; \
+  for (round_ = 0; round_ < ROUNDS; ++round_) { \
+    t0_ = now_sec(); \
+    for (pass_ = 0; pass_ < PASSES; ++pass_) { \
+      for (i_ = 0; i_ < (nb); ++i_) { \
+        const struct nmea_field_t *f = &(fields)[i_]; \
+        CHECK(expr); \
+      } \
+    } \
+    t_ = now_sec() - t0_; \
+    if (round_ == 0 || t_ < best_) \
+      best_ = t_; \
+  } \
+  printf("%-30s %6.1f ns/field\n", (name), best_ / PASSES / (nb) * 1e9); \
+} while (0)
+
+int main(void)
+{
+  struct nmea_field_t ints[ARRAY_SIZE(INT_FIELDS)];
+  struct nmea_field_t floats[ARRAY_SIZE(FLOAT_FIELDS)];
+  struct nmea_field_t degrees[ARRAY_SIZE(DEGREE_FIELDS)];
+  struct nmea_field_t times[ARRAY_SIZE(TIME_FIELDS)];
+  struct nmea_fix_time_t t;
+  unsigned long ul;
+  float fl;
+  double d;
+  bool defined;
+
+  d = 0;
+  to_fields(ints, INT_FIELDS, ARRAY_SIZE(ints));
+  to_fields(floats, FLOAT_FIELDS, ARRAY_SIZE(floats));
+  to_fields(degrees, DEGREE_FIELDS, ARRAY_SIZE(degrees));
+  to_fields(times, TIME_FIELDS, ARRAY_SIZE(times));
+
+  printf("%d passes, best of %d\n", PASSES, ROUNDS);
+
+  RUN("integer, parse_ulong()", ints, ARRAY_SIZE(ints),
+      parse_ulong(f, &ul) && (sink = ul, true));
+  RUN("integer, strtoul()", ints, ARRAY_SIZE(ints),
+      str_ulong(f, &ul) && (sink = ul, true));
+
+  RUN("float, parse_float()", floats, ARRAY_SIZE(floats),
+      parse_float(f, &fl, &defined) && (sink = fl, true));
+  RUN("float, strtof()", floats, ARRAY_SIZE(floats),
+      str_float(f, &fl) && (sink = fl, true));
+
+  RUN("degrees, parse_nmea_degrees()", degrees, ARRAY_SIZE(degrees),
+      parse_nmea_degrees(f, false, &d, &defined) && (sink = d, true));
+  RUN("degrees, strtod() + modf()", degrees, ARRAY_SIZE(degrees),
+      str_degrees(f, &d) && (sink = d, true));
+
+  RUN("time, parse_nmea_fix_time()", times, ARRAY_SIZE(times),
+      parse_nmea_fix_time(f, &t) == FIELD_VALID && (sink = t.hhmmss, true));
+  RUN("time, strtoul() based", times, ARRAY_SIZE(times),
+      parse_nmea_fix_time_str(f, &t) == FIELD_VALID && (sink = t.hhmmss, true));
+
+  return 0;
+}
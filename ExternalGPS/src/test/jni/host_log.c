@@ -0,0 +1,28 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+#include <stdarg.h>
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <android/log.h>
+
+/*
+ * Native code logs to stderr if HOST_LOG is set in the environment
+ */
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+{
+  static int enabled = -1;
+  va_list ap;
+
+  if (enabled < 0)
+    enabled = getenv("HOST_LOG") != NULL;
+  if (!enabled)
+    return 0;
+
+  va_start(ap, fmt);
+  fprintf(stderr, "%d %s: ", prio, tag);
+  vfprintf(stderr, fmt, ap);
+  fputc('\n', stderr);
+  va_end(ap);
+  return 0;
+}
@@ -0,0 +1,19 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Host build stub of the NDK log header. See host_log.c
+ */
+
+#ifndef _ANDROID_LOG_H
+#define _ANDROID_LOG_H
+
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...)
+  __attribute__((format(printf, 3, 4)));
+
+#endif /* _ANDROID_LOG_H */
@@ -0,0 +1,123 @@
+package ru0xdc.externalgps;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Cost of reporting a fix to Java: the 13-argument reportLocation() upcall
+ * per fix against writing struct fix_record_t to the shared ring and one
+ * onFixesReported() upcall for 1 or more fixes. Java side of
+ * fix_upcall_bench.c. The fixes are read back through FixRecord and
+ * dropped: only the transition and the copy are measured.
+ */
+public class FixUpcallBench {
+
+    private static final int FIXES = 2000000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 3;
+
+    static {
+        System.loadLibrary("fixupcallbench");
+    }
+
+    private final FixRecord mFixRecord = new FixRecord();
+    private ByteBuffer mFixRingBuffer;
+    private int mFixRingTail;
+    private long mExpectedTime;
+    private long mSink;
+
+    synchronized void reportLocation(
+            long time,
+            double latitude,
+            double longitude,
+            double altitude,
+            float accuracy,
+            float bearing,
+            float speed,
+            int satellites,
+            boolean isValid,
+            boolean hasAccuracy,
+            boolean hasAltitude,
+            boolean hasBearing,
+            boolean hasSpeed
+            ) {
+        checkTime(time);
+        if (isValid && hasAltitude) {
+            mSink += satellites + (long)latitude + (long)longitude + (long)altitude;
+        }
+    }
+
+    synchronized void onFixesReported() {
+        final int head = FixRecord.getRingHead(mFixRingBuffer);
+
+        if (head - mFixRingTail > FixRecord.RING_SIZE) {
+            throw new IllegalStateException("Fix ring overrun");
+        }
+
+        while (mFixRingTail != head) {
+            mFixRecord.set(mFixRingBuffer, mFixRingTail);
+            mFixRingTail += 1;
+            checkTime(mFixRecord.getTime());
+            if (mFixRecord.isValid() && mFixRecord.hasAltitude()) {
+                mSink += mFixRecord.getSatellites() + (long)mFixRecord.getLatitude()
+                        + (long)mFixRecord.getLongitude() + (long)mFixRecord.getAltitude();
+            }
+        }
+    }
+
+    private void checkTime(long time) {
+        if (time != mExpectedTime) {
+            throw new IllegalStateException("Fix " + time + " reported, expected " + mExpectedTime);
+        }
+        mExpectedTime += 1;
+    }
+
+    private double nsPerFix(long ns) {
+        if (mExpectedTime != FIXES) {
+            throw new IllegalStateException(mExpectedTime + " fixes reported, expected " + FIXES);
+        }
+        return (double)ns / FIXES;
+    }
+
+    private double runArgs() {
+        mExpectedTime = 0;
+        return nsPerFix(native_run_args(FIXES));
+    }
+
+    private double runRing(int fixesPerUpcall) {
+        mExpectedTime = 0;
+        mFixRingTail = FixRecord.getRingHead(mFixRingBuffer);
+        return nsPerFix(native_run_ring(FIXES, fixesPerUpcall));
+    }
+
+    public static void main(String[] args) {
+        final FixUpcallBench b = new FixUpcallBench();
+        double args13, ring1, ring4, ring16;
+
+        b.mFixRingBuffer = b.native_get_fix_ring_buffer().order(ByteOrder.nativeOrder());
+
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            b.runArgs();
+            b.runRing(1);
+            b.runRing(4);
+        }
+
+        System.out.printf("%d fixes, best of %d%n", FIXES, ROUNDS);
+        args13 = ring1 = ring4 = ring16 = Double.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; ++i) {
+            args13 = Math.min(args13, b.runArgs());
+            ring1 = Math.min(ring1, b.runRing(1));
+            ring4 = Math.min(ring4, b.runRing(4));
+            ring16 = Math.min(ring16, b.runRing(FixRecord.RING_SIZE));
+        }
+        System.out.printf("13-argument upcall per fix:  %6.1f ns/fix%n", args13);
+        System.out.printf("ring + upcall, 1 fix:        %6.1f ns/fix%n", ring1);
+        System.out.printf("ring + upcall, 4 fixes:      %6.1f ns/fix%n", ring4);
+        System.out.printf("ring + upcall, 16 fixes:     %6.1f ns/fix%n", ring16);
+        if (b.mSink == 0) System.out.println();
+    }
+
+    private native ByteBuffer native_get_fix_ring_buffer();
+    private native long native_run_args(int fixes);
+    private native long native_run_ring(int fixes, int fixesPerUpcall);
+}
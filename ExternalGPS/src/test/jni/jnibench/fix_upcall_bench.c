@@ -0,0 +1,179 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Native side of FixUpcallBench.java. report_location() is the
+ * 13-argument upcall per fix replaced by the fix ring, put_fix() and
+ * report_fixes() are the ring write and the onFixesReported() upcall of
+ * usbconverter.c without the reader context and the stats.
+ */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+static struct fix_ring_t fixes;
+static uint32_t fixes_reported;
+
+static jmethodID method_report_location;
+static jmethodID method_on_fixes_reported;
+
+static const struct location_t LOCATION = {
+  .latitude = 55.7512,
+  .longitude = 37.6234,
+  .altitude = 150.5,
+  .accuracy = 2.5,
+  .bearing = 12.35,
+  .speed = 1.234,
+  .pdop = 1.5,
+  .hdop = 0.9,
+  .vdop = 1.2,
+  .satellites = 11,
+  .is_valid = true,
+  .has_accuracy = true,
+  .has_altitude = true,
+  .has_bearing = true,
+  .has_speed = true,
+};
+
+static inline long long now_ns(void)
+{
+  return (long long)(now_sec() * 1e9);
+}
+
+static void report_location(JNIEnv *env, jobject this, const struct location_t *location)
+{
+  (*env)->CallVoidMethod(env, this, method_report_location,
+      (jlong)location->time,
+      (jdouble)location->latitude,
+      (jdouble)location->longitude,
+      (jdouble)location->altitude,
+      (jfloat)location->accuracy,
+      (jfloat)location->bearing,
+      (jfloat)location->speed,
+      (jint)location->satellites,
+      (jboolean)location->is_valid,
+      (jboolean)location->has_accuracy,
+      (jboolean)location->has_altitude,
+      (jboolean)location->has_bearing,
+      (jboolean)location->has_speed
+      );
+  (*env)->ExceptionClear(env);
+}
+
+static void put_fix(const struct location_t *location, long long parsed_ns)
+{
+  struct fix_record_t *rec;
+
+  rec = &fixes.rec[fixes.head % FIX_RING_SIZE];
+  rec->time = location->time;
+  rec->latitude = location->latitude;
+  rec->longitude = location->longitude;
+  rec->altitude = location->altitude;
+  rec->rcvd_ns = parsed_ns;
+  rec->parsed_ns = parsed_ns;
+  rec->epoch_ns = parsed_ns;
+  rec->framed_ns = parsed_ns;
+  rec->accuracy = location->accuracy;
+  rec->bearing = location->bearing;
+  rec->speed = location->speed;
+  rec->pdop = location->pdop;
+  rec->hdop = location->hdop;
+  rec->vdop = location->vdop;
+  rec->satellites = location->satellites;
+  rec->msg_type = MSG_TYPE_NMEA;
+  rec->flags = (location->is_valid ? FIX_RECORD_VALID : 0)
+    | (location->has_accuracy ? FIX_RECORD_HAS_ACCURACY : 0)
+    | (location->has_altitude ? FIX_RECORD_HAS_ALTITUDE : 0)
+    | (location->has_bearing ? FIX_RECORD_HAS_BEARING : 0)
+    | (location->has_speed ? FIX_RECORD_HAS_SPEED : 0);
+
+  fixes.head += 1;
+}
+
+static void report_fixes(JNIEnv *env, jobject this)
+{
+  if (fixes.head == fixes_reported)
+    return;
+
+  (*env)->CallVoidMethod(env, this, method_on_fixes_reported);
+  (*env)->ExceptionClear(env);
+  fixes_reported = fixes.head;
+}
+
+static jobject native_get_fix_ring_buffer(JNIEnv *env, jobject this)
+{
+  (void)this;
+  return (*env)->NewDirectByteBuffer(env, &fixes, sizeof(fixes));
+}
+
+static jlong native_run_args(JNIEnv *env, jobject this, jint fix_nb)
+{
+  struct location_t location;
+  long long t0;
+  jint i;
+
+  location = LOCATION;
+  t0 = now_ns();
+  for (i = 0; i < fix_nb; ++i) {
+    location.time = i;
+    report_location(env, this, &location);
+  }
+  return now_ns() - t0;
+}
+
+static jlong native_run_ring(JNIEnv *env, jobject this, jint fix_nb, jint fixes_per_upcall)
+{
+  struct location_t location;
+  long long t0;
+  jint i;
+
+  location = LOCATION;
+  t0 = now_ns();
+  for (i = 0; i < fix_nb; ++i) {
+    location.time = i;
+    put_fix(&location, t0);
+    if ((i + 1) % fixes_per_upcall == 0)
+      report_fixes(env, this);
+  }
+  report_fixes(env, this);
+  return now_ns() - t0;
+}
+
+static JNINativeMethod native_methods[] = {
+  { "native_get_fix_ring_buffer", "()Ljava/nio/ByteBuffer;", (void*)native_get_fix_ring_buffer },
+  { "native_run_args", "(I)J", (void*)native_run_args },
+  { "native_run_ring", "(II)J", (void*)native_run_ring },
+};
+
+JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved)
+{
+  JNIEnv* env = NULL;
+  jclass clazz;
+
+  (void)reserved;
+
+  if ((*vm)->GetEnv(vm, (void**) &env, JNI_VERSION_1_6) != JNI_OK)
+    return -1;
+
+  clazz = (*env)->FindClass(env, "ru0xdc/externalgps/FixUpcallBench");
+  if (clazz == NULL)
+    return -1;
+
+  if ((*env)->RegisterNatives(env, clazz, native_methods, ARRAY_SIZE(native_methods)) != JNI_OK)
+    return -1;
+
+  method_report_location = (*env)->GetMethodID(env,
+      clazz, "reportLocation", "(JDDDFFFIZZZZZ)V");
+  if (method_report_location == NULL)
+    return -1;
+
+  method_on_fixes_reported = (*env)->GetMethodID(env,
+      clazz, "onFixesReported", "()V");
+  if (method_on_fixes_reported == NULL)
+    return -1;
+
+  return JNI_VERSION_1_6;
+}
@@ -0,0 +1,381 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Framer stress test.
+ *
+ * A stream of valid NMEA, SiRF, u-blox and RTCM 3 frames mixed with random
+ * junk, truncated frames and frames with a flipped bit is fed through a
+ * mirrored receive ring in chunks of random size, and framed by the same
+ * loop as handle_rcvd(). Every valid frame must be found at its stream
+ * position, and every other byte must be counted as junk.
+ *
+ * The damage is generated so that it can not form a new valid frame:
+ * binary frames never contain '$' or CR, junk never contains CR, flipped
+ * bits never produce '$', '*' or CR and never hit a length field, a
+ * truncated frame is followed by a byte other than the one cut off, and a
+ * damaged NMEA sentence or a junk block ends with a byte that is not valid
+ * in a sentence. A corrupted frame can still hide a valid one behind its
+ * declared length, which is what the resync window has to handle.
+ */
+
+#include <assert.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <unistd.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "usbreader.h"
+#include "testutil.h"
+
+#define STREAM_SIZE (3 << 20)
+#define FRAMES_MAX (STREAM_SIZE / 8)
+
+/* Stream position of the first byte. The 32-bit position wraps in the stream */
+#define STREAM_START 0xfff00000u
+
+struct frame_t {
+  unsigned pos;
+  unsigned size;
+  unsigned type;
+};
+
+static uint8_t stream[STREAM_SIZE + UBLOX_MAX + 16];
+static unsigned stream_size;
+
+static struct frame_t expected[FRAMES_MAX];
+static unsigned expected_nb;
+static unsigned long long expected_bytes;
+
+static struct frame_t found[FRAMES_MAX];
+static unsigned found_nb;
+
+static const char NMEA_BODY_CHARS[] = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789,.-";
+
+static uint8_t ring[USB_READER_RING_SIZE + USB_READER_RING_MIRROR_SIZE];
+
+static bool is_nmea_special(uint8_t c)
+{
+  return c == '$' || c == '*' || c == '\r';
+}
+
+/* Byte that ends any NMEA candidate and starts no binary frame */
+static uint8_t separator(void)
+{
+  uint8_t c;
+
+  do {
+    c = (uint8_t)test_rand_below(0x20);
+  } while (c == '\r');
+  return c;
+}
+
+static size_t gen_nmea(uint8_t *dst, bool with_csum)
+{
+  char body[NMEA_MAX];
+  unsigned i, len;
+  size_t size;
+
+  len = 6 + test_rand_below(70);
+  for (i = 0; i < len; ++i)
+    body[i] = NMEA_BODY_CHARS[test_rand_below(sizeof(NMEA_BODY_CHARS) - 1)];
+  body[len] = '\0';
+
+  if (with_csum)
+    return make_nmea(dst, body);
+
+  size = (size_t)sprintf((char *)dst, "$%s\r\n", body);
+  return size;
+}
+
+static size_t gen_binary(uint8_t *dst, unsigned type)
+{
+  uint8_t payload[UBLOX_MAX];
+  unsigned i, len;
+  size_t size;
+  bool clean;
+
+  do {
+    len = test_rand_below(8) == 0 ? test_rand_below(1000) : test_rand_below(120);
+    for (i = 0; i < len; ++i) {
+      do {
+        payload[i] = (uint8_t)test_rand();
+      } while (payload[i] == '$' || payload[i] == '\r');
+    }
+
+    switch (type) {
+      case MSG_TYPE_SIRF:
+        if (len == 0)
+          len = 1;
+        size = make_sirf(dst, payload, len);
+        break;
+      case MSG_TYPE_UBLOX:
+        size = make_ublox(dst, 1 + test_rand_below(0x20), test_rand_below(0x40), payload, len);
+        break;
+      default:
+        size = make_rtcm3(dst, payload, len);
+        break;
+    }
+
+    /* Length fields and checksums */
+    clean = true;
+    for (i = 0; i < size; ++i)
+      if (dst[i] == '$' || dst[i] == '\r')
+        clean = false;
+  } while (!clean);
+
+  return size;
+}
+
+/* Offsets of the bytes that can be flipped: not sync bytes or length fields */
+static void flippable_range(unsigned type, const uint8_t *frame, size_t size,
+    unsigned *from, unsigned *to)
+{
+  switch (type) {
+    case MSG_TYPE_NMEA:
+      /* Body only. '*' position */
+      *from = 1;
+      *to = (unsigned)size - 5;
+      assert(frame[*to] == '*');
+      break;
+    case MSG_TYPE_SIRF:
+      *from = 4;
+      *to = (unsigned)size;
+      break;
+    case MSG_TYPE_UBLOX:
+      *from = 6;
+      *to = (unsigned)size;
+      break;
+    default:
+      *from = 3;
+      *to = (unsigned)size;
+      break;
+  }
+}
+
+static void put_frame(unsigned type, bool damage)
+{
+  uint8_t *dst;
+  size_t size;
+  unsigned from, to, pos;
+  uint8_t flipped, dropped, next;
+
+  dst = &stream[stream_size];
+  if (type == MSG_TYPE_NMEA)
+    size = gen_nmea(dst, damage || test_rand_below(8) != 0);
+  else
+    size = gen_binary(dst, type);
+
+  if (!damage) {
+    assert(expected_nb < FRAMES_MAX);
+    expected[expected_nb].pos = STREAM_START + stream_size;
+    expected[expected_nb].size = (unsigned)size;
+    expected[expected_nb].type = type;
+    expected_nb += 1;
+    expected_bytes += size;
+    stream_size += (unsigned)size;
+    return;
+  }
+
+  if (test_rand_below(2)) {
+    /* Truncated. The next byte must not complete the frame again */
+    size = 1 + test_rand_below((unsigned)size - 1);
+    dropped = dst[size];
+    do {
+      next = type == MSG_TYPE_NMEA ? separator() : (uint8_t)test_rand();
+    } while (next == dropped || is_nmea_special(next));
+    dst[size] = next;
+    stream_size += (unsigned)size + 1;
+    return;
+  }
+
+  /* One flipped bit */
+  flippable_range(type, dst, size, &from, &to);
+  do {
+    pos = from + test_rand_below(to - from);
+    flipped = dst[pos] ^ (uint8_t)(1 << test_rand_below(8));
+  } while (is_nmea_special(flipped));
+  dst[pos] = flipped;
+  stream_size += (unsigned)size;
+
+  if (type == MSG_TYPE_NMEA)
+    stream[stream_size++] = separator();
+}
+
+static void put_junk(void)
+{
+  unsigned i, len;
+  uint8_t c;
+
+  len = 1 + test_rand_below(test_rand_below(4) == 0 ? 2000 : 40);
+  for (i = 0; i + 1 < len; ++i) {
+    /* Sync bytes are frequent */
+    switch (test_rand_below(8)) {
+      case 0: c = '$'; break;
+      case 1: c = 0xa0; break;
+      case 2: c = 0xb5; break;
+      case 3: c = 0xd3; break;
+      default:
+        do {
+          c = (uint8_t)test_rand();
+        } while (c == '\r');
+        break;
+    }
+    stream[stream_size++] = c;
+  }
+  stream[stream_size++] = separator();
+}
+
+static void gen_stream(void)
+{
+  unsigned type;
+
+  stream_size = 0;
+  expected_nb = 0;
+  expected_bytes = 0;
+
+  while (stream_size < STREAM_SIZE - 2 * (UBLOX_MAX + 8)) {
+    type = test_rand_below(GPS_MSG_TYPE_NB);
+    switch (test_rand_below(10)) {
+      case 0:
+        put_junk();
+        break;
+      case 1:
+      case 2:
+        put_frame(type, true);
+        break;
+      default:
+        put_frame(type, false);
+        break;
+    }
+  }
+
+  /* Nothing left pending at the end */
+  put_frame(MSG_TYPE_NMEA, false);
+}
+
+/*
+ * Writes data at ring position head the way the USB reader does, with the
+ * mirror of the ring start
+ */
+static void ring_write(unsigned head, const uint8_t *data, unsigned size)
+{
+  unsigned i, idx;
+
+  for (i = 0; i < size; ++i) {
+    idx = (head + i) & USB_READER_RING_MASK;
+    ring[idx] = data[i];
+    if (idx < USB_READER_RING_MIRROR_SIZE)
+      ring[USB_READER_RING_SIZE + idx] = data[i];
+  }
+}
+
+/*
+ * Frames the ring from *tail to head. Same loop as handle_rcvd()
+ */
+static void consume(struct gps_framer_t *framer, unsigned *tail, unsigned head,
+    unsigned long long *junk)
+{
+  unsigned pos, avail, len;
+  int msg_pos;
+  uint8_t *buf;
+  struct gps_msg_metadata_t msg;
+
+  pos = *tail;
+  while (pos != head) {
+    avail = head - pos;
+    len = usb_read_contiguous(pos, avail);
+    buf = &ring[pos & USB_READER_RING_MASK];
+
+    msg_pos = find_gps_msg(framer, buf, pos, 0, len, &msg);
+    if (msg_pos < 0) {
+      *junk += len;
+      pos += len;
+      continue;
+    }
+
+    if (msg_pos != 0) {
+      *junk += msg_pos;
+      pos += msg_pos;
+    }
+
+    if (!msg.is_truncated) {
+      assert(found_nb < FRAMES_MAX);
+      found[found_nb].pos = pos;
+      found[found_nb].size = (unsigned)msg.size;
+      found[found_nb].type = msg.type;
+      found_nb += 1;
+      pos += msg.size;
+    }else if (msg_pos == 0) {
+      CHECK(len == avail);
+      break;
+    }
+  }
+  *tail = pos;
+}
+
+static void check_found(const char *mode, unsigned long long junk)
+{
+  unsigned i;
+
+  for (i = 0; i < expected_nb && i < found_nb; ++i) {
+    if (found[i].pos != expected[i].pos
+        || found[i].size != expected[i].size
+        || found[i].type != expected[i].type) {
+      fprintf(stderr, "%s: frame %u: expected %s at 0x%08x size %u, found %s at 0x%08x size %u\n",
+          mode, i,
+          GPS_PROTOCOLS[expected[i].type].name, expected[i].pos, expected[i].size,
+          GPS_PROTOCOLS[found[i].type].name, found[i].pos, found[i].size);
+      exit(1);
+    }
+  }
+  CHECK(found_nb == expected_nb);
+  CHECK(junk == stream_size - expected_bytes);
+}
+
+static void run(const char *mode, unsigned min_chunk, unsigned max_chunk)
+{
+  static struct gps_framer_t framer;
+  unsigned head, tail, written, chunk;
+  unsigned long long junk;
+
+  gps_framer_set_enabled(&framer, (1 << GPS_MSG_TYPE_NB) - 1);
+  reset_gps_framer(&framer);
+  found_nb = 0;
+  junk = 0;
+
+  /* Start close to the end of the ring */
+  head = tail = STREAM_START;
+  written = 0;
+  while (written < stream_size) {
+    chunk = min_chunk + test_rand_below(max_chunk - min_chunk + 1);
+    if (chunk > stream_size - written)
+      chunk = stream_size - written;
+    CHECK(head - tail + chunk <= USB_READER_RING_SIZE);
+    ring_write(head, &stream[written], chunk);
+    head += chunk;
+    written += chunk;
+    consume(&framer, &tail, head, &junk);
+  }
+
+  CHECK(tail == head);
+  check_found(mode, junk);
+  printf("%-20s %u frames, %llu junk bytes: ok\n", mode, found_nb, junk);
+}
+
+int main(void)
+{
+  unsigned seed;
+
+  for (seed = 1; seed <= 3; ++seed) {
+    test_srand(seed);
+    gen_stream();
+    printf("seed %u: %u bytes, %u valid frames\n", seed, stream_size, expected_nb);
+    run("1 byte chunks", 1, 1);
+    run("1-64 byte chunks", 1, 64);
+    run("1-4096 byte chunks", 1, 4096);
+    run("16 KiB chunks", 16384, 16384);
+  }
+  return 0;
+}
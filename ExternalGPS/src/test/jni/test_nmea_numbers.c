@@ -0,0 +1,296 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Differential test of the NMEA field number parsers against the C library.
+ *
+ * parse_ulong(), parse_long(), parse_float(), parse_double(),
+ * parse_nmea_fix_time() and the degrees-minutes conversion must give the
+ * same validity and the same bits as strtoul(), strtol(), strtof(),
+ * strtod() and modf() on the null-terminated field, for edge cases and for
+ * generated NMEA-like fields. The only exception is the sign of a zero
+ * latitude/longitude.
+ */
+
+#include "nmea.c"
+
+#include "testutil.h"
+
+#define RANDOM_FIELDS 2000000
+#define FAST_PATH_FIELDS 4000000
+
+struct ref_result_t {
+  bool valid;
+  bool defined;
+  union {
+    unsigned long ul;
+    long l;
+    float f;
+    double d;
+  } v;
+};
+
+static unsigned long checked;
+static unsigned long failed;
+
+static const char *EDGE_FIELDS[] = {
+  "", "-", ".", "-.", "+", "--1", "0", "-0", "00000", "0.", ".5", "-.5", "0.0",
+  "-0.000", "1.2.3", "1..2", "12-", "1-2",
+  /* Exponents, signs, spaces, other notations */
+  "1e5", "1E-3", "-1.5e+2", "2.5e", "1e400", "-1e400", "1e-400", "+12", " 12",
+  "12 ", "0x1A", "inf", "-inf", "nan", "INFINITY", "1,5",
+  /* 9 and more digits */
+  "123456789", "1234567890", "999999999", "1000000000", "-999999999",
+  "-1234567890", "4294967295", "4294967296",
+  "9223372036854775807", "9223372036854775808",
+  "-9223372036854775808", "-9223372036854775809",
+  "18446744073709551615", "18446744073709551616", "99999999999999999999999",
+  "123456789012345678", "1234567890123456789",
+  "0.123456789", "0.1234567890", "0.123456789012345678", "0.1234567890123456789",
+  "4807.0380000001", "4807.03800000000000000001",
+  /* Exactness limits of the fast paths */
+  "16777216", "16777217", "1677721.7", "0.0000000001", "0.00000000001",
+  "9007199254740991", "9007199254740992", "9007199254740993",
+  "900719925474099.3", "1.0000000000000000000001", "0.0000000000000000000001",
+  "0.00000000000000000000001",
+  /* Next to a float midpoint: rounded to the midpoint in double and then
+   * to the wrong float */
+  "8.453559398651123", "8.03369665145874", "11.66019582748413",
+  "1.00000017881393432",
+  /* Real fields */
+  "4807.038", "01131.000", "5545.07407", "03737.40740", "545.4", "46.9", "0.9",
+  "022.4", "084.4", "003.1", "-12.5", "123519", "123519.00", "123519.123456",
+  "235959.999", "240000", "240001", "236000", "235960", "235961", "123519.-12",
+  "-123519", ".250", "08", "1", "12",
+};
+
+static void check(bool ok, const char *what, const char *field)
+{
+  checked += 1;
+  if (ok)
+    return;
+  failed += 1;
+  if (failed <= 20)
+    fprintf(stderr, "%s mismatch on \"%s\"\n", what, field);
+}
+
+static struct nmea_field_t to_field(const char *s)
+{
+  struct nmea_field_t f;
+
+  f.s = s;
+  f.len = (unsigned)strlen(s);
+  return f;
+}
+
+static struct ref_result_t ref_ulong(const char *s)
+{
+  struct ref_result_t r;
+  char *endptr;
+
+  errno = 0;
+  r.v.ul = strtoul(s, &endptr, 10);
+  r.valid = !((errno == ERANGE && r.v.ul == ULONG_MAX)
+      || (errno != 0 && r.v.ul == 0)
+      || *endptr != '\0');
+  return r;
+}
+
+static struct ref_result_t ref_long(const char *s)
+{
+  struct ref_result_t r;
+  char *endptr;
+
+  errno = 0;
+  r.v.l = strtol(s, &endptr, 10);
+  r.valid = !((errno == ERANGE && (r.v.l == LONG_MAX || r.v.l == LONG_MIN))
+      || (errno != 0 && r.v.l == 0)
+      || *endptr != '\0');
+  return r;
+}
+
+static struct ref_result_t ref_float(const char *s)
+{
+  struct ref_result_t r;
+  char *endptr;
+
+  r.defined = s[0] != '\0';
+  if (!r.defined) {
+    r.valid = true;
+    return r;
+  }
+  errno = 0;
+  r.v.f = strtof(s, &endptr);
+  r.valid = !((errno == ERANGE && (r.v.f == HUGE_VALF || r.v.f == -HUGE_VALF))
+      || (errno != 0 && r.v.f == 0)
+      || *endptr != '\0');
+  return r;
+}
+
+static struct ref_result_t ref_double(const char *s)
+{
+  struct ref_result_t r;
+  char *endptr;
+
+  errno = 0;
+  r.v.d = strtod(s, &endptr);
+  r.valid = !((errno == ERANGE && (r.v.d == HUGE_VAL || r.v.d == -HUGE_VAL))
+      || (errno != 0 && r.v.d == 0)
+      || *endptr != '\0');
+  return r;
+}
+
+/*
+ * Degrees-minutes through strtod() and modf(), as before the fixed point parsers
+ */
+static struct ref_result_t ref_degrees(const char *s)
+{
+  struct ref_result_t r;
+  double degrees, minutes;
+
+  r.defined = s[0] != '\0';
+  if (!r.defined) {
+    r.valid = true;
+    return r;
+  }
+  r = ref_double(s);
+  r.defined = true;
+  if (!r.valid || !(fabs(r.v.d) < 1.0e6)) {
+    r.valid = false;
+    return r;
+  }
+  minutes = 100.0 * modf(r.v.d / 100.0, &degrees);
+  r.v.d = degrees + minutes / 60.0;
+  return r;
+}
+
+static bool same_bits(const void *a, const void *b, size_t size)
+{
+  return memcmp(a, b, size) == 0;
+}
+
+static void check_field(const char *s)
+{
+  struct nmea_field_t f;
+  struct ref_result_t r;
+  struct nmea_fix_time_t t, t_ref;
+  parse_error_t t_res, t_ref_res;
+  unsigned long ul;
+  long l;
+  float fl;
+  double d;
+  bool defined, res;
+
+  f = to_field(s);
+
+  r = ref_ulong(s);
+  res = parse_ulong(&f, &ul);
+  check(res == r.valid && (!res || ul == r.v.ul), "parse_ulong", s);
+
+  r = ref_long(s);
+  res = parse_long(&f, &l);
+  check(res == r.valid && (!res || l == r.v.l), "parse_long", s);
+
+  r = ref_float(s);
+  res = parse_float(&f, &fl, &defined);
+  check(res == r.valid && defined == r.defined
+      && (!res || !defined || same_bits(&fl, &r.v.f, sizeof(fl))), "parse_float", s);
+
+  r = ref_double(s);
+  res = parse_double(&f, &d);
+  check(res == r.valid && (!res || same_bits(&d, &r.v.d, sizeof(d))), "parse_double", s);
+
+  /* Compared by value: "-0" gives +0 instead of the -0 of modf() */
+  r = ref_degrees(s);
+  res = parse_nmea_degrees(&f, false, &d, &defined);
+  check(res == r.valid && defined == r.defined
+      && (!res || !defined || d == r.v.d), "parse_nmea_degrees", s);
+
+  /* The fast fix time parser against the strtoul() based one */
+  if (f.len > 0) {
+    memset(&t, 0, sizeof(t));
+    memset(&t_ref, 0, sizeof(t_ref));
+    t_res = parse_nmea_fix_time(&f, &t);
+    t_ref_res = parse_nmea_fix_time_str(&f, &t_ref);
+    check(t_res == t_ref_res
+        && (t_res != FIELD_VALID || (t.hhmmss == t_ref.hhmmss && t.mss == t_ref.mss)),
+        "parse_nmea_fix_time", s);
+  }
+}
+
+static void append_digits(char *dst, unsigned *pos, unsigned n)
+{
+  unsigned i;
+
+  for (i = 0; i < n; ++i)
+    dst[(*pos)++] = (char)('0' + test_rand_below(10));
+}
+
+/*
+ * Generates [-]digits[.digits] fields of NMEA-like lengths, sometimes with
+ * an exponent, a sign or one replaced character
+ */
+static void gen_field(char *dst)
+{
+  static const char OTHER[] = "-+.eE ,x*";
+  unsigned pos, len;
+
+  pos = 0;
+  if (test_rand_below(8) == 0)
+    dst[pos++] = '-';
+  append_digits(dst, &pos, test_rand_below(4) == 0 ? test_rand_below(21) : test_rand_below(7));
+  if (test_rand_below(4) != 0) {
+    dst[pos++] = '.';
+    append_digits(dst, &pos, test_rand_below(4) == 0 ? test_rand_below(21) : test_rand_below(7));
+  }
+  if (test_rand_below(32) == 0) {
+    dst[pos++] = 'e';
+    if (test_rand_below(2))
+      dst[pos++] = '-';
+    append_digits(dst, &pos, 1 + test_rand_below(3));
+  }
+  dst[pos] = '\0';
+
+  len = pos;
+  if (len > 0 && test_rand_below(32) == 0)
+    dst[test_rand_below(len)] = OTHER[test_rand_below(sizeof(OTHER) - 1)];
+}
+
+/*
+ * Fields at the limits of the parse_float() fast path: the quotient is
+ * rounded twice, to double and to float
+ */
+static void gen_float_fast_path_field(char *dst)
+{
+  char digits[32];
+  unsigned long mantissa;
+  unsigned scale, len, int_len;
+
+  mantissa = test_rand_below(2) ? test_rand_below((1u << 24) + 1)
+    : (1u << 24) - test_rand_below(1u << 12);
+  scale = test_rand_below(11);
+  len = (unsigned)sprintf(digits, "%0*lu", (int)scale + 1, mantissa);
+  int_len = len - scale;
+  sprintf(dst, "%.*s.%s", (int)int_len, digits, &digits[int_len]);
+}
+
+int main(void)
+{
+  char field[64];
+  unsigned i;
+
+  for (i = 0; i < ARRAY_SIZE(EDGE_FIELDS); ++i)
+    check_field(EDGE_FIELDS[i]);
+
+  test_srand(12);
+  for (i = 0; i < RANDOM_FIELDS; ++i) {
+    gen_field(field);
+    check_field(field);
+  }
+  for (i = 0; i < FAST_PATH_FIELDS; ++i) {
+    gen_float_fast_path_field(field);
+    check_field(field);
+  }
+
+  printf("%lu checks, %lu mismatches\n", checked, failed);
+  return failed == 0 ? 0 : 1;
+}
@@ -0,0 +1,131 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Windowed rates when the line goes quiet: with the idle ticks of
+ * read_loop(), the sums of every window must drain to zero and
+ * stats_rates_are_drained() must let the loop block only after that.
+ * The snapshot carries its publish time.
+ */
+
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define DATA_SECONDS 20
+#define BYTES_PER_SECOND 1000
+/* read_loop(): READ_TIMEOUT, then IDLE_TICK_TIMEOUT */
+#define READ_TIMEOUT_MS 1500
+#define IDLE_TICK_MS 1000
+
+enum { WINDOW_1S, WINDOW_10S, WINDOW_60S };
+
+static struct stats_t stats;
+
+static struct timespec ms2ts(long long ms)
+{
+  struct timespec ts;
+
+  ts.tv_sec = ms / 1000;
+  ts.tv_nsec = (ms % 1000) * 1000000;
+  return ts;
+}
+
+/* Data received at ms, counted the way handle_rcvd() and handle_msg() do */
+static void put_data(long long ms, unsigned bytes)
+{
+  struct timespec ts;
+
+  ts = ms2ts(ms);
+  stats_tick(&stats, &ts);
+  stats.rcvd.bytes += bytes;
+  stats.rcvd.proto[MSG_TYPE_NMEA].msgs += 10;
+  stats.pipeline.fixes += 1;
+}
+
+static void tick(long long ms)
+{
+  struct timespec ts;
+
+  ts = ms2ts(ms);
+  stats_tick(&stats, &ts);
+}
+
+static unsigned long long sum(unsigned window, unsigned counter)
+{
+  return stats.rates.sum[window][counter];
+}
+
+static void test_drain(long long start_ms)
+{
+  long long ms, quiet_ms;
+  unsigned i, ticks;
+
+  stats_init(&stats);
+
+  /* Steady traffic, 10 reads per second */
+  for (ms = start_ms; ms < start_ms + DATA_SECONDS * 1000; ms += 100)
+    put_data(ms, BYTES_PER_SECOND / 10);
+  quiet_ms = ms;
+
+  CHECK(sum(WINDOW_10S, STATS_RATE_BYTES) == 10 * BYTES_PER_SECOND);
+  CHECK(sum(WINDOW_60S, STATS_RATE_FIXES) > 0);
+  CHECK(!stats_rates_are_drained(&stats));
+
+  /* The timeout, then the idle ticks until the windows are drained */
+  ms = quiet_ms - 100 + READ_TIMEOUT_MS;
+  tick(ms);
+  for (ticks = 0; !stats_rates_are_drained(&stats); ++ticks) {
+    CHECK(ticks < 70);
+    ms += IDLE_TICK_MS;
+    tick(ms);
+
+    if (ms - quiet_ms >= 2000)
+      CHECK(sum(WINDOW_1S, STATS_RATE_BYTES) == 0);
+    if (ms - quiet_ms >= 11000)
+      CHECK(sum(WINDOW_10S, STATS_RATE_BYTES) == 0);
+    if (ms - quiet_ms < 59000)
+      CHECK(sum(WINDOW_60S, STATS_RATE_BYTES) > 0);
+  }
+
+  /* Drained within a few ticks after the 60 s window has passed */
+  CHECK(ms - quiet_ms >= 60000 && ms - quiet_ms <= 63000);
+  for (i = 0; i < STATS_RATE_NB; ++i) {
+    CHECK(sum(WINDOW_1S, i) == 0);
+    CHECK(sum(WINDOW_10S, i) == 0);
+    CHECK(sum(WINDOW_60S, i) == 0);
+  }
+
+  /* Traffic again after the loop has blocked */
+  ms += 3600 * 1000;
+  put_data(ms, 500);
+  CHECK(!stats_rates_are_drained(&stats));
+  tick(ms + 1000);
+  CHECK(sum(WINDOW_1S, STATS_RATE_BYTES) == 500);
+  CHECK(sum(WINDOW_60S, STATS_RATE_BYTES) == 500);
+}
+
+static void test_publish_ts(void)
+{
+  static struct stats_snapshot_t snapshot;
+  struct timespec ts;
+  long long before_ms;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  before_ms = (long long)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+  stats_publish(&stats, &snapshot);
+  CHECK(snapshot.publish_ts >= before_ms && snapshot.publish_ts <= before_ms + 1000);
+}
+
+int main(void)
+{
+  /* Seconds aligned and not aligned to the reads */
+  test_drain(1000000);
+  test_drain(1000050);
+  test_drain(1000999);
+  test_publish_ts();
+  printf("ok\n");
+  return 0;
+}
@@ -0,0 +1,264 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * u-blox NAV-PVT / NAV-POSLLH / NAV-STATUS decoding and fix validity
+ */
+
+#include <math.h>
+#include <stdbool.h>
+
+#include <jni.h>
+
+#include "usbconverter.h"
+#include "testutil.h"
+
+#define ITOW 475200000u
+
+/* Horizontal accuracy reported by receivers without a fix, mm */
+#define HACC_NO_FIX 0xffffffffu
+
+static struct stats_t stats;
+static struct ublox_parser_t parser;
+static struct gps_msg_status_t status;
+
+static bool near(double a, double b)
+{
+  return fabs(a - b) < 1e-6;
+}
+
+static void put_u2(uint8_t *p, unsigned v)
+{
+  p[0] = (uint8_t)v;
+  p[1] = (uint8_t)(v >> 8);
+}
+
+static void put_u4(uint8_t *p, uint32_t v)
+{
+  p[0] = (uint8_t)v;
+  p[1] = (uint8_t)(v >> 8);
+  p[2] = (uint8_t)(v >> 16);
+  p[3] = (uint8_t)(v >> 24);
+}
+
+static void put_msg(unsigned id, const uint8_t *payload, size_t len, long long epoch_sec)
+{
+  uint8_t msg[128];
+  size_t size;
+
+  size = make_ublox(msg, 0x01, id, payload, len);
+  memset(&status, 0, sizeof(status));
+  status.epoch_ts.tv_sec = epoch_sec;
+  CHECK(put_ublox_msg(&parser, msg, size, &status));
+}
+
+static void put_posllh(unsigned itow, uint32_t hacc, long long epoch_sec)
+{
+  uint8_t p[28];
+
+  put_u4(&p[0], itow);
+  put_u4(&p[4], (uint32_t)376234000);    /* lon 37.6234 */
+  put_u4(&p[8], (uint32_t)557512000);    /* lat 55.7512 */
+  put_u4(&p[12], 165500);                /* height 165.5 m */
+  put_u4(&p[16], 150500);                /* hMSL 150.5 m */
+  put_u4(&p[20], hacc);
+  put_u4(&p[24], 3500);
+  put_msg(0x02, p, sizeof(p), epoch_sec);
+}
+
+static void put_status(unsigned itow, unsigned fix_type, unsigned flags)
+{
+  uint8_t p[16];
+
+  memset(p, 0, sizeof(p));
+  put_u4(&p[0], itow);
+  p[4] = (uint8_t)fix_type;
+  p[5] = (uint8_t)flags;
+  put_msg(0x03, p, sizeof(p), 0);
+}
+
+static void put_pvt(unsigned itow, unsigned fix_type, unsigned flags)
+{
+  uint8_t p[92];
+
+  memset(p, 0, sizeof(p));
+  put_u4(&p[0], itow);
+  put_u2(&p[4], 2026);
+  p[6] = 10;                             /* month */
+  p[7] = 16;                             /* day */
+  p[8] = 12;
+  p[9] = 0;
+  p[10] = 0;
+  p[11] = 0x03;                          /* validDate, validTime */
+  put_u4(&p[16], (uint32_t)-250000000);  /* nano: -0.25 s */
+  p[20] = (uint8_t)fix_type;
+  p[21] = (uint8_t)flags;
+  p[23] = 11;                            /* numSV */
+  put_u4(&p[24], (uint32_t)-1224000000); /* lon -122.4 */
+  put_u4(&p[28], (uint32_t)377500000);   /* lat 37.75 */
+  put_u4(&p[32], 20000);
+  put_u4(&p[36], 12250);                 /* hMSL 12.25 m */
+  put_u4(&p[40], 1500);                  /* hAcc 1.5 m */
+  put_u4(&p[60], 2500);                  /* gSpeed 2.5 m/s */
+  put_u4(&p[64], 9000000);               /* headMot 90 deg */
+  put_u2(&p[76], 123);                   /* pDOP 1.23 */
+  put_msg(0x07, p, sizeof(p), 0);
+}
+
+static void reset(void)
+{
+  memset(&parser, 0, sizeof(parser));
+  parser.stats = &stats;
+  reset_ublox_parser(&parser);
+}
+
+static void test_pvt_decode(void)
+{
+  struct location_t *l = &status.location;
+
+  reset();
+  put_pvt(ITOW, 3, 0x01);
+  CHECK(status.location_changed);
+  CHECK(l->is_valid);
+  /* 2026-10-16 12:00:00 UTC - 0.25 s */
+  CHECK(l->time == 1792152000000ll - 250);
+  CHECK(near(l->longitude, -122.4));
+  CHECK(near(l->latitude, 37.75));
+  CHECK(l->has_altitude && near(l->altitude, 12.25));
+  CHECK(l->has_accuracy && near(l->accuracy, 1.5));
+  CHECK(l->has_speed && near(l->speed, 2.5));
+  CHECK(l->has_bearing && near(l->bearing, 90.0));
+  CHECK(near(l->pdop, 1.23f));
+  CHECK(l->satellites == 11);
+
+  /* 2D fix has no altitude */
+  put_pvt(ITOW + 1000, 2, 0x01);
+  CHECK(l->is_valid && !l->has_altitude);
+}
+
+static void test_pvt_validity(void)
+{
+  reset();
+  put_pvt(ITOW, 3, 0x00);
+  CHECK(status.location_changed && !status.location.is_valid);
+  put_pvt(ITOW, 0, 0x01);
+  CHECK(status.location_changed && !status.location.is_valid);
+  put_pvt(ITOW, 5, 0x01);
+  CHECK(status.location_changed && !status.location.is_valid);
+  /* Dead reckoning only: valid without gnssFixOK */
+  put_pvt(ITOW, 1, 0x00);
+  CHECK(status.location_changed && status.location.is_valid);
+}
+
+static void test_status_validity(void)
+{
+  static const struct {
+    unsigned fix_type;
+    unsigned flags;
+    bool valid;
+  } cases[] = {
+    { 0, 0x01, false },
+    { 1, 0x00, true },   /* Dead reckoning only, same as NAV-PVT */
+    { 2, 0x00, false },
+    { 2, 0x01, true },
+    { 3, 0x01, true },
+    { 4, 0x01, true },
+    { 5, 0x01, false },  /* Time only */
+  };
+  unsigned i;
+
+  for (i = 0; i < ARRAY_SIZE(cases); ++i) {
+    reset();
+    put_status(ITOW, cases[i].fix_type, cases[i].flags);
+    CHECK(!status.location_changed);
+    put_posllh(ITOW, 2000, 0);
+    CHECK(status.location_changed);
+    CHECK(status.location.is_valid == cases[i].valid);
+  }
+}
+
+static void test_posllh_decode(void)
+{
+  struct location_t *l = &status.location;
+
+  reset();
+  put_pvt(ITOW, 3, 0x01);
+  put_posllh(ITOW + 1000, 2500, 0);
+  CHECK(status.location_changed && l->is_valid);
+  CHECK(l->time == 1792152000000ll - 250 + 1000);
+  CHECK(near(l->longitude, 37.6234));
+  CHECK(near(l->latitude, 55.7512));
+  CHECK(l->has_altitude && near(l->altitude, 150.5));
+  CHECK(l->has_accuracy && near(l->accuracy, 2.5));
+  CHECK(!l->has_speed && !l->has_bearing);
+}
+
+static void test_posllh_without_status(void)
+{
+  reset();
+  put_posllh(ITOW, 2500, 0);
+  CHECK(status.location_changed && status.location.is_valid);
+  put_posllh(ITOW + 1000, HACC_NO_FIX, 0);
+  CHECK(status.location_changed && !status.location.is_valid);
+  put_posllh(ITOW + 2000, 2500, 0);
+  CHECK(status.location_changed && status.location.is_valid);
+}
+
+static void test_posllh_ignored_after_pvt(void)
+{
+  reset();
+  put_pvt(ITOW, 3, 0x01);
+  put_posllh(ITOW, 2500, 0);
+  CHECK(!status.location_changed);
+}
+
+/*
+ * Receiver sends NAV-POSLLH before NAV-STATUS of the epoch
+ */
+static void test_posllh_held_until_status(void)
+{
+  reset();
+
+  /* First epoch: order is not known yet, reported by hAcc */
+  put_posllh(ITOW, 2500, 1);
+  CHECK(status.location_changed && status.location.is_valid);
+  put_status(ITOW, 3, 0x01);
+  CHECK(!status.location_changed);
+
+  /* Next epochs: held until the status */
+  put_posllh(ITOW + 1000, 2500, 2);
+  CHECK(!status.location_changed);
+  put_status(ITOW + 1000, 0, 0x00);
+  CHECK(status.location_changed && !status.location.is_valid);
+  CHECK(status.epoch_ts.tv_sec == 2);
+
+  put_posllh(ITOW + 2000, 2500, 3);
+  CHECK(!status.location_changed);
+  put_status(ITOW + 2000, 3, 0x01);
+  CHECK(status.location_changed && status.location.is_valid);
+  CHECK(status.epoch_ts.tv_sec == 3);
+  CHECK(near(status.location.latitude, 55.7512));
+
+  /* Status of another epoch does not release the held fix */
+  put_posllh(ITOW + 3000, 2500, 4);
+  put_status(ITOW + 2000, 3, 0x01);
+  CHECK(!status.location_changed);
+
+  /* Status lost: the held fix is superseded, the next one goes by hAcc */
+  put_posllh(ITOW + 4000, HACC_NO_FIX, 5);
+  CHECK(status.location_changed && !status.location.is_valid);
+  put_posllh(ITOW + 5000, 2500, 6);
+  CHECK(status.location_changed && status.location.is_valid);
+}
+
+int main(void)
+{
+  test_pvt_decode();
+  test_pvt_validity();
+  test_status_validity();
+  test_posllh_decode();
+  test_posllh_without_status();
+  test_posllh_ignored_after_pvt();
+  test_posllh_held_until_status();
+  printf("ok\n");
+  return 0;
+}
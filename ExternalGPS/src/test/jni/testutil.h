@@ -0,0 +1,157 @@
+/* vim: set tabstop=2 shiftwidth=2 expandtab: */
+
+/*
+ * Helpers shared by the host tests and benchmarks: timing, a reproducible
+ * random generator and builders of checksummed frames.
+ */
+
+#ifndef _TESTUTIL_H
+#define _TESTUTIL_H
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#define ARRAY_SIZE(a) (sizeof(a) / sizeof((a)[0]))
+
+#define CHECK(cond) do { \
+  if (!(cond)) { \
+    fprintf(stderr, "%s:%d: check failed: %s\n", __FILE__, __LINE__, #cond); \
+    exit(1); \
+  } \
+} while (0)
+
+static inline double now_sec(void)
+{
+  struct timespec ts;
+
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (double)ts.tv_sec + (double)ts.tv_nsec * 1e-9;
+}
+
+/*
+ * xorshift32. Same sequence on every libc, unlike rand()
+ */
+static uint32_t test_rand_state = 2463534242u;
+
+static inline void test_srand(uint32_t seed)
+{
+  test_rand_state = seed ? seed : 2463534242u;
+}
+
+static inline uint32_t test_rand(void)
+{
+  uint32_t x = test_rand_state;
+
+  x ^= x << 13;
+  x ^= x >> 17;
+  x ^= x << 5;
+  test_rand_state = x;
+  return x;
+}
+
+/* Uniform in [0, n) */
+static inline unsigned test_rand_below(unsigned n)
+{
+  return (unsigned)(((uint64_t)test_rand() * n) >> 32);
+}
+
+/*
+ * Writes "$<body>*XX\r\n" to dst. Returns the sentence length
+ */
+static inline size_t make_nmea(uint8_t *dst, const char *body)
+{
+  unsigned csum;
+  size_t len;
+  const char *p;
+
+  csum = 0;
+  for (p = body; *p; ++p)
+    csum ^= (uint8_t)*p;
+  len = (size_t)sprintf((char *)dst, "$%s*%02X\r\n", body, csum);
+  return len;
+}
+
+/*
+ * Writes a UBX frame with the given payload to dst. Returns the frame length
+ */
+static inline size_t make_ublox(uint8_t *dst, unsigned cls, unsigned id,
+    const uint8_t *payload, size_t payload_len)
+{
+  size_t i;
+  uint8_t ck_a, ck_b;
+
+  dst[0] = 0xb5;
+  dst[1] = 0x62;
+  dst[2] = (uint8_t)cls;
+  dst[3] = (uint8_t)id;
+  dst[4] = (uint8_t)(payload_len & 0xff);
+  dst[5] = (uint8_t)(payload_len >> 8);
+  if (payload_len)
+    memcpy(&dst[6], payload, payload_len);
+  ck_a = ck_b = 0;
+  for (i = 2; i < 6 + payload_len; ++i) {
+    ck_a += dst[i];
+    ck_b += ck_a;
+  }
+  dst[6 + payload_len] = ck_a;
+  dst[7 + payload_len] = ck_b;
+  return payload_len + 8;
+}
+
+/*
+ * Writes a SiRF binary frame with the given payload to dst.
+ * Returns the frame length
+ */
+static inline size_t make_sirf(uint8_t *dst, const uint8_t *payload, size_t payload_len)
+{
+  size_t i;
+  unsigned csum;
+
+  dst[0] = 0xa0;
+  dst[1] = 0xa2;
+  dst[2] = (uint8_t)(payload_len >> 8);
+  dst[3] = (uint8_t)(payload_len & 0xff);
+  memcpy(&dst[4], payload, payload_len);
+  csum = 0;
+  for (i = 0; i < payload_len; ++i)
+    csum = (csum + payload[i]) & 0x7fff;
+  dst[4 + payload_len] = (uint8_t)(csum >> 8);
+  dst[5 + payload_len] = (uint8_t)(csum & 0xff);
+  dst[6 + payload_len] = 0xb0;
+  dst[7 + payload_len] = 0xb3;
+  return payload_len + 8;
+}
+
+/*
+ * Writes an RTCM 3 frame with the given payload to dst.
+ * Returns the frame length
+ */
+static inline size_t make_rtcm3(uint8_t *dst, const uint8_t *payload, size_t payload_len)
+{
+  size_t i;
+  unsigned k;
+  uint32_t crc;
+
+  dst[0] = 0xd3;
+  dst[1] = (uint8_t)((payload_len >> 8) & 0x03);
+  dst[2] = (uint8_t)(payload_len & 0xff);
+  memcpy(&dst[3], payload, payload_len);
+  crc = 0;
+  for (i = 0; i < 3 + payload_len; ++i) {
+    crc ^= (uint32_t)dst[i] << 16;
+    for (k = 0; k < 8; ++k) {
+      crc <<= 1;
+      if (crc & 0x1000000)
+        crc ^= 0x1864cfb;
+    }
+  }
+  dst[3 + payload_len] = (uint8_t)(crc >> 16);
+  dst[4 + payload_len] = (uint8_t)(crc >> 8);
+  dst[5 + payload_len] = (uint8_t)crc;
+  return payload_len + 6;
+}
+
+#endif /* _TESTUTIL_H */